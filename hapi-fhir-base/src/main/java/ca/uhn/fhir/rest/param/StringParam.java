@@ -34,6 +34,7 @@ public class StringParam extends BaseParam implements IQueryParameterType {
 	private boolean myExact;
 	private String myValue;
 	private boolean myContains;
+	private boolean myText;
 
 	public StringParam() {
 	}
@@ -53,6 +54,8 @@ public class StringParam extends BaseParam implements IQueryParameterType {
 			return Constants.PARAMQUALIFIER_STRING_EXACT;
 		} else if (isContains()) {
 			return Constants.PARAMQUALIFIER_STRING_CONTAINS;
+		} else if (isText()) {
+			return Constants.PARAMQUALIFIER_STRING_TEXT;
 		} else {
 			return null;
 		}
@@ -75,6 +78,11 @@ public class StringParam extends BaseParam implements IQueryParameterType {
 		} else {
 			setContains(false);
 		}
+		if (Constants.PARAMQUALIFIER_STRING_TEXT.equals(theQualifier)) {
+			setText(true);
+		} else {
+			setText(false);
+		}
 		myValue = ParameterUtil.unescape(theValue);
 	}
 
@@ -102,6 +110,7 @@ public class StringParam extends BaseParam implements IQueryParameterType {
 		myExact = theExact;
 		if (myExact) {
 			setContains(false);
+			setText(false);
 			setMissing(null);
 		}
 		return this;
@@ -114,6 +123,13 @@ public class StringParam extends BaseParam implements IQueryParameterType {
 		return myContains;
 	}
 
+	/**
+	 * String parameter modifier <code>:text</code>
+	 */
+	public boolean isText() {
+		return myText;
+	}
+
 	public StringParam setValue(String theValue) {
 		myValue = theValue;
 		return this;
@@ -129,6 +145,9 @@ public class StringParam extends BaseParam implements IQueryParameterType {
 		if (myContains) {
 			builder.append("contains", myContains);
 		}
+		if (myText) {
+			builder.append("text", myText);
+		}
 		if (getMissing() != null) {
 			builder.append("missing", getMissing().booleanValue());
 		}
@@ -142,6 +161,20 @@ public class StringParam extends BaseParam implements IQueryParameterType {
 		myContains = theContains;
 		if (myContains) {
 			setExact(false);
+			setText(false);
+			setMissing(null);
+		}
+		return this;
+	}
+
+	/**
+	 * String parameter modifier <code>:text</code>
+	 */
+	public StringParam setText(boolean theText) {
+		myText = theText;
+		if (myText) {
+			setExact(false);
+			setContains(false);
 			setMissing(null);
 		}
 		return this;
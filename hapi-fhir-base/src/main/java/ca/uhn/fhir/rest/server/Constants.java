@@ -127,6 +127,7 @@ public class Constants {
 	public static final String PARAMQUALIFIER_MISSING_FALSE = "false";
 	public static final String PARAMQUALIFIER_MISSING_TRUE = "true";
 	public static final String PARAMQUALIFIER_STRING_EXACT = ":exact";
+	public static final String PARAMQUALIFIER_STRING_TEXT = ":text";
 	public static final String PARAMQUALIFIER_STRING_CONTAINS = ":contains";
 	public static final String PARAMQUALIFIER_TOKEN_TEXT = ":text";
 	public static final int STATUS_HTTP_200_OK = 200;
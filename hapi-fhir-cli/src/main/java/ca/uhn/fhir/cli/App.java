@@ -37,6 +37,7 @@ public class App {
 		ourCommands = new ArrayList<BaseCommand>();
 		ourCommands.add(new RunServerCommand());
 		ourCommands.add(new ExampleDataUploader());
+		ourCommands.add(new ImportCommand());
 		ourCommands.add(new ValidateCommand());
 		ourCommands.add(new ValidationDataUploader());
 		ourCommands.add(new WebsocketSubscribeCommand());
@@ -0,0 +1,233 @@
+package ca.uhn.fhir.cli;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.instance.model.api.IBaseParameters;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.IGenericClient;
+import ca.uhn.fhir.rest.client.interceptor.GZipContentInterceptor;
+import ca.uhn.fhir.util.ParametersUtil;
+
+public class ImportCommand extends BaseCommand {
+
+	private static final int DEFAULT_CHUNK_SIZE = 1000;
+	private static final int DEFAULT_THREADS = 4;
+	private static final String SPEC_DEFAULT_VERSION = "dstu2";
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ImportCommand.class);
+
+	@Override
+	public String getCommandDescription() {
+		return "Reads NDJSON files (one JSON resource per line, such as the files written by $export) and loads them into a HAPI FHIR JPA server using the $import operation. "
+				+ "By default the resources are stored without being indexed, so that they can refer to each other in any order, and a $reindex job is started once everything has been loaded. "
+				+ "Imported resources are not matched against subscriptions unless -i is used.";
+	}
+
+	@Override
+	public String getCommandName() {
+		return "import-ndjson";
+	}
+
+	@Override
+	public Options getOptions() {
+		Options options = new Options();
+		Option opt;
+
+		opt = new Option("f", "fhirversion", true, "Spec version of the resources (default is '" + SPEC_DEFAULT_VERSION + "')");
+		opt.setRequired(false);
+		options.addOption(opt);
+
+		opt = new Option("t", "target", true, "Base URL for the target server (e.g. \"http://example.com/fhir\")");
+		opt.setRequired(true);
+		options.addOption(opt);
+
+		opt = new Option("d", "data", true, "An NDJSON file, or a directory containing NDJSON files, to import");
+		opt.setRequired(true);
+		options.addOption(opt);
+
+		opt = new Option("c", "chunk", true, "Number of resources sent in each $import request, each of which is stored in one transaction (default is " + DEFAULT_CHUNK_SIZE + ")");
+		opt.setRequired(false);
+		options.addOption(opt);
+
+		opt = new Option("n", "threads", true, "Number of requests sent to the server concurrently (default is " + DEFAULT_THREADS + ")");
+		opt.setRequired(false);
+		options.addOption(opt);
+
+		opt = new Option("i", "index-immediately", false, "Index each request's resources as they are stored (and match them against subscriptions) instead of starting a $reindex job at the end. Every reference must then point to a resource in the same request or one which already exists, so use this only for data without references between requests");
+		opt.setRequired(false);
+		options.addOption(opt);
+
+		return options;
+	}
+
+	@Override
+	public void run(CommandLine theCommandLine) throws Exception {
+		String specVersion = theCommandLine.getOptionValue("f", SPEC_DEFAULT_VERSION);
+		String targetServer = theCommandLine.getOptionValue("t");
+		if (isBlank(targetServer)) {
+			throw new ParseException("No target server (-t) specified");
+		} else if (targetServer.startsWith("http") == false) {
+			throw new ParseException("Invalid target server specified, must begin with 'http'");
+		}
+
+		int chunkSize = parsePositiveInt(theCommandLine, "c", DEFAULT_CHUNK_SIZE);
+		int threads = parsePositiveInt(theCommandLine, "n", DEFAULT_THREADS);
+		boolean deferIndexing = !theCommandLine.hasOption("i");
+
+		List<File> files = new ArrayList<File>();
+		File data = new File(theCommandLine.getOptionValue("d"));
+		if (data.isDirectory()) {
+			File[] children = data.listFiles();
+			Arrays.sort(children);
+			for (File next : children) {
+				if (next.isFile() && next.getName().endsWith(".ndjson")) {
+					files.add(next);
+				}
+			}
+		} else if (data.isFile()) {
+			files.add(data);
+		} else {
+			throw new ParseException("Data file or directory does not exist: " + data.getAbsolutePath());
+		}
+
+		final FhirContext ctx;
+		if (SPEC_DEFAULT_VERSION.equals(specVersion)) {
+			ctx = FhirContext.forDstu2();
+		} else if ("dstu2.1".equals(specVersion)) {
+			ctx = FhirContext.forDstu2_1();
+		} else {
+			throw new ParseException("Unknown spec version: " + specVersion);
+		}
+
+		final IGenericClient client = newClient(ctx, targetServer);
+		client.registerInterceptor(new GZipContentInterceptor());
+
+		/*
+		 * The queue is bounded and the caller runs chunks itself when it is full, so that we never hold more than a
+		 * few chunks of the files in memory at once
+		 */
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads), new ThreadPoolExecutor.CallerRunsPolicy());
+		final AtomicLong imported = new AtomicLong();
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		long start = System.currentTimeMillis();
+
+		try {
+			for (File nextFile : files) {
+				ourLog.info("Importing {}", nextFile.getName());
+				BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(nextFile), "UTF-8"));
+				try {
+					StringBuilder chunk = new StringBuilder();
+					int chunkCount = 0;
+					String line;
+					while ((line = reader.readLine()) != null) {
+						if (isBlank(line)) {
+							continue;
+						}
+						chunk.append(line).append('\n');
+						if (++chunkCount == chunkSize) {
+							futures.add(executor.submit(new ImportTask(ctx, client, chunk.toString(), deferIndexing, imported)));
+							chunk.setLength(0);
+							chunkCount = 0;
+						}
+					}
+					if (chunkCount > 0) {
+						futures.add(executor.submit(new ImportTask(ctx, client, chunk.toString(), deferIndexing, imported)));
+					}
+				} finally {
+					IOUtils.closeQuietly(reader);
+				}
+			}
+
+			for (Future<Void> next : futures) {
+				try {
+					next.get();
+				} catch (ExecutionException e) {
+					throw new CommandFailureException("Failed to import resources: " + e.getCause().getMessage());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		long delay = System.currentTimeMillis() - start;
+		ourLog.info("Imported {} resources in {} ms ({} resources/second)", new Object[] { imported.get(), delay, (imported.get() * 1000L) / Math.max(delay, 1) });
+
+		if (deferIndexing) {
+			ourLog.info("Starting a reindex job for the imported resources");
+			IBaseParameters output = client.operation().onServer().named("$reindex").withNoParameters(ParametersUtil.newInstance(ctx).getClass()).execute();
+			ourLog.info("Reindex job started, use $reindex-status to follow its progress: {}", ctx.newJsonParser().encodeResourceToString(output));
+		}
+	}
+
+	private static int parsePositiveInt(CommandLine theCommandLine, String theOpt, int theDefault) throws ParseException {
+		String value = theCommandLine.getOptionValue(theOpt);
+		if (isNotBlank(value)) {
+			try {
+				int retVal = Integer.parseInt(value);
+				if (retVal > 0) {
+					return retVal;
+				}
+			} catch (NumberFormatException e) {
+				// fall through
+			}
+			throw new ParseException("Invalid value for -" + theOpt + " option, must be a positive number: " + value);
+		}
+		return theDefault;
+	}
+
+	private static class ImportTask implements Callable<Void> {
+
+		private final IGenericClient myClient;
+		private final FhirContext myCtx;
+		private final boolean myDeferIndexing;
+		private final AtomicLong myImported;
+		private final String myNdjson;
+
+		public ImportTask(FhirContext theCtx, IGenericClient theClient, String theNdjson, boolean theDeferIndexing, AtomicLong theImported) {
+			myCtx = theCtx;
+			myClient = theClient;
+			myNdjson = theNdjson;
+			myDeferIndexing = theDeferIndexing;
+			myImported = theImported;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			IBaseParameters input = ParametersUtil.newInstance(myCtx);
+			ParametersUtil.addParameterToParameters(myCtx, input, myCtx.getElementDefinition("string").newInstance(myNdjson), "ndjson");
+			if (myDeferIndexing) {
+				ParametersUtil.addParameterToParameters(myCtx, input, myCtx.getElementDefinition("string").newInstance("true"), "deferIndexing");
+			}
+
+			myClient.operation().onServer().named("$import").withParameters(input).execute();
+
+			long total = myImported.addAndGet(myNdjson.split("\n").length);
+			ourLog.info("Imported {} resources so far", total);
+			return null;
+		}
+
+	}
+
+}
@@ -20,6 +20,8 @@ package ca.uhn.fhir.jpa.config;
  * #L%
  */
 
+import java.util.concurrent.ThreadPoolExecutor;
+
 import javax.annotation.Resource;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -33,10 +35,18 @@ import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
 import org.springframework.scheduling.TaskScheduler;
 import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
 import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.BulkExportSvc;
+import ca.uhn.fhir.jpa.dao.ForcedIdCacheSvc;
+import ca.uhn.fhir.jpa.dao.ParsedResourceCacheSvc;
+import ca.uhn.fhir.jpa.dao.TagDefinitionCacheSvc;
+import ca.uhn.fhir.jpa.dao.SubscriptionMatcherSvc;
+import ca.uhn.fhir.jpa.search.SearchResultCacheSvc;
+import ca.uhn.fhir.jpa.search.StaleSearchDeletingSvc;
 
 @Configuration
 @EnableScheduling
@@ -103,6 +113,109 @@ public class BaseConfig implements SchedulingConfigurer {
 		theTaskRegistrar.setTaskScheduler(taskScheduler());
 	}
 
+	/**
+	 * Thread pool used to process the entries in a batch bundle in parallel (see
+	 * {@link ca.uhn.fhir.jpa.dao.DaoConfig#setBatchParallelism(int)}), shared by all batches being processed at once.
+	 * If all threads are busy and the queue is full, the requesting thread processes the entries itself.
+	 */
+	@Bean(name = "myBatchExecutor")
+	public ThreadPoolTaskExecutor batchExecutor() {
+		ThreadPoolTaskExecutor retVal = newFixedSizeExecutor("batch-", 20);
+		retVal.setQueueCapacity(100);
+		retVal.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+		return retVal;
+	}
+
+	@Bean
+	public BulkExportSvc bulkExportSvc() {
+		return new BulkExportSvc();
+	}
+
+	@Bean
+	public ForcedIdCacheSvc forcedIdCacheSvc() {
+		return new ForcedIdCacheSvc();
+	}
+
+	@Bean
+	public ParsedResourceCacheSvc parsedResourceCacheSvc() {
+		return new ParsedResourceCacheSvc();
+	}
+
+	@Bean
+	public TagDefinitionCacheSvc tagDefinitionCacheSvc() {
+		return new TagDefinitionCacheSvc();
+	}
+
+	/**
+	 * Creates a thread pool with a fixed number of threads, which are stopped when they have been idle for a while.
+	 * A {@link ThreadPoolTaskExecutor} only starts threads beyond its core pool size once its queue is full, so the
+	 * core size is always what limits concurrency and the pools here set it to the maximum.
+	 */
+	private static ThreadPoolTaskExecutor newFixedSizeExecutor(String theThreadNamePrefix, int theThreads) {
+		ThreadPoolTaskExecutor retVal = new ThreadPoolTaskExecutor();
+		retVal.setCorePoolSize(theThreads);
+		retVal.setMaxPoolSize(theThreads);
+		retVal.setAllowCoreThreadTimeOut(true);
+		retVal.setThreadNamePrefix(theThreadNamePrefix);
+		return retVal;
+	}
+
+	/**
+	 * Thread pool used to reindex the chunks of a reindex job concurrently (see
+	 * {@link ca.uhn.fhir.jpa.dao.DaoConfig#setReindexParallelism(int)}, which can't usefully be set higher than the
+	 * size of this pool). If all threads are busy and the queue is full, the scheduler thread reindexes the chunk
+	 * itself.
+	 */
+	@Bean(name = "myReindexExecutor")
+	public ThreadPoolTaskExecutor reindexExecutor() {
+		ThreadPoolTaskExecutor retVal = newFixedSizeExecutor("reindex-", 10);
+		retVal.setQueueCapacity(20);
+		retVal.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+		return retVal;
+	}
+
+	/**
+	 * Thread pool used to parse the resources in a page of search results in parallel (see
+	 * {@link ca.uhn.fhir.jpa.dao.DaoConfig#setParallelParseThreshold(int)}). If all threads are busy and the queue is
+	 * full, the requesting thread parses the resource itself.
+	 */
+	@Bean(name = "myResourceParsingExecutor")
+	public ThreadPoolTaskExecutor resourceParsingExecutor() {
+		int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+		ThreadPoolTaskExecutor retVal = new ThreadPoolTaskExecutor();
+		retVal.setCorePoolSize(threads);
+		retVal.setMaxPoolSize(threads);
+		retVal.setQueueCapacity(1000);
+		retVal.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+		retVal.setThreadNamePrefix("resource-parsing-");
+		return retVal;
+	}
+
+	/**
+	 * Thread pool used to read the remaining results of streaming searches in the background (see
+	 * {@link ca.uhn.fhir.jpa.dao.DaoConfig#setStreamingSearchEnabled(boolean)}). Searches which are started while all
+	 * threads are busy wait in an unbounded queue.
+	 */
+	@Bean(name = "mySearchStreamingExecutor")
+	public ThreadPoolTaskExecutor searchStreamingExecutor() {
+		return newFixedSizeExecutor("search-streaming-", 10);
+	}
+
+	@Bean
+	public SearchResultCacheSvc searchResultCacheSvc() {
+		return new SearchResultCacheSvc();
+	}
+
+	@Bean
+	public StaleSearchDeletingSvc staleSearchDeletingSvc() {
+		return new StaleSearchDeletingSvc();
+	}
+
+	@Bean
+	public SubscriptionMatcherSvc subscriptionMatcherSvc() {
+		return new SubscriptionMatcherSvc();
+	}
+
 	@Bean
 	public TaskScheduler taskScheduler() {
 		ThreadPoolTaskScheduler retVal = new ThreadPoolTaskScheduler();
@@ -22,12 +22,11 @@ package ca.uhn.fhir.jpa.dao;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
-import java.io.UnsupportedEncodingException;
+import java.io.Reader;
 import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -35,6 +34,9 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
@@ -49,6 +51,7 @@ import javax.persistence.criteria.Root;
 import javax.xml.stream.events.Characters;
 import javax.xml.stream.events.XMLEvent;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.NotImplementedException;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.NameValuePair;
@@ -65,15 +68,12 @@ import org.hl7.fhir.instance.model.api.IDomainResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.transaction.PlatformTransactionManager;
-import org.springframework.transaction.TransactionStatus;
-import org.springframework.transaction.support.TransactionCallback;
-import org.springframework.transaction.support.TransactionTemplate;
 
-import com.google.common.base.Function;
 import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Collections2;
-import com.google.common.collect.Lists;
 
 import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
 import ca.uhn.fhir.context.ConfigurationException;
@@ -82,6 +82,7 @@ import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.context.RuntimeChildResourceDefinition;
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.dao.SearchParamExtractionPlan.ExtractedValues;
 import ca.uhn.fhir.jpa.entity.BaseHasResource;
 import ca.uhn.fhir.jpa.entity.BaseResourceIndexedSearchParam;
 import ca.uhn.fhir.jpa.entity.BaseTag;
@@ -101,8 +102,8 @@ import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.entity.ResourceTag;
 import ca.uhn.fhir.jpa.entity.TagDefinition;
 import ca.uhn.fhir.jpa.entity.TagTypeEnum;
+import ca.uhn.fhir.jpa.search.SearchResultCacheSvc;
 import ca.uhn.fhir.jpa.util.DeleteConflict;
-import ca.uhn.fhir.jpa.util.StopWatch;
 import ca.uhn.fhir.model.api.IQueryParameterAnd;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.model.api.IResource;
@@ -140,7 +141,6 @@ import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor.ActionRequestDetails;
 import ca.uhn.fhir.util.CoverageIgnore;
-import ca.uhn.fhir.util.FhirTerser;
 import ca.uhn.fhir.util.OperationOutcomeUtil;
 
 public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
@@ -200,8 +200,31 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 
 	private Map<Class<? extends IBaseResource>, IFhirResourceDao<?>> myResourceTypeToDao;
 
+	@Autowired(required = false)
+	private ForcedIdCacheSvc myForcedIdCache;
+
+	@Autowired(required = false)
+	private ParsedResourceCacheSvc myParsedResourceCache;
+
+	@Autowired(required = false)
+	private TagDefinitionCacheSvc myTagDefinitionCache;
+
 	private ISearchParamExtractor mySearchParamExtractor;
 
+	@Autowired(required = false)
+	private SearchResultCacheSvc mySearchResultCache;
+
+	@Autowired(required = false)
+	private SubscriptionMatcherSvc mySubscriptionMatcher;
+
+	@Autowired(required = false)
+	@Qualifier("myResourceParsingExecutor")
+	private AsyncTaskExecutor myResourceParsingExecutor;
+
+	@Autowired(required = false)
+	@Qualifier("mySearchStreamingExecutor")
+	private TaskExecutor mySearchStreamingExecutor;
+
 	protected void createForcedIdIfNeeded(ResourceTable entity, IIdType id) {
 		if (id.isEmpty() == false && id.hasIdPart()) {
 			if (isValidPid(id)) {
@@ -237,10 +260,32 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	// myResourceDaos = theResourceDaos;
 	// }
 
-	protected Set<ResourceLink> extractResourceLinks(ResourceTable theEntity, IBaseResource theResource) {
+	protected Set<ResourceLink> extractResourceLinks(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		Set<ResourceLink> retVal = new HashSet<ResourceLink>();
-
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
+
+		/*
+		 * Resolve all of the client assigned IDs which are referenced by the resource using a single query, so that
+		 * the lookups for each individual reference below are answered from the forced ID cache
+		 */
+		if (myForcedIdCache != null && myForcedIdCache.isEnabled()) {
+			List<IIdType> referencedIds = new ArrayList<IIdType>();
+			for (RuntimeSearchParam nextSpDef : def.getSearchParams()) {
+				if (nextSpDef.getParamType() != RestSearchParameterTypeEnum.REFERENCE || isBlank(nextSpDef.getPath())) {
+					continue;
+				}
+				for (Object next : theValues.get(nextSpDef.getPath())) {
+					if (next instanceof IBaseReference) {
+						IIdType nextId = ((IBaseReference) next).getReferenceElement();
+						if (!nextId.isEmpty() && !nextId.isLocal() && !nextId.isAbsolute()) {
+							referencedIds.add(nextId);
+						}
+					}
+				}
+			}
+			translateForcedIdsToPids(referencedIds);
+		}
+
 		for (RuntimeSearchParam nextSpDef : def.getSearchParams()) {
 
 			if (nextSpDef.getParamType() != RestSearchParameterTypeEnum.REFERENCE) {
@@ -262,7 +307,7 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 				nextPath = nextPath.trim();
 
 				List<Class<? extends IBaseResource>> allowedTypesInField = null;
-				for (Object nextObject : extractValues(nextPath, theResource)) {
+				for (Object nextObject : theValues.get(nextPath)) {
 					if (nextObject == null) {
 						continue;
 					}
@@ -375,45 +420,32 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return retVal;
 	}
 
-	protected Set<ResourceIndexedSearchParamDate> extractSearchParamDates(ResourceTable theEntity, IBaseResource theResource) {
-		return mySearchParamExtractor.extractSearchParamDates(theEntity, theResource);
+	protected Set<ResourceIndexedSearchParamDate> extractSearchParamDates(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
+		return mySearchParamExtractor.extractSearchParamDates(theEntity, theResource, theValues);
 	}
 
-	protected Set<ResourceIndexedSearchParamNumber> extractSearchParamNumber(ResourceTable theEntity, IBaseResource theResource) {
-		return mySearchParamExtractor.extractSearchParamNumber(theEntity, theResource);
+	protected Set<ResourceIndexedSearchParamNumber> extractSearchParamNumber(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
+		return mySearchParamExtractor.extractSearchParamNumber(theEntity, theResource, theValues);
 	}
 
-	protected Set<ResourceIndexedSearchParamUri> extractSearchParamUri(ResourceTable theEntity, IBaseResource theResource) {
-		return mySearchParamExtractor.extractSearchParamUri(theEntity, theResource);
+	protected Set<ResourceIndexedSearchParamUri> extractSearchParamUri(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
+		return mySearchParamExtractor.extractSearchParamUri(theEntity, theResource, theValues);
 	}
 
-	protected Set<ResourceIndexedSearchParamCoords> extractSearchParamCoords(ResourceTable theEntity, IBaseResource theResource) {
-		return mySearchParamExtractor.extractSearchParamCoords(theEntity, theResource);
+	protected Set<ResourceIndexedSearchParamCoords> extractSearchParamCoords(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
+		return mySearchParamExtractor.extractSearchParamCoords(theEntity, theResource, theValues);
 	}
 
-	protected Set<ResourceIndexedSearchParamQuantity> extractSearchParamQuantity(ResourceTable theEntity, IBaseResource theResource) {
-		return mySearchParamExtractor.extractSearchParamQuantity(theEntity, theResource);
+	protected Set<ResourceIndexedSearchParamQuantity> extractSearchParamQuantity(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
+		return mySearchParamExtractor.extractSearchParamQuantity(theEntity, theResource, theValues);
 	}
 
-	protected Set<ResourceIndexedSearchParamString> extractSearchParamStrings(ResourceTable theEntity, IBaseResource theResource) {
-		return mySearchParamExtractor.extractSearchParamStrings(theEntity, theResource);
+	protected Set<ResourceIndexedSearchParamString> extractSearchParamStrings(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
+		return mySearchParamExtractor.extractSearchParamStrings(theEntity, theResource, theValues);
 	}
 
-	protected Set<BaseResourceIndexedSearchParam> extractSearchParamTokens(ResourceTable theEntity, IBaseResource theResource) {
-		return mySearchParamExtractor.extractSearchParamTokens(theEntity, theResource);
-	}
-
-	private List<Object> extractValues(String thePath, IBaseResource theResource) {
-		List<Object> values = new ArrayList<Object>();
-		FhirTerser t = getContext().newTerser();
-		String nextPathTrimmed = thePath.trim();
-		try {
-			values.addAll(t.getValues(theResource, nextPathTrimmed));
-		} catch (Exception e) {
-			RuntimeResourceDefinition def = myContext.getResourceDefinition(theResource);
-			ourLog.warn("Failed to index values from path[{}] in resource type[{}]: ", new Object[] { nextPathTrimmed, def.getName(), e.toString() });
-		}
-		return values;
+	protected Set<BaseResourceIndexedSearchParam> extractSearchParamTokens(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
+		return mySearchParamExtractor.extractSearchParamTokens(theEntity, theResource, theValues);
 	}
 
 	private void findMatchingTagIds(String theResourceName, IIdType theResourceId, Set<Long> tagIds, Class<? extends BaseTag> entityClass) {
@@ -462,6 +494,28 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return myContext;
 	}
 
+	/**
+	 * Returns the search result cache, or <code>null</code> if none is configured
+	 */
+	protected SearchResultCacheSvc getSearchResultCache() {
+		return mySearchResultCache;
+	}
+
+	/**
+	 * Returns the subscription matcher, or <code>null</code> if none is configured
+	 */
+	protected SubscriptionMatcherSvc getSubscriptionMatcher() {
+		return mySubscriptionMatcher;
+	}
+
+	/**
+	 * Returns the executor used to read the remaining results of streaming searches, or <code>null</code> if none is
+	 * configured (in which case searches aren't streamed)
+	 */
+	protected TaskExecutor getSearchStreamingExecutor() {
+		return mySearchStreamingExecutor;
+	}
+
 	public FhirContext getContext(FhirVersionEnum theVersion) {
 		FhirVersionEnum ver = theVersion != null ? theVersion : FhirVersionEnum.DSTU1;
 		synchronized (ourRetrievalContexts) {
@@ -493,6 +547,10 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	}
 
 	protected TagDefinition getTag(TagTypeEnum theTagType, String theScheme, String theTerm, String theLabel) {
+		if (myTagDefinitionCache != null) {
+			return myTagDefinitionCache.getTag(theTagType, theScheme, theTerm, theLabel);
+		}
+
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
 		CriteriaQuery<TagDefinition> cq = builder.createQuery(TagDefinition.class);
 		Root<TagDefinition> from = cq.from(TagDefinition.class);
@@ -565,90 +623,8 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	}
 
 	protected IBundleProvider history(String theResourceName, Long theId, Date theSince) {
-		final List<HistoryTuple> tuples = new ArrayList<HistoryTuple>();
-
-		final InstantDt end = createHistoryToTimestamp();
-
-		StopWatch timer = new StopWatch();
-
-		int limit = 10000;
-
-		// Get list of IDs
-		searchHistoryCurrentVersion(theResourceName, theId, theSince, end.getValue(), limit, tuples);
-		ourLog.info("Retrieved {} history IDs from current versions in {} ms", tuples.size(), timer.getMillisAndRestart());
-
-		searchHistoryHistory(theResourceName, theId, theSince, end.getValue(), limit, tuples);
-		ourLog.info("Retrieved {} history IDs from previous versions in {} ms", tuples.size(), timer.getMillisAndRestart());
-
-		// Sort merged list
-		Collections.sort(tuples, Collections.reverseOrder());
-		assert tuples.size() < 2 || !tuples.get(tuples.size() - 2).getUpdated().before(tuples.get(tuples.size() - 1).getUpdated()) : tuples.toString();
-
-		return new IBundleProvider() {
-
-			@Override
-			public InstantDt getPublished() {
-				return end;
-			}
-
-			@Override
-			public List<IBaseResource> getResources(final int theFromIndex, final int theToIndex) {
-				final StopWatch timer = new StopWatch();
-				TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
-				return template.execute(new TransactionCallback<List<IBaseResource>>() {
-					@Override
-					public List<IBaseResource> doInTransaction(TransactionStatus theStatus) {
-						List<BaseHasResource> resEntities = Lists.newArrayList();
-
-						List<HistoryTuple> tupleSubList = tuples.subList(theFromIndex, theToIndex);
-						searchHistoryCurrentVersion(tupleSubList, resEntities);
-						ourLog.info("Loaded history from current versions in {} ms", timer.getMillisAndRestart());
-
-						searchHistoryHistory(tupleSubList, resEntities);
-						ourLog.info("Loaded history from previous versions in {} ms", timer.getMillisAndRestart());
-
-						Collections.sort(resEntities, new Comparator<BaseHasResource>() {
-							@Override
-							public int compare(BaseHasResource theO1, BaseHasResource theO2) {
-								return theO2.getUpdated().getValue().compareTo(theO1.getUpdated().getValue());
-							}
-						});
-
-						int limit = theToIndex - theFromIndex;
-						if (resEntities.size() > limit) {
-							resEntities = resEntities.subList(0, limit);
-						}
-
-						ArrayList<IBaseResource> retVal = new ArrayList<IBaseResource>();
-						for (BaseHasResource next : resEntities) {
-							RuntimeResourceDefinition type;
-							try {
-								type = myContext.getResourceDefinition(next.getResourceType());
-							} catch (DataFormatException e) {
-								if (next.getFhirVersion() != getContext().getVersion().getVersion()) {
-									ourLog.info("Ignoring history resource of type[{}] because it is not compatible with version[{}]", next.getResourceType(), getContext().getVersion().getVersion());
-									continue;
-								}
-								throw e;
-							}
-							IBaseResource resource = (IBaseResource) toResource(type.getImplementingClass(), next, true);
-							retVal.add(resource);
-						}
-						return retVal;
-					}
-				});
-			}
-
-			@Override
-			public int size() {
-				return tuples.size();
-			}
-
-			@Override
-			public Integer preferredPageSize() {
-				return null;
-			}
-		};
+		InstantDt end = createHistoryToTimestamp();
+		return new HistoryJpaBundleProvider(theResourceName, theId, theSince, end, getContext(), myEntityManager, myPlatformTransactionManager, this);
 	}
 
 	protected static boolean isValidPid(IIdType theId) {
@@ -665,6 +641,15 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return true;
 	}
 
+	@Override
+	public IBundleProvider loadPersistedSearch(String theSearchUuid) {
+		PersistedJpaBundleProvider retVal = new PersistedJpaBundleProvider(theSearchUuid, getContext(), myEntityManager, myPlatformTransactionManager, this);
+		if (!retVal.ensureSearchEntityLoaded()) {
+			return null;
+		}
+		return retVal;
+	}
+
 	protected void populateResourceIntoEntity(IBaseResource theResource, ResourceTable theEntity) {
 		theEntity.setResourceType(toResourceName(theResource));
 
@@ -677,22 +662,11 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			}
 		}
 
-		String encoded = myConfig.getResourceEncoding().newParser(myContext).encodeResourceToString(theResource);
 		ResourceEncodingEnum encoding = myConfig.getResourceEncoding();
+		String encoded = encoding.newParser(myContext).encodeResourceToString(theResource);
 		theEntity.setEncoding(encoding);
 		theEntity.setFhirVersion(myContext.getVersion().getVersion());
-		try {
-			switch (encoding) {
-			case JSON:
-				theEntity.setResource(encoded.getBytes("UTF-8"));
-				break;
-			case JSONC:
-				theEntity.setResource(GZipUtil.compress(encoded));
-				break;
-			}
-		} catch (UnsupportedEncodingException e) {
-			throw new InternalErrorException(e);
-		}
+		theEntity.setResource(encoding.encode(encoded));
 
 		Set<TagDefinition> allDefs = new HashSet<TagDefinition>();
 
@@ -949,142 +923,6 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return parameters;
 	}
 
-	private void searchHistoryCurrentVersion(List<HistoryTuple> theTuples, List<BaseHasResource> theRetVal) {
-		Collection<HistoryTuple> tuples = Collections2.filter(theTuples, new com.google.common.base.Predicate<HistoryTuple>() {
-			@Override
-			public boolean apply(HistoryTuple theInput) {
-				return theInput.isHistory() == false;
-			}
-		});
-		Collection<Long> ids = Collections2.transform(tuples, new Function<HistoryTuple, Long>() {
-			@Override
-			public Long apply(HistoryTuple theInput) {
-				return theInput.getId();
-			}
-		});
-		if (ids.isEmpty()) {
-			return;
-		}
-
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<ResourceTable> cq = builder.createQuery(ResourceTable.class);
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.where(from.get("myId").in(ids));
-
-		cq.orderBy(builder.desc(from.get("myUpdated")));
-		TypedQuery<ResourceTable> q = myEntityManager.createQuery(cq);
-		for (ResourceTable next : q.getResultList()) {
-			theRetVal.add(next);
-		}
-	}
-
-	private void searchHistoryCurrentVersion(String theResourceName, Long theId, Date theSince, Date theEnd, Integer theLimit, List<HistoryTuple> tuples) {
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Tuple> cq = builder.createTupleQuery();
-		Root<?> from = cq.from(ResourceTable.class);
-		cq.multiselect(from.get("myId").as(Long.class), from.get("myUpdated").as(Date.class));
-
-		List<Predicate> predicates = new ArrayList<Predicate>();
-		if (theSince != null) {
-			Predicate low = builder.greaterThanOrEqualTo(from.<Date> get("myUpdated"), theSince);
-			predicates.add(low);
-		}
-
-		Predicate high = builder.lessThan(from.<Date> get("myUpdated"), theEnd);
-		predicates.add(high);
-
-		if (theResourceName != null) {
-			predicates.add(builder.equal(from.get("myResourceType"), theResourceName));
-		}
-		if (theId != null) {
-			predicates.add(builder.equal(from.get("myId"), theId));
-		}
-
-		cq.where(builder.and(predicates.toArray(new Predicate[0])));
-
-		cq.orderBy(builder.desc(from.get("myUpdated")));
-		TypedQuery<Tuple> q = myEntityManager.createQuery(cq);
-		if (theLimit != null && theLimit < myConfig.getHardSearchLimit()) {
-			q.setMaxResults(theLimit);
-		} else {
-			q.setMaxResults(myConfig.getHardSearchLimit());
-		}
-		for (Tuple next : q.getResultList()) {
-			long id = next.get(0, Long.class);
-			Date updated = next.get(1, Date.class);
-			tuples.add(new HistoryTuple(false, updated, id));
-		}
-	}
-
-	private void searchHistoryHistory(List<HistoryTuple> theTuples, List<BaseHasResource> theRetVal) {
-		Collection<HistoryTuple> tuples = Collections2.filter(theTuples, new com.google.common.base.Predicate<HistoryTuple>() {
-			@Override
-			public boolean apply(HistoryTuple theInput) {
-				return theInput.isHistory() == true;
-			}
-		});
-		Collection<Long> ids = Collections2.transform(tuples, new Function<HistoryTuple, Long>() {
-			@Override
-			public Long apply(HistoryTuple theInput) {
-				return (Long) theInput.getId();
-			}
-		});
-		if (ids.isEmpty()) {
-			return;
-		}
-
-		ourLog.info("Retrieving {} history elements from ResourceHistoryTable", ids.size());
-
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<ResourceHistoryTable> cq = builder.createQuery(ResourceHistoryTable.class);
-		Root<ResourceHistoryTable> from = cq.from(ResourceHistoryTable.class);
-		cq.where(from.get("myId").in(ids));
-
-		cq.orderBy(builder.desc(from.get("myUpdated")));
-		TypedQuery<ResourceHistoryTable> q = myEntityManager.createQuery(cq);
-		for (ResourceHistoryTable next : q.getResultList()) {
-			theRetVal.add(next);
-		}
-	}
-
-	private void searchHistoryHistory(String theResourceName, Long theResourceId, Date theSince, Date theEnd, Integer theLimit, List<HistoryTuple> tuples) {
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Tuple> cq = builder.createTupleQuery();
-		Root<?> from = cq.from(ResourceHistoryTable.class);
-		cq.multiselect(from.get("myId").as(Long.class), from.get("myUpdated").as(Date.class));
-
-		List<Predicate> predicates = new ArrayList<Predicate>();
-		if (theSince != null) {
-			Predicate low = builder.greaterThanOrEqualTo(from.<Date> get("myUpdated"), theSince);
-			predicates.add(low);
-		}
-
-		Predicate high = builder.lessThan(from.<Date> get("myUpdated"), theEnd);
-		predicates.add(high);
-
-		if (theResourceName != null) {
-			predicates.add(builder.equal(from.get("myResourceType"), theResourceName));
-		}
-		if (theResourceId != null) {
-			predicates.add(builder.equal(from.get("myResourceId"), theResourceId));
-		}
-
-		cq.where(builder.and(predicates.toArray(new Predicate[0])));
-
-		cq.orderBy(builder.desc(from.get("myUpdated")));
-		TypedQuery<Tuple> q = myEntityManager.createQuery(cq);
-		if (theLimit != null && theLimit < myConfig.getHardSearchLimit()) {
-			q.setMaxResults(theLimit);
-		} else {
-			q.setMaxResults(myConfig.getHardSearchLimit());
-		}
-		for (Tuple next : q.getResultList()) {
-			Long id = next.get(0, Long.class);
-			Date updated = (Date) next.get(1);
-			tuples.add(new HistoryTuple(true, updated, id));
-		}
-	}
-
 	// protected MetaDt toMetaDt(Collection<TagDefinition> tagDefinitions) {
 	// MetaDt retVal = new MetaDt();
 	// for (TagDefinition next : tagDefinitions) {
@@ -1138,24 +976,77 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	@Override
 	@SuppressWarnings("unchecked")
 	public <R extends IBaseResource> R toResource(Class<R> theResourceType, BaseHasResource theEntity, boolean theForHistoryOperation) {
-		String resourceText = null;
-		switch (theEntity.getEncoding()) {
-		case JSON:
+		boolean useCache = myParsedResourceCache != null && myParsedResourceCache.isEnabled();
+		R retVal = null;
+		if (useCache) {
+			retVal = myParsedResourceCache.get(theResourceType, theEntity);
+		}
+		if (retVal == null) {
+			retVal = parseResource(theResourceType, theEntity);
+			if (useCache) {
+				myParsedResourceCache.put(theEntity, retVal);
+			}
+		}
+
+		if (retVal instanceof IResource) {
+			IResource res = (IResource) retVal;
+			retVal = populateResourceMetadataHapi(theResourceType, theEntity, theForHistoryOperation, res);
+		} else {
+			IAnyResource res = (IAnyResource) retVal;
+			retVal = populateResourceMetadataRi(theResourceType, theEntity, theForHistoryOperation, res);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Converts the given entities to resources, returning them in the same order. If there are at least
+	 * {@link DaoConfig#getParallelParseThreshold()} entities and a parsing executor is available, they are parsed in
+	 * parallel, so the entities must already be fully loaded (including their tags and forced IDs) since they will be
+	 * read from other threads.
+	 */
+	protected List<IBaseResource> toResources(List<? extends BaseHasResource> theEntities, final boolean theForHistoryOperation) {
+		List<IBaseResource> retVal = new ArrayList<IBaseResource>(theEntities.size());
+		if (myResourceParsingExecutor == null || theEntities.size() < getConfig().getParallelParseThreshold()) {
+			for (BaseHasResource next : theEntities) {
+				retVal.add(toResource(getContext().getResourceDefinition(next.getResourceType()).getImplementingClass(), next, theForHistoryOperation));
+			}
+			return retVal;
+		}
+
+		List<Future<IBaseResource>> futures = new ArrayList<Future<IBaseResource>>(theEntities.size());
+		for (final BaseHasResource next : theEntities) {
+			final Class<? extends IBaseResource> resourceType = getContext().getResourceDefinition(next.getResourceType()).getImplementingClass();
+			futures.add(myResourceParsingExecutor.submit(new Callable<IBaseResource>() {
+				@Override
+				public IBaseResource call() throws Exception {
+					return toResource(resourceType, next, theForHistoryOperation);
+				}
+			}));
+		}
+
+		for (Future<IBaseResource> next : futures) {
 			try {
-				resourceText = new String(theEntity.getResource(), "UTF-8");
-			} catch (UnsupportedEncodingException e) {
-				throw new Error("Should not happen", e);
+				retVal.add(next.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InternalErrorException("Interrupted while parsing resources", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new InternalErrorException(e.getCause());
 			}
-			break;
-		case JSONC:
-			resourceText = GZipUtil.decompress(theEntity.getResource());
-			break;
 		}
+		return retVal;
+	}
 
+	private <R extends IBaseResource> R parseResource(Class<R> theResourceType, BaseHasResource theEntity) {
 		IParser parser = theEntity.getEncoding().newParser(getContext(theEntity.getFhirVersion()));
 		R retVal;
+		Reader reader = null;
 		try {
-			retVal = parser.parseResource(theResourceType, resourceText);
+			reader = theEntity.getEncoding().decode(theEntity.getResource());
+			retVal = parser.parseResource(theResourceType, reader);
 		} catch (Exception e) {
 			StringBuilder b = new StringBuilder();
 			b.append("Failed to parse database resource[");
@@ -1171,14 +1062,8 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 			String msg = b.toString();
 			ourLog.error(msg, e);
 			throw new DataFormatException(msg, e);
-		}
-
-		if (retVal instanceof IResource) {
-			IResource res = (IResource) retVal;
-			retVal = populateResourceMetadataHapi(theResourceType, theEntity, theForHistoryOperation, res);
-		} else {
-			IAnyResource res = (IAnyResource) retVal;
-			retVal = populateResourceMetadataRi(theResourceType, theEntity, theForHistoryOperation, res);
+		} finally {
+			IOUtils.closeQuietly(reader);
 		}
 		return retVal;
 	}
@@ -1329,7 +1214,48 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	}
 
 	protected Long translateForcedIdToPid(IIdType theId) {
-		return translateForcedIdToPid(theId, myEntityManager);
+		if (myForcedIdCache == null || isValidPid(theId)) {
+			return translateForcedIdToPid(theId, myEntityManager);
+		}
+		Long retVal = myForcedIdCache.getPid(theId.getIdPart());
+		if (retVal == null) {
+			throw new ResourceNotFoundException(theId);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Translates a collection of IDs to resource PIDs at once, resolving any client assigned IDs with a single query.
+	 * The returned map is keyed by ID part, and IDs which don't exist are not present in it.
+	 */
+	protected Map<String, Long> translateForcedIdsToPids(Collection<? extends IIdType> theIds) {
+		Map<String, Long> retVal = new HashMap<String, Long>();
+		List<String> forcedIds = new ArrayList<String>();
+		for (IIdType next : theIds) {
+			if (next == null || isBlank(next.getIdPart())) {
+				continue;
+			}
+			if (isValidPid(next)) {
+				retVal.put(next.getIdPart(), next.getIdPartAsLong());
+			} else {
+				forcedIds.add(next.getIdPart());
+			}
+		}
+
+		if (!forcedIds.isEmpty()) {
+			if (myForcedIdCache != null) {
+				retVal.putAll(myForcedIdCache.getPids(forcedIds));
+			} else {
+				for (String next : forcedIds) {
+					try {
+						retVal.put(next, translateForcedIdToPid(new IdDt(next), myEntityManager));
+					} catch (ResourceNotFoundException e) {
+						// Not present in the returned map
+					}
+				}
+			}
+		}
+		return retVal;
 	}
 
 	public static void validateResourceType(BaseHasResource theEntity, String theResourceName) {
@@ -1353,20 +1279,58 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 	}
 
 	protected String translatePidIdToForcedId(Long theId) {
-		ForcedId forcedId = myEntityManager.find(ForcedId.class, theId);
+		String forcedId = translatePidsToForcedIds(Collections.singletonList(theId)).get(theId);
 		if (forcedId != null) {
-			return forcedId.getForcedId();
+			return forcedId;
 		} else {
 			return theId.toString();
 		}
 	}
 
+	/**
+	 * Returns the client assigned IDs for the resources with the given PIDs, using a single query for any which aren't
+	 * cached. Resources which don't have a client assigned ID are not present in the returned map.
+	 */
+	protected Map<Long, String> translatePidsToForcedIds(Collection<Long> thePids) {
+		if (myForcedIdCache != null) {
+			return myForcedIdCache.getForcedIds(thePids);
+		}
+
+		Map<Long, String> retVal = new HashMap<Long, String>();
+		if (thePids.isEmpty()) {
+			return retVal;
+		}
+		TypedQuery<ForcedId> q = myEntityManager.createQuery("SELECT f FROM ForcedId f WHERE f.myResourcePid IN (:pids)", ForcedId.class);
+		q.setParameter("pids", thePids);
+		for (ForcedId next : q.getResultList()) {
+			retVal.put(next.getResourcePid(), next.getForcedId());
+		}
+		return retVal;
+	}
+
 	protected ResourceTable updateEntity(final IResource theResource, ResourceTable entity, boolean theUpdateHistory, Date theDeletedTimestampOrNull, Date theUpdateTime) {
 		return updateEntity(theResource, entity, theUpdateHistory, theDeletedTimestampOrNull, true, true, theUpdateTime);
 	}
 
-	@SuppressWarnings("unchecked")
 	protected ResourceTable updateEntity(final IBaseResource theResource, ResourceTable theEntity, boolean theUpdateHistory, Date theDeletedTimestampOrNull, boolean thePerformIndexing, boolean theUpdateVersion, Date theUpdateTime) {
+		/*
+		 * Writes without indexing only happen in the first phase of a transaction, which indexes the resources and
+		 * flushes them itself once all of the entries have been saved
+		 */
+		boolean flush = thePerformIndexing;
+		return updateEntity(theResource, theEntity, theUpdateHistory, theDeletedTimestampOrNull, thePerformIndexing, theUpdateVersion, theUpdateTime, true, flush);
+	}
+
+	/**
+	 * @param theEncodeResource
+	 *           If <code>false</code>, the resource body and tags already stored in the entity are kept instead of
+	 *           encoding the resource again. This is used when indexing resources which were saved earlier in the same
+	 *           transaction and haven't changed since.
+	 * @param theFlush
+	 *           Should the entity manager be flushed once the entity has been written
+	 */
+	@SuppressWarnings("unchecked")
+	protected ResourceTable updateEntity(final IBaseResource theResource, ResourceTable theEntity, boolean theUpdateHistory, Date theDeletedTimestampOrNull, boolean thePerformIndexing, boolean theUpdateVersion, Date theUpdateTime, boolean theEncodeResource, boolean theFlush) {
 
 		/*
 		 * This should be the very first thing..
@@ -1457,18 +1421,24 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 
 			if (thePerformIndexing) {
 
-				stringParams = extractSearchParamStrings(theEntity, theResource);
-				numberParams = extractSearchParamNumber(theEntity, theResource);
-				quantityParams = extractSearchParamQuantity(theEntity, theResource);
-				dateParams = extractSearchParamDates(theEntity, theResource);
-				uriParams = extractSearchParamUri(theEntity, theResource);
-				coordsParams = extractSearchParamCoords(theEntity, theResource);
+				/*
+				 * Walk the resource once, collecting the values for every search parameter, and then build each type of
+				 * index from those values
+				 */
+				ExtractedValues values = mySearchParamExtractor.extractSearchParamValues(theResource);
+
+				stringParams = extractSearchParamStrings(theEntity, theResource, values);
+				numberParams = extractSearchParamNumber(theEntity, theResource, values);
+				quantityParams = extractSearchParamQuantity(theEntity, theResource, values);
+				dateParams = extractSearchParamDates(theEntity, theResource, values);
+				uriParams = extractSearchParamUri(theEntity, theResource, values);
+				coordsParams = extractSearchParamCoords(theEntity, theResource, values);
 
 				// ourLog.info("Indexing resource: {}", entity.getId());
 				ourLog.trace("Storing string indexes: {}", stringParams);
 
 				tokenParams = new HashSet<ResourceIndexedSearchParamToken>();
-				for (BaseResourceIndexedSearchParam next : extractSearchParamTokens(theEntity, theResource)) {
+				for (BaseResourceIndexedSearchParam next : extractSearchParamTokens(theEntity, theResource, values)) {
 					if (next instanceof ResourceIndexedSearchParamToken) {
 						tokenParams.add((ResourceIndexedSearchParamToken) next);
 					} else {
@@ -1476,7 +1446,7 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 					}
 				}
 
-				links = extractResourceLinks(theEntity, theResource);
+				links = extractResourceLinks(theEntity, theResource, values);
 
 				/*
 				 * If the existing resource already has links and those match links we still want, use them instead of
@@ -1490,7 +1460,21 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 					}
 				}
 
-				populateResourceIntoEntity(theResource, theEntity);
+				/*
+				 * Same thing for the search param indexes, except that these are matched using their value key since
+				 * rows loaded from the database won't necessarily be equal to freshly extracted ones
+				 */
+				retainUnchangedIndexes(paramsString, stringParams);
+				retainUnchangedIndexes(paramsToken, tokenParams);
+				retainUnchangedIndexes(paramsNumber, numberParams);
+				retainUnchangedIndexes(paramsQuantity, quantityParams);
+				retainUnchangedIndexes(paramsDate, dateParams);
+				retainUnchangedIndexes(paramsUri, uriParams);
+				retainUnchangedIndexes(paramsCoords, coordsParams);
+
+				if (theEncodeResource) {
+					populateResourceIntoEntity(theResource, theEntity);
+				}
 
 				theEntity.setUpdated(theUpdateTime);
 				if (theResource instanceof IResource) {
@@ -1610,7 +1594,24 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 
 		theEntity = myEntityManager.merge(theEntity);
 
-		myEntityManager.flush();
+		if (theFlush) {
+			myEntityManager.flush();
+		}
+
+		if (mySearchResultCache != null) {
+			mySearchResultCache.invalidateResourceType(theEntity.getResourceType());
+		}
+		if (myParsedResourceCache != null) {
+			myParsedResourceCache.invalidate(theEntity);
+		}
+
+		/*
+		 * Writes which don't create a new version (reindexing, and the second phase of a transaction) aren't matched
+		 * here, the transaction calls flagMatchingSubscriptions itself once the new version has been indexed
+		 */
+		if (theUpdateVersion && thePerformIndexing && theDeletedTimestampOrNull == null) {
+			flagMatchingSubscriptions(theEntity);
+		}
 
 		if (theResource != null) {
 			populateResourceId(theResource, theEntity);
@@ -1619,6 +1620,16 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		return theEntity;
 	}
 
+	/**
+	 * Flags the given (newly written and indexed) resource for delivery to any active subscriptions it matches, if
+	 * subscriptions are matched on write (see {@link DaoConfig#setSubscriptionMatchingOnWriteEnabled(boolean)})
+	 */
+	protected void flagMatchingSubscriptions(ResourceTable theEntity) {
+		if (mySubscriptionMatcher != null && mySubscriptionMatcher.isEnabled()) {
+			mySubscriptionMatcher.flagMatchingSubscriptions(this, theEntity);
+		}
+	}
+
 	private void populateResourceId(final IBaseResource theResource, BaseHasResource theEntity) {
 		IIdType id = theEntity.getIdDt();
 		if (getContext().getVersion().getVersion().isRi()) {
@@ -1627,6 +1638,44 @@ public abstract class BaseHapiFhirDao<T extends IBaseResource> implements IDao {
 		theResource.setId(id);
 	}
 
+	/**
+	 * For any newly extracted index row which has the same value key as an existing row, the existing row is kept and
+	 * swapped into the new set in place of the new row. On return, <code>theExisting</code> contains only the rows which
+	 * need to be removed, and <code>theNew</code> contains any kept rows (for which persisting is a no-op) plus the rows
+	 * which need to be inserted. The hash columns of kept rows are recalculated, which fills them in for rows written
+	 * before those columns existed.
+	 */
+	static <T extends BaseResourceIndexedSearchParam> void retainUnchangedIndexes(Collection<T> theExisting, Set<T> theNew) {
+		if (theExisting.isEmpty() || theNew.isEmpty()) {
+			return;
+		}
+
+		Map<List<Object>, List<T>> newByValueKey = new HashMap<List<Object>, List<T>>();
+		for (T next : theNew) {
+			List<Object> key = next.getValueKey();
+			List<T> list = newByValueKey.get(key);
+			if (list == null) {
+				list = new ArrayList<T>(1);
+				newByValueKey.put(key, list);
+			}
+			list.add(next);
+		}
+
+		List<T> kept = new ArrayList<T>();
+		for (Iterator<T> existingIter = theExisting.iterator(); existingIter.hasNext();) {
+			T nextExisting = existingIter.next();
+			List<T> matching = newByValueKey.get(nextExisting.getValueKey());
+			if (matching != null && matching.size() > 0) {
+				theNew.remove(matching.remove(matching.size() - 1));
+				existingIter.remove();
+				nextExisting.calculateHashes();
+				kept.add(nextExisting);
+			}
+		}
+
+		theNew.addAll(kept);
+	}
+
 	/**
 	 * Subclasses may override to provide behaviour. Called when a resource has been inserved into the database for the
 	 * first time.
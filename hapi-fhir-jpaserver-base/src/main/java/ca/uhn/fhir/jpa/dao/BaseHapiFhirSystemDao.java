@@ -20,11 +20,23 @@ package ca.uhn.fhir.jpa.dao;
  * #L%
  */
 
+import static org.apache.commons.lang3.StringUtils.defaultString;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.persistence.Query;
 import javax.persistence.Tuple;
@@ -33,30 +45,74 @@ import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
 import javax.persistence.criteria.Root;
 
+import org.apache.commons.lang3.time.DateUtils;
+import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import com.google.common.collect.Lists;
+
+import ca.uhn.fhir.jpa.dao.data.IReindexJobDao;
+import ca.uhn.fhir.jpa.entity.BaseHasResource;
+import ca.uhn.fhir.jpa.entity.ReindexJob;
+import ca.uhn.fhir.jpa.entity.ReindexJobStatusEnum;
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.jpa.entity.ResourceHistoryTable;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.util.ReindexFailureException;
 import ca.uhn.fhir.jpa.util.StopWatch;
 import ca.uhn.fhir.model.api.TagList;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor.ActionRequestDetails;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 
 public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBaseResource> implements IFhirSystemDao<T, MT> {
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseHapiFhirSystemDao.class);
 
+	/**
+	 * Number of resources which are indexed between each flush when a transaction is indexing the resources it has
+	 * saved (each flush writes the index rows for those resources using JDBC batches)
+	 */
+	static final int TRANSACTION_INDEXING_FLUSH_INTERVAL = 100;
+
+	/**
+	 * Number of NDJSON lines parsed by each task when an import is parsed in parallel
+	 */
+	static final int IMPORT_PARSE_SLICE_SIZE = 100;
+
+	@Autowired(required = false)
+	@Qualifier("myBatchExecutor")
+	private AsyncTaskExecutor myBatchExecutor;
+
+	@Autowired(required = false)
+	@Qualifier("myReindexExecutor")
+	private AsyncTaskExecutor myReindexExecutor;
+
+	@Autowired
+	private IReindexJobDao myReindexJobDao;
+
 	@Autowired
 	private PlatformTransactionManager myTxManager;
 
@@ -119,6 +175,126 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 		});
 	}
 
+	/**
+	 * Executes the tasks which process the entries of a batch bundle and returns their results in the same order as
+	 * the tasks. If {@link DaoConfig#setBatchParallelism(int) batch parallelism} is greater than 1, the tasks are run
+	 * concurrently on the batch executor. Tasks which have the same (non-null) serialization key are always run one
+	 * after another in their original order, so that entries which target the same resource or conditional URL have
+	 * a deterministic outcome.
+	 * 
+	 * @param theTasks
+	 *           The tasks, which are expected to handle their own failures
+	 * @param theSerializationKeys
+	 *           The serialization key for each task (see {@link #toBatchSerializationKey(String, String, String, String)}), or <code>null</code> for tasks which may run alongside any other task
+	 */
+	protected <R> List<R> executeBatchTasks(final List<Callable<R>> theTasks, List<String> theSerializationKeys) {
+		int parallelism = Math.min(getConfig().getBatchParallelism(), theTasks.size());
+		if (myBatchExecutor == null || parallelism < 2) {
+			List<R> retVal = new ArrayList<R>(theTasks.size());
+			for (Callable<R> next : theTasks) {
+				retVal.add(callBatchTask(next));
+			}
+			return retVal;
+		}
+
+		/*
+		 * Group the tasks into lanes, where each lane is run on a single thread. Tasks with
+		 * the same key share a lane, and every other task gets a lane of its own
+		 */
+		List<List<Integer>> lanes = new ArrayList<List<Integer>>();
+		Map<String, List<Integer>> keyToLane = new HashMap<String, List<Integer>>();
+		for (int i = 0; i < theTasks.size(); i++) {
+			String key = theSerializationKeys.get(i);
+			List<Integer> lane = key != null ? keyToLane.get(key) : null;
+			if (lane == null) {
+				lane = new ArrayList<Integer>();
+				lanes.add(lane);
+				if (key != null) {
+					keyToLane.put(key, lane);
+				}
+			}
+			lane.add(i);
+		}
+
+		final Queue<List<Integer>> pendingLanes = new ConcurrentLinkedQueue<List<Integer>>(lanes);
+		final AtomicReferenceArray<R> results = new AtomicReferenceArray<R>(theTasks.size());
+		int workerCount = Math.min(parallelism, lanes.size());
+		ourLog.debug("Executing {} batch entries in {} lanes using {} threads", new Object[] { theTasks.size(), lanes.size(), workerCount });
+
+		List<Future<Void>> workers = new ArrayList<Future<Void>>(workerCount);
+		for (int i = 0; i < workerCount; i++) {
+			workers.add(myBatchExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (List<Integer> lane = pendingLanes.poll(); lane != null; lane = pendingLanes.poll()) {
+						for (Integer nextIndex : lane) {
+							results.set(nextIndex, callBatchTask(theTasks.get(nextIndex)));
+						}
+					}
+					return null;
+				}
+			}));
+		}
+
+		for (Future<Void> next : workers) {
+			try {
+				next.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InternalErrorException("Interrupted while processing batch", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw new InternalErrorException(e.getCause());
+			}
+		}
+
+		List<R> retVal = new ArrayList<R>(theTasks.size());
+		for (int i = 0; i < theTasks.size(); i++) {
+			retVal.add(results.get(i));
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns a copy of the request details of a batch for one of the tasks processing its entries, since request
+	 * details hold state which is filled in as the request is processed and so can't be shared by tasks running
+	 * concurrently (see {@link #executeBatchTasks(List, List)}). The servlet request and response are still shared,
+	 * but the entries only read the request's headers and never write to the response.
+	 */
+	protected static ServletRequestDetails copyRequestDetailsForBatchTask(RequestDetails theRequestDetails) {
+		if (theRequestDetails == null) {
+			return null;
+		}
+		ServletRequestDetails source = (ServletRequestDetails) theRequestDetails;
+		ServletRequestDetails retVal = new ServletRequestDetails();
+		retVal.setServer(source.getServer());
+		retVal.setServletRequest(source.getServletRequest());
+		retVal.setServletResponse(source.getServletResponse());
+		retVal.setFhirServerBase(source.getFhirServerBase());
+		retVal.setCompleteUrl(source.getCompleteUrl());
+		if (source.getRequestPath() != null) {
+			retVal.setRequestPath(source.getRequestPath());
+		}
+		retVal.setRequestType(source.getRequestType());
+		retVal.setRespondGzip(source.isRespondGzip());
+		if (source.getParameters() != null) {
+			retVal.setParameters(new HashMap<String, String[]>(source.getParameters()));
+		}
+		return retVal;
+	}
+
+	private static <R> R callBatchTask(Callable<R> theTask) {
+		try {
+			return theTask.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new InternalErrorException(e);
+		}
+	}
+
 	@Override
 	public TagList getAllTags() {
 		// Notify interceptors
@@ -166,6 +342,177 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 		return retVal;
 	}
 
+	@Transactional(propagation = Propagation.REQUIRED)
+	@Override
+	public ReindexJob getReindexJob(Long theJobId) {
+		if (theJobId != null) {
+			return myReindexJobDao.findOne(theJobId);
+		}
+		List<ReindexJob> jobs = myReindexJobDao.findMostRecent(new PageRequest(0, 1));
+		return jobs.isEmpty() ? null : jobs.get(0);
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public int importNdjson(String theNdjson, final boolean theDeferIndexing) {
+		StopWatch w = new StopWatch();
+		final List<IBaseResource> resources = parseNdjson(theNdjson);
+		if (resources.isEmpty()) {
+			return 0;
+		}
+		long parseMillis = w.getMillisAndRestart();
+
+		final Date updateTime = new Date();
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRED);
+		txTemplate.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				Map<String, ResourceTable> idToEntity = loadImportTargets(resources, theDeferIndexing);
+
+				/*
+				 * Store every resource before indexing any of them, so that references between resources in the
+				 * document can be resolved no matter what order they appear in
+				 */
+				List<ResourceTable> entities = new ArrayList<ResourceTable>(resources.size());
+				for (IBaseResource next : resources) {
+					String resourceName = toResourceName(next);
+					IIdType id = next.getIdElement();
+					ResourceTable entity = id.hasIdPart() ? idToEntity.get(id.getIdPart()) : null;
+					boolean exists = entity != null;
+					if (exists) {
+						validateResourceType(entity, resourceName);
+					} else {
+						entity = new ResourceTable();
+						entity.setResourceType(resourceName);
+						createForcedIdIfNeeded(entity, id);
+					}
+
+					updateEntity(next, entity, exists, null, false, true, updateTime, true, false);
+					entities.add(entity);
+					if (id.hasIdPart()) {
+						idToEntity.put(id.getIdPart(), entity);
+					}
+
+					if (entities.size() % TRANSACTION_INDEXING_FLUSH_INTERVAL == 0) {
+						myEntityManager.flush();
+					}
+				}
+				myEntityManager.flush();
+
+				if (!theDeferIndexing) {
+					for (int i = 0; i < resources.size(); i++) {
+						ResourceTable indexedEntity = updateEntity(resources.get(i), entities.get(i), false, null, true, false, updateTime, false, false);
+						flagMatchingSubscriptions(indexedEntity);
+						if ((i + 1) % TRANSACTION_INDEXING_FLUSH_INTERVAL == 0) {
+							myEntityManager.flush();
+						}
+					}
+					myEntityManager.flush();
+				}
+			}
+		});
+
+		ourLog.info("Imported {} resources (parsed in {}ms, stored in {}ms, indexing {})", new Object[] { resources.size(), parseMillis, w.getMillisAndRestart(), theDeferIndexing ? "deferred" : "performed" });
+		return resources.size();
+	}
+
+	/**
+	 * Resolves the client assigned IDs of all of the resources being imported, and (if they are about to be indexed)
+	 * all of the IDs they reference, using one query per kind rather than one per resource. The returned map contains
+	 * the entities which already exist, keyed by ID part.
+	 */
+	private Map<String, ResourceTable> loadImportTargets(List<IBaseResource> theResources, boolean theDeferIndexing) {
+		List<IIdType> ids = new ArrayList<IIdType>();
+		for (IBaseResource next : theResources) {
+			if (next.getIdElement().hasIdPart()) {
+				ids.add(next.getIdElement());
+			}
+			if (!theDeferIndexing) {
+				for (IBaseReference nextRef : getContext().newTerser().getAllPopulatedChildElementsOfType(next, IBaseReference.class)) {
+					IIdType nextId = nextRef.getReferenceElement();
+					if (!nextId.isEmpty() && !nextId.isLocal() && !nextId.isAbsolute()) {
+						ids.add(nextId);
+					}
+				}
+			}
+		}
+
+		Map<String, Long> idToPid = translateForcedIdsToPids(ids);
+
+		Set<String> ownIds = new HashSet<String>();
+		for (IBaseResource next : theResources) {
+			ownIds.add(next.getIdElement().getIdPart());
+		}
+		Map<Long, String> pidToId = new HashMap<Long, String>();
+		for (Map.Entry<String, Long> next : idToPid.entrySet()) {
+			if (ownIds.contains(next.getKey())) {
+				pidToId.put(next.getValue(), next.getKey());
+			}
+		}
+
+		Map<String, ResourceTable> retVal = new HashMap<String, ResourceTable>();
+		for (List<Long> nextPids : Lists.partition(new ArrayList<Long>(pidToId.keySet()), 500)) {
+			TypedQuery<ResourceTable> q = myEntityManager.createQuery("SELECT t FROM " + ResourceTable.class.getSimpleName() + " t WHERE t.myId IN (:pids)", ResourceTable.class);
+			q.setParameter("pids", nextPids);
+			for (ResourceTable next : q.getResultList()) {
+				retVal.put(pidToId.get(next.getId()), next);
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Parses every non-blank line of an NDJSON document. Slices of lines are parsed concurrently on the batch executor
+	 * when {@link DaoConfig#setBatchParallelism(int) batch parallelism} allows it, and the resources are returned in
+	 * the order they appear in the document.
+	 */
+	private List<IBaseResource> parseNdjson(String theNdjson) {
+		final List<String> lines = new ArrayList<String>();
+		final List<Integer> lineNumbers = new ArrayList<Integer>();
+		String[] allLines = defaultString(theNdjson).split("\\r?\\n");
+		for (int i = 0; i < allLines.length; i++) {
+			if (isNotBlank(allLines[i])) {
+				lines.add(allLines[i]);
+				lineNumbers.add(i + 1);
+			}
+		}
+
+		List<Callable<List<IBaseResource>>> tasks = new ArrayList<Callable<List<IBaseResource>>>();
+		List<String> keys = new ArrayList<String>();
+		for (int i = 0; i < lines.size(); i += IMPORT_PARSE_SLICE_SIZE) {
+			final int from = i;
+			final int to = Math.min(i + IMPORT_PARSE_SLICE_SIZE, lines.size());
+			tasks.add(new Callable<List<IBaseResource>>() {
+				@Override
+				public List<IBaseResource> call() {
+					IParser parser = getContext().newJsonParser();
+					List<IBaseResource> retVal = new ArrayList<IBaseResource>(to - from);
+					for (int j = from; j < to; j++) {
+						IBaseResource next;
+						try {
+							next = parser.parseResource(lines.get(j));
+						} catch (DataFormatException e) {
+							throw new InvalidRequestException("Failed to parse resource on line " + lineNumbers.get(j) + ": " + e.getMessage());
+						}
+						if (isValidPid(next.getIdElement())) {
+							throw new UnprocessableEntityException("Resource on line " + lineNumbers.get(j) + " has numeric ID " + next.getIdElement().getIdPart() + " - This server cannot create an entity with a user-specified numeric ID");
+						}
+						retVal.add(next);
+					}
+					return retVal;
+				}
+			});
+			keys.add(null);
+		}
+
+		List<IBaseResource> retVal = new ArrayList<IBaseResource>(lines.size());
+		for (List<IBaseResource> next : executeBatchTasks(tasks, keys)) {
+			retVal.addAll(next);
+		}
+		return retVal;
+	}
+
 	protected ResourceTable loadFirstEntityFromCandidateMatches(Set<Long> candidateMatches) {
 		return myEntityManager.find(ResourceTable.class, candidateMatches.iterator().next());
 	}
@@ -192,6 +539,171 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 		});
 	}
 
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public int performEncodingMigrationPass(final Integer theCount) {
+		final ResourceEncodingEnum encoding = getConfig().getResourceEncoding();
+		final int maxResult = theCount != null ? Math.min(theCount, 2000) : 500;
+
+		List<Class<? extends BaseHasResource>> types = new ArrayList<Class<? extends BaseHasResource>>();
+		types.add(ResourceTable.class);
+		types.add(ResourceHistoryTable.class);
+
+		int retVal = 0;
+		for (final Class<? extends BaseHasResource> nextType : types) {
+			TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+			txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
+			retVal += txTemplate.execute(new TransactionCallback<Integer>() {
+				@Override
+				public Integer doInTransaction(TransactionStatus theStatus) {
+					TypedQuery<? extends BaseHasResource> q = myEntityManager.createQuery("SELECT t FROM " + nextType.getSimpleName() + " t WHERE t.myEncoding <> :encoding", nextType);
+					q.setParameter("encoding", encoding);
+					q.setMaxResults(maxResult);
+					List<? extends BaseHasResource> rows = q.getResultList();
+					if (rows.isEmpty()) {
+						return 0;
+					}
+
+					StopWatch w = new StopWatch();
+					for (BaseHasResource next : rows) {
+						String text = next.getEncoding().decodeToString(next.getResource());
+						next.setResource(encoding.encode(text));
+						next.setEncoding(encoding);
+					}
+					myEntityManager.flush();
+
+					ourLog.info("Rewrote {} {} rows using encoding {} in {}ms", new Object[] { rows.size(), nextType.getSimpleName(), encoding, w.getMillisAndRestart() });
+					return rows.size();
+				}
+			});
+		}
+
+		return retVal;
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.NOT_SUPPORTED)
+	public synchronized int performReindexJobPass() {
+		final int chunkSize = getConfig().getReindexChunkSize();
+		final int maxPids = chunkSize * getConfig().getReindexParallelism();
+		final Date passStart = new Date();
+
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
+
+		/*
+		 * Find the next round of PIDs for the oldest running job. Only the PIDs are read here, each chunk loads its
+		 * own resources in the worker transaction.
+		 */
+		final List<ReindexJob> jobHolder = new ArrayList<ReindexJob>(1);
+		final List<Long> pids = txTemplate.execute(new TransactionCallback<List<Long>>() {
+			@Override
+			public List<Long> doInTransaction(TransactionStatus theStatus) {
+				List<ReindexJob> jobs = myReindexJobDao.findByStatus(ReindexJobStatusEnum.RUNNING, new PageRequest(0, 1));
+				if (jobs.isEmpty()) {
+					return null;
+				}
+				ReindexJob job = jobs.get(0);
+				jobHolder.add(job);
+
+				TypedQuery<Long> q = createReindexJobQuery(job, "t.myId", Long.class);
+				q.setParameter("low", job.getNextPid());
+				q.setParameter("high", job.getEndPid());
+				q.setMaxResults(maxPids);
+				return q.getResultList();
+			}
+		});
+		if (pids == null) {
+			return 0;
+		}
+
+		final ReindexJob job = jobHolder.get(0);
+		List<List<Long>> chunks = Lists.partition(pids, chunkSize);
+		int processed = 0;
+		int failed = 0;
+		if (chunks.size() > 1 && myReindexExecutor != null) {
+			List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+			for (final List<Long> nextChunk : chunks) {
+				futures.add(myReindexExecutor.submit(new Callable<int[]>() {
+					@Override
+					public int[] call() {
+						return reindexChunk(job, nextChunk);
+					}
+				}));
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					int[] counts = futures.get(i).get();
+					processed += counts[0];
+					failed += counts[1];
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InternalErrorException("Interrupted while reindexing", e);
+				} catch (ExecutionException e) {
+					List<Long> chunk = chunks.get(i);
+					ourLog.error("Failed to reindex resources " + chunk.get(0) + " to " + chunk.get(chunk.size() - 1) + " of reindex job " + job.getId(), e.getCause());
+					failed += chunk.size();
+				}
+			}
+		} else {
+			for (List<Long> nextChunk : chunks) {
+				int[] counts = reindexChunk(job, nextChunk);
+				processed += counts[0];
+				failed += counts[1];
+			}
+		}
+
+		/*
+		 * Checkpoint. If the job has been advanced in the meantime (by another server) it is left alone, since
+		 * reindexing a resource twice does no harm.
+		 */
+		final int processedCount = processed;
+		final int failedCount = failed;
+		txTemplate.execute(new TransactionCallback<Void>() {
+			@Override
+			public Void doInTransaction(TransactionStatus theStatus) {
+				ReindexJob current = myReindexJobDao.findOne(job.getId());
+				if (current == null || current.getStatus() != ReindexJobStatusEnum.RUNNING || current.getNextPid() != job.getNextPid()) {
+					return null;
+				}
+				Date now = new Date();
+				if (current.getStarted() == null) {
+					current.setStarted(passStart);
+				}
+				current.setProcessedCount(current.getProcessedCount() + processedCount);
+				current.setFailedCount(current.getFailedCount() + failedCount);
+				current.setLastUpdated(now);
+				if (pids.size() < maxPids) {
+					current.setNextPid(current.getEndPid() + 1);
+					current.setStatus(ReindexJobStatusEnum.COMPLETE);
+					current.setFinished(now);
+					ourLog.info("Reindex job {} is complete, reindexed {} resources ({} failed)", new Object[] { current.getId(), current.getProcessedCount(), current.getFailedCount() });
+				} else {
+					current.setNextPid(pids.get(pids.size() - 1) + 1);
+				}
+				myReindexJobDao.save(current);
+				return null;
+			}
+		});
+
+		ourLog.info("Reindex job {} reindexed {} resources ({} failed) in {}ms", new Object[] { job.getId(), processed, failed, System.currentTimeMillis() - passStart.getTime() });
+
+		int maxPerSecond = getConfig().getReindexMaxResourcesPerSecond();
+		if (maxPerSecond > 0) {
+			long minimumMillis = ((processed + failed) * DateUtils.MILLIS_PER_SECOND) / maxPerSecond;
+			long remaining = minimumMillis - (System.currentTimeMillis() - passStart.getTime());
+			if (remaining > 0) {
+				try {
+					Thread.sleep(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		return processed + failed;
+	}
+
 	@Override
 	@Transactional(propagation = Propagation.NOT_SUPPORTED)
 	public int performReindexingPass(final Integer theCount) {
@@ -204,10 +716,156 @@ public abstract class BaseHapiFhirSystemDao<T, MT> extends BaseHapiFhirDao<IBase
 		}
 	}
 
+	/**
+	 * Reindexes the resources in one chunk of a reindex job within a single transaction. If a resource can't be
+	 * reindexed, the transaction is rolled back, the resource is marked as having failed indexing, and the chunk is
+	 * retried without it. If the transaction fails for any other reason (e.g. while flushing or committing), the
+	 * whole chunk is counted as failed so that the job can still move past it.
+	 * 
+	 * @return The number of resources which were reindexed and the number which failed
+	 */
+	private int[] reindexChunk(final ReindexJob theJob, List<Long> theChunk) {
+		final long lowPid = theChunk.get(0);
+		final long highPid = theChunk.get(theChunk.size() - 1);
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionTemplate.PROPAGATION_REQUIRES_NEW);
+
+		final Set<Long> failed = new HashSet<Long>();
+		while (true) {
+			try {
+				int count = txTemplate.execute(new TransactionCallback<Integer>() {
+					@Override
+					public Integer doInTransaction(TransactionStatus theStatus) {
+						TypedQuery<ResourceTable> q = createReindexJobQuery(theJob, "t", ResourceTable.class);
+						q.setParameter("low", lowPid);
+						q.setParameter("high", highPid);
+
+						int retVal = 0;
+						for (ResourceTable next : q.getResultList()) {
+							if (failed.contains(next.getId())) {
+								continue;
+							}
+							try {
+								IBaseResource resource = toResource(next, false);
+								@SuppressWarnings("rawtypes")
+								IFhirResourceDao dao = getDao(resource.getClass());
+								dao.reindex(resource, next);
+							} catch (Exception e) {
+								ourLog.error("Failed to index resource {}: {}", new Object[] { next.getIdDt(), e.toString(), e });
+								throw new ReindexFailureException(next.getId());
+							}
+							retVal++;
+						}
+						return retVal;
+					}
+				});
+				return new int[] { count, failed.size() };
+			} catch (ReindexFailureException e) {
+				failed.add(e.getResourceId());
+				markResourceAsIndexingFailed(e.getResourceId());
+			} catch (RuntimeException e) {
+				ourLog.error("Failed to reindex resources " + lowPid + " to " + highPid + " of reindex job " + theJob.getId(), e);
+				return new int[] { 0, theChunk.size() };
+			}
+		}
+	}
+
+	private <R> TypedQuery<R> createReindexJobQuery(ReindexJob theJob, String theSelect, Class<R> theType) {
+		StringBuilder b = new StringBuilder();
+		b.append("SELECT ").append(theSelect).append(" FROM ResourceTable t WHERE t.myId >= :low AND t.myId <= :high AND t.myDeleted IS NULL");
+		if (theJob.getResourceType() != null) {
+			b.append(" AND t.myResourceType = :type");
+		}
+		b.append(" ORDER BY t.myId ASC");
+		TypedQuery<R> retVal = myEntityManager.createQuery(b.toString(), theType);
+		if (theJob.getResourceType() != null) {
+			retVal.setParameter("type", theJob.getResourceType());
+		}
+		return retVal;
+	}
+
 	public void setTxManager(PlatformTransactionManager theTxManager) {
 		myTxManager = theTxManager;
 	}
 
+	/**
+	 * Returns the key used to serialize a batch entry against the other entries in the same batch (see
+	 * {@link #executeBatchTasks(List, List)}). Entries which create, update, delete or read the same resource ID or
+	 * conditional URL get the same key. Returns <code>null</code> for an unconditional create, since this can't
+	 * affect any other entry.
+	 */
+	static String toBatchSerializationKey(String theVerb, String theUrl, String theResourceType, String theIfNoneExist) {
+		if ("POST".equals(theVerb)) {
+			if (isBlank(theIfNoneExist)) {
+				return null;
+			}
+			String matchUrl = theIfNoneExist.startsWith("/") ? theIfNoneExist.substring(1) : theIfNoneExist;
+			if (matchUrl.contains("?")) {
+				return matchUrl;
+			}
+			return theResourceType + "?" + matchUrl;
+		}
+
+		if (isBlank(theUrl)) {
+			return null;
+		}
+		String url = theUrl.startsWith("/") ? theUrl.substring(1) : theUrl;
+		if (url.contains("?")) {
+			return url;
+		}
+
+		// Strip any trailing parts such as "_history/1" so that all entries for one resource share a key
+		String[] parts = url.split("/");
+		if (parts.length >= 2) {
+			return parts[0] + "/" + parts[1];
+		}
+		return url;
+	}
+
+	@Transactional(propagation = Propagation.REQUIRED)
+	@Override
+	public ReindexJob startReindexJob(String theResourceType) {
+		if (theResourceType != null) {
+			try {
+				getContext().getResourceDefinition(theResourceType);
+			} catch (DataFormatException e) {
+				throw new InvalidRequestException("Unknown resource type: " + theResourceType);
+			}
+		}
+
+		String q = "SELECT COUNT(t), MAX(t.myId) FROM ResourceTable t WHERE t.myDeleted IS NULL";
+		if (theResourceType != null) {
+			q += " AND t.myResourceType = :type";
+		}
+		TypedQuery<Object[]> countQuery = myEntityManager.createQuery(q, Object[].class);
+		if (theResourceType != null) {
+			countQuery.setParameter("type", theResourceType);
+		}
+		Object[] counts = countQuery.getSingleResult();
+		long total = ((Number) counts[0]).longValue();
+		Long maxPid = (Long) counts[1];
+
+		Date now = new Date();
+		ReindexJob job = new ReindexJob();
+		job.setCreated(now);
+		job.setLastUpdated(now);
+		job.setResourceType(theResourceType);
+		job.setTotalCount(total);
+		job.setNextPid(0);
+		if (maxPid != null) {
+			job.setEndPid(maxPid);
+			job.setStatus(ReindexJobStatusEnum.RUNNING);
+		} else {
+			job.setEndPid(-1);
+			job.setStatus(ReindexJobStatusEnum.COMPLETE);
+			job.setFinished(now);
+		}
+		job = myReindexJobDao.save(job);
+
+		ourLog.info("Created reindex job {} for {} {} resources", new Object[] { job.getId(), total, theResourceType != null ? theResourceType : "(all)" });
+		return job;
+	}
+
 	protected ResourceTable tryToLoadEntity(IdDt nextId) {
 		ResourceTable entity;
 		try {
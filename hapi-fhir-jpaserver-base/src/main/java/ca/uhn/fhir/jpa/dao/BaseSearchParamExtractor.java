@@ -20,18 +20,17 @@ package ca.uhn.fhir.jpa.dao;
  * #L%
  */
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
-import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.jpa.dao.SearchParamExtractionPlan.ExtractedValues;
 
 public class BaseSearchParamExtractor {
-	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseSearchParamExtractor.class);
 	private FhirContext myContext;
+	private final ConcurrentHashMap<RuntimeResourceDefinition, SearchParamExtractionPlan> myExtractionPlans = new ConcurrentHashMap<RuntimeResourceDefinition, SearchParamExtractionPlan>();
 	
 	public BaseSearchParamExtractor(FhirContext theContext) {
 		myContext = theContext;
@@ -41,20 +40,21 @@ public class BaseSearchParamExtractor {
 		return myContext;
 	}
 
-	protected List<Object> extractValues(String thePaths, IBaseResource theResource) {
-		List<Object> values = new ArrayList<Object>();
-		String[] nextPathsSplit = thePaths.split("\\|");
-		FhirTerser t = myContext.newTerser();
-		for (String nextPath : nextPathsSplit) {
-			String nextPathTrimmed = nextPath.trim();
-			try {
-				values.addAll(t.getValues(theResource, nextPathTrimmed));
-			} catch (Exception e) {
-				RuntimeResourceDefinition def = myContext.getResourceDefinition(theResource);
-				ourLog.warn("Failed to index values from path[{}] in resource type[{}]: {}", new Object[] { nextPathTrimmed, def.getName(), e.toString(), e } );
+	/**
+	 * Collects the values of every search parameter of the resource's type in a single walk over the resource. The
+	 * plan for each resource type is compiled the first time a resource of that type is seen.
+	 */
+	public ExtractedValues extractSearchParamValues(IBaseResource theResource) {
+		RuntimeResourceDefinition def = myContext.getResourceDefinition(theResource);
+		SearchParamExtractionPlan plan = myExtractionPlans.get(def);
+		if (plan == null) {
+			plan = SearchParamExtractionPlan.compile(myContext, def);
+			SearchParamExtractionPlan existing = myExtractionPlans.putIfAbsent(def, plan);
+			if (existing != null) {
+				plan = existing;
 			}
 		}
-		return values;
+		return plan.execute(theResource);
 	}
 
 	
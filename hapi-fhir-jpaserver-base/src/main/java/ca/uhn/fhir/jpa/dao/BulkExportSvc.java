@@ -0,0 +1,493 @@
+package ca.uhn.fhir.jpa.dao;
+
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.TypedQuery;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateUtils;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.base.Charsets;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.jpa.dao.data.IBulkExportJobDao;
+import ca.uhn.fhir.jpa.entity.BulkExportJob;
+import ca.uhn.fhir.jpa.entity.BulkExportJobStatusEnum;
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
+
+/**
+ * Runs bulk <code>$export</code> jobs, which write every current resource of the requested types to one NDJSON file
+ * per type in a local directory (see {@link DaoConfig#setBulkExportDirectory(String)}).
+ * <p>
+ * Jobs are submitted by the <code>$export</code> operations and are picked up in the background, so the client
+ * polls for the job's status instead of waiting for the export. Each type is read in ranges of
+ * {@link #EXPORT_RANGE_SIZE} PIDs, each range in its own read-only transaction using a forward-only cursor, so
+ * neither the database nor the server holds more than one range at a time. Unless <code>_elements</code> was
+ * requested, the stored resource text is only decompressed and written out with the resource's ID, without being
+ * parsed. Note that the <code>meta</code> element of resources exported this way is as it was stored, so it does not
+ * contain the version ID or last updated time.
+ * </p>
+ * <p>
+ * A running job records its progress after each range. If the server running a job stops, the job is left running
+ * until it hasn't made progress for {@link #STALE_JOB_MILLIS}, at which point it is submitted again and restarted
+ * from the beginning by whichever server picks it up.
+ * </p>
+ */
+public class BulkExportSvc {
+
+	/**
+	 * The number of resources read in each transaction
+	 */
+	static final int EXPORT_RANGE_SIZE = 10000;
+
+	private static final int FETCH_SIZE = 500;
+
+	/**
+	 * A running job which hasn't made progress for this long is assumed to have been abandoned
+	 */
+	static final long STALE_JOB_MILLIS = 10 * DateUtils.MILLIS_PER_MINUTE;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BulkExportSvc.class);
+
+	private static final String RESOURCE_TYPE_PREFIX = "{\"resourceType\":\"";
+
+	@Autowired
+	private IBulkExportJobDao myBulkExportJobDao;
+
+	private final Map<FhirVersionEnum, FhirContext> myContexts = new EnumMap<FhirVersionEnum, FhirContext>(FhirVersionEnum.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	@Autowired
+	private PlatformTransactionManager myTxManager;
+
+	private void checkEnabled() {
+		if (myDaoConfig.getBulkExportDirectory() == null) {
+			throw new NotImplementedOperationException("Bulk export is not enabled on this server");
+		}
+	}
+
+	private long exportType(final BulkExportJob theJob, final String theResourceType, File theDirectory) throws IOException {
+		final Set<String> elements = toEncodeElements(theJob.getElements());
+		File file = new File(theDirectory, theResourceType + ".ndjson");
+		final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8));
+		long count = 0;
+		try {
+			TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+			txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+			txTemplate.setReadOnly(true);
+
+			long lastPid = -1;
+			while (true) {
+				final long afterPid = lastPid;
+				final long[] rangeResult = txTemplate.execute(new TransactionCallback<long[]>() {
+					@Override
+					public long[] doInTransaction(TransactionStatus theStatus) {
+						try {
+							return exportRange(theJob, theResourceType, afterPid, elements, writer);
+						} catch (IOException e) {
+							throw new InternalErrorException("Failed to write export file: " + e.getMessage(), e);
+						}
+					}
+				});
+				count += rangeResult[0];
+				touchJob(theJob.getId());
+				if (rangeResult[0] < EXPORT_RANGE_SIZE) {
+					break;
+				}
+				lastPid = rangeResult[1];
+			}
+		} finally {
+			IOUtils.closeQuietly(writer);
+		}
+
+		if (count == 0) {
+			file.delete();
+		}
+		return count;
+	}
+
+	/**
+	 * Writes up to {@link #EXPORT_RANGE_SIZE} resources with a PID greater than the given one
+	 * 
+	 * @return The number of resources written, and the last PID written
+	 */
+	private long[] exportRange(BulkExportJob theJob, String theResourceType, long theAfterPid, Set<String> theElements, Writer theWriter) throws IOException {
+		StringBuilder b = new StringBuilder();
+		b.append("SELECT t.myId, f.myForcedId, t.myEncoding, t.myResource, t.myFhirVersion FROM ResourceTable t LEFT JOIN t.myForcedId f");
+		b.append(" WHERE t.myResourceType = :type AND t.myDeleted IS NULL AND t.myId > :pid");
+		if (theJob.getSince() != null) {
+			b.append(" AND t.myUpdated >= :since");
+		}
+		b.append(" ORDER BY t.myId ASC");
+
+		TypedQuery<Object[]> query = myEntityManager.createQuery(b.toString(), Object[].class);
+		query.setParameter("type", theResourceType);
+		query.setParameter("pid", theAfterPid);
+		if (theJob.getSince() != null) {
+			query.setParameter("since", theJob.getSince());
+		}
+		query.setMaxResults(EXPORT_RANGE_SIZE);
+
+		long count = 0;
+		long lastPid = theAfterPid;
+		ScrollableResults scroll = query.unwrap(org.hibernate.Query.class).setFetchSize(FETCH_SIZE).scroll(ScrollMode.FORWARD_ONLY);
+		try {
+			while (scroll.next()) {
+				lastPid = (Long) scroll.get(0);
+				String forcedId = (String) scroll.get(1);
+				ResourceEncodingEnum encoding = (ResourceEncodingEnum) scroll.get(2);
+				byte[] bytes = (byte[]) scroll.get(3);
+				FhirVersionEnum fhirVersion = (FhirVersionEnum) scroll.get(4);
+
+				String id = forcedId != null ? forcedId : Long.toString(lastPid);
+				String encoded = null;
+				if (theElements == null) {
+					encoded = injectResourceId(encoding.decodeToString(bytes), theResourceType, id);
+				}
+				if (encoded == null) {
+					encoded = reencode(encoding, bytes, fhirVersion, theResourceType, id, theElements);
+				}
+
+				theWriter.write(encoded);
+				theWriter.write('\n');
+				count++;
+			}
+		} finally {
+			scroll.close();
+		}
+
+		// Don't keep the blobs which have been read around until the transaction ends
+		myEntityManager.clear();
+		return new long[] { count, lastPid };
+	}
+
+	private FhirContext getContext(FhirVersionEnum theVersion) {
+		FhirVersionEnum ver = theVersion != null ? theVersion : FhirVersionEnum.DSTU1;
+		synchronized (myContexts) {
+			FhirContext retVal = myContexts.get(ver);
+			if (retVal == null) {
+				retVal = new FhirContext(ver);
+				myContexts.put(ver, retVal);
+			}
+			return retVal;
+		}
+	}
+
+	public BulkExportJob getJob(Long theJobId) {
+		return myBulkExportJobDao.findOne(theJobId);
+	}
+
+	/**
+	 * Returns the directory which the output files for the given job are written into
+	 */
+	public File getJobDirectory(BulkExportJob theJob) {
+		checkEnabled();
+		return new File(myDaoConfig.getBulkExportDirectory(), theJob.getId().toString());
+	}
+
+	/**
+	 * Returns the output files of a completed job, one per exported resource type which contained any resources
+	 */
+	public List<File> getOutputFiles(BulkExportJob theJob) {
+		if (theJob.getStatus() != BulkExportJobStatusEnum.COMPLETE) {
+			return Collections.emptyList();
+		}
+		File[] files = getJobDirectory(theJob).listFiles();
+		if (files == null) {
+			return Collections.emptyList();
+		}
+		List<File> retVal = new ArrayList<File>(Arrays.asList(files));
+		Collections.sort(retVal);
+		return retVal;
+	}
+
+	/**
+	 * Runs any submitted jobs, one after another
+	 * 
+	 * @return The number of jobs which were run
+	 */
+	public synchronized int performExportPass() {
+		resubmitStaleJobs();
+
+		int retVal = 0;
+		while (true) {
+			List<BulkExportJob> jobs = myBulkExportJobDao.findByStatus(BulkExportJobStatusEnum.SUBMITTED, new PageRequest(0, 1));
+			if (jobs.isEmpty()) {
+				return retVal;
+			}
+			runJob(jobs.get(0).getId());
+			retVal++;
+		}
+	}
+
+	@Scheduled(fixedDelay = DateUtils.MILLIS_PER_SECOND)
+	public void pollForSubmittedJobs() {
+		if (myDaoConfig.isSchedulingDisabled() || myDaoConfig.getBulkExportDirectory() == null) {
+			return;
+		}
+		performExportPass();
+	}
+
+	private String reencode(ResourceEncodingEnum theEncoding, byte[] theBytes, FhirVersionEnum theFhirVersion, String theResourceType, String theId, Set<String> theElements) {
+		FhirContext context = getContext(theFhirVersion);
+		IBaseResource resource;
+		Reader reader = theEncoding.decode(theBytes);
+		try {
+			resource = theEncoding.newParser(context).parseResource(reader);
+		} finally {
+			IOUtils.closeQuietly(reader);
+		}
+		resource.setId(theResourceType + "/" + theId);
+
+		IParser parser = context.newJsonParser();
+		if (theElements != null) {
+			parser.setEncodeElements(theElements);
+		}
+		return parser.encodeResourceToString(resource);
+	}
+
+	private void runJob(final Long theJobId) {
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+		final BulkExportJob job = txTemplate.execute(new TransactionCallback<BulkExportJob>() {
+			@Override
+			public BulkExportJob doInTransaction(TransactionStatus theStatus) {
+				if (myBulkExportJobDao.updateStatus(theJobId, BulkExportJobStatusEnum.SUBMITTED, BulkExportJobStatusEnum.RUNNING) == 0) {
+					return null;
+				}
+				BulkExportJob retVal = myBulkExportJobDao.findOne(theJobId);
+				Date now = new Date();
+				retVal.setStarted(now);
+				retVal.setLastUpdated(now);
+				return myBulkExportJobDao.save(retVal);
+			}
+		});
+		if (job == null) {
+			// Another server got to it first
+			return;
+		}
+
+		StopWatch sw = new StopWatch();
+		long count = 0;
+		String error = null;
+		try {
+			List<String> types;
+			if (job.getResourceTypes() != null) {
+				types = Arrays.asList(StringUtils.split(job.getResourceTypes(), ','));
+			} else {
+				types = txTemplate.execute(new TransactionCallback<List<String>>() {
+					@Override
+					public List<String> doInTransaction(TransactionStatus theStatus) {
+						return myEntityManager.createQuery("SELECT DISTINCT t.myResourceType FROM ResourceTable t WHERE t.myDeleted IS NULL ORDER BY t.myResourceType", String.class).getResultList();
+					}
+				});
+			}
+
+			File directory = getJobDirectory(job);
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Unable to create directory: " + directory.getAbsolutePath());
+			}
+
+			for (String nextType : types) {
+				long typeCount = exportType(job, nextType, directory);
+				ourLog.info("Export job {} wrote {} {} resources", new Object[] { job.getId(), typeCount, nextType });
+				count += typeCount;
+			}
+		} catch (Exception e) {
+			ourLog.error("Export job " + job.getId() + " failed", e);
+			error = StringUtils.abbreviate(e.toString(), BulkExportJob.STATUS_MESSAGE_LEN);
+		}
+
+		final long resourceCount = count;
+		final String statusMessage = error;
+		txTemplate.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				BulkExportJob current = myBulkExportJobDao.findOne(job.getId());
+				current.setResourceCount(resourceCount);
+				Date now = new Date();
+				current.setFinished(now);
+				current.setLastUpdated(now);
+				current.setStatus(statusMessage == null ? BulkExportJobStatusEnum.COMPLETE : BulkExportJobStatusEnum.ERROR);
+				current.setStatusMessage(statusMessage);
+				myBulkExportJobDao.save(current);
+			}
+		});
+
+		ourLog.info("Export job {} finished, wrote {} resources in {}ms", new Object[] { job.getId(), count, sw.getMillisAndRestart() });
+	}
+
+	/**
+	 * Submits any running jobs which haven't made progress for {@link #STALE_JOB_MILLIS} again, since the server
+	 * which was running them has presumably stopped
+	 */
+	private void resubmitStaleJobs() {
+		final Date cutoff = new Date(System.currentTimeMillis() - STALE_JOB_MILLIS);
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		int count = txTemplate.execute(new TransactionCallback<Integer>() {
+			@Override
+			public Integer doInTransaction(TransactionStatus theStatus) {
+				return myBulkExportJobDao.updateStatusIfNotUpdatedSince(BulkExportJobStatusEnum.RUNNING, BulkExportJobStatusEnum.SUBMITTED, cutoff);
+			}
+		});
+		if (count > 0) {
+			ourLog.warn("Resubmitted {} export jobs which have not made progress since {}", count, cutoff);
+		}
+	}
+
+	/**
+	 * Creates a new export job, which will be run in the background
+	 * 
+	 * @param theResourceTypes
+	 *           The resource types to export, or <code>null</code> for all types
+	 * @param theSince
+	 *           If not <code>null</code>, only resources updated at or after this time are exported
+	 * @param theElements
+	 *           The elements to include in each resource, or <code>null</code> for complete resources
+	 */
+	public BulkExportJob submitJob(Collection<String> theResourceTypes, Date theSince, Collection<String> theElements) {
+		checkEnabled();
+
+		final BulkExportJob job = new BulkExportJob();
+		job.setCreated(new Date());
+		job.setStatus(BulkExportJobStatusEnum.SUBMITTED);
+		job.setSince(theSince);
+		if (theResourceTypes != null && !theResourceTypes.isEmpty()) {
+			job.setResourceTypes(StringUtils.join(theResourceTypes, ','));
+		}
+		if (theElements != null && !theElements.isEmpty()) {
+			job.setElements(StringUtils.join(theElements, ','));
+		}
+
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		return txTemplate.execute(new TransactionCallback<BulkExportJob>() {
+			@Override
+			public BulkExportJob doInTransaction(TransactionStatus theStatus) {
+				return myBulkExportJobDao.save(job);
+			}
+		});
+	}
+
+	/**
+	 * Records that a running job is still making progress
+	 */
+	private void touchJob(final Long theJobId) {
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		txTemplate.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				myBulkExportJobDao.updateLastUpdated(theJobId, new Date());
+			}
+		});
+	}
+
+	/**
+	 * Replaces (or adds) the ID in stored resource JSON, which begins with the resource type and, if the resource had
+	 * an ID when it was stored, the ID. Returns <code>null</code> if the JSON doesn't have this layout, in which case
+	 * the resource must be parsed instead.
+	 */
+	static String injectResourceId(String theJson, String theResourceType, String theId) {
+		String prefix = RESOURCE_TYPE_PREFIX + theResourceType + "\"";
+		if (!theJson.startsWith(prefix)) {
+			return null;
+		}
+
+		int restIndex = prefix.length();
+		String idPrefix = ",\"id\":\"";
+		if (theJson.startsWith(idPrefix, restIndex)) {
+			int idEnd = theJson.indexOf('"', restIndex + idPrefix.length());
+			if (idEnd == -1) {
+				return null;
+			}
+			restIndex = idEnd + 1;
+		}
+
+		StringBuilder b = new StringBuilder(theJson.length() + theId.length() + 10);
+		b.append(prefix);
+		b.append(idPrefix).append(theId).append('"');
+		b.append(theJson, restIndex, theJson.length());
+		return b.toString();
+	}
+
+	private static Set<String> toEncodeElements(String theElements) {
+		if (theElements == null) {
+			return null;
+		}
+		Set<String> retVal = new HashSet<String>();
+		for (String next : StringUtils.split(theElements, ',')) {
+			if (isNotBlank(next)) {
+				retVal.add("*." + next.trim());
+			}
+		}
+		return retVal.isEmpty() ? null : retVal;
+	}
+
+}
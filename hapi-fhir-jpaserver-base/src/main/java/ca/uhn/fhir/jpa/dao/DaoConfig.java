@@ -5,6 +5,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.Validate;
 import org.apache.commons.lang3.time.DateUtils;
 
@@ -35,15 +36,64 @@ import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor;
 public class DaoConfig {
 
 	private boolean myAllowMultipleDelete;
+	private int myBatchParallelism = 1;
+	private String myBulkExportDirectory;
+	private long myExpireSearchResultsAfterMillis = DateUtils.MILLIS_PER_HOUR;
+	private boolean myForcedIdCacheEnabled = true;
+	private int myForcedIdCacheMaxEntries = 100000;
 	private int myHardSearchLimit = 1000;
 	private int myHardTagListLimit = 1000;
+	private boolean myHashedIndexSearchEnabled;
 	private int myIncludeLimit = 2000;
 	private List<IServerInterceptor> myInterceptors;
+	private boolean myKeysetPagingEnabled;
+	private int myParallelParseThreshold = 20;
+	private boolean myParsedResourceCacheEnabled;
+	private long myParsedResourceCacheMaxBytes = 50 * FileUtils.ONE_MB;
+	private boolean myPersistSearchResults;
+	private int myReindexChunkSize = 500;
+	private int myReindexMaxResourcesPerSecond;
+	private int myReindexParallelism = 2;
 	private ResourceEncodingEnum myResourceEncoding = ResourceEncodingEnum.JSONC;
 	private boolean mySchedulingDisabled;
+	private boolean mySearchResultCacheEnabled;
+	private int mySearchResultCacheMaxEntries = 1000;
+	private long mySearchResultCacheTtlMillis = DateUtils.MILLIS_PER_MINUTE;
+	private boolean mySingleQuerySearchEnabled;
+	private boolean myStreamingSearchEnabled;
 	private boolean mySubscriptionEnabled;
+	private boolean mySubscriptionMatchingOnWriteEnabled;
 	private long mySubscriptionPollDelay = 1000;
 	private Long mySubscriptionPurgeInactiveAfterMillis;
+	private boolean myTagDefinitionCacheEnabled = true;
+
+	/**
+	 * See {@link #setBatchParallelism(int)}
+	 */
+	public int getBatchParallelism() {
+		return myBatchParallelism;
+	}
+
+	/**
+	 * See {@link #setBulkExportDirectory(String)}
+	 */
+	public String getBulkExportDirectory() {
+		return myBulkExportDirectory;
+	}
+
+	/**
+	 * See {@link #setExpireSearchResultsAfterMillis(long)}
+	 */
+	public long getExpireSearchResultsAfterMillis() {
+		return myExpireSearchResultsAfterMillis;
+	}
+
+	/**
+	 * See {@link #setForcedIdCacheMaxEntries(int)}
+	 */
+	public int getForcedIdCacheMaxEntries() {
+		return myForcedIdCacheMaxEntries;
+	}
 
 	/**
 	 * See {@link #setIncludeLimit(int)}
@@ -72,10 +122,59 @@ public class DaoConfig {
 		return myInterceptors;
 	}
 
+	/**
+	 * See {@link #setParallelParseThreshold(int)}
+	 */
+	public int getParallelParseThreshold() {
+		return myParallelParseThreshold;
+	}
+
+	/**
+	 * See {@link #setParsedResourceCacheMaxBytes(long)}
+	 */
+	public long getParsedResourceCacheMaxBytes() {
+		return myParsedResourceCacheMaxBytes;
+	}
+
+	/**
+	 * See {@link #setReindexChunkSize(int)}
+	 */
+	public int getReindexChunkSize() {
+		return myReindexChunkSize;
+	}
+
+	/**
+	 * See {@link #setReindexMaxResourcesPerSecond(int)}
+	 */
+	public int getReindexMaxResourcesPerSecond() {
+		return myReindexMaxResourcesPerSecond;
+	}
+
+	/**
+	 * See {@link #setReindexParallelism(int)}
+	 */
+	public int getReindexParallelism() {
+		return myReindexParallelism;
+	}
+
 	public ResourceEncodingEnum getResourceEncoding() {
 		return myResourceEncoding;
 	}
 
+	/**
+	 * See {@link #setSearchResultCacheMaxEntries(int)}
+	 */
+	public int getSearchResultCacheMaxEntries() {
+		return mySearchResultCacheMaxEntries;
+	}
+
+	/**
+	 * See {@link #setSearchResultCacheTtlMillis(long)}
+	 */
+	public long getSearchResultCacheTtlMillis() {
+		return mySearchResultCacheTtlMillis;
+	}
+
 	public long getSubscriptionPollDelay() {
 		return mySubscriptionPollDelay;
 	}
@@ -88,10 +187,66 @@ public class DaoConfig {
 		return myAllowMultipleDelete;
 	}
 
+	/**
+	 * See {@link #setForcedIdCacheEnabled(boolean)}
+	 */
+	public boolean isForcedIdCacheEnabled() {
+		return myForcedIdCacheEnabled;
+	}
+
+	/**
+	 * See {@link #setHashedIndexSearchEnabled(boolean)}
+	 */
+	public boolean isHashedIndexSearchEnabled() {
+		return myHashedIndexSearchEnabled;
+	}
+
+	/**
+	 * See {@link #setKeysetPagingEnabled(boolean)}
+	 */
+	public boolean isKeysetPagingEnabled() {
+		return myKeysetPagingEnabled;
+	}
+
+	/**
+	 * See {@link #setParsedResourceCacheEnabled(boolean)}
+	 */
+	public boolean isParsedResourceCacheEnabled() {
+		return myParsedResourceCacheEnabled;
+	}
+
+	/**
+	 * See {@link #setPersistSearchResults(boolean)}
+	 */
+	public boolean isPersistSearchResults() {
+		return myPersistSearchResults;
+	}
+
 	public boolean isSchedulingDisabled() {
 		return mySchedulingDisabled;
 	}
 
+	/**
+	 * See {@link #setSearchResultCacheEnabled(boolean)}
+	 */
+	public boolean isSearchResultCacheEnabled() {
+		return mySearchResultCacheEnabled;
+	}
+
+	/**
+	 * See {@link #setSingleQuerySearchEnabled(boolean)}
+	 */
+	public boolean isSingleQuerySearchEnabled() {
+		return mySingleQuerySearchEnabled;
+	}
+
+	/**
+	 * See {@link #setStreamingSearchEnabled(boolean)}
+	 */
+	public boolean isStreamingSearchEnabled() {
+		return myStreamingSearchEnabled;
+	}
+
 	/**
 	 * See {@link #setSubscriptionEnabled(boolean)}
 	 */
@@ -99,10 +254,78 @@ public class DaoConfig {
 		return mySubscriptionEnabled;
 	}
 
+	/**
+	 * See {@link #setSubscriptionMatchingOnWriteEnabled(boolean)}
+	 */
+	public boolean isSubscriptionMatchingOnWriteEnabled() {
+		return mySubscriptionMatchingOnWriteEnabled;
+	}
+
+	/**
+	 * See {@link #setTagDefinitionCacheEnabled(boolean)}
+	 */
+	public boolean isTagDefinitionCacheEnabled() {
+		return myTagDefinitionCacheEnabled;
+	}
+
 	public void setAllowMultipleDelete(boolean theAllowMultipleDelete) {
 		myAllowMultipleDelete = theAllowMultipleDelete;
 	}
 
+	/**
+	 * Sets the maximum number of entries in a batch bundle (a bundle with a type of <code>batch</code>) which will be
+	 * processed at the same time. Each entry is processed in its own database transaction, so up to this many
+	 * database connections may be used by a single batch. Entries which have the same target resource ID or
+	 * conditional URL are always processed one after another in the order they appear in the bundle, and the
+	 * response entries are always in the same order as the request entries. Default is 1, meaning that entries are
+	 * processed one after another on the requesting thread.
+	 */
+	public void setBatchParallelism(int theBatchParallelism) {
+		Validate.isTrue(theBatchParallelism > 0, "theBatchParallelism must be greater than 0");
+		myBatchParallelism = theBatchParallelism;
+	}
+
+	/**
+	 * Sets the local directory into which <code>$export</code> jobs write their NDJSON output files. Each job writes
+	 * one file per resource type into its own subdirectory, named after the job ID. The server does not delete old
+	 * output, so whatever consumes the files is expected to clean them up. Default is <code>null</code>, meaning that
+	 * bulk export is disabled.
+	 */
+	public void setBulkExportDirectory(String theBulkExportDirectory) {
+		myBulkExportDirectory = theBulkExportDirectory;
+	}
+
+	/**
+	 * Sets the number of milliseconds that search results which have been stored in the database (see
+	 * {@link #setPersistSearchResults(boolean)}) will be kept for before being deleted. After this time, paging links
+	 * for the search will no longer work. Default is one hour.
+	 */
+	public void setExpireSearchResultsAfterMillis(long theExpireSearchResultsAfterMillis) {
+		Validate.isTrue(theExpireSearchResultsAfterMillis > 0, "theExpireSearchResultsAfterMillis must be greater than 0");
+		myExpireSearchResultsAfterMillis = theExpireSearchResultsAfterMillis;
+	}
+
+	/**
+	 * If set to <code>true</code> (default is <code>true</code>), the mappings between client assigned resource IDs
+	 * and the internal resource PIDs are cached in memory. These mappings never change once they have been created, so
+	 * this is safe to use when several servers share a database.
+	 * 
+	 * @see ForcedIdCacheSvc
+	 */
+	public void setForcedIdCacheEnabled(boolean theForcedIdCacheEnabled) {
+		myForcedIdCacheEnabled = theForcedIdCacheEnabled;
+	}
+
+	/**
+	 * Sets the maximum number of client assigned IDs which will be held in the forced ID cache (see
+	 * {@link #setForcedIdCacheEnabled(boolean)}). Default is 100000. This is read when the cache is created, so
+	 * changing it afterwards has no effect.
+	 */
+	public void setForcedIdCacheMaxEntries(int theForcedIdCacheMaxEntries) {
+		Validate.isTrue(theForcedIdCacheMaxEntries > 0, "theForcedIdCacheMaxEntries must be greater than 0");
+		myForcedIdCacheMaxEntries = theForcedIdCacheMaxEntries;
+	}
+
 	public void setHardSearchLimit(int theHardSearchLimit) {
 		myHardSearchLimit = theHardSearchLimit;
 	}
@@ -111,6 +334,24 @@ public class DaoConfig {
 		myHardTagListLimit = theHardTagListLimit;
 	}
 
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>), token searches for a code (with or without a system)
+	 * and exact string searches (<code>:exact</code>) find the matching index rows using the hash columns of the
+	 * HFJ_SPIDX_TOKEN and HFJ_SPIDX_STRING tables, which combine the resource type, parameter name and value(s) into
+	 * a single indexed 64-bit value, instead of comparing each of those columns separately. Normal (left anchored)
+	 * string searches for a value of at least
+	 * {@link ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString#HASH_PREFIX_LENGTH} characters also use a hash of
+	 * the first few normalized characters to narrow down the rows before the <code>LIKE</code> is checked.
+	 * <p>
+	 * The hashes are always written when resources are indexed. Index rows written by an earlier version of HAPI FHIR
+	 * have no hash until their resource is reindexed, so on an existing database this should only be enabled once all
+	 * resources have been reindexed (see {@link IFhirSystemDao#startReindexJob(String)}).
+	 * </p>
+	 */
+	public void setHashedIndexSearchEnabled(boolean theHashedIndexSearchEnabled) {
+		myHashedIndexSearchEnabled = theHashedIndexSearchEnabled;
+	}
+
 	/**
 	 * This is the maximum number of resources that will be added to a single page of returned resources. Because of
 	 * includes with wildcards and other possibilities it is possible for a client to make requests that include very
@@ -149,6 +390,109 @@ public class DaoConfig {
 		myInterceptors = theInterceptors;
 	}
 
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>), searches with a <code>_sort</code> are sorted by the
+	 * same query which finds the matching resources, and each page of results is loaded by its own query which seeks
+	 * to the position after the end of the previous page (keyset pagination) instead of all of the matching PIDs
+	 * being loaded and sorted up front. This means that paging forward through a large sorted result set costs the
+	 * same for each page.
+	 * <p>
+	 * This is only used for searches which can be executed as a single query, which sort on <code>_lastUpdated</code>
+	 * or on string, date, number, quantity, URI or reference parameters (including chained sorts on these), and which
+	 * have no <code>_revinclude</code>. Other searches are executed normally. Resources which have no value for one of
+	 * the sort parameters are returned after all of the others, as they are when this setting is disabled.
+	 * </p>
+	 */
+	public void setKeysetPagingEnabled(boolean theKeysetPagingEnabled) {
+		myKeysetPagingEnabled = theKeysetPagingEnabled;
+	}
+
+	/**
+	 * When a page of search results containing at least this many resources is loaded, the resource bodies are parsed
+	 * in parallel using the resource parsing executor provided by {@link ca.uhn.fhir.jpa.config.BaseConfig} instead of
+	 * one after another on the requesting thread. Default is 20. Set to {@link Integer#MAX_VALUE} to always parse on
+	 * the requesting thread.
+	 */
+	public void setParallelParseThreshold(int theParallelParseThreshold) {
+		Validate.isTrue(theParallelParseThreshold > 0, "theParallelParseThreshold must be greater than 0");
+		myParallelParseThreshold = theParallelParseThreshold;
+	}
+
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>), resources which have been parsed from the database
+	 * will be cached in memory by resource ID and version, so that resources which are read over and over (e.g. a
+	 * shared Organization which is included in many search results) don't need to be parsed each time. Each read
+	 * still returns a separate copy of the resource, so callers may safely modify it.
+	 * 
+	 * @see #setParsedResourceCacheMaxBytes(long)
+	 * @see ParsedResourceCacheSvc
+	 */
+	public void setParsedResourceCacheEnabled(boolean theParsedResourceCacheEnabled) {
+		myParsedResourceCacheEnabled = theParsedResourceCacheEnabled;
+	}
+
+	/**
+	 * Sets the approximate maximum amount of memory, in bytes, used by the parsed resource cache (see
+	 * {@link #setParsedResourceCacheEnabled(boolean)}). Default is 50MB. This is read when the cache is created, so
+	 * changing it afterwards has no effect.
+	 */
+	public void setParsedResourceCacheMaxBytes(long theParsedResourceCacheMaxBytes) {
+		Validate.isTrue(theParsedResourceCacheMaxBytes > 0, "theParsedResourceCacheMaxBytes must be greater than 0");
+		myParsedResourceCacheMaxBytes = theParsedResourceCacheMaxBytes;
+	}
+
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>), the ordered list of resource IDs matched by each
+	 * search will be stored in the database (in the HFJ_SEARCH and HFJ_SEARCH_RESULT tables) instead of being held in
+	 * memory, and each page of results will be loaded from there when it is requested. This should be combined with a
+	 * {@link ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider} so that paging links can be served by any server in a
+	 * cluster, and will still work after a restart.
+	 * 
+	 * @see #setExpireSearchResultsAfterMillis(long)
+	 */
+	public void setPersistSearchResults(boolean thePersistSearchResults) {
+		myPersistSearchResults = thePersistSearchResults;
+	}
+
+	/**
+	 * Sets the number of resources reindexed by each worker transaction of a reindex job (see
+	 * {@link IFhirSystemDao#startReindexJob(String)}). The job's checkpoint is saved after each round of chunks, so
+	 * at most {@link #getReindexParallelism()} chunks are repeated if the server is restarted part way through a job.
+	 * Default is 500.
+	 */
+	public void setReindexChunkSize(int theReindexChunkSize) {
+		Validate.isTrue(theReindexChunkSize > 0, "theReindexChunkSize must be greater than 0");
+		myReindexChunkSize = theReindexChunkSize;
+	}
+
+	/**
+	 * Limits the rate at which reindex jobs process resources, in order to leave capacity for normal traffic while a
+	 * large store is being reindexed. Default is 0, meaning that the rate is not limited.
+	 */
+	public void setReindexMaxResourcesPerSecond(int theReindexMaxResourcesPerSecond) {
+		Validate.isTrue(theReindexMaxResourcesPerSecond >= 0, "theReindexMaxResourcesPerSecond must not be negative");
+		myReindexMaxResourcesPerSecond = theReindexMaxResourcesPerSecond;
+	}
+
+	/**
+	 * Sets the number of chunks of a reindex job which are processed at the same time, each in its own database
+	 * transaction (and therefore using its own database connection). Default is 2.
+	 */
+	public void setReindexParallelism(int theReindexParallelism) {
+		Validate.isTrue(theReindexParallelism > 0, "theReindexParallelism must be greater than 0");
+		myReindexParallelism = theReindexParallelism;
+	}
+
+	/**
+	 * Sets the encoding used to store resource bodies in the database. The default is
+	 * {@link ResourceEncodingEnum#JSONC}. {@link ResourceEncodingEnum#JSOND} produces smaller rows
+	 * and is faster to read for typical resources.
+	 * <p>
+	 * Changing this only affects resources which are written afterwards. Resources which are already
+	 * stored remain readable, and may be rewritten using the new encoding by calling
+	 * {@link IFhirSystemDao#performEncodingMigrationPass(Integer)} until it returns 0.
+	 * </p>
+	 */
 	public void setResourceEncoding(ResourceEncodingEnum theResourceEncoding) {
 		myResourceEncoding = theResourceEncoding;
 	}
@@ -157,6 +501,64 @@ public class DaoConfig {
 		mySchedulingDisabled = theSchedulingDisabled;
 	}
 
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>), the matching resource IDs for each search will be
+	 * cached, and identical searches will be answered from the cache until a resource of a type the search depends on
+	 * is created, updated or deleted (or until the entry expires, see {@link #setSearchResultCacheTtlMillis(long)}).
+	 * This is useful for servers which receive the same searches repeatedly, e.g. from clients which poll.
+	 * 
+	 * @see ca.uhn.fhir.jpa.search.SearchResultCacheSvc
+	 */
+	public void setSearchResultCacheEnabled(boolean theSearchResultCacheEnabled) {
+		mySearchResultCacheEnabled = theSearchResultCacheEnabled;
+	}
+
+	/**
+	 * Sets the maximum number of searches which will be held in the search result cache (see
+	 * {@link #setSearchResultCacheEnabled(boolean)}). Default is 1000. This is read when the cache is created, so
+	 * changing it afterwards has no effect.
+	 */
+	public void setSearchResultCacheMaxEntries(int theSearchResultCacheMaxEntries) {
+		Validate.isTrue(theSearchResultCacheMaxEntries > 0, "theSearchResultCacheMaxEntries must be greater than 0");
+		mySearchResultCacheMaxEntries = theSearchResultCacheMaxEntries;
+	}
+
+	/**
+	 * Sets the number of milliseconds that searches will be held in the search result cache (see
+	 * {@link #setSearchResultCacheEnabled(boolean)}) for, even if no resources have been written. Default is one
+	 * minute. This is read when the cache is created, so changing it afterwards has no effect.
+	 */
+	public void setSearchResultCacheTtlMillis(long theSearchResultCacheTtlMillis) {
+		Validate.isTrue(theSearchResultCacheTtlMillis > 0, "theSearchResultCacheTtlMillis must be greater than 0");
+		mySearchResultCacheTtlMillis = theSearchResultCacheTtlMillis;
+	}
+
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>), searches with multiple parameters will be executed as
+	 * a single SQL statement containing one subquery per parameter, ordered so that the parameters most likely to be
+	 * selective come first, instead of executing one query per parameter and passing the matching resource IDs from one
+	 * query to the next. Parameters which can not be combined this way (e.g. composite parameters and the
+	 * <code>:missing</code> modifier) are still executed separately.
+	 */
+	public void setSingleQuerySearchEnabled(boolean theSingleQuerySearchEnabled) {
+		mySingleQuerySearchEnabled = theSingleQuerySearchEnabled;
+	}
+
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>), searches which don't need the complete set of
+	 * matches before returning their first page (i.e. searches with no <code>_sort</code>, <code>_revinclude</code>,
+	 * composite or <code>:missing=true</code> parameters) will return as soon as the first page of results has been
+	 * found. The remaining results are read in the background, and until that has finished the total reported for the
+	 * search is only the number of results found so far.
+	 * <p>
+	 * This has no effect if {@link #setPersistSearchResults(boolean) search results are being persisted}, and
+	 * requires a search executor to be available (this is provided by {@link ca.uhn.fhir.jpa.config.BaseConfig}).
+	 * </p>
+	 */
+	public void setStreamingSearchEnabled(boolean theStreamingSearchEnabled) {
+		myStreamingSearchEnabled = theStreamingSearchEnabled;
+	}
+
 	/**
 	 * Does this server support subscription? If set to true, the server will enable the subscription monitoring mode,
 	 * which adds a bit of overhead. Note that if this is enabled, you must also include Spring task scanning to your XML
@@ -166,6 +568,22 @@ public class DaoConfig {
 		mySubscriptionEnabled = theSubscriptionEnabled;
 	}
 
+	/**
+	 * If set to <code>true</code> (default is <code>false</code>) and subscriptions are enabled, each created or
+	 * updated resource is matched against the criteria of the active subscriptions as it is written, and any matches
+	 * are flagged for delivery in the same database transaction. Websocket clients bound to a matching subscription
+	 * are notified as soon as that transaction commits. In this mode the scheduled subscription poll no longer
+	 * searches for new resources, and only refreshes the list of active subscriptions (so that subscriptions changed
+	 * on other servers sharing the same database are picked up).
+	 * <p>
+	 * Candidate subscriptions are found using the token and reference parameters in their criteria, so a write only
+	 * runs a (single resource) search for the criteria which could actually match it.
+	 * </p>
+	 */
+	public void setSubscriptionMatchingOnWriteEnabled(boolean theSubscriptionMatchingOnWriteEnabled) {
+		mySubscriptionMatchingOnWriteEnabled = theSubscriptionMatchingOnWriteEnabled;
+	}
+
 	public void setSubscriptionPollDelay(long theSubscriptionPollDelay) {
 		mySubscriptionPollDelay = theSubscriptionPollDelay;
 	}
@@ -181,4 +599,16 @@ public class DaoConfig {
 		setSubscriptionPurgeInactiveAfterMillis(theSeconds * DateUtils.MILLIS_PER_SECOND);
 	}
 
+	/**
+	 * If set to <code>true</code> (default is <code>true</code>), the tag, profile and security label definitions
+	 * which are attached to resources are cached in memory, so that storing a resource doesn't need to look up each
+	 * of its tags in the database. Tag definitions are never changed or removed once created, so this is safe to use
+	 * when several servers share a database.
+	 * 
+	 * @see TagDefinitionCacheSvc
+	 */
+	public void setTagDefinitionCacheEnabled(boolean theTagDefinitionCacheEnabled) {
+		myTagDefinitionCacheEnabled = theTagDefinitionCacheEnabled;
+	}
+
 }
@@ -32,6 +32,23 @@ public class FhirResourceDaoSearchParameterDstu21 extends FhirResourceDaoDstu21<
 	@Autowired
 	private IFhirSystemDao<Bundle, Meta> mySystemDao;
 	
+	/**
+	 * This method is called every second to work through any running reindex jobs (see
+	 * {@link IFhirSystemDao#startReindexJob(String)}). Passes are performed until there is nothing left to do, so a
+	 * job which is interrupted by a shutdown resumes from its last checkpoint on the next call.
+	 */
+	@Override
+	@Scheduled(fixedDelay = DateUtils.MILLIS_PER_SECOND)
+	public void performReindexJobPasses() {
+		if (getConfig().isSchedulingDisabled()) {
+			return;
+		}
+
+		while (!Thread.currentThread().isInterrupted() && mySystemDao.performReindexJobPass() > 0) {
+			// keep going
+		}
+	}
+
 	/**
 	 * This method is called once per minute to perform any required re-indexing. During most passes this will
 	 * just check and find that there are no resources requiring re-indexing. In that case the method just returns
@@ -87,6 +87,7 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 		subscriptionEntity.setMostRecentMatch(theEntity.getPublished().getValue());
 		subscriptionEntity.setStatus(theSubscription.getStatusElement().getValue());
 		myEntityManager.persist(subscriptionEntity);
+		invalidateSubscriptionMatcher();
 	}
 
 	@Override
@@ -115,12 +116,26 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 		return retVal;
 	}
 
+	private void invalidateSubscriptionMatcher() {
+		if (getSubscriptionMatcher() != null) {
+			getSubscriptionMatcher().invalidate();
+		}
+	}
+
+	private boolean isSubscriptionMatchingOnWrite() {
+		return getSubscriptionMatcher() != null && getSubscriptionMatcher().isEnabled();
+	}
+
 	@Override
 	@Transactional(propagation = Propagation.NOT_SUPPORTED)
 	public synchronized int pollForNewUndeliveredResources() {
 		if (getConfig().isSubscriptionEnabled() == false) {
 			return 0;
 		}
+		if (isSubscriptionMatchingOnWrite()) {
+			// Resources are flagged as they are written
+			return 0;
+		}
 		ourLog.trace("Beginning pollForNewUndeliveredResources()");
 
 		// SubscriptionCandidateResource
@@ -164,6 +179,7 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 		range.setUpperBound(new DateParam(QuantityCompararatorEnum.LESSTHAN, end));
 		criteriaUrl.setLastUpdated(range);
 		criteriaUrl.setSort(new SortSpec(Constants.PARAM_LASTUPDATED, SortOrderEnum.ASC));
+		criteriaUrl.setLoadSynchronous(true);
 		IFhirResourceDao<? extends IBaseResource> dao = getDao(resourceDef.getImplementingClass());
 		IBundleProvider results = dao.search(criteriaUrl);
 		if (results.size() == 0) {
@@ -215,6 +231,14 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 		if (getConfig().isSchedulingDisabled()) {
 			return;
 		}
+		if (isSubscriptionMatchingOnWrite()) {
+			/*
+			 * Nothing to search for, but subscriptions may have been changed by other servers using the same
+			 * database
+			 */
+			getSubscriptionMatcher().refreshIfChanged(this);
+			return;
+		}
 		pollForNewUndeliveredResources();
 	}
 
@@ -264,6 +288,7 @@ public class FhirResourceDaoSubscriptionDstu2 extends FhirResourceDaoDstu2<Subsc
 
 		Subscription resource = (Subscription) theResource;
 		Long resourceId = theEntity.getId();
+		invalidateSubscriptionMatcher();
 		if (theDeletedTimestampOrNull != null) {
 			Long subscriptionId = getSubscriptionTablePidForSubscriptionResource(theEntity.getIdDt());
 			if (subscriptionId != null) {
@@ -87,6 +87,7 @@ public class FhirResourceDaoSubscriptionDstu21 extends FhirResourceDaoDstu21<Sub
 		subscriptionEntity.setMostRecentMatch(theEntity.getPublished().getValue());
 		subscriptionEntity.setStatus(theSubscription.getStatusElement().getValueAsString());
 		myEntityManager.persist(subscriptionEntity);
+		invalidateSubscriptionMatcher();
 	}
 
 	@Override
@@ -115,12 +116,26 @@ public class FhirResourceDaoSubscriptionDstu21 extends FhirResourceDaoDstu21<Sub
 		return retVal;
 	}
 
+	private void invalidateSubscriptionMatcher() {
+		if (getSubscriptionMatcher() != null) {
+			getSubscriptionMatcher().invalidate();
+		}
+	}
+
+	private boolean isSubscriptionMatchingOnWrite() {
+		return getSubscriptionMatcher() != null && getSubscriptionMatcher().isEnabled();
+	}
+
 	@Override
 	@Transactional(propagation = Propagation.NOT_SUPPORTED)
 	public synchronized int pollForNewUndeliveredResources() {
 		if (getConfig().isSubscriptionEnabled() == false) {
 			return 0;
 		}
+		if (isSubscriptionMatchingOnWrite()) {
+			// Resources are flagged as they are written
+			return 0;
+		}
 		ourLog.trace("Beginning pollForNewUndeliveredResources()");
 
 		// SubscriptionCandidateResource
@@ -164,6 +179,7 @@ public class FhirResourceDaoSubscriptionDstu21 extends FhirResourceDaoDstu21<Sub
 		range.setUpperBound(new DateParam(QuantityCompararatorEnum.LESSTHAN, end));
 		criteriaUrl.setLastUpdated(range);
 		criteriaUrl.setSort(new SortSpec(Constants.PARAM_LASTUPDATED, SortOrderEnum.ASC));
+		criteriaUrl.setLoadSynchronous(true);
 		IFhirResourceDao<? extends IBaseResource> dao = getDao(resourceDef.getImplementingClass());
 		IBundleProvider results = dao.search(criteriaUrl);
 		if (results.size() == 0) {
@@ -216,6 +232,14 @@ public class FhirResourceDaoSubscriptionDstu21 extends FhirResourceDaoDstu21<Sub
 		if (getConfig().isSchedulingDisabled()) {
 			return;
 		}
+		if (isSubscriptionMatchingOnWrite()) {
+			/*
+			 * Nothing to search for, but subscriptions may have been changed by other servers using the same
+			 * database
+			 */
+			getSubscriptionMatcher().refreshIfChanged(this);
+			return;
+		}
 		pollForNewUndeliveredResources();
 	}
 
@@ -265,6 +289,7 @@ public class FhirResourceDaoSubscriptionDstu21 extends FhirResourceDaoDstu21<Sub
 
 		Subscription resource = (Subscription) theResource;
 		Long resourceId = theEntity.getId();
+		invalidateSubscriptionMatcher();
 		if (theDeletedTimestampOrNull != null) {
 			Long subscriptionId = getSubscriptionTablePidForSubscriptionResource(theEntity.getIdDt());
 			if (subscriptionId != null) {
@@ -24,9 +24,13 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import javax.persistence.EntityManager;
@@ -52,16 +56,23 @@ import org.springframework.transaction.annotation.Transactional;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.model.dstu.resource.BaseResource;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 
 public class FhirSearchDao extends BaseHapiFhirDao<IBaseResource> implements ISearchDao {
+	/**
+	 * Gram sizes of the <code>autocompleteEdgeAnalyzer</code> defined on {@link ResourceTable}
+	 */
+	private static final int EDGE_NGRAM_MAX = 50;
+	private static final int EDGE_NGRAM_MIN = 3;
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirSearchDao.class);
 
 	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
@@ -90,53 +101,14 @@ public class FhirSearchDao extends BaseHapiFhirDao<IBaseResource> implements ISe
 	private List<Long> doSearch(String theResourceName, SearchParameterMap theParams, Long theReferencingPid) {
 		FullTextEntityManager em = org.hibernate.search.jpa.Search.getFullTextEntityManager(myEntityManager);
 
-		List<Long> pids = null;
-		
 		/*
-		 * Handle textual params
+		 * Handle :text modifiers on token and string params
 		 */
-		/*
-		for (String nextParamName : theParams.keySet()) {
-			for (List<? extends IQueryParameterType> nextAndList : theParams.get(nextParamName)) {
-				for (Iterator<? extends IQueryParameterType> orIterator = nextAndList.iterator(); orIterator.hasNext();) {
-					IQueryParameterType nextParam = orIterator.next();
-					if (nextParam instanceof TokenParam) {
-						TokenParam nextTokenParam = (TokenParam) nextParam;
-						if (nextTokenParam.isText()) {
-							orIterator.remove();
-							QueryBuilder qb = em.getSearchFactory().buildQueryBuilder().forEntity(ResourceIndexedSearchParamString.class).get();
-							BooleanJunction<?> bool = qb.bool();
-
-							bool.must(qb.keyword().onField("myParamName").matching(nextParamName).createQuery());
-							if (isNotBlank(theResourceName)) {
-								bool.must(qb.keyword().onField("myResourceType").matching(theResourceName).createQuery());
-							}
-//							
-							//@formatter:off
-							String value = nextTokenParam.getValue().toLowerCase();
-							bool.must(qb.keyword().onField("myValueTextEdgeNGram").matching(value).createQuery());
-							
-							//@formatter:on
-							
-							FullTextQuery ftq = em.createFullTextQuery(bool.createQuery(), ResourceIndexedSearchParamString.class);
-
-							List<?> resultList = ftq.getResultList();
-							pids = new ArrayList<Long>();
-							for (Object next : resultList) {
-								ResourceIndexedSearchParamString nextAsArray = (ResourceIndexedSearchParamString) next;
-								pids.add(nextAsArray.getResourcePid());
-							}
-						}
-					}
-				}
-			}
-		}
-		
-		if (pids != null && pids.isEmpty()) {
-			return pids;
+		Map<Long, Float> scores = doTextModifierSearch(em, theResourceName, theParams);
+		if (scores != null && scores.isEmpty()) {
+			return new ArrayList<Long>();
 		}
-		*/
-		
+
 		QueryBuilder qb = em.getSearchFactory().buildQueryBuilder().forEntity(ResourceTable.class).get();
 		BooleanJunction<?> bool = qb.bool();
 
@@ -156,34 +128,124 @@ public class FhirSearchDao extends BaseHapiFhirDao<IBaseResource> implements ISe
 			bool.must(qb.keyword().onField("myResourceLinks.myTargetResourcePid").matching(theReferencingPid).createQuery());
 		}
 
-		if (bool.isEmpty()) {
-			return pids;
+		if (!bool.isEmpty()) {
+			if (isNotBlank(theResourceName)) {
+				bool.must(qb.keyword().onField("myResourceType").matching(theResourceName).createQuery());
+			}
+
+			/*
+			 * Only the PID and score are projected, so no entities are loaded from the database
+			 */
+			FullTextQuery jpaQuery = em.createFullTextQuery(bool.createQuery(), ResourceTable.class);
+			jpaQuery.setProjection(FullTextQuery.ID, FullTextQuery.SCORE);
+
+			Map<Long, Float> contentScores = new HashMap<Long, Float>();
+			for (Object next : jpaQuery.getResultList()) {
+				Object[] nextArray = (Object[]) next;
+				Long nextPid = (Long) nextArray[0];
+				if (nextPid != null && (scores == null || scores.containsKey(nextPid))) {
+					contentScores.put(nextPid, addScore(scores != null ? scores.get(nextPid) : null, (Float) nextArray[1]));
+				}
+			}
+			scores = contentScores;
 		}
 
-		if (isNotBlank(theResourceName)) {
-			bool.must(qb.keyword().onField("myResourceType").matching(theResourceName).createQuery());
+		if (scores == null) {
+			return null;
 		}
+		return sortByScore(scores);
+	}
 
-		Query luceneQuery = bool.createQuery();
+	/**
+	 * Finds the resources matching each <code>:text</code> token or string parameter using the
+	 * <code>myValueTextEdgeNGram</code> field of the string index, and removes those parameters from the map so that
+	 * they aren't also searched in the database. Returns <code>null</code> if there were no such parameters, or else
+	 * the matching PIDs with the sum of their scores.
+	 */
+	private Map<Long, Float> doTextModifierSearch(FullTextEntityManager theEm, String theResourceName, SearchParameterMap theParams) {
+		Map<Long, Float> retVal = null;
+		for (Iterator<Entry<String, List<List<? extends IQueryParameterType>>>> paramIter = theParams.entrySet().iterator(); paramIter.hasNext();) {
+			Entry<String, List<List<? extends IQueryParameterType>>> nextParam = paramIter.next();
+			for (Iterator<List<? extends IQueryParameterType>> andIter = nextParam.getValue().iterator(); andIter.hasNext();) {
+				List<? extends IQueryParameterType> nextAnd = andIter.next();
+				if (!isTextModifierSearch(nextAnd)) {
+					continue;
+				}
+				andIter.remove();
 
-		// wrap Lucene query in a javax.persistence.Query
-		FullTextQuery jpaQuery = em.createFullTextQuery(luceneQuery, ResourceTable.class);
-		jpaQuery.setProjection("myId");
+				Map<Long, Float> nextScores = doTextModifierSearch(theEm, theResourceName, nextParam.getKey(), nextAnd);
+				if (nextScores == null) {
+					continue;
+				}
+				if (retVal == null) {
+					retVal = nextScores;
+				} else {
+					Map<Long, Float> intersection = new HashMap<Long, Float>();
+					for (Entry<Long, Float> next : nextScores.entrySet()) {
+						if (retVal.containsKey(next.getKey())) {
+							intersection.put(next.getKey(), addScore(retVal.get(next.getKey()), next.getValue()));
+						}
+					}
+					retVal = intersection;
+				}
+				if (retVal.isEmpty()) {
+					return retVal;
+				}
+			}
+			if (nextParam.getValue().isEmpty()) {
+				paramIter.remove();
+			}
+		}
+		return retVal;
+	}
 
-		// execute search
-		List<?> result = jpaQuery.getResultList();
+	private Map<Long, Float> doTextModifierSearch(FullTextEntityManager theEm, String theResourceName, String theParamName, List<? extends IQueryParameterType> theOrs) {
+		QueryBuilder qb = theEm.getSearchFactory().buildQueryBuilder().forEntity(ResourceIndexedSearchParamString.class).get();
 
-		HashSet<Long> pidsSet = pids != null ? new HashSet<Long>(pids) : null;
-		
-		ArrayList<Long> retVal = new ArrayList<Long>();
-		for (Object object : result) {
-			Object[] nextArray = (Object[]) object;
-			Long next = (Long) nextArray[0];
-			if (next != null && (pidsSet == null || pidsSet.contains(next))) {
-				retVal.add(next);
+		BooleanJunction<?> ors = qb.bool();
+		for (IQueryParameterType nextOr : theOrs) {
+			String value;
+			if (nextOr instanceof TokenParam) {
+				value = ((TokenParam) nextOr).getValue();
+			} else {
+				value = ((StringParam) nextOr).getValue();
 			}
+			value = StringUtils.defaultString(value).trim().toLowerCase();
+			if (value.length() >= EDGE_NGRAM_MIN) {
+				// The index holds each leading substring of the value, so a prefix match is a single term lookup
+				value = StringUtils.left(value, EDGE_NGRAM_MAX);
+				ors.should(qb.keyword().onField("myValueTextEdgeNGram").ignoreAnalyzer().matching(value).createQuery());
+			} else if (value.length() > 0) {
+				ors.should(qb.keyword().wildcard().onField("myValueTextEdgeNGram").ignoreAnalyzer().matching(value + "*").createQuery());
+			}
+		}
+		if (ors.isEmpty()) {
+			return null;
+		}
+
+		BooleanJunction<?> bool = qb.bool();
+		bool.must(ors.createQuery());
+		bool.must(qb.keyword().onField("myParamName").matching(theParamName).createQuery());
+		if (isNotBlank(theResourceName)) {
+			bool.must(qb.keyword().onField("myResourceType").matching(theResourceName).createQuery());
 		}
 
+		FullTextQuery ftq = theEm.createFullTextQuery(bool.createQuery(), ResourceIndexedSearchParamString.class);
+		ftq.setProjection("myResourcePid", FullTextQuery.SCORE);
+
+		// A resource can have several matching values, in which case its best score is used
+		Map<Long, Float> retVal = new HashMap<Long, Float>();
+		for (Object next : ftq.getResultList()) {
+			Object[] nextArray = (Object[]) next;
+			Long nextPid = (Long) nextArray[0];
+			Float nextScore = (Float) nextArray[1];
+			if (nextPid != null) {
+				Float existing = retVal.get(nextPid);
+				if (existing == null || existing < nextScore) {
+					retVal.put(nextPid, nextScore);
+				}
+			}
+		}
 		return retVal;
 	}
 
@@ -193,7 +255,7 @@ public class FhirSearchDao extends BaseHapiFhirDao<IBaseResource> implements ISe
 		Long pid = null;
 		if (theParams.get(BaseResource.SP_RES_ID) != null) {
 			StringParam idParm = (StringParam) theParams.get(BaseResource.SP_RES_ID).get(0).get(0);
-			pid = BaseHapiFhirDao.translateForcedIdToPid(new IdDt(idParm.getValue()), myEntityManager);
+			pid = translateForcedIdToPid(new IdDt(idParm.getValue()));
 		}
 
 		Long referencingPid = pid;
@@ -223,7 +285,7 @@ public class FhirSearchDao extends BaseHapiFhirDao<IBaseResource> implements ISe
 			throw new InvalidRequestException("Invalid context: " + theContext);
 		}
 		IdDt contextId = new IdDt(contextParts[0], contextParts[1]);
-		Long pid = BaseHapiFhirDao.translateForcedIdToPid(contextId, myEntityManager);
+		Long pid = translateForcedIdToPid(contextId);
 
 		FullTextEntityManager em = org.hibernate.search.jpa.Search.getFullTextEntityManager(myEntityManager);
 
@@ -301,6 +363,49 @@ public class FhirSearchDao extends BaseHapiFhirDao<IBaseResource> implements ISe
 		return suggestions;
 	}
 
+	private static Float addScore(Float theScore, Float theOtherScore) {
+		if (theScore == null) {
+			return theOtherScore;
+		}
+		if (theOtherScore == null) {
+			return theScore;
+		}
+		return theScore + theOtherScore;
+	}
+
+	/**
+	 * Does the given OR list use the <code>:text</code> modifier on a token or string parameter?
+	 */
+	static boolean isTextModifierSearch(List<? extends IQueryParameterType> theOrs) {
+		for (IQueryParameterType nextOr : theOrs) {
+			if (nextOr instanceof TokenParam && ((TokenParam) nextOr).isText()) {
+				return true;
+			}
+			if (nextOr instanceof StringParam && ((StringParam) nextOr).isText()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the PIDs best match first, which {@link SearchBuilder} keeps when sorting by <code>_score</code>
+	 */
+	private static List<Long> sortByScore(final Map<Long, Float> theScores) {
+		List<Long> retVal = new ArrayList<Long>(theScores.keySet());
+		Collections.sort(retVal, new Comparator<Long>() {
+			@Override
+			public int compare(Long theO1, Long theO2) {
+				int cmp = Float.compare(theScores.get(theO2), theScores.get(theO1));
+				if (cmp == 0) {
+					cmp = theO1.compareTo(theO2);
+				}
+				return cmp;
+			}
+		});
+		return retVal;
+	}
+
 	public static class Suggestion implements Comparable<Suggestion> {
 		public Suggestion(String theTerm, float theScore) {
 			myTerm = theTerm;
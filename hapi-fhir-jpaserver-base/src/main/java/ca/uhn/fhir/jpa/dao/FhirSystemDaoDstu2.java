@@ -35,6 +35,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import javax.persistence.TypedQuery;
 
@@ -100,7 +101,7 @@ public class FhirSystemDaoDstu2 extends BaseHapiFhirSystemDao<Bundle, MetaDt> {
 		ourLog.info("Beginning batch with {} resources", theRequest.getEntry().size());
 		long start = System.currentTimeMillis();
 
-		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		final TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
 		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
 
 		Bundle resp = new Bundle();
@@ -112,59 +113,72 @@ public class FhirSystemDaoDstu2 extends BaseHapiFhirSystemDao<Bundle, MetaDt> {
 		 * For batch, we handle each entry as a mini-transaction in its own database transaction so that if one fails, it doesn't prevent others
 		 */
 
+		List<Callable<Entry>> tasks = new ArrayList<Callable<Entry>>(theRequest.getEntry().size());
+		List<String> serializationKeys = new ArrayList<String>(theRequest.getEntry().size());
 		for (final Entry nextRequestEntry : theRequest.getEntry()) {
-
-			TransactionCallback<Bundle> callback = new TransactionCallback<Bundle>() {
+			final RequestDetails taskRequestDetails = copyRequestDetailsForBatchTask(theRequestDetails);
+			tasks.add(new Callable<Entry>() {
 				@Override
-				public Bundle doInTransaction(TransactionStatus theStatus) {
-					Bundle subRequestBundle = new Bundle();
-					subRequestBundle.setType(BundleTypeEnum.TRANSACTION);
-					subRequestBundle.addEntry(nextRequestEntry);
-
-					Bundle subResponseBundle = transaction((ServletRequestDetails) theRequestDetails, subRequestBundle, "Batch sub-request");
-					return subResponseBundle;
+				public Entry call() {
+					return batchEntry(taskRequestDetails, txTemplate, nextRequestEntry);
 				}
-			};
+			});
+			serializationKeys.add(toBatchSerializationKey(nextRequestEntry));
+		}
 
-			BaseServerResponseException caughtEx;
-			try {
-				Bundle nextResponseBundle = txTemplate.execute(callback);
-				caughtEx = null;
+		for (Entry nextResponseEntry : executeBatchTasks(tasks, serializationKeys)) {
+			resp.addEntry(nextResponseEntry);
+		}
 
-				Entry subResponseEntry = nextResponseBundle.getEntry().get(0);
-				resp.addEntry(subResponseEntry);
-				/*
-				 * If the individual entry didn't have a resource in its response, bring the sub-transaction's OperationOutcome across so the client can see it
-				 */
-				if (subResponseEntry.getResource() == null) {
-					subResponseEntry.setResource(nextResponseBundle.getEntry().get(0).getResource());
-				}
+		long delay = System.currentTimeMillis() - start;
+		ourLog.info("Batch completed in {}ms", new Object[] { delay });
+		ooResp.addIssue().setSeverity(IssueSeverityEnum.INFORMATION).setDiagnostics("Batch completed in " + delay + "ms");
 
-			} catch (BaseServerResponseException e) {
-				caughtEx = e;
-			} catch (Throwable t) {
-				ourLog.error("Failure during BATCH sub transaction processing", t);
-				caughtEx = new InternalErrorException(t);
-			}
+		return resp;
+	}
 
-			if (caughtEx != null) {
-				Entry nextEntry = resp.addEntry();
+	private Entry batchEntry(final RequestDetails theRequestDetails, TransactionTemplate theTxTemplate, final Entry theRequestEntry) {
+		TransactionCallback<Bundle> callback = new TransactionCallback<Bundle>() {
+			@Override
+			public Bundle doInTransaction(TransactionStatus theStatus) {
+				Bundle subRequestBundle = new Bundle();
+				subRequestBundle.setType(BundleTypeEnum.TRANSACTION);
+				subRequestBundle.addEntry(theRequestEntry);
 
-				OperationOutcome oo = new OperationOutcome();
-				oo.addIssue().setSeverity(IssueSeverityEnum.ERROR).setDiagnostics(caughtEx.getMessage());
-				nextEntry.setResource(oo);
+				Bundle subResponseBundle = transaction((ServletRequestDetails) theRequestDetails, subRequestBundle, "Batch sub-request");
+				return subResponseBundle;
+			}
+		};
 
-				EntryResponse nextEntryResp = nextEntry.getResponse();
-				nextEntryResp.setStatus(toStatusString(caughtEx.getStatusCode()));
+		BaseServerResponseException caughtEx;
+		try {
+			Bundle nextResponseBundle = theTxTemplate.execute(callback);
+
+			Entry subResponseEntry = nextResponseBundle.getEntry().get(0);
+			/*
+			 * If the individual entry didn't have a resource in its response, bring the sub-transaction's OperationOutcome across so the client can see it
+			 */
+			if (subResponseEntry.getResource() == null) {
+				subResponseEntry.setResource(nextResponseBundle.getEntry().get(0).getResource());
 			}
+			return subResponseEntry;
 
+		} catch (BaseServerResponseException e) {
+			caughtEx = e;
+		} catch (Throwable t) {
+			ourLog.error("Failure during BATCH sub transaction processing", t);
+			caughtEx = new InternalErrorException(t);
 		}
 
-		long delay = System.currentTimeMillis() - start;
-		ourLog.info("Batch completed in {}ms", new Object[] { delay });
-		ooResp.addIssue().setSeverity(IssueSeverityEnum.INFORMATION).setDiagnostics("Batch completed in " + delay + "ms");
+		Entry nextEntry = new Entry();
 
-		return resp;
+		OperationOutcome oo = new OperationOutcome();
+		oo.addIssue().setSeverity(IssueSeverityEnum.ERROR).setDiagnostics(caughtEx.getMessage());
+		nextEntry.setResource(oo);
+
+		EntryResponse nextEntryResp = nextEntry.getResponse();
+		nextEntryResp.setStatus(toStatusString(caughtEx.getStatusCode()));
+		return nextEntry;
 	}
 
 	private String extractTransactionUrlOrThrowException(Entry nextEntry, HTTPVerbEnum verb) {
@@ -256,6 +270,12 @@ public class FhirSystemDaoDstu2 extends BaseHapiFhirSystemDao<Bundle, MetaDt> {
 		return dao;
 	}
 
+	private String toBatchSerializationKey(Entry theEntry) {
+		HTTPVerbEnum verb = theEntry.getRequest().getMethodElement().getValueAsEnum();
+		String resourceType = theEntry.getResource() != null ? getContext().getResourceDefinition(theEntry.getResource()).getName() : null;
+		return toBatchSerializationKey(verb != null ? verb.name() : null, theEntry.getRequest().getUrl(), resourceType, theEntry.getRequest().getIfNoneExist());
+	}
+
 	@Transactional(propagation = Propagation.REQUIRED)
 	@Override
 	public Bundle transaction(RequestDetails theRequestDetails, Bundle theRequest) {
@@ -447,16 +467,20 @@ public class FhirSystemDaoDstu2 extends BaseHapiFhirSystemDao<Bundle, MetaDt> {
 		validateDeleteConflictsEmptyOrThrowException(deleteConflicts);
 
 		/*
-		 * Perform ID substitutions and then index each resource we have saved
+		 * Perform ID substitutions and then index each resource we have saved. The entries above were saved without
+		 * indexing or flushing, so this is the only time each resource is indexed. Resources which didn't contain any
+		 * placeholder references don't need to be encoded again, and the index rows are flushed in batches.
 		 */
 
 		FhirTerser terser = getContext().newTerser();
+		int indexedCount = 0;
 		for (DaoMethodOutcome nextOutcome : idToPersistedOutcome.values()) {
 			IResource nextResource = (IResource) nextOutcome.getResource();
 			if (nextResource == null) {
 				continue;
 			}
 
+			boolean substituted = false;
 			List<BaseResourceReferenceDt> allRefs = terser.getAllPopulatedChildElementsOfType(nextResource, BaseResourceReferenceDt.class);
 			for (BaseResourceReferenceDt nextRef : allRefs) {
 				IdDt nextId = nextRef.getReference();
@@ -464,6 +488,7 @@ public class FhirSystemDaoDstu2 extends BaseHapiFhirSystemDao<Bundle, MetaDt> {
 					IdDt newId = idSubstitutions.get(nextId);
 					ourLog.info(" * Replacing resource ref {} with {}", nextId, newId);
 					nextRef.setReference(newId);
+					substituted = true;
 				} else {
 					ourLog.debug(" * Reference [{}] does not exist in bundle", nextId);
 				}
@@ -471,7 +496,14 @@ public class FhirSystemDaoDstu2 extends BaseHapiFhirSystemDao<Bundle, MetaDt> {
 
 			InstantDt deletedInstantOrNull = ResourceMetadataKeyEnum.DELETED_AT.get(nextResource);
 			Date deletedTimestampOrNull = deletedInstantOrNull != null ? deletedInstantOrNull.getValue() : null;
-			updateEntity(nextResource, nextOutcome.getEntity(), false, deletedTimestampOrNull, true, false, updateTime);
+			ResourceTable indexedEntity = updateEntity(nextResource, nextOutcome.getEntity(), false, deletedTimestampOrNull, true, false, updateTime, substituted, false);
+			if (deletedTimestampOrNull == null) {
+				flagMatchingSubscriptions(indexedEntity);
+			}
+
+			if (++indexedCount % TRANSACTION_INDEXING_FLUSH_INTERVAL == 0) {
+				myEntityManager.flush();
+			}
 		}
 
 		myEntityManager.flush();
@@ -35,6 +35,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import javax.persistence.TypedQuery;
 
@@ -101,7 +102,7 @@ public class FhirSystemDaoDstu21 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 		ourLog.info("Beginning batch with {} resources", theRequest.getEntry().size());
 		long start = System.currentTimeMillis();
 
-		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		final TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
 		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
 
 		Bundle resp = new Bundle();
@@ -113,59 +114,72 @@ public class FhirSystemDaoDstu21 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 		 * For batch, we handle each entry as a mini-transaction in its own database transaction so that if one fails, it doesn't prevent others
 		 */
 
+		List<Callable<BundleEntryComponent>> tasks = new ArrayList<Callable<BundleEntryComponent>>(theRequest.getEntry().size());
+		List<String> serializationKeys = new ArrayList<String>(theRequest.getEntry().size());
 		for (final BundleEntryComponent nextRequestEntry : theRequest.getEntry()) {
-
-			TransactionCallback<Bundle> callback = new TransactionCallback<Bundle>() {
+			final RequestDetails taskRequestDetails = copyRequestDetailsForBatchTask(theRequestDetails);
+			tasks.add(new Callable<BundleEntryComponent>() {
 				@Override
-				public Bundle doInTransaction(TransactionStatus theStatus) {
-					Bundle subRequestBundle = new Bundle();
-					subRequestBundle.setType(BundleType.TRANSACTION);
-					subRequestBundle.addEntry(nextRequestEntry);
-
-					Bundle subResponseBundle = transaction((ServletRequestDetails) theRequestDetails, subRequestBundle, "Batch sub-request");
-					return subResponseBundle;
+				public BundleEntryComponent call() {
+					return batchEntry(taskRequestDetails, txTemplate, nextRequestEntry);
 				}
-			};
+			});
+			serializationKeys.add(toBatchSerializationKey(nextRequestEntry));
+		}
 
-			BaseServerResponseException caughtEx;
-			try {
-				Bundle nextResponseBundle = txTemplate.execute(callback);
-				caughtEx = null;
+		for (BundleEntryComponent nextResponseEntry : executeBatchTasks(tasks, serializationKeys)) {
+			resp.addEntry(nextResponseEntry);
+		}
 
-				BundleEntryComponent subResponseEntry = nextResponseBundle.getEntry().get(0);
-				resp.addEntry(subResponseEntry);
-				/*
-				 * If the individual entry didn't have a resource in its response, bring the sub-transaction's OperationOutcome across so the client can see it
-				 */
-				if (subResponseEntry.getResource() == null) {
-					subResponseEntry.setResource(nextResponseBundle.getEntry().get(0).getResource());
-				}
+		long delay = System.currentTimeMillis() - start;
+		ourLog.info("Batch completed in {}ms", new Object[] { delay });
+		ooResp.addIssue().setSeverity(IssueSeverity.INFORMATION).setDiagnostics("Batch completed in " + delay + "ms");
 
-			} catch (BaseServerResponseException e) {
-				caughtEx = e;
-			} catch (Throwable t) {
-				ourLog.error("Failure during BATCH sub transaction processing", t);
-				caughtEx = new InternalErrorException(t);
-			}
+		return resp;
+	}
 
-			if (caughtEx != null) {
-				BundleEntryComponent nextEntry = resp.addEntry();
+	private BundleEntryComponent batchEntry(final RequestDetails theRequestDetails, TransactionTemplate theTxTemplate, final BundleEntryComponent theRequestEntry) {
+		TransactionCallback<Bundle> callback = new TransactionCallback<Bundle>() {
+			@Override
+			public Bundle doInTransaction(TransactionStatus theStatus) {
+				Bundle subRequestBundle = new Bundle();
+				subRequestBundle.setType(BundleType.TRANSACTION);
+				subRequestBundle.addEntry(theRequestEntry);
 
-				OperationOutcome oo = new OperationOutcome();
-				oo.addIssue().setSeverity(IssueSeverity.ERROR).setDiagnostics(caughtEx.getMessage());
-				nextEntry.setResource(oo);
+				Bundle subResponseBundle = transaction((ServletRequestDetails) theRequestDetails, subRequestBundle, "Batch sub-request");
+				return subResponseBundle;
+			}
+		};
 
-				BundleEntryResponseComponent nextEntryResp = nextEntry.getResponse();
-				nextEntryResp.setStatus(toStatusString(caughtEx.getStatusCode()));
+		BaseServerResponseException caughtEx;
+		try {
+			Bundle nextResponseBundle = theTxTemplate.execute(callback);
+
+			BundleEntryComponent subResponseEntry = nextResponseBundle.getEntry().get(0);
+			/*
+			 * If the individual entry didn't have a resource in its response, bring the sub-transaction's OperationOutcome across so the client can see it
+			 */
+			if (subResponseEntry.getResource() == null) {
+				subResponseEntry.setResource(nextResponseBundle.getEntry().get(0).getResource());
 			}
+			return subResponseEntry;
 
+		} catch (BaseServerResponseException e) {
+			caughtEx = e;
+		} catch (Throwable t) {
+			ourLog.error("Failure during BATCH sub transaction processing", t);
+			caughtEx = new InternalErrorException(t);
 		}
 
-		long delay = System.currentTimeMillis() - start;
-		ourLog.info("Batch completed in {}ms", new Object[] { delay });
-		ooResp.addIssue().setSeverity(IssueSeverity.INFORMATION).setDiagnostics("Batch completed in " + delay + "ms");
+		BundleEntryComponent nextEntry = new BundleEntryComponent();
 
-		return resp;
+		OperationOutcome oo = new OperationOutcome();
+		oo.addIssue().setSeverity(IssueSeverity.ERROR).setDiagnostics(caughtEx.getMessage());
+		nextEntry.setResource(oo);
+
+		BundleEntryResponseComponent nextEntryResp = nextEntry.getResponse();
+		nextEntryResp.setStatus(toStatusString(caughtEx.getStatusCode()));
+		return nextEntry;
 	}
 
 	private String extractTransactionUrlOrThrowException(BundleEntryComponent nextEntry, HTTPVerb verb) {
@@ -257,6 +271,12 @@ public class FhirSystemDaoDstu21 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 		return dao;
 	}
 
+	private String toBatchSerializationKey(BundleEntryComponent theEntry) {
+		HTTPVerb verb = theEntry.getRequest().getMethodElement().getValue();
+		String resourceType = theEntry.getResource() != null ? getContext().getResourceDefinition(theEntry.getResource()).getName() : null;
+		return toBatchSerializationKey(verb != null ? verb.name() : null, theEntry.getRequest().getUrl(), resourceType, theEntry.getRequest().getIfNoneExist());
+	}
+
 	@Transactional(propagation = Propagation.REQUIRED)
 	@Override
 	public Bundle transaction(RequestDetails theRequestDetails, Bundle theRequest) {
@@ -454,16 +474,20 @@ public class FhirSystemDaoDstu21 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 		validateDeleteConflictsEmptyOrThrowException(deleteConflicts);
 
 		/*
-		 * Perform ID substitutions and then index each resource we have saved
+		 * Perform ID substitutions and then index each resource we have saved. The entries above were saved without
+		 * indexing or flushing, so this is the only time each resource is indexed. Resources which didn't contain any
+		 * placeholder references don't need to be encoded again, and the index rows are flushed in batches.
 		 */
 
 		FhirTerser terser = getContext().newTerser();
+		int indexedCount = 0;
 		for (DaoMethodOutcome nextOutcome : idToPersistedOutcome.values()) {
 			IBaseResource nextResource = (IBaseResource) nextOutcome.getResource();
 			if (nextResource == null) {
 				continue;
 			}
 
+			boolean substituted = false;
 			List<IBaseReference> allRefs = terser.getAllPopulatedChildElementsOfType(nextResource, IBaseReference.class);
 			for (IBaseReference nextRef : allRefs) {
 				IIdType nextId = nextRef.getReferenceElement();
@@ -471,6 +495,7 @@ public class FhirSystemDaoDstu21 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 					IdType newId = idSubstitutions.get(nextId);
 					ourLog.info(" * Replacing resource ref {} with {}", nextId, newId);
 					nextRef.setReference(newId.getValue());
+					substituted = true;
 				} else {
 					ourLog.debug(" * Reference [{}] does not exist in bundle", nextId);
 				}
@@ -478,7 +503,14 @@ public class FhirSystemDaoDstu21 extends BaseHapiFhirSystemDao<Bundle, Meta> {
 
 			IPrimitiveType<Date> deletedInstantOrNull = ResourceMetadataKeyEnum.DELETED_AT.get((IAnyResource) nextResource);
 			Date deletedTimestampOrNull = deletedInstantOrNull != null ? deletedInstantOrNull.getValue() : null;
-			updateEntity(nextResource, nextOutcome.getEntity(), false, deletedTimestampOrNull, true, false, updateTime);
+			ResourceTable indexedEntity = updateEntity(nextResource, nextOutcome.getEntity(), false, deletedTimestampOrNull, true, false, updateTime, substituted, false);
+			if (deletedTimestampOrNull == null) {
+				flagMatchingSubscriptions(indexedEntity);
+			}
+
+			if (++indexedCount % TRANSACTION_INDEXING_FLUSH_INTERVAL == 0) {
+				myEntityManager.flush();
+			}
 		}
 
 		myEntityManager.flush();
@@ -0,0 +1,201 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.TypedQuery;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Lists;
+
+/**
+ * Translates client assigned resource IDs (forced IDs) to resource PIDs and back, caching the results. A forced ID
+ * can't be changed or reassigned once it has been created, so cached entries never need to be invalidated by
+ * writes, and every server in a cluster can safely keep its own cache.
+ * <p>
+ * The one exception is a forced ID which is created (or seen) within a transaction which is then rolled back, so
+ * any entries added to the cache during a transaction are removed again if the transaction doesn't commit. If forced
+ * ID rows are ever deleted directly in the database, {@link #clear()} must be called.
+ * </p>
+ * <p>
+ * The bulk methods still resolve all of the given IDs with a single query when caching is disabled (see
+ * {@link DaoConfig#setForcedIdCacheEnabled(boolean)}).
+ * </p>
+ */
+public class ForcedIdCacheSvc {
+
+	/**
+	 * Number of IDs resolved by each query in the bulk methods (many databases limit the size of an IN clause)
+	 */
+	static final int MAX_IDS_PER_QUERY = 500;
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	private Cache<String, Long> myForcedIdToPid;
+	private Cache<Long, Optional<String>> myPidToForcedId;
+
+	private void cache(final Map<String, Long> theForcedIdToPid, final Set<Long> thePidsWithoutForcedId) {
+		if (!isEnabled() || (theForcedIdToPid.isEmpty() && thePidsWithoutForcedId.isEmpty())) {
+			return;
+		}
+
+		for (Map.Entry<String, Long> next : theForcedIdToPid.entrySet()) {
+			myForcedIdToPid.put(next.getKey(), next.getValue());
+			myPidToForcedId.put(next.getValue(), Optional.of(next.getKey()));
+		}
+		for (Long next : thePidsWithoutForcedId) {
+			myPidToForcedId.put(next, Optional.<String> absent());
+		}
+
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int theStatus) {
+					if (theStatus != STATUS_COMMITTED) {
+						myForcedIdToPid.invalidateAll(theForcedIdToPid.keySet());
+						myPidToForcedId.invalidateAll(theForcedIdToPid.values());
+						myPidToForcedId.invalidateAll(thePidsWithoutForcedId);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Removes all entries from the cache
+	 */
+	public void clear() {
+		myForcedIdToPid.invalidateAll();
+		myPidToForcedId.invalidateAll();
+	}
+
+	/**
+	 * Returns the PID of the resource with the given forced ID, or <code>null</code> if there is no such resource
+	 */
+	public Long getPid(String theForcedId) {
+		return getPids(Lists.newArrayList(theForcedId)).get(theForcedId);
+	}
+
+	/**
+	 * Returns the PIDs of the resources with the given forced IDs, using a single query per
+	 * {@link #MAX_IDS_PER_QUERY} IDs which aren't already cached. Forced IDs which don't exist are not present in the
+	 * returned map.
+	 */
+	public Map<String, Long> getPids(Collection<String> theForcedIds) {
+		Map<String, Long> retVal = new HashMap<String, Long>();
+		Set<String> toLoad = new LinkedHashSet<String>();
+		for (String next : theForcedIds) {
+			Long pid = isEnabled() ? myForcedIdToPid.getIfPresent(next) : null;
+			if (pid != null) {
+				retVal.put(next, pid);
+			} else {
+				toLoad.add(next);
+			}
+		}
+
+		if (!toLoad.isEmpty()) {
+			Map<String, Long> loaded = new HashMap<String, Long>();
+			for (List<String> nextChunk : Lists.partition(new ArrayList<String>(toLoad), MAX_IDS_PER_QUERY)) {
+				TypedQuery<Object[]> q = myEntityManager.createQuery("SELECT f.myForcedId, f.myResourcePid FROM ForcedId f WHERE f.myForcedId IN (:ids)", Object[].class);
+				q.setParameter("ids", nextChunk);
+				for (Object[] next : q.getResultList()) {
+					loaded.put((String) next[0], (Long) next[1]);
+				}
+			}
+			cache(loaded, new LinkedHashSet<Long>());
+			retVal.putAll(loaded);
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Returns the forced IDs of the resources with the given PIDs, using a single query per {@link #MAX_IDS_PER_QUERY}
+	 * PIDs which aren't already cached. PIDs which don't have a forced ID are not present in the returned map.
+	 */
+	public Map<Long, String> getForcedIds(Collection<Long> thePids) {
+		Map<Long, String> retVal = new HashMap<Long, String>();
+		Set<Long> toLoad = new LinkedHashSet<Long>();
+		for (Long next : thePids) {
+			Optional<String> forcedId = isEnabled() ? myPidToForcedId.getIfPresent(next) : null;
+			if (forcedId == null) {
+				toLoad.add(next);
+			} else if (forcedId.isPresent()) {
+				retVal.put(next, forcedId.get());
+			}
+		}
+
+		if (!toLoad.isEmpty()) {
+			Map<String, Long> loaded = new HashMap<String, Long>();
+			for (List<Long> nextChunk : Lists.partition(new ArrayList<Long>(toLoad), MAX_IDS_PER_QUERY)) {
+				TypedQuery<Object[]> q = myEntityManager.createQuery("SELECT f.myForcedId, f.myResourcePid FROM ForcedId f WHERE f.myResourcePid IN (:pids)", Object[].class);
+				q.setParameter("pids", nextChunk);
+				for (Object[] next : q.getResultList()) {
+					loaded.put((String) next[0], (Long) next[1]);
+					retVal.put((Long) next[1], (String) next[0]);
+				}
+			}
+			toLoad.removeAll(loaded.values());
+			cache(loaded, toLoad);
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Returns the number of forced ID to PID mappings currently cached
+	 */
+	public long getCachedForcedIdCount() {
+		return myForcedIdToPid.size();
+	}
+
+	public boolean isEnabled() {
+		return myDaoConfig.isForcedIdCacheEnabled();
+	}
+
+	@PostConstruct
+	public void start() {
+		myForcedIdToPid = CacheBuilder.newBuilder().maximumSize(myDaoConfig.getForcedIdCacheMaxEntries()).build();
+		myPidToForcedId = CacheBuilder.newBuilder().maximumSize(myDaoConfig.getForcedIdCacheMaxEntries()).build();
+	}
+
+}
@@ -0,0 +1,270 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Path;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.jpa.entity.BaseHasResource;
+import ca.uhn.fhir.jpa.entity.ResourceHistoryTable;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+
+/**
+ * Bundle provider for a system or type level history (or the history of a single resource by PID), which loads each
+ * page directly from the database.
+ * <p>
+ * The current versions in HFJ_RESOURCE and the previous versions in HFJ_RES_VER are each queried in descending
+ * (updated, resource PID, version) order, which the RES_UPDATED indexes on both tables serve, and the two are merged
+ * into a page. Each page query seeks to the position just after the last entry of the previous page (a
+ * {@link HistoryTuple} which is remembered for the index at which that page ended) instead of skipping over the earlier
+ * entries, so paging forward costs the same for every page and there is no limit on how far back the history goes.
+ * </p>
+ * <p>
+ * Entries updated after the time the history was requested are excluded. When a resource is updated after that time,
+ * the version which was current moves to HFJ_RES_VER with the same update time, resource PID and version, so it keeps
+ * its position in the history.
+ * </p>
+ */
+public class HistoryJpaBundleProvider implements IBundleProvider {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(HistoryJpaBundleProvider.class);
+
+	private final NavigableMap<Integer, HistoryTuple> myBookmarks = new TreeMap<Integer, HistoryTuple>();
+	private final FhirContext myContext;
+	private final BaseHapiFhirDao<?> myDao;
+	private final InstantDt myEnd;
+	private final EntityManager myEntityManager;
+	private final PlatformTransactionManager myPlatformTransactionManager;
+	private final Long myResourceId;
+	private final String myResourceName;
+	private final Date mySince;
+	private Integer mySize;
+
+	HistoryJpaBundleProvider(String theResourceName, Long theResourceId, Date theSince, InstantDt theEnd, FhirContext theContext, EntityManager theEntityManager, PlatformTransactionManager thePlatformTransactionManager, BaseHapiFhirDao<?> theDao) {
+		myResourceName = theResourceName;
+		myResourceId = theResourceId;
+		mySince = theSince;
+		myEnd = theEnd;
+		myContext = theContext;
+		myEntityManager = theEntityManager;
+		myPlatformTransactionManager = thePlatformTransactionManager;
+		myDao = theDao;
+	}
+
+	private List<Predicate> createPredicates(CriteriaBuilder theBuilder, Root<?> theFrom, String theResourceIdAttribute, String theVersionAttribute, HistoryTuple theAfter) {
+		List<Predicate> predicates = new ArrayList<Predicate>();
+		Path<Date> updated = theFrom.get("myUpdated");
+		if (mySince != null) {
+			predicates.add(theBuilder.greaterThanOrEqualTo(updated, mySince));
+		}
+		predicates.add(theBuilder.lessThan(updated, myEnd.getValue()));
+		if (myResourceName != null) {
+			predicates.add(theBuilder.equal(theFrom.get("myResourceType"), myResourceName));
+		}
+		if (myResourceId != null) {
+			predicates.add(theBuilder.equal(theFrom.get(theResourceIdAttribute), myResourceId));
+		}
+
+		if (theAfter != null) {
+			Path<Long> resourceId = theFrom.get(theResourceIdAttribute);
+			Path<Long> version = theFrom.get(theVersionAttribute);
+			Predicate sameUpdated = theBuilder.equal(updated, theAfter.getUpdated());
+			Predicate sameResource = theBuilder.equal(resourceId, theAfter.getResourceId());
+			predicates.add(theBuilder.or(
+					theBuilder.lessThan(updated, theAfter.getUpdated()),
+					theBuilder.and(sameUpdated, theBuilder.lessThan(resourceId, theAfter.getResourceId())),
+					theBuilder.and(sameUpdated, sameResource, theBuilder.lessThan(version, theAfter.getVersion()))));
+		}
+		return predicates;
+	}
+
+	private synchronized Map.Entry<Integer, HistoryTuple> findBookmarkAtOrBefore(int theIndex) {
+		return myBookmarks.floorEntry(theIndex);
+	}
+
+	@Override
+	public InstantDt getPublished() {
+		return myEnd;
+	}
+
+	@Override
+	public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+		final int from = Math.min(theFromIndex, size());
+		final int to = Math.min(theToIndex, size());
+		if (from >= to) {
+			return Collections.emptyList();
+		}
+
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		return template.execute(new TransactionCallback<List<IBaseResource>>() {
+			@Override
+			public List<IBaseResource> doInTransaction(TransactionStatus theStatus) {
+				Map.Entry<Integer, HistoryTuple> start = findBookmarkAtOrBefore(from);
+				int startIndex = start != null ? start.getKey() : 0;
+				HistoryTuple after = start != null ? start.getValue() : null;
+				int count = to - startIndex;
+
+				List<HistoryTuple> tuples = new ArrayList<HistoryTuple>(count * 2);
+				tuples.addAll(loadTuples(ResourceTable.class, "myId", "myVersion", after, count));
+				tuples.addAll(loadTuples(ResourceHistoryTable.class, "myResourceId", "myResourceVersion", after, count));
+				Collections.sort(tuples, Collections.reverseOrder());
+				if (tuples.size() > count) {
+					tuples = tuples.subList(0, count);
+				}
+				if (!tuples.isEmpty()) {
+					rememberBookmark(startIndex + tuples.size(), tuples.get(tuples.size() - 1));
+				}
+
+				int skip = Math.min(from - startIndex, tuples.size());
+				return loadResources(tuples.subList(skip, tuples.size()));
+			}
+		});
+	}
+
+	private List<IBaseResource> loadResources(List<HistoryTuple> theTuples) {
+		List<Long> currentIds = new ArrayList<Long>();
+		List<Long> historyIds = new ArrayList<Long>();
+		for (HistoryTuple next : theTuples) {
+			if (next.isHistory()) {
+				historyIds.add(next.getId());
+			} else {
+				currentIds.add(next.getId());
+			}
+		}
+
+		Map<Long, BaseHasResource> currentEntities = new HashMap<Long, BaseHasResource>();
+		if (!currentIds.isEmpty()) {
+			TypedQuery<ResourceTable> q = myEntityManager.createQuery("SELECT r FROM ResourceTable r WHERE r.myId IN (:ids)", ResourceTable.class);
+			q.setParameter("ids", currentIds);
+			for (ResourceTable next : q.getResultList()) {
+				currentEntities.put(next.getId(), next);
+			}
+		}
+		Map<Long, BaseHasResource> historyEntities = new HashMap<Long, BaseHasResource>();
+		if (!historyIds.isEmpty()) {
+			TypedQuery<ResourceHistoryTable> q = myEntityManager.createQuery("SELECT h FROM ResourceHistoryTable h WHERE h.myId IN (:ids)", ResourceHistoryTable.class);
+			q.setParameter("ids", historyIds);
+			for (ResourceHistoryTable next : q.getResultList()) {
+				historyEntities.put(next.getId(), next);
+			}
+		}
+
+		List<IBaseResource> retVal = new ArrayList<IBaseResource>(theTuples.size());
+		for (HistoryTuple nextTuple : theTuples) {
+			BaseHasResource next = nextTuple.isHistory() ? historyEntities.get(nextTuple.getId()) : currentEntities.get(nextTuple.getId());
+			if (next == null) {
+				continue;
+			}
+
+			RuntimeResourceDefinition type;
+			try {
+				type = myContext.getResourceDefinition(next.getResourceType());
+			} catch (DataFormatException e) {
+				if (next.getFhirVersion() != myContext.getVersion().getVersion()) {
+					ourLog.info("Ignoring history resource of type[{}] because it is not compatible with version[{}]", next.getResourceType(), myContext.getVersion().getVersion());
+					continue;
+				}
+				throw e;
+			}
+			retVal.add(myDao.toResource(type.getImplementingClass(), next, true));
+		}
+		return retVal;
+	}
+
+	private List<HistoryTuple> loadTuples(Class<? extends BaseHasResource> theEntityType, String theResourceIdAttribute, String theVersionAttribute, HistoryTuple theAfter, int theCount) {
+		boolean history = theEntityType == ResourceHistoryTable.class;
+
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Object[]> cq = builder.createQuery(Object[].class);
+		Root<? extends BaseHasResource> from = cq.from(theEntityType);
+		cq.multiselect(from.get("myId"), from.get("myUpdated"), from.get(theResourceIdAttribute), from.get(theVersionAttribute));
+		cq.where(builder.and(createPredicates(builder, from, theResourceIdAttribute, theVersionAttribute, theAfter).toArray(new Predicate[0])));
+		cq.orderBy(builder.desc(from.get("myUpdated")), builder.desc(from.get(theResourceIdAttribute)), builder.desc(from.get(theVersionAttribute)));
+
+		TypedQuery<Object[]> q = myEntityManager.createQuery(cq);
+		q.setMaxResults(theCount);
+
+		List<HistoryTuple> retVal = new ArrayList<HistoryTuple>();
+		for (Object[] next : q.getResultList()) {
+			retVal.add(new HistoryTuple(history, (Date) next[1], (Long) next[0], (Long) next[2], ((Number) next[3]).longValue()));
+		}
+		return retVal;
+	}
+
+	private long count(Class<? extends BaseHasResource> theEntityType, String theResourceIdAttribute, String theVersionAttribute) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		Root<? extends BaseHasResource> from = cq.from(theEntityType);
+		cq.select(builder.count(from));
+		cq.where(builder.and(createPredicates(builder, from, theResourceIdAttribute, theVersionAttribute, null).toArray(new Predicate[0])));
+		return myEntityManager.createQuery(cq).getSingleResult();
+	}
+
+	@Override
+	public Integer preferredPageSize() {
+		return null;
+	}
+
+	private synchronized void rememberBookmark(int theIndex, HistoryTuple theBookmark) {
+		myBookmarks.put(theIndex, theBookmark);
+	}
+
+	@Override
+	public synchronized int size() {
+		if (mySize == null) {
+			TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+			long size = template.execute(new TransactionCallback<Long>() {
+				@Override
+				public Long doInTransaction(TransactionStatus theStatus) {
+					return count(ResourceTable.class, "myId", "myVersion") + count(ResourceHistoryTable.class, "myResourceId", "myResourceVersion");
+				}
+			});
+			mySize = (int) Math.min(size, Integer.MAX_VALUE);
+		}
+		return mySize;
+	}
+
+}
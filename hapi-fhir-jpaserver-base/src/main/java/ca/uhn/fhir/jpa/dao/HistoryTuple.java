@@ -25,46 +25,62 @@ import java.util.Date;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.apache.commons.lang3.builder.ToStringStyle;
 
+/**
+ * One entry in a history bundle: either the current version of a resource (a row in HFJ_RESOURCE) or a previous
+ * version (a row in HFJ_RES_VER). Tuples are ordered by their update time, resource PID and version, which is also
+ * the order of the history queries and so the position that a keyset paged history continues from.
+ */
 class HistoryTuple implements Comparable<HistoryTuple> {
 
 	private Long myId;
 	private boolean myIsHistory;
+	private Long myResourceId;
 	private Date myUpdated;
+	private Long myVersion;
 
-	public HistoryTuple(boolean theIsHistory, Date theUpdated, Long theId) {
+	public HistoryTuple(boolean theIsHistory, Date theUpdated, Long theId, Long theResourceId, Long theVersion) {
 		super();
 		myIsHistory = theIsHistory;
 		myUpdated = theUpdated;
 		myId = theId;
+		myResourceId = theResourceId;
+		myVersion = theVersion;
 	}
 
 	@Override
 	public int compareTo(HistoryTuple theO) {
-		return myUpdated.compareTo(theO.myUpdated);
+		int retVal = myUpdated.compareTo(theO.myUpdated);
+		if (retVal == 0) {
+			retVal = myResourceId.compareTo(theO.myResourceId);
+		}
+		if (retVal == 0) {
+			retVal = myVersion.compareTo(theO.myVersion);
+		}
+		return retVal;
 	}
 
+	/**
+	 * Returns the PID of the row, which is the resource PID for current versions and the history entry PID for
+	 * previous versions
+	 */
 	public Long getId() {
 		return myId;
 	}
 
-	public boolean isHistory() {
-		return myIsHistory;
+	public Long getResourceId() {
+		return myResourceId;
 	}
 
 	public Date getUpdated() {
 		return myUpdated;
 	}
 
-	public void setId(Long theId) {
-		myId = theId;
-	}
-
-	public void setIsHistory(boolean theIsHistory) {
-		myIsHistory = theIsHistory;
+	public Long getVersion() {
+		return myVersion;
 	}
 
-	public void setUpdated(Date theUpdated) {
-		myUpdated = theUpdated;
+	public boolean isHistory() {
+		return myIsHistory;
 	}
 
 	@Override
@@ -72,6 +88,8 @@ class HistoryTuple implements Comparable<HistoryTuple> {
 		ToStringBuilder b = new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE);
 		b.append("id", myId);
 		b.append("history", myIsHistory);
+		b.append("resourceId", myResourceId);
+		b.append("version", myVersion);
 		b.append("updated", myUpdated);
 		return b.build();
 	}
@@ -6,6 +6,7 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import ca.uhn.fhir.jpa.entity.BaseHasResource;
 import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum.ResourceMetadataKeySupportingAnyResource;
+import ca.uhn.fhir.rest.server.IBundleProvider;
 
 /*
  * #%L
@@ -54,6 +55,14 @@ public interface IDao {
 		}
 	};
 
+	/**
+	 * Loads a search which was previously stored in the database (see
+	 * {@link DaoConfig#setPersistSearchResults(boolean)})
+	 * 
+	 * @return Returns <code>null</code> if no search exists with the given UUID, e.g. because it has expired
+	 */
+	IBundleProvider loadPersistedSearch(String theSearchUuid);
+
 	IBaseResource toResource(BaseHasResource theEntity, boolean theForHistoryOperation);
 
 	<R extends IBaseResource> R toResource(Class<R> theResourceType, BaseHasResource theEntity, boolean theForHistoryOperation);
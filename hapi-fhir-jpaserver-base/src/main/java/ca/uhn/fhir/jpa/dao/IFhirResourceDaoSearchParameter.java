@@ -24,6 +24,8 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 
 public interface IFhirResourceDaoSearchParameter<T extends IBaseResource> extends IFhirResourceDao<T> {
 
+	void performReindexJobPasses();
+
 	void performReindexingPass();
 
 }
@@ -23,6 +23,7 @@ package ca.uhn.fhir.jpa.dao;
 import java.util.Date;
 import java.util.Map;
 
+import ca.uhn.fhir.jpa.entity.ReindexJob;
 import ca.uhn.fhir.model.api.TagList;
 import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.server.IBundleProvider;
@@ -40,6 +41,35 @@ public interface IFhirSystemDao<T, MT> extends IDao {
 
 	TagList getAllTags();
 
+	/**
+	 * Returns the given reindex job, or the most recently created job if <code>theJobId</code> is
+	 * <code>null</code>. Returns <code>null</code> if no such job exists.
+	 */
+	ReindexJob getReindexJob(Long theJobId);
+
+	/**
+	 * Stores every resource in an NDJSON document (one JSON resource per line) in a single transaction. This is a
+	 * fast path for loading large amounts of data: lines are parsed concurrently, client assigned IDs are resolved
+	 * in bulk, and rows are written in JDBC batches. Resources with an ID replace any existing resource with that ID,
+	 * and resources without one are created with a server assigned ID. Conditional operations, resource type specific
+	 * validation and interceptors are not applied.
+	 * <p>
+	 * When indexing is performed, every reference must point to a resource in the same document or one which already
+	 * exists, and the resources are matched against subscriptions as they are indexed. When loading a set of documents
+	 * which refer to each other (such as the files written by <code>$export</code>), defer indexing for all of them
+	 * and start a reindex job once they have all been stored.
+	 * </p>
+	 * 
+	 * @param theNdjson
+	 *           The NDJSON document
+	 * @param theDeferIndexing
+	 *           If <code>true</code>, the resources are stored without being indexed and will not be searchable until
+	 *           a reindexing pass (or a reindex job) has processed them. Resources stored this way are never matched
+	 *           against subscriptions, since reindexing doesn't create a new version.
+	 * @return Returns the number of resources which were stored
+	 */
+	int importNdjson(String theNdjson, boolean theDeferIndexing);
+
 	Map<String, Long> getResourceCounts();
 
 	IBundleProvider history(Date theDate);
@@ -56,8 +86,37 @@ public interface IFhirSystemDao<T, MT> extends IDao {
 	 */
 	MT metaGetOperation();
 
+	/**
+	 * Rewrites a batch of stored resource bodies (current versions and history) which are not stored using the
+	 * currently configured {@link DaoConfig#getResourceEncoding() resource encoding}. Call this repeatedly until
+	 * it returns 0 in order to migrate all existing resources after changing the encoding.
+	 * 
+	 * @param theCount
+	 *           The maximum number of rows to rewrite from each table in this pass, or <code>null</code> for a default
+	 * @return Returns the number of rows which were rewritten
+	 */
+	int performEncodingMigrationPass(Integer theCount);
+
+	/**
+	 * Reindexes the next range of resources for the oldest running reindex job and records how far the job has
+	 * progressed, so that an interrupted job resumes from where it left off. The range is split into chunks of
+	 * {@link DaoConfig#getReindexChunkSize()} resources which are reindexed concurrently.
+	 * 
+	 * @return Returns the number of resources which were reindexed (or failed), or 0 if there is no running job
+	 */
+	int performReindexJobPass();
+
 	int performReindexingPass(Integer theCount);
 
+	/**
+	 * Creates a reindex job covering all resources which currently exist on the server, or only resources of the
+	 * given type. The job is processed in the background by {@link #performReindexJobPass()}.
+	 * 
+	 * @param theResourceType
+	 *           The resource type to reindex, or <code>null</code> for all types
+	 */
+	ReindexJob startReindexJob(String theResourceType);
+
 	T transaction(RequestDetails theRequestDetails, T theResources);
 
 }
@@ -0,0 +1,187 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+
+/**
+ * Bundle provider for a sorted search whose pages are each loaded by their own query (see
+ * {@link DaoConfig#setKeysetPagingEnabled(boolean)}).
+ * <p>
+ * Instead of skipping over the earlier results, each page query seeks to the position just after the last result of
+ * the previous page, using a {@link Bookmark} which is remembered for the index at which that page ended. Paging
+ * forward through the results therefore costs the same for every page. A page which doesn't start at a remembered
+ * index is loaded by seeking from the nearest bookmark before it and skipping the results in between.
+ * </p>
+ */
+public class KeysetJpaBundleProvider implements IBundleProvider {
+
+	private final NavigableMap<Integer, Bookmark> myBookmarks = new TreeMap<Integer, Bookmark>();
+	private final Map<Long, Set<Long>> myIncludeCache = new ConcurrentHashMap<Long, Set<Long>>();
+	private final Set<Include> myIncludes;
+	private final DateRangeParam myLastUpdated;
+	private final SearchParameterMap myParams;
+	private final PlatformTransactionManager myPlatformTransactionManager;
+	private final InstantDt myPublished;
+	private final SearchBuilder mySearchBuilder;
+	private final int mySize;
+
+	KeysetJpaBundleProvider(SearchBuilder theSearchBuilder, PlatformTransactionManager thePlatformTransactionManager, SearchParameterMap theParams, DateRangeParam theLastUpdated, InstantDt thePublished, int theSize) {
+		mySearchBuilder = theSearchBuilder;
+		myPlatformTransactionManager = thePlatformTransactionManager;
+		myParams = theParams;
+		myIncludes = theParams.getIncludes();
+		myLastUpdated = theLastUpdated;
+		myPublished = thePublished;
+		mySize = theSize;
+	}
+
+	private synchronized Map.Entry<Integer, Bookmark> findBookmarkAtOrBefore(int theIndex) {
+		return myBookmarks.floorEntry(theIndex);
+	}
+
+	@Override
+	public InstantDt getPublished() {
+		return myPublished;
+	}
+
+	@Override
+	public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+		final int from = Math.min(theFromIndex, mySize);
+		final int to = Math.min(theToIndex, mySize);
+		if (from >= to) {
+			return Collections.emptyList();
+		}
+
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		return template.execute(new TransactionCallback<List<IBaseResource>>() {
+			@Override
+			public List<IBaseResource> doInTransaction(TransactionStatus theStatus) {
+				Map.Entry<Integer, Bookmark> start = findBookmarkAtOrBefore(from);
+				int startIndex = start != null ? start.getKey() : 0;
+				Bookmark after = start != null ? start.getValue() : null;
+
+				Page page = mySearchBuilder.loadKeysetPage(myParams, myLastUpdated, after, to - startIndex);
+				if (page.getLastBookmark() != null && page.getPids().size() > 0) {
+					rememberBookmark(startIndex + page.getPids().size(), page.getLastBookmark());
+				}
+
+				int skip = Math.min(from - startIndex, page.getPids().size());
+				List<Long> pids = new ArrayList<Long>(page.getPids().subList(skip, page.getPids().size()));
+				Set<Long> includedPids = mySearchBuilder.loadReverseIncludes(pids, myIncludes, false, myLastUpdated, myIncludeCache);
+
+				List<IBaseResource> resources = new ArrayList<IBaseResource>();
+				mySearchBuilder.loadResourcesByPid(pids, resources, includedPids, false);
+				return resources;
+			}
+		});
+	}
+
+	@Override
+	public Integer preferredPageSize() {
+		return myParams.getCount();
+	}
+
+	private synchronized void rememberBookmark(int theIndex, Bookmark theBookmark) {
+		myBookmarks.put(theIndex, theBookmark);
+	}
+
+	@Override
+	public int size() {
+		return mySize;
+	}
+
+	/**
+	 * The position of a result in a keyset paged search: the sort values and PID of the last result which has been
+	 * returned, or, once the results with values for all of the sort parameters have been exhausted and the results
+	 * which are missing a sort value are being returned in PID order, just the PID.
+	 */
+	static final class Bookmark {
+
+		private final boolean myMissingSortValues;
+		private final Long myPid;
+		private final Object[] mySortValues;
+
+		Bookmark(boolean theMissingSortValues, Object[] theSortValues, Long thePid) {
+			myMissingSortValues = theMissingSortValues;
+			mySortValues = theSortValues;
+			myPid = thePid;
+		}
+
+		public Long getPid() {
+			return myPid;
+		}
+
+		public Object[] getSortValues() {
+			return mySortValues;
+		}
+
+		public boolean isMissingSortValues() {
+			return myMissingSortValues;
+		}
+
+	}
+
+	/**
+	 * One page of PIDs loaded by {@link SearchBuilder#loadKeysetPage(SearchParameterMap, DateRangeParam, Bookmark, int)}
+	 */
+	static final class Page {
+
+		private final Bookmark myLastBookmark;
+		private final List<Long> myPids;
+
+		Page(List<Long> thePids, Bookmark theLastBookmark) {
+			myPids = thePids;
+			myLastBookmark = theLastBookmark;
+		}
+
+		/**
+		 * Returns the bookmark for the last PID in the page, or the bookmark the page was loaded from if it is empty
+		 */
+		public Bookmark getLastBookmark() {
+			return myLastBookmark;
+		}
+
+		public List<Long> getPids() {
+			return myPids;
+		}
+
+	}
+
+}
@@ -0,0 +1,202 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.lang3.SerializationException;
+import org.apache.commons.lang3.SerializationUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+
+import ca.uhn.fhir.jpa.entity.BaseHasResource;
+import ca.uhn.fhir.jpa.entity.ResourceHistoryTable;
+
+/**
+ * Caches the parsed body of individual resource versions, so that resources which are returned very often (e.g.
+ * a shared Organization or Practitioner which is <code>_include</code>d by most searches) don't need to be
+ * decompressed and parsed every time. See {@link DaoConfig#setParsedResourceCacheEnabled(boolean)}.
+ * <p>
+ * Entries are keyed by resource PID, version and last updated time. Once committed, a given version of a resource
+ * never changes, so entries are never invalidated and are simply evicted once the cache reaches its size limit. The
+ * one exception is a version which is rewritten within the transaction that created it (or which is rolled back and
+ * then written again), so {@link BaseHapiFhirDao} removes the entry for each version it writes.
+ * </p>
+ * <p>
+ * Model objects are mutable, so the cache holds each resource in Java serialized form. Every hit deserializes a fresh
+ * copy, which also means that the cache size is bounded by the actual number of bytes held (see
+ * {@link DaoConfig#setParsedResourceCacheMaxBytes(long)}).
+ * </p>
+ */
+public class ParsedResourceCacheSvc {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(ParsedResourceCacheSvc.class);
+
+	/**
+	 * Rough per-entry overhead (key, entry object and cache bookkeeping) counted towards the size limit
+	 */
+	private static final int ENTRY_OVERHEAD_BYTES = 100;
+
+	private Cache<String, CachedResource> myCache;
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	/**
+	 * Returns a new copy of the cached resource for the given entity, or <code>null</code> if there isn't one (or if
+	 * the cached copy was parsed as a different type)
+	 */
+	public <R extends IBaseResource> R get(Class<R> theResourceType, BaseHasResource theEntity) {
+		String key = createKey(theEntity);
+		if (key == null) {
+			return null;
+		}
+
+		CachedResource cached = myCache.getIfPresent(key);
+		if (cached == null || !cached.getResourceType().equals(theResourceType)) {
+			return null;
+		}
+
+		try {
+			return theResourceType.cast(SerializationUtils.deserialize(cached.getBytes()));
+		} catch (SerializationException e) {
+			ourLog.warn("Failed to deserialize cached resource " + theEntity.getIdDt().getValue() + ", will parse it instead", e);
+			myCache.invalidate(key);
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the total approximate size in bytes of the entries currently in the cache
+	 */
+	public long getSizeInBytes() {
+		long retVal = 0;
+		for (CachedResource next : myCache.asMap().values()) {
+			retVal += next.getWeight();
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the hit, miss and eviction statistics for the cache
+	 */
+	public CacheStats getStats() {
+		return myCache.stats();
+	}
+
+	/**
+	 * Removes any entry for the current version of the given entity
+	 */
+	public void invalidate(BaseHasResource theEntity) {
+		String key = createKey(theEntity);
+		if (key != null) {
+			myCache.invalidate(key);
+		}
+	}
+
+	public boolean isEnabled() {
+		return myDaoConfig.isParsedResourceCacheEnabled();
+	}
+
+	/**
+	 * Stores the given freshly parsed resource. This must be called before any metadata from the entity is added
+	 * to the resource.
+	 */
+	public void put(BaseHasResource theEntity, IBaseResource theParsed) {
+		String key = createKey(theEntity);
+		if (key == null) {
+			return;
+		}
+
+		byte[] bytes;
+		try {
+			bytes = SerializationUtils.serialize(theParsed);
+		} catch (SerializationException e) {
+			ourLog.warn("Unable to cache resource " + theEntity.getIdDt().getValue() + " because it can not be serialized", e);
+			return;
+		}
+		myCache.put(key, new CachedResource(theParsed.getClass(), bytes));
+	}
+
+	@PostConstruct
+	public void start() {
+		ourLog.info("Parsed resource cache will hold up to {} bytes", myDaoConfig.getParsedResourceCacheMaxBytes());
+		myCache = CacheBuilder.newBuilder().maximumWeight(myDaoConfig.getParsedResourceCacheMaxBytes()).weigher(new Weigher<String, CachedResource>() {
+			@Override
+			public int weigh(String theKey, CachedResource theValue) {
+				return theValue.getWeight();
+			}
+		}).recordStats().build();
+	}
+
+	/**
+	 * Returns <code>null</code> if the entity should not be cached (e.g. because it is deleted)
+	 */
+	static String createKey(BaseHasResource theEntity) {
+		if (theEntity.getDeleted() != null || theEntity.getResource() == null || theEntity.getUpdatedDate() == null) {
+			return null;
+		}
+
+		Long pid;
+		if (theEntity instanceof ResourceHistoryTable) {
+			pid = ((ResourceHistoryTable) theEntity).getResourceId();
+		} else {
+			pid = theEntity.getId();
+		}
+		if (pid == null) {
+			return null;
+		}
+
+		return pid + "/" + theEntity.getVersion() + "/" + theEntity.getUpdatedDate().getTime();
+	}
+
+	private static class CachedResource implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] myBytes;
+		private final Class<?> myResourceType;
+
+		public CachedResource(Class<?> theResourceType, byte[] theBytes) {
+			myResourceType = theResourceType;
+			myBytes = theBytes;
+		}
+
+		public byte[] getBytes() {
+			return myBytes;
+		}
+
+		public Class<?> getResourceType() {
+			return myResourceType;
+		}
+
+		public int getWeight() {
+			return myBytes.length + ENTRY_OVERHEAD_BYTES;
+		}
+	}
+
+}
@@ -0,0 +1,159 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.NoResultException;
+import javax.persistence.TypedQuery;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchInclude;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+
+/**
+ * Bundle provider which loads the results of a search that was stored in the HFJ_SEARCH and HFJ_SEARCH_RESULT tables
+ * (see {@link DaoConfig#setPersistSearchResults(boolean)}). Only the page being requested is loaded from the database,
+ * so instances of this class are cheap to create and hold no state apart from the search UUID and the search entity
+ * itself.
+ */
+public class PersistedJpaBundleProvider implements IBundleProvider {
+
+	private final FhirContext myContext;
+	private final BaseHapiFhirDao<?> myDao;
+	private final EntityManager myEntityManager;
+	private final PlatformTransactionManager myPlatformTransactionManager;
+	private Search mySearchEntity;
+	private final String myUuid;
+
+	public PersistedJpaBundleProvider(String theSearchUuid, FhirContext theContext, EntityManager theEntityManager, PlatformTransactionManager thePlatformTransactionManager, BaseHapiFhirDao<?> theDao) {
+		myUuid = theSearchUuid;
+		myContext = theContext;
+		myEntityManager = theEntityManager;
+		myPlatformTransactionManager = thePlatformTransactionManager;
+		myDao = theDao;
+	}
+
+	/**
+	 * Loads the search entity if it hasn't already been loaded
+	 *
+	 * @return Returns <code>false</code> if no search exists with the given UUID (e.g. because it has expired)
+	 */
+	public boolean ensureSearchEntityLoaded() {
+		if (mySearchEntity == null) {
+			TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+			mySearchEntity = template.execute(new TransactionCallback<Search>() {
+				@Override
+				public Search doInTransaction(TransactionStatus theStatus) {
+					TypedQuery<Search> q = myEntityManager.createQuery("SELECT s FROM Search s WHERE s.myUuid = :uuid", Search.class);
+					q.setParameter("uuid", myUuid);
+					try {
+						return q.getSingleResult();
+					} catch (NoResultException e) {
+						return null;
+					}
+				}
+			});
+		}
+		return mySearchEntity != null;
+	}
+
+	@Override
+	public InstantDt getPublished() {
+		ensureSearchEntityLoaded();
+		return new InstantDt(mySearchEntity.getCreated());
+	}
+
+	@Override
+	public List<IBaseResource> getResources(final int theFromIndex, final int theToIndex) {
+		ensureSearchEntityLoaded();
+
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		return template.execute(new TransactionCallback<List<IBaseResource>>() {
+			@Override
+			public List<IBaseResource> doInTransaction(TransactionStatus theStatus) {
+				TypedQuery<Long> q = myEntityManager.createQuery("SELECT r.myResourcePid FROM SearchResult r WHERE r.mySearchPid = :search AND r.myOrder >= :from AND r.myOrder < :to ORDER BY r.myOrder ASC", Long.class);
+				q.setParameter("search", mySearchEntity.getId());
+				q.setParameter("from", theFromIndex);
+				q.setParameter("to", theToIndex);
+				List<Long> pids = new ArrayList<Long>(q.getResultList());
+
+				/*
+				 * Anything past the number of actual matches is a _revinclude, which
+				 * was appended to the end of the list when the search was stored
+				 */
+				Set<Long> revIncludedPids = new HashSet<Long>();
+				for (int i = Math.max(0, mySearchEntity.getNumMatches() - theFromIndex); i < pids.size(); i++) {
+					revIncludedPids.add(pids.get(i));
+				}
+
+				Set<Include> includes = new LinkedHashSet<Include>();
+				TypedQuery<SearchInclude> incQ = myEntityManager.createQuery("SELECT i FROM SearchInclude i WHERE i.mySearchPid = :search", SearchInclude.class);
+				incQ.setParameter("search", mySearchEntity.getId());
+				for (SearchInclude next : incQ.getResultList()) {
+					includes.add(new Include(next.getInclude(), next.isRecurse()));
+				}
+
+				RuntimeResourceDefinition resourceDef = myContext.getResourceDefinition(mySearchEntity.getResourceType());
+				SearchBuilder builder = new SearchBuilder(myContext, myEntityManager, myPlatformTransactionManager, null, null, myDao);
+				builder.setType(resourceDef.getImplementingClass(), mySearchEntity.getResourceType());
+
+				revIncludedPids.addAll(builder.loadReverseIncludes(pids, includes, false, mySearchEntity.getLastUpdated()));
+
+				List<IBaseResource> retVal = new ArrayList<IBaseResource>();
+				builder.loadResourcesByPid(pids, retVal, revIncludedPids, false);
+				return retVal;
+			}
+		});
+	}
+
+	public String getUuid() {
+		return myUuid;
+	}
+
+	@Override
+	public Integer preferredPageSize() {
+		ensureSearchEntityLoaded();
+		return mySearchEntity.getPreferredPageSize();
+	}
+
+	@Override
+	public int size() {
+		ensureSearchEntityLoaded();
+		return mySearchEntity.getTotalCount();
+	}
+
+}
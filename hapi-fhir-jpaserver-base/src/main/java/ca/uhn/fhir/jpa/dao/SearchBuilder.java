@@ -27,6 +27,7 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -38,8 +39,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.persistence.EntityManager;
+import javax.persistence.Query;
 import javax.persistence.Tuple;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
@@ -52,17 +56,27 @@ import javax.persistence.criteria.Order;
 import javax.persistence.criteria.Path;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Selection;
 import javax.persistence.criteria.Subquery;
 
 import org.apache.commons.lang3.StringUtils;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.PostgreSQL9Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
 import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import com.google.common.collect.Lists;
+
 import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
 import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.context.FhirContext;
@@ -73,6 +87,8 @@ import ca.uhn.fhir.context.RuntimeSearchParam;
 import ca.uhn.fhir.jpa.dao.data.ISearchResultDao;
 import ca.uhn.fhir.jpa.entity.BaseHasResource;
 import ca.uhn.fhir.jpa.entity.BaseResourceIndexedSearchParam;
+import ca.uhn.fhir.jpa.entity.ForcedId;
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamDate;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamNumber;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamQuantity;
@@ -82,8 +98,14 @@ import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamUri;
 import ca.uhn.fhir.jpa.entity.ResourceLink;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.entity.ResourceTag;
+import ca.uhn.fhir.jpa.entity.Search;
+import ca.uhn.fhir.jpa.entity.SearchInclude;
+import ca.uhn.fhir.jpa.entity.SearchResult;
 import ca.uhn.fhir.jpa.entity.TagDefinition;
 import ca.uhn.fhir.jpa.entity.TagTypeEnum;
+import ca.uhn.fhir.jpa.search.SearchResultCacheSvc;
+import ca.uhn.fhir.jpa.search.SearchResultCacheSvc.CachedSearch;
+import ca.uhn.fhir.jpa.util.PidSet;
 import ca.uhn.fhir.jpa.util.StopWatch;
 import ca.uhn.fhir.model.api.IPrimitiveDatatype;
 import ca.uhn.fhir.model.api.IQueryParameterType;
@@ -120,6 +142,33 @@ import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 public class SearchBuilder {
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchBuilder.class);
 
+	/**
+	 * Beyond this many PIDs, previous matches are intersected in memory instead of being passed to the database as an
+	 * <code>IN</code> clause
+	 */
+	static final int MAX_PIDS_IN_IN_CLAUSE = 1000;
+
+	/**
+	 * When persisting search results, the session is flushed and cleared after this many rows
+	 */
+	static final int SEARCH_RESULT_FLUSH_SIZE = 500;
+
+	/**
+	 * <code>_sort</code> value which orders fulltext search results by their relevance, best match first
+	 */
+	static final String SORT_SCORE = "_score";
+
+	/**
+	 * When streaming search results, PIDs are handed to the bundle provider in chunks of this size
+	 */
+	static final int STREAMING_SEARCH_CHUNK_SIZE = 1000;
+
+	/**
+	 * When streaming search results and no <code>_count</code> was requested, this many results are loaded before the
+	 * search returns (this is the maximum page size of the default paging provider)
+	 */
+	static final int STREAMING_SEARCH_FIRST_PAGE_SIZE = 50;
+
 	private BaseHapiFhirDao<?> myCallingDao;
 	private FhirContext myContext;
 	private EntityManager myEntityManager;
@@ -138,7 +187,7 @@ public class SearchBuilder {
 		myCallingDao = theDao;
 	}
 
-	private Set<Long> addPredicateComposite(RuntimeSearchParam theParamDef, Set<Long> thePids, List<? extends IQueryParameterType> theNextAnd) {
+	private PidSet addPredicateComposite(RuntimeSearchParam theParamDef, PidSet thePids, List<? extends IQueryParameterType> theNextAnd) {
 		// TODO: fail if missing is set for a composite query
 
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
@@ -161,19 +210,10 @@ public class SearchBuilder {
 		Predicate rightPredicate = createCompositeParamPart(builder, from, right, rightValue);
 
 		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, leftPredicate, rightPredicate, inPids));
-		} else {
-			cq.where(builder.and(type, leftPredicate, rightPredicate));
-		}
-
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
-
+		return executePidQuery(cq, from.get("myId"), thePids, type, leftPredicate, rightPredicate);
 	}
 
-	private Set<Long> addPredicateDate(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
+	private PidSet addPredicateDate(String theParamName, PidSet thePids, List<? extends IQueryParameterType> theList) {
 		if (theList == null || theList.isEmpty()) {
 			return thePids;
 		}
@@ -187,35 +227,13 @@ public class SearchBuilder {
 		Root<ResourceIndexedSearchParamDate> from = cq.from(ResourceIndexedSearchParamDate.class);
 		cq.select(from.get("myResourcePid").as(Long.class));
 
-		List<Predicate> codePredicates = new ArrayList<Predicate>();
-		for (IQueryParameterType nextOr : theList) {
-			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
-				continue;
-			}
-
-			IQueryParameterType params = nextOr;
-			Predicate p = createPredicateDate(builder, from, params);
-			codePredicates.add(p);
-		}
-
-		Predicate masterCodePredicate = builder.or(toArray(codePredicates));
-
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
-		}
-
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		Predicate predicate = createPredicateDateParam(theParamName, theList, builder, from);
+		return executePidQuery(cq, from.get("myResourcePid"), thePids, predicate);
 	}
 
-	private Set<Long> addPredicateId(Set<Long> theExistingPids, Set<Long> thePids, DateRangeParam theLastUpdated) {
+	private PidSet addPredicateId(PidSet theExistingPids, Set<Long> thePids, DateRangeParam theLastUpdated) {
 		if (thePids == null || thePids.isEmpty()) {
-			return Collections.emptySet();
+			return PidSet.empty();
 		}
 
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
@@ -231,17 +249,16 @@ public class SearchBuilder {
 		cq.where(toArray(predicates));
 
 		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		HashSet<Long> found = new HashSet<Long>(q.getResultList());
+		PidSet found = PidSet.fromCollection(q.getResultList());
 		if (!theExistingPids.isEmpty()) {
-			theExistingPids.retainAll(found);
-			return theExistingPids;
+			return theExistingPids.intersect(found);
 		} else {
 			return found;
 		}
 	}
 
-	private Set<Long> addPredicateLanguage(Set<Long> thePids, List<List<? extends IQueryParameterType>> theList, DateRangeParam theLastUpdated) {
-		Set<Long> retVal = thePids;
+	private PidSet addPredicateLanguage(PidSet thePids, List<List<? extends IQueryParameterType>> theList, DateRangeParam theLastUpdated) {
+		PidSet retVal = thePids;
 		if (theList == null || theList.isEmpty()) {
 			return retVal;
 		}
@@ -252,38 +269,16 @@ public class SearchBuilder {
 			Root<ResourceTable> from = cq.from(ResourceTable.class);
 			cq.select(from.get("myId").as(Long.class));
 
-			Set<String> values = new HashSet<String>();
-			for (IQueryParameterType next : nextList) {
-				if (next instanceof StringParam) {
-					String nextValue = ((StringParam) next).getValue();
-					if (isBlank(nextValue)) {
-						continue;
-					}
-					values.add(nextValue);
-				} else {
-					throw new InternalErrorException("Lanugage parameter must be of type " + StringParam.class.getCanonicalName() + " - Got " + next.getClass().getCanonicalName());
-				}
-			}
-
+			Set<String> values = extractLanguageValues(nextList);
 			if (values.isEmpty()) {
 				return retVal;
 			}
 
-			List<Predicate> predicates = new ArrayList<Predicate>();
-			predicates.add(builder.equal(from.get("myResourceType"), myResourceName));
-			predicates.add(from.get("myLanguage").as(String.class).in(values));
-
-			if (retVal.size() > 0) {
-				Predicate inPids = (from.get("myId").in(retVal));
-				predicates.add(inPids);
-			}
-
-			predicates.add(builder.isNull(from.get("myDeleted")));
+			Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
+			Predicate language = from.get("myLanguage").as(String.class).in(values);
+			Predicate notDeleted = builder.isNull(from.get("myDeleted"));
 
-			cq.where(toArray(predicates));
-
-			TypedQuery<Long> q = myEntityManager.createQuery(cq);
-			retVal = new HashSet<Long>(q.getResultList());
+			retVal = executePidQuery(cq, from.get("myId"), retVal, type, language, notDeleted);
 			if (retVal.isEmpty()) {
 				return retVal;
 			}
@@ -320,7 +315,7 @@ public class SearchBuilder {
 		return missingFalse;
 	}
 
-	private Set<Long> addPredicateNumber(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
+	private PidSet addPredicateNumber(String theParamName, PidSet thePids, List<? extends IQueryParameterType> theList) {
 		if (theList == null || theList.isEmpty()) {
 			return thePids;
 		}
@@ -334,68 +329,14 @@ public class SearchBuilder {
 		Root<ResourceIndexedSearchParamNumber> from = cq.from(ResourceIndexedSearchParamNumber.class);
 		cq.select(from.get("myResourcePid").as(Long.class));
 
-		List<Predicate> codePredicates = new ArrayList<Predicate>();
-		for (IQueryParameterType nextOr : theList) {
-			IQueryParameterType params = nextOr;
-
-			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
-				continue;
-			}
-
-			if (params instanceof NumberParam) {
-				NumberParam param = (NumberParam) params;
-
-				BigDecimal value = param.getValue();
-				if (value == null) {
-					return thePids;
-				}
-
-				Path<Object> fromObj = from.get("myValue");
-				if (param.getComparator() == null) {
-					double mul = value.doubleValue() * 1.01;
-					double low = value.doubleValue() - mul;
-					double high = value.doubleValue() + mul;
-					Predicate lowPred = builder.ge(fromObj.as(Long.class), low);
-					Predicate highPred = builder.le(fromObj.as(Long.class), high);
-					codePredicates.add(builder.and(lowPred, highPred));
-				} else {
-					switch (param.getComparator()) {
-					case GREATERTHAN:
-						codePredicates.add(builder.greaterThan(fromObj.as(BigDecimal.class), value));
-						break;
-					case GREATERTHAN_OR_EQUALS:
-						codePredicates.add(builder.ge(fromObj.as(BigDecimal.class), value));
-						break;
-					case LESSTHAN:
-						codePredicates.add(builder.lessThan(fromObj.as(BigDecimal.class), value));
-						break;
-					case LESSTHAN_OR_EQUALS:
-						codePredicates.add(builder.le(fromObj.as(BigDecimal.class), value));
-						break;
-					}
-				}
-			} else {
-				throw new IllegalArgumentException("Invalid token type: " + params.getClass());
-			}
-
-		}
-
-		Predicate masterCodePredicate = builder.or(toArray(codePredicates));
-
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
+		Predicate predicate = createPredicateNumberParam(theParamName, theList, builder, from);
+		if (predicate == null) {
+			return thePids;
 		}
-
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		return executePidQuery(cq, from.get("myResourcePid"), thePids, predicate);
 	}
 
-	private Set<Long> addPredicateParamMissing(Set<Long> thePids, String joinName, String theParamName, Class<? extends BaseResourceIndexedSearchParam> theParamTable) {
+	private PidSet addPredicateParamMissing(PidSet thePids, String joinName, String theParamName, Class<? extends BaseResourceIndexedSearchParam> theParamTable) {
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
 		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
 		Root<ResourceTable> from = cq.from(ResourceTable.class);
@@ -412,22 +353,12 @@ public class SearchBuilder {
 		Predicate typePredicate = builder.equal(from.get("myResourceType"), myResourceName);
 		Predicate notDeletedPredicate = builder.isNull(from.get("myDeleted"));
 
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myId").in(thePids));
-			cq.where(builder.and(inPids, typePredicate, joinPredicate, notDeletedPredicate));
-		} else {
-			cq.where(builder.and(typePredicate, joinPredicate, notDeletedPredicate));
-		}
-
 		ourLog.info("Adding :missing qualifier for parameter '{}'", theParamName);
 
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		List<Long> resultList = q.getResultList();
-		HashSet<Long> retVal = new HashSet<Long>(resultList);
-		return retVal;
+		return executePidQuery(cq, from.get("myId"), thePids, typePredicate, joinPredicate, notDeletedPredicate);
 	}
 
-	private Set<Long> addPredicateParamMissingResourceLink(Set<Long> thePids, String joinName, String theParamName) {
+	private PidSet addPredicateParamMissingResourceLink(PidSet thePids, String joinName, String theParamName) {
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
 		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
 		Root<ResourceTable> from = cq.from(ResourceTable.class);
@@ -444,20 +375,10 @@ public class SearchBuilder {
 		Predicate joinPredicate = builder.not(builder.in(from.get("myId")).value(subQ));
 		Predicate typePredicate = builder.equal(from.get("myResourceType"), myResourceName);
 
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myId").in(thePids));
-			cq.where(builder.and(inPids, typePredicate, joinPredicate));
-		} else {
-			cq.where(builder.and(typePredicate, joinPredicate));
-		}
-
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		List<Long> resultList = q.getResultList();
-		HashSet<Long> retVal = new HashSet<Long>(resultList);
-		return retVal;
+		return executePidQuery(cq, from.get("myId"), thePids, typePredicate, joinPredicate);
 	}
 
-	private Set<Long> addPredicateQuantity(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
+	private PidSet addPredicateQuantity(String theParamName, PidSet thePids, List<? extends IQueryParameterType> theList) {
 		if (theList == null || theList.isEmpty()) {
 			return thePids;
 		}
@@ -471,111 +392,14 @@ public class SearchBuilder {
 		Root<ResourceIndexedSearchParamQuantity> from = cq.from(ResourceIndexedSearchParamQuantity.class);
 		cq.select(from.get("myResourcePid").as(Long.class));
 
-		List<Predicate> codePredicates = new ArrayList<Predicate>();
-		for (IQueryParameterType nextOr : theList) {
-			IQueryParameterType params = nextOr;
-
-			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
-				continue;
-			}
-
-			String systemValue;
-			String unitsValue;
-			QuantityCompararatorEnum cmpValue;
-			BigDecimal valueValue;
-			boolean approx = false;
-
-			if (params instanceof BaseQuantityDt) {
-				BaseQuantityDt param = (BaseQuantityDt) params;
-				systemValue = param.getSystemElement().getValueAsString();
-				unitsValue = param.getUnitsElement().getValueAsString();
-				cmpValue = QuantityCompararatorEnum.VALUESET_BINDER.fromCodeString(param.getComparatorElement().getValueAsString());
-				valueValue = param.getValueElement().getValue();
-			} else if (params instanceof QuantityParam) {
-				QuantityParam param = (QuantityParam) params;
-				systemValue = param.getSystem().getValueAsString();
-				unitsValue = param.getUnits();
-				cmpValue = param.getComparator();
-				valueValue = param.getValue().getValue();
-				approx = param.isApproximate();
-			} else {
-				throw new IllegalArgumentException("Invalid quantity type: " + params.getClass());
-			}
-
-			Predicate system = null;
-			if (!isBlank(systemValue)) {
-				system = builder.equal(from.get("mySystem"), systemValue);
-			}
-
-			Predicate code = null;
-			if (!isBlank(unitsValue)) {
-				code = builder.equal(from.get("myUnits"), unitsValue);
-			}
-
-			Predicate num;
-			if (cmpValue == null) {
-				BigDecimal mul = approx ? new BigDecimal(0.1) : new BigDecimal(0.01);
-				BigDecimal low = valueValue.subtract(valueValue.multiply(mul));
-				BigDecimal high = valueValue.add(valueValue.multiply(mul));
-				Predicate lowPred = builder.gt(from.get("myValue").as(BigDecimal.class), low);
-				Predicate highPred = builder.lt(from.get("myValue").as(BigDecimal.class), high);
-				num = builder.and(lowPred, highPred);
-			} else {
-				switch (cmpValue) {
-				case GREATERTHAN:
-					Expression<Number> path = from.get("myValue");
-					num = builder.gt(path, valueValue);
-					break;
-				case GREATERTHAN_OR_EQUALS:
-					path = from.get("myValue");
-					num = builder.ge(path, valueValue);
-					break;
-				case LESSTHAN:
-					path = from.get("myValue");
-					num = builder.lt(path, valueValue);
-					break;
-				case LESSTHAN_OR_EQUALS:
-					path = from.get("myValue");
-					num = builder.le(path, valueValue);
-					break;
-				default:
-					throw new IllegalStateException(cmpValue.getCode());
-				}
-			}
-
-			if (system == null && code == null) {
-				codePredicates.add(num);
-			} else if (system == null) {
-				Predicate singleCode = builder.and(code, num);
-				codePredicates.add(singleCode);
-			} else if (code == null) {
-				Predicate singleCode = builder.and(system, num);
-				codePredicates.add(singleCode);
-			} else {
-				Predicate singleCode = builder.and(system, code, num);
-				codePredicates.add(singleCode);
-			}
-		}
-
-		Predicate masterCodePredicate = builder.or(toArray(codePredicates));
-
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
-		}
-
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		Predicate predicate = createPredicateQuantityParam(theParamName, theList, builder, from);
+		return executePidQuery(cq, from.get("myResourcePid"), thePids, predicate);
 	}
 
-	private Set<Long> addPredicateReference(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
+	private PidSet addPredicateReference(String theParamName, PidSet thePids, List<? extends IQueryParameterType> theList) {
 		assert theParamName.contains(".") == false;
 
-		Set<Long> pidsToRetain = thePids;
+		PidSet pidsToRetain = thePids;
 		if (theList == null || theList.isEmpty()) {
 			return pidsToRetain;
 		}
@@ -589,219 +413,40 @@ public class SearchBuilder {
 		Root<ResourceLink> from = cq.from(ResourceLink.class);
 		cq.select(from.get("mySourceResourcePid").as(Long.class));
 
-		List<Predicate> codePredicates = new ArrayList<Predicate>();
+		Predicate predicate = createPredicateReferenceParam(theParamName, theList, builder, from);
+		return executePidQuery(cq, from.get("mySourceResourcePid"), pidsToRetain, predicate);
+	}
 
-		for (IQueryParameterType nextOr : theList) {
-			IQueryParameterType params = nextOr;
+	private PidSet addPredicateString(String theParamName, PidSet thePids, List<? extends IQueryParameterType> theList) {
+		if (theList == null || theList.isEmpty()) {
+			return thePids;
+		}
 
-			if (addPredicateMissingFalseIfPresentForResourceLink(builder, theParamName, from, codePredicates, nextOr)) {
-				continue;
-			}
+		if (Boolean.TRUE.equals(theList.get(0).getMissing())) {
+			return addPredicateParamMissing(thePids, "myParamsString", theParamName, ResourceIndexedSearchParamString.class);
+		}
 
-			if (params instanceof ReferenceParam) {
-				ReferenceParam ref = (ReferenceParam) params;
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		Root<ResourceIndexedSearchParamString> from = cq.from(ResourceIndexedSearchParamString.class);
+		cq.select(from.get("myResourcePid").as(Long.class));
 
-				if (isBlank(ref.getChain())) {
-					String resourceId = ref.getValueAsQueryToken();
-					if (resourceId.contains("/")) {
-						IIdType dt = new IdDt(resourceId);
-						resourceId = dt.getIdPart();
-					}
-					Long targetPid = myCallingDao.translateForcedIdToPid(new IdDt(resourceId));
-					ourLog.debug("Searching for resource link with target PID: {}", targetPid);
-					Predicate eq = builder.equal(from.get("myTargetResourcePid"), targetPid);
+		Predicate predicate = createPredicateStringParam(theParamName, theList, builder, from);
+		return executePidQuery(cq, from.get("myResourcePid"), thePids, predicate);
+	}
 
-					codePredicates.add(eq);
+	private PidSet addPredicateTag(PidSet thePids, List<List<? extends IQueryParameterType>> theList, String theParamName, DateRangeParam theLastUpdated) {
+		PidSet pids = thePids;
+		if (theList == null || theList.isEmpty()) {
+			return pids;
+		}
 
-				} else {
+		TagTypeEnum tagType = toTagType(theParamName);
 
-					String paramPath = myContext.getResourceDefinition(myResourceType).getSearchParam(theParamName).getPath();
-					BaseRuntimeChildDefinition def = myContext.newTerser().getDefinition(myResourceType, paramPath);
-					if (!(def instanceof RuntimeChildResourceDefinition)) {
-						throw new ConfigurationException("Property " + paramPath + " of type " + myResourceName + " is not a resource: " + def.getClass());
-					}
-					List<Class<? extends IBaseResource>> resourceTypes;
-
-					String resourceId;
-					if (!ref.getValue().matches("[a-zA-Z]+\\/.*")) {
-						RuntimeChildResourceDefinition resDef = (RuntimeChildResourceDefinition) def;
-						resourceTypes = resDef.getResourceTypes();
-						resourceId = ref.getValue();
-					} else {
-						resourceTypes = new ArrayList<Class<? extends IBaseResource>>();
-						RuntimeResourceDefinition resDef = myContext.getResourceDefinition(ref.getResourceType());
-						resourceTypes.add(resDef.getImplementingClass());
-						resourceId = ref.getIdPart();
-					}
-
-					boolean foundChainMatch = false;
-
-					String chain = ref.getChain();
-					String remainingChain = null;
-					int chainDotIndex = chain.indexOf('.');
-					if (chainDotIndex != -1) {
-						remainingChain = chain.substring(chainDotIndex + 1);
-						chain = chain.substring(0, chainDotIndex);
-					}
-
-					for (Class<? extends IBaseResource> nextType : resourceTypes) {
-						RuntimeResourceDefinition typeDef = myContext.getResourceDefinition(nextType);
-
-						IFhirResourceDao<?> dao = myCallingDao.getDao(nextType);
-						if (dao == null) {
-							ourLog.debug("Don't have a DAO for type {}", nextType.getSimpleName());
-							continue;
-						}
-
-						int qualifierIndex = chain.indexOf(':');
-						String qualifier = null;
-						if (qualifierIndex != -1) {
-							qualifier = chain.substring(qualifierIndex);
-							chain = chain.substring(0, qualifierIndex);
-						}
-
-						boolean isMeta = BaseHapiFhirDao.RESOURCE_META_PARAMS.containsKey(chain);
-						RuntimeSearchParam param = null;
-						if (!isMeta) {
-							param = typeDef.getSearchParam(chain);
-							if (param == null) {
-								ourLog.debug("Type {} doesn't have search param {}", nextType.getSimpleName(), param);
-								continue;
-							}
-						}
-
-						IQueryParameterType chainValue;
-						if (remainingChain != null) {
-							if (param == null || param.getParamType() != RestSearchParameterTypeEnum.REFERENCE) {
-								ourLog.debug("Type {} parameter {} is not a reference, can not chain {}", new Object[] { nextType.getSimpleName(), chain, remainingChain });
-								continue;
-							}
-
-							chainValue = new ReferenceParam();
-							chainValue.setValueAsQueryToken(qualifier, resourceId);
-							((ReferenceParam) chainValue).setChain(remainingChain);
-						} else if (isMeta) {
-							IQueryParameterType type = BaseHapiFhirDao.newInstanceType(chain);
-							type.setValueAsQueryToken(qualifier, resourceId);
-							chainValue = type;
-						} else {
-							chainValue = toParameterType(param, qualifier, resourceId);
-						}
-
-						foundChainMatch = true;
-
-						Set<Long> pids = dao.searchForIds(chain, chainValue);
-						if (pids.isEmpty()) {
-							continue;
-						}
-
-						Predicate eq = from.get("myTargetResourcePid").in(pids);
-						codePredicates.add(eq);
-
-					}
-
-					if (!foundChainMatch) {
-						throw new InvalidRequestException(myContext.getLocalizer().getMessage(BaseHapiFhirResourceDao.class, "invalidParameterChain", theParamName + '.' + ref.getChain()));
-					}
-				}
-
-			} else {
-				throw new IllegalArgumentException("Invalid token type (expecting ReferenceParam): " + params.getClass());
-			}
-
-		}
-
-		Predicate masterCodePredicate = builder.or(toArray(codePredicates));
-
-		Predicate type = createResourceLinkPathPredicate(theParamName, builder, from);
-		if (pidsToRetain.size() > 0) {
-			Predicate inPids = (from.get("mySourceResourcePid").in(pidsToRetain));
-			cq.where(builder.and(type, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, masterCodePredicate));
-		}
-
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
-	}
-
-	private Set<Long> addPredicateString(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
-		if (theList == null || theList.isEmpty()) {
-			return thePids;
-		}
-
-		if (Boolean.TRUE.equals(theList.get(0).getMissing())) {
-			return addPredicateParamMissing(thePids, "myParamsString", theParamName, ResourceIndexedSearchParamString.class);
-		}
-
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
-		Root<ResourceIndexedSearchParamString> from = cq.from(ResourceIndexedSearchParamString.class);
-		cq.select(from.get("myResourcePid").as(Long.class));
-
-		List<Predicate> codePredicates = new ArrayList<Predicate>();
-		for (IQueryParameterType nextOr : theList) {
-			IQueryParameterType theParameter = nextOr;
-			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
-				continue;
-			}
-
-			Predicate singleCode = createPredicateString(theParameter, theParamName, builder, from);
-			codePredicates.add(singleCode);
-		}
-
-		Predicate masterCodePredicate = builder.or(toArray(codePredicates));
-
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
-		}
-
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
-	}
-
-	private Set<Long> addPredicateTag(Set<Long> thePids, List<List<? extends IQueryParameterType>> theList, String theParamName, DateRangeParam theLastUpdated) {
-		Set<Long> pids = thePids;
-		if (theList == null || theList.isEmpty()) {
-			return pids;
-		}
-
-		TagTypeEnum tagType;
-		if (Constants.PARAM_TAG.equals(theParamName)) {
-			tagType = TagTypeEnum.TAG;
-		} else if (Constants.PARAM_PROFILE.equals(theParamName)) {
-			tagType = TagTypeEnum.PROFILE;
-		} else if (Constants.PARAM_SECURITY.equals(theParamName)) {
-			tagType = TagTypeEnum.SECURITY_LABEL;
-		} else {
-			throw new IllegalArgumentException("Param name: " + theParamName); // shouldn't happen
-		}
-
-		for (List<? extends IQueryParameterType> nextAndParams : theList) {
-			boolean haveTags = false;
-			for (IQueryParameterType nextParamUncasted : nextAndParams) {
-				if (nextParamUncasted instanceof TokenParam) {
-					TokenParam nextParam = (TokenParam) nextParamUncasted;
-					if (isNotBlank(nextParam.getValue())) {
-						haveTags = true;
-					} else if (isNotBlank(nextParam.getSystem())) {
-						throw new InvalidRequestException("Invalid " + theParamName + " parameter (must supply a value/code and not just a system): " + nextParam.getValueAsQueryToken());
-					}
-				} else {
-					UriParam nextParam = (UriParam) nextParamUncasted;
-					if (isNotBlank(nextParam.getValue())) {
-						haveTags = true;
-					}
-				}
-			}
-			if (!haveTags) {
-				continue;
-			}
+		for (List<? extends IQueryParameterType> nextAndParams : theList) {
+			if (!haveTagValues(theParamName, nextAndParams)) {
+				continue;
+			}
 
 			CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
 			CriteriaQuery<Long> cq = builder.createQuery(Long.class);
@@ -811,35 +456,9 @@ public class SearchBuilder {
 			List<Predicate> andPredicates = new ArrayList<Predicate>();
 			andPredicates.add(builder.equal(from.get("myResourceType"), myResourceName));
 
-			List<Predicate> orPredicates = new ArrayList<Predicate>();
-			for (IQueryParameterType nextOrParams : nextAndParams) {
-				String code;
-				String system;
-				if (nextOrParams instanceof TokenParam) {
-					TokenParam nextParam = (TokenParam) nextOrParams;
-					code = nextParam.getValue();
-					system = nextParam.getSystem();
-				} else {
-					UriParam nextParam = (UriParam) nextOrParams;
-					code = nextParam.getValue();
-					system = null;
-				}
-				From<ResourceTag, TagDefinition> defJoin = from.join("myTag");
-				Predicate typePrediate = builder.equal(defJoin.get("myTagType"), tagType);
-				Predicate codePrediate = builder.equal(defJoin.get("myCode"), code);
-				if (isBlank(code)) {
-					continue;
-				}
-				if (isNotBlank(system)) {
-					Predicate systemPrediate = builder.equal(defJoin.get("mySystem"), system);
-					orPredicates.add(builder.and(typePrediate, systemPrediate, codePrediate));
-				} else {
-					orPredicates.add(builder.and(typePrediate, codePrediate));
-				}
-
-			}
-			if (orPredicates.isEmpty() == false) {
-				andPredicates.add(builder.or(toArray(orPredicates)));
+			Predicate tagPredicate = createPredicateTagParam(tagType, nextAndParams, builder, from);
+			if (tagPredicate != null) {
+				andPredicates.add(tagPredicate);
 			}
 
 			From<ResourceTag, ResourceTable> defJoin = from.join("myResource");
@@ -851,21 +470,13 @@ public class SearchBuilder {
 
 			Predicate masterCodePredicate = builder.and(toArray(andPredicates));
 
-			if (pids.size() > 0) {
-				Predicate inPids = (from.get("myResourceId").in(pids));
-				cq.where(builder.and(masterCodePredicate, inPids));
-			} else {
-				cq.where(masterCodePredicate);
-			}
-
-			TypedQuery<Long> q = myEntityManager.createQuery(cq);
-			pids = new HashSet<Long>(q.getResultList());
+			pids = executePidQuery(cq, from.get("myResourceId"), pids, masterCodePredicate);
 		}
 
 		return pids;
 	}
 
-	private Set<Long> addPredicateToken(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
+	private PidSet addPredicateToken(String theParamName, PidSet thePids, List<? extends IQueryParameterType> theList) {
 		if (theList == null || theList.isEmpty()) {
 			return thePids;
 		}
@@ -874,44 +485,20 @@ public class SearchBuilder {
 			return addPredicateParamMissing(thePids, "myParamsToken", theParamName, ResourceIndexedSearchParamToken.class);
 		}
 
+		if (isTokenTextSearch(theList)) {
+			return addPredicateString(theParamName, thePids, theList);
+		}
+
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
 		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
 		Root<ResourceIndexedSearchParamToken> from = cq.from(ResourceIndexedSearchParamToken.class);
 		cq.select(from.get("myResourcePid").as(Long.class));
 
-		List<Predicate> codePredicates = new ArrayList<Predicate>();
-		for (IQueryParameterType nextOr : theList) {
-			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
-				continue;
-			}
-
-			if (nextOr instanceof TokenParam) {
-				TokenParam id = (TokenParam) nextOr;
-				if (id.isText()) {
-					return addPredicateString(theParamName, thePids, theList);
-				}
-			}
-
-			Predicate singleCode = createPredicateToken(nextOr, theParamName, builder, from);
-			codePredicates.add(singleCode);
-		}
-
-		Predicate masterCodePredicate = builder.or(toArray(codePredicates));
-
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
-		}
-
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		Predicate predicate = createPredicateTokenParam(theParamName, theList, builder, from);
+		return executePidQuery(cq, from.get("myResourcePid"), thePids, predicate);
 	}
 
-	private Set<Long> addPredicateUri(String theParamName, Set<Long> thePids, List<? extends IQueryParameterType> theList) {
+	private PidSet addPredicateUri(String theParamName, PidSet thePids, List<? extends IQueryParameterType> theList) {
 		if (theList == null || theList.isEmpty()) {
 			return thePids;
 		}
@@ -925,43 +512,11 @@ public class SearchBuilder {
 		Root<ResourceIndexedSearchParamUri> from = cq.from(ResourceIndexedSearchParamUri.class);
 		cq.select(from.get("myResourcePid").as(Long.class));
 
-		List<Predicate> codePredicates = new ArrayList<Predicate>();
-		for (IQueryParameterType nextOr : theList) {
-			IQueryParameterType params = nextOr;
-
-			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
-				continue;
-			}
-
-			if (params instanceof UriParam) {
-				UriParam param = (UriParam) params;
-
-				String value = param.getValue();
-				if (value == null) {
-					return thePids;
-				}
-
-				Path<Object> fromObj = from.get("myUri");
-				codePredicates.add(builder.equal(fromObj.as(String.class), value));
-			} else {
-				throw new IllegalArgumentException("Invalid URI type: " + params.getClass());
-			}
-
-		}
-
-		Predicate masterCodePredicate = builder.or(toArray(codePredicates));
-
-		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
-		Predicate name = builder.equal(from.get("myParamName"), theParamName);
-		if (thePids.size() > 0) {
-			Predicate inPids = (from.get("myResourcePid").in(thePids));
-			cq.where(builder.and(type, name, masterCodePredicate, inPids));
-		} else {
-			cq.where(builder.and(type, name, masterCodePredicate));
+		Predicate predicate = createPredicateUriParam(theParamName, theList, builder, from);
+		if (predicate == null) {
+			return thePids;
 		}
-
-		TypedQuery<Long> q = myEntityManager.createQuery(cq);
-		return new HashSet<Long>(q.getResultList());
+		return executePidQuery(cq, from.get("myResourcePid"), thePids, predicate);
 	}
 
 	private Predicate createCompositeParamPart(CriteriaBuilder builder, Root<ResourceTable> from, RuntimeSearchParam left, IQueryParameterType leftValue) {
@@ -1092,17 +647,69 @@ public class SearchBuilder {
 			throw new InvalidRequestException("Parameter[" + theParamName + "] has length (" + rawSearchTerm.length() + ") that is longer than maximum allowed (" + ResourceIndexedSearchParamString.MAX_LENGTH + "): " + rawSearchTerm);
 		}
 
-		String likeExpression = BaseHapiFhirDao.normalizeString(rawSearchTerm);
-		likeExpression = likeExpression.replace("%", "[%]") + "%";
+		String normalizedSearchTerm = BaseHapiFhirDao.normalizeString(rawSearchTerm);
+		String likeExpression = normalizedSearchTerm.replace("%", "[%]") + "%";
+
+		boolean exact = theParameter instanceof StringParam && ((StringParam) theParameter).isExact();
+		if (exact && myCallingDao.getConfig().isHashedIndexSearchEnabled()) {
+			long hash = ResourceIndexedSearchParamString.calculateHashExact(myResourceName, theParamName, rawSearchTerm);
+			Predicate hashPredicate = theBuilder.equal(theFrom.get("myHashExact"), hash);
+			return theBuilder.and(hashPredicate, theBuilder.equal(theFrom.get("myValueExact"), rawSearchTerm));
+		}
 
 		Predicate singleCode = theBuilder.like(theFrom.get("myValueNormalized").as(String.class), likeExpression);
-		if (theParameter instanceof StringParam && ((StringParam) theParameter).isExact()) {
+		if (myCallingDao.getConfig().isHashedIndexSearchEnabled() && isHashablePrefix(normalizedSearchTerm)) {
+			/*
+			 * Every row which starts with the search term has the same prefix hash as the search term, so the hash
+			 * narrows down the rows using IDX_SP_STRING_HASH_NRM before the LIKE is checked within the same index
+			 */
+			long hash = ResourceIndexedSearchParamString.calculateHashNormalizedPrefix(myResourceName, theParamName, normalizedSearchTerm);
+			singleCode = theBuilder.and(theBuilder.equal(theFrom.get("myHashNormalizedPrefix"), hash), singleCode);
+		}
+		if (exact) {
 			Predicate exactCode = theBuilder.equal(theFrom.get("myValueExact"), rawSearchTerm);
 			singleCode = theBuilder.and(singleCode, exactCode);
 		}
 		return singleCode;
 	}
 
+	/**
+	 * Returns <code>null</code> if none of the parameters has a code
+	 */
+	private Predicate createPredicateTagParam(TagTypeEnum theTagType, List<? extends IQueryParameterType> theAndParams, CriteriaBuilder builder, Root<ResourceTag> from) {
+		List<Predicate> orPredicates = new ArrayList<Predicate>();
+		for (IQueryParameterType nextOrParams : theAndParams) {
+			String code;
+			String system;
+			if (nextOrParams instanceof TokenParam) {
+				TokenParam nextParam = (TokenParam) nextOrParams;
+				code = nextParam.getValue();
+				system = nextParam.getSystem();
+			} else {
+				UriParam nextParam = (UriParam) nextOrParams;
+				code = nextParam.getValue();
+				system = null;
+			}
+			From<ResourceTag, TagDefinition> defJoin = from.join("myTag");
+			Predicate typePrediate = builder.equal(defJoin.get("myTagType"), theTagType);
+			Predicate codePrediate = builder.equal(defJoin.get("myCode"), code);
+			if (isBlank(code)) {
+				continue;
+			}
+			if (isNotBlank(system)) {
+				Predicate systemPrediate = builder.equal(defJoin.get("mySystem"), system);
+				orPredicates.add(builder.and(typePrediate, systemPrediate, codePrediate));
+			} else {
+				orPredicates.add(builder.and(typePrediate, codePrediate));
+			}
+
+		}
+		if (orPredicates.isEmpty()) {
+			return null;
+		}
+		return builder.or(toArray(orPredicates));
+	}
+
 	private Predicate createPredicateToken(IQueryParameterType theParameter, String theParamName, CriteriaBuilder theBuilder, From<ResourceIndexedSearchParamToken, ResourceIndexedSearchParamToken> theFrom) {
 		String code;
 		String system;
@@ -1130,6 +737,22 @@ public class SearchBuilder {
 		}
 
 		ArrayList<Predicate> singleCodePredicates = (new ArrayList<Predicate>());
+
+		/*
+		 * The hash columns are narrow and indexed together with the resource PID, so the database can find the
+		 * matching rows using them alone. The columns they are calculated from are still compared below, which is
+		 * cheap once the rows have been found and means a hash collision can never produce a false match.
+		 */
+		if (StringUtils.isNotBlank(code) && myCallingDao.getConfig().isHashedIndexSearchEnabled()) {
+			if (StringUtils.isNotBlank(system)) {
+				long hash = ResourceIndexedSearchParamToken.calculateHashSystemAndValue(myResourceName, theParamName, system, code);
+				singleCodePredicates.add(theBuilder.equal(theFrom.get("myHashSystemAndValue"), hash));
+			} else if (system == null) {
+				long hash = ResourceIndexedSearchParamToken.calculateHashValue(myResourceName, theParamName, code);
+				singleCodePredicates.add(theBuilder.equal(theFrom.get("myHashValue"), hash));
+			}
+		}
+
 		if (StringUtils.isNotBlank(system)) {
 			singleCodePredicates.add(theBuilder.equal(theFrom.get("mySystem"), system));
 		} else if (system == null) {
@@ -1147,27 +770,473 @@ public class SearchBuilder {
 		return singleCode;
 	}
 
-	private Predicate createResourceLinkPathPredicate(String theParamName, CriteriaBuilder builder, Root<? extends ResourceLink> from) {
-		RuntimeSearchParam param = myContext.getResourceDefinition(myResourceType).getSearchParam(theParamName);
-		List<String> path = param.getPathsSplit();
-		Predicate type = from.get("mySourcePath").in(path);
-		return type;
-	}
-
-	private TypedQuery<Tuple> createSearchAllByTypeQuery(DateRangeParam theLastUpdated) {
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<Tuple> cq = builder.createTupleQuery();
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.multiselect(from.get("myId").as(Long.class));
-		List<Predicate> predicates = new ArrayList<Predicate>();
-		predicates.add(builder.equal(from.get("myResourceType"), myResourceName));
-		predicates.add(builder.isNull(from.get("myDeleted")));
+	private Predicate createPredicateDateParam(String theParamName, List<? extends IQueryParameterType> theList, CriteriaBuilder builder, Root<ResourceIndexedSearchParamDate> from) {
+		List<Predicate> codePredicates = new ArrayList<Predicate>();
+		for (IQueryParameterType nextOr : theList) {
+			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
+				continue;
+			}
 
-		if (theLastUpdated != null) {
-			predicates.addAll(createLastUpdatedPredicates(theLastUpdated, builder, from));
+			IQueryParameterType params = nextOr;
+			Predicate p = createPredicateDate(builder, from, params);
+			codePredicates.add(p);
 		}
 
-		cq.where(toArray(predicates));
+		Predicate masterCodePredicate = builder.or(toArray(codePredicates));
+
+		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
+		Predicate name = builder.equal(from.get("myParamName"), theParamName);
+		return builder.and(type, name, masterCodePredicate);
+	}
+
+	private Predicate createPredicateNumberParam(String theParamName, List<? extends IQueryParameterType> theList, CriteriaBuilder builder, Root<ResourceIndexedSearchParamNumber> from) {
+		List<Predicate> codePredicates = new ArrayList<Predicate>();
+		for (IQueryParameterType nextOr : theList) {
+			IQueryParameterType params = nextOr;
+
+			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
+				continue;
+			}
+
+			if (params instanceof NumberParam) {
+				NumberParam param = (NumberParam) params;
+
+				BigDecimal value = param.getValue();
+				if (value == null) {
+					return null;
+				}
+
+				Path<Object> fromObj = from.get("myValue");
+				if (param.getComparator() == null) {
+					double mul = value.doubleValue() * 1.01;
+					double low = value.doubleValue() - mul;
+					double high = value.doubleValue() + mul;
+					Predicate lowPred = builder.ge(fromObj.as(Long.class), low);
+					Predicate highPred = builder.le(fromObj.as(Long.class), high);
+					codePredicates.add(builder.and(lowPred, highPred));
+				} else {
+					switch (param.getComparator()) {
+					case GREATERTHAN:
+						codePredicates.add(builder.greaterThan(fromObj.as(BigDecimal.class), value));
+						break;
+					case GREATERTHAN_OR_EQUALS:
+						codePredicates.add(builder.ge(fromObj.as(BigDecimal.class), value));
+						break;
+					case LESSTHAN:
+						codePredicates.add(builder.lessThan(fromObj.as(BigDecimal.class), value));
+						break;
+					case LESSTHAN_OR_EQUALS:
+						codePredicates.add(builder.le(fromObj.as(BigDecimal.class), value));
+						break;
+					}
+				}
+			} else {
+				throw new IllegalArgumentException("Invalid token type: " + params.getClass());
+			}
+
+		}
+
+		Predicate masterCodePredicate = builder.or(toArray(codePredicates));
+
+		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
+		Predicate name = builder.equal(from.get("myParamName"), theParamName);
+		return builder.and(type, name, masterCodePredicate);
+	}
+
+	private Predicate createPredicateQuantityParam(String theParamName, List<? extends IQueryParameterType> theList, CriteriaBuilder builder, Root<ResourceIndexedSearchParamQuantity> from) {
+		List<Predicate> codePredicates = new ArrayList<Predicate>();
+		for (IQueryParameterType nextOr : theList) {
+			IQueryParameterType params = nextOr;
+
+			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
+				continue;
+			}
+
+			String systemValue;
+			String unitsValue;
+			QuantityCompararatorEnum cmpValue;
+			BigDecimal valueValue;
+			boolean approx = false;
+
+			if (params instanceof BaseQuantityDt) {
+				BaseQuantityDt param = (BaseQuantityDt) params;
+				systemValue = param.getSystemElement().getValueAsString();
+				unitsValue = param.getUnitsElement().getValueAsString();
+				cmpValue = QuantityCompararatorEnum.VALUESET_BINDER.fromCodeString(param.getComparatorElement().getValueAsString());
+				valueValue = param.getValueElement().getValue();
+			} else if (params instanceof QuantityParam) {
+				QuantityParam param = (QuantityParam) params;
+				systemValue = param.getSystem().getValueAsString();
+				unitsValue = param.getUnits();
+				cmpValue = param.getComparator();
+				valueValue = param.getValue().getValue();
+				approx = param.isApproximate();
+			} else {
+				throw new IllegalArgumentException("Invalid quantity type: " + params.getClass());
+			}
+
+			Predicate system = null;
+			if (!isBlank(systemValue)) {
+				system = builder.equal(from.get("mySystem"), systemValue);
+			}
+
+			Predicate code = null;
+			if (!isBlank(unitsValue)) {
+				code = builder.equal(from.get("myUnits"), unitsValue);
+			}
+
+			Predicate num;
+			if (cmpValue == null) {
+				BigDecimal mul = approx ? new BigDecimal(0.1) : new BigDecimal(0.01);
+				BigDecimal low = valueValue.subtract(valueValue.multiply(mul));
+				BigDecimal high = valueValue.add(valueValue.multiply(mul));
+				Predicate lowPred = builder.gt(from.get("myValue").as(BigDecimal.class), low);
+				Predicate highPred = builder.lt(from.get("myValue").as(BigDecimal.class), high);
+				num = builder.and(lowPred, highPred);
+			} else {
+				switch (cmpValue) {
+				case GREATERTHAN:
+					Expression<Number> path = from.get("myValue");
+					num = builder.gt(path, valueValue);
+					break;
+				case GREATERTHAN_OR_EQUALS:
+					path = from.get("myValue");
+					num = builder.ge(path, valueValue);
+					break;
+				case LESSTHAN:
+					path = from.get("myValue");
+					num = builder.lt(path, valueValue);
+					break;
+				case LESSTHAN_OR_EQUALS:
+					path = from.get("myValue");
+					num = builder.le(path, valueValue);
+					break;
+				default:
+					throw new IllegalStateException(cmpValue.getCode());
+				}
+			}
+
+			if (system == null && code == null) {
+				codePredicates.add(num);
+			} else if (system == null) {
+				Predicate singleCode = builder.and(code, num);
+				codePredicates.add(singleCode);
+			} else if (code == null) {
+				Predicate singleCode = builder.and(system, num);
+				codePredicates.add(singleCode);
+			} else {
+				Predicate singleCode = builder.and(system, code, num);
+				codePredicates.add(singleCode);
+			}
+		}
+
+		Predicate masterCodePredicate = builder.or(toArray(codePredicates));
+
+		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
+		Predicate name = builder.equal(from.get("myParamName"), theParamName);
+		return builder.and(type, name, masterCodePredicate);
+	}
+
+	private Predicate createPredicateReferenceParam(String theParamName, List<? extends IQueryParameterType> theList, CriteriaBuilder builder, Root<ResourceLink> from) {
+		List<Predicate> codePredicates = new ArrayList<Predicate>();
+
+		for (IQueryParameterType nextOr : theList) {
+			IQueryParameterType params = nextOr;
+
+			if (addPredicateMissingFalseIfPresentForResourceLink(builder, theParamName, from, codePredicates, nextOr)) {
+				continue;
+			}
+
+			if (params instanceof ReferenceParam) {
+				ReferenceParam ref = (ReferenceParam) params;
+
+				if (isBlank(ref.getChain())) {
+					String resourceId = ref.getValueAsQueryToken();
+					if (resourceId.contains("/")) {
+						IIdType dt = new IdDt(resourceId);
+						resourceId = dt.getIdPart();
+					}
+					Long targetPid = myCallingDao.translateForcedIdToPid(new IdDt(resourceId));
+					ourLog.debug("Searching for resource link with target PID: {}", targetPid);
+					Predicate eq = builder.equal(from.get("myTargetResourcePid"), targetPid);
+
+					codePredicates.add(eq);
+
+				} else {
+
+					String paramPath = myContext.getResourceDefinition(myResourceType).getSearchParam(theParamName).getPath();
+					BaseRuntimeChildDefinition def = myContext.newTerser().getDefinition(myResourceType, paramPath);
+					if (!(def instanceof RuntimeChildResourceDefinition)) {
+						throw new ConfigurationException("Property " + paramPath + " of type " + myResourceName + " is not a resource: " + def.getClass());
+					}
+					List<Class<? extends IBaseResource>> resourceTypes;
+
+					String resourceId;
+					if (!ref.getValue().matches("[a-zA-Z]+\\/.*")) {
+						RuntimeChildResourceDefinition resDef = (RuntimeChildResourceDefinition) def;
+						resourceTypes = resDef.getResourceTypes();
+						resourceId = ref.getValue();
+					} else {
+						resourceTypes = new ArrayList<Class<? extends IBaseResource>>();
+						RuntimeResourceDefinition resDef = myContext.getResourceDefinition(ref.getResourceType());
+						resourceTypes.add(resDef.getImplementingClass());
+						resourceId = ref.getIdPart();
+					}
+
+					boolean foundChainMatch = false;
+
+					String chain = ref.getChain();
+					String remainingChain = null;
+					int chainDotIndex = chain.indexOf('.');
+					if (chainDotIndex != -1) {
+						remainingChain = chain.substring(chainDotIndex + 1);
+						chain = chain.substring(0, chainDotIndex);
+					}
+
+					for (Class<? extends IBaseResource> nextType : resourceTypes) {
+						RuntimeResourceDefinition typeDef = myContext.getResourceDefinition(nextType);
+
+						IFhirResourceDao<?> dao = myCallingDao.getDao(nextType);
+						if (dao == null) {
+							ourLog.debug("Don't have a DAO for type {}", nextType.getSimpleName());
+							continue;
+						}
+
+						int qualifierIndex = chain.indexOf(':');
+						String qualifier = null;
+						if (qualifierIndex != -1) {
+							qualifier = chain.substring(qualifierIndex);
+							chain = chain.substring(0, qualifierIndex);
+						}
+
+						boolean isMeta = BaseHapiFhirDao.RESOURCE_META_PARAMS.containsKey(chain);
+						RuntimeSearchParam param = null;
+						if (!isMeta) {
+							param = typeDef.getSearchParam(chain);
+							if (param == null) {
+								ourLog.debug("Type {} doesn't have search param {}", nextType.getSimpleName(), param);
+								continue;
+							}
+						}
+
+						IQueryParameterType chainValue;
+						if (remainingChain != null) {
+							if (param == null || param.getParamType() != RestSearchParameterTypeEnum.REFERENCE) {
+								ourLog.debug("Type {} parameter {} is not a reference, can not chain {}", new Object[] { nextType.getSimpleName(), chain, remainingChain });
+								continue;
+							}
+
+							chainValue = new ReferenceParam();
+							chainValue.setValueAsQueryToken(qualifier, resourceId);
+							((ReferenceParam) chainValue).setChain(remainingChain);
+						} else if (isMeta) {
+							IQueryParameterType type = BaseHapiFhirDao.newInstanceType(chain);
+							type.setValueAsQueryToken(qualifier, resourceId);
+							chainValue = type;
+						} else {
+							chainValue = toParameterType(param, qualifier, resourceId);
+						}
+
+						foundChainMatch = true;
+
+						Set<Long> pids = dao.searchForIds(chain, chainValue);
+						if (pids.isEmpty()) {
+							continue;
+						}
+
+						/*
+						 * The chained search may match any number of resources, so they are split into several IN
+						 * lists which each stay within the limits databases put on a single list
+						 */
+						for (List<Long> nextPids : Lists.partition(new ArrayList<Long>(pids), MAX_PIDS_IN_IN_CLAUSE)) {
+							Predicate eq = from.get("myTargetResourcePid").in(nextPids);
+							codePredicates.add(eq);
+						}
+
+					}
+
+					if (!foundChainMatch) {
+						throw new InvalidRequestException(myContext.getLocalizer().getMessage(BaseHapiFhirResourceDao.class, "invalidParameterChain", theParamName + '.' + ref.getChain()));
+					}
+				}
+
+			} else {
+				throw new IllegalArgumentException("Invalid token type (expecting ReferenceParam): " + params.getClass());
+			}
+
+		}
+
+		Predicate masterCodePredicate = builder.or(toArray(codePredicates));
+
+		Predicate type = createResourceLinkPathPredicate(theParamName, builder, from);
+		return builder.and(type, masterCodePredicate);
+	}
+
+	private Predicate createPredicateStringParam(String theParamName, List<? extends IQueryParameterType> theList, CriteriaBuilder builder, Root<ResourceIndexedSearchParamString> from) {
+		List<Predicate> codePredicates = new ArrayList<Predicate>();
+		for (IQueryParameterType nextOr : theList) {
+			IQueryParameterType theParameter = nextOr;
+			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
+				continue;
+			}
+
+			Predicate singleCode = createPredicateString(theParameter, theParamName, builder, from);
+			codePredicates.add(singleCode);
+		}
+
+		Predicate masterCodePredicate = builder.or(toArray(codePredicates));
+
+		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
+		Predicate name = builder.equal(from.get("myParamName"), theParamName);
+		return builder.and(type, name, masterCodePredicate);
+	}
+
+	private Predicate createPredicateTokenParam(String theParamName, List<? extends IQueryParameterType> theList, CriteriaBuilder builder, Root<ResourceIndexedSearchParamToken> from) {
+		List<Predicate> codePredicates = new ArrayList<Predicate>();
+		for (IQueryParameterType nextOr : theList) {
+			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
+				continue;
+			}
+
+			Predicate singleCode = createPredicateToken(nextOr, theParamName, builder, from);
+			codePredicates.add(singleCode);
+		}
+
+		Predicate masterCodePredicate = builder.or(toArray(codePredicates));
+
+		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
+		Predicate name = builder.equal(from.get("myParamName"), theParamName);
+		return builder.and(type, name, masterCodePredicate);
+	}
+
+	private Predicate createPredicateUriParam(String theParamName, List<? extends IQueryParameterType> theList, CriteriaBuilder builder, Root<ResourceIndexedSearchParamUri> from) {
+		List<Predicate> codePredicates = new ArrayList<Predicate>();
+		for (IQueryParameterType nextOr : theList) {
+			IQueryParameterType params = nextOr;
+
+			if (addPredicateMissingFalseIfPresent(builder, theParamName, from, codePredicates, nextOr)) {
+				continue;
+			}
+
+			if (params instanceof UriParam) {
+				UriParam param = (UriParam) params;
+
+				String value = param.getValue();
+				if (value == null) {
+					return null;
+				}
+
+				Path<Object> fromObj = from.get("myUri");
+				codePredicates.add(builder.equal(fromObj.as(String.class), value));
+			} else {
+				throw new IllegalArgumentException("Invalid URI type: " + params.getClass());
+			}
+
+		}
+
+		Predicate masterCodePredicate = builder.or(toArray(codePredicates));
+
+		Predicate type = builder.equal(from.get("myResourceType"), myResourceName);
+		Predicate name = builder.equal(from.get("myParamName"), theParamName);
+		return builder.and(type, name, masterCodePredicate);
+	}
+
+	/**
+	 * Creates a predicate for a single AND clause of a search being executed by
+	 * {@link #searchForIdsWithSingleQuery(List, PidSet, DateRangeParam)}, as an <code>EXISTS</code> subquery against the
+	 * index table for the parameter type. Returns <code>null</code> if the clause does not restrict the results.
+	 */
+	private Predicate createPredicateSearchClause(SearchClause theClause, CriteriaBuilder builder, CriteriaQuery<?> cq, Root<ResourceTable> from) {
+		String paramName = theClause.getParamName();
+		List<? extends IQueryParameterType> orValues = theClause.getOrValues();
+		Subquery<Long> subQ = cq.subquery(Long.class);
+
+		if (theClause.getParamType() == null) {
+			if (paramName.equals(BaseResource.SP_RES_LANGUAGE)) {
+				Set<String> values = extractLanguageValues(orValues);
+				if (values.isEmpty()) {
+					return null;
+				}
+				return from.get("myLanguage").as(String.class).in(values);
+			}
+
+			Root<ResourceTag> subQfrom = subQ.from(ResourceTag.class);
+			Predicate tagPredicate = createPredicateTagParam(toTagType(paramName), orValues, builder, subQfrom);
+			if (tagPredicate == null) {
+				return null;
+			}
+			Predicate type = builder.equal(subQfrom.get("myResourceType"), myResourceName);
+			return createPredicateExists(builder, from, subQ, subQfrom, "myResourceId", builder.and(type, tagPredicate));
+		}
+
+		switch (theClause.getParamType()) {
+		case DATE: {
+			Root<ResourceIndexedSearchParamDate> subQfrom = subQ.from(ResourceIndexedSearchParamDate.class);
+			return createPredicateExists(builder, from, subQ, subQfrom, "myResourcePid", createPredicateDateParam(paramName, orValues, builder, subQfrom));
+		}
+		case NUMBER: {
+			Root<ResourceIndexedSearchParamNumber> subQfrom = subQ.from(ResourceIndexedSearchParamNumber.class);
+			return createPredicateExists(builder, from, subQ, subQfrom, "myResourcePid", createPredicateNumberParam(paramName, orValues, builder, subQfrom));
+		}
+		case QUANTITY: {
+			Root<ResourceIndexedSearchParamQuantity> subQfrom = subQ.from(ResourceIndexedSearchParamQuantity.class);
+			return createPredicateExists(builder, from, subQ, subQfrom, "myResourcePid", createPredicateQuantityParam(paramName, orValues, builder, subQfrom));
+		}
+		case REFERENCE: {
+			Root<ResourceLink> subQfrom = subQ.from(ResourceLink.class);
+			return createPredicateExists(builder, from, subQ, subQfrom, "mySourceResourcePid", createPredicateReferenceParam(paramName, orValues, builder, subQfrom));
+		}
+		case STRING: {
+			Root<ResourceIndexedSearchParamString> subQfrom = subQ.from(ResourceIndexedSearchParamString.class);
+			return createPredicateExists(builder, from, subQ, subQfrom, "myResourcePid", createPredicateStringParam(paramName, orValues, builder, subQfrom));
+		}
+		case TOKEN: {
+			Root<ResourceIndexedSearchParamToken> subQfrom = subQ.from(ResourceIndexedSearchParamToken.class);
+			return createPredicateExists(builder, from, subQ, subQfrom, "myResourcePid", createPredicateTokenParam(paramName, orValues, builder, subQfrom));
+		}
+		case URI: {
+			Root<ResourceIndexedSearchParamUri> subQfrom = subQ.from(ResourceIndexedSearchParamUri.class);
+			return createPredicateExists(builder, from, subQ, subQfrom, "myResourcePid", createPredicateUriParam(paramName, orValues, builder, subQfrom));
+		}
+		default:
+			throw new IllegalStateException("Can not plan parameter " + paramName + " of type " + theClause.getParamType());
+		}
+	}
+
+	/**
+	 * Returns an <code>EXISTS</code> predicate for the given subquery, correlated to the resource being searched for
+	 */
+	private Predicate createPredicateExists(CriteriaBuilder theBuilder, Root<ResourceTable> theFrom, Subquery<Long> theSubQ, Root<?> theSubQfrom, String thePidAttribute, Predicate thePredicate) {
+		if (thePredicate == null) {
+			return null;
+		}
+		theSubQ.select(theSubQfrom.<Long> get(thePidAttribute));
+		Predicate join = theBuilder.equal(theSubQfrom.get(thePidAttribute), theFrom.get("myId"));
+		theSubQ.where(theBuilder.and(join, thePredicate));
+		return theBuilder.exists(theSubQ);
+	}
+
+	private Predicate createResourceLinkPathPredicate(String theParamName, CriteriaBuilder builder, Root<? extends ResourceLink> from) {
+		RuntimeSearchParam param = myContext.getResourceDefinition(myResourceType).getSearchParam(theParamName);
+		List<String> path = param.getPathsSplit();
+		Predicate type = from.get("mySourcePath").in(path);
+		return type;
+	}
+
+	private TypedQuery<Tuple> createSearchAllByTypeQuery(DateRangeParam theLastUpdated) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Tuple> cq = builder.createTupleQuery();
+		Root<ResourceTable> from = cq.from(ResourceTable.class);
+		cq.multiselect(from.get("myId").as(Long.class));
+		List<Predicate> predicates = new ArrayList<Predicate>();
+		predicates.add(builder.equal(from.get("myResourceType"), myResourceName));
+		predicates.add(builder.isNull(from.get("myDeleted")));
+
+		if (theLastUpdated != null) {
+			predicates.addAll(createLastUpdatedPredicates(theLastUpdated, builder, from));
+		}
+
+		cq.where(toArray(predicates));
 
 		TypedQuery<Tuple> query = myEntityManager.createQuery(cq);
 		return query;
@@ -1268,6 +1337,56 @@ public class SearchBuilder {
 		createSort(theBuilder, theFrom, theSort.getChain(), theOrders, thePredicates);
 	}
 
+	/**
+	 * Executes a query selecting resource PIDs, restricted to the PIDs which have matched any previous AND clauses. If
+	 * there are only a few of those, they are passed to the database in an <code>IN</code> clause. Otherwise the query
+	 * runs without the restriction and the two sets are intersected in memory, since large <code>IN</code> lists are
+	 * slow to parse and some databases (e.g. Oracle) refuse them altogether.
+	 * 
+	 * @param thePidPath
+	 *           The path in the query root which holds the resource PID
+	 * @param thePids
+	 *           The PIDs matched so far, or an empty set if there is no restriction yet
+	 */
+	private Set<String> extractLanguageValues(List<? extends IQueryParameterType> theList) {
+		Set<String> values = new HashSet<String>();
+		for (IQueryParameterType next : theList) {
+			if (next instanceof StringParam) {
+				String nextValue = ((StringParam) next).getValue();
+				if (isBlank(nextValue)) {
+					continue;
+				}
+				values.add(nextValue);
+			} else {
+				throw new InternalErrorException("Lanugage parameter must be of type " + StringParam.class.getCanonicalName() + " - Got " + next.getClass().getCanonicalName());
+			}
+		}
+		return values;
+	}
+
+	private PidSet executePidQuery(CriteriaQuery<Long> theQuery, Expression<?> thePidPath, PidSet thePids, Predicate... thePredicates) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+
+		boolean restrictInQuery = thePids.size() > 0 && thePids.size() <= MAX_PIDS_IN_IN_CLAUSE;
+		if (restrictInQuery) {
+			Predicate inPids = thePidPath.in(thePids);
+			Predicate[] predicates = Arrays.copyOf(thePredicates, thePredicates.length + 1);
+			predicates[thePredicates.length] = inPids;
+			theQuery.where(builder.and(predicates));
+		} else {
+			theQuery.where(builder.and(thePredicates));
+		}
+
+		TypedQuery<Long> q = myEntityManager.createQuery(theQuery);
+		PidSet retVal = PidSet.fromCollection(q.getResultList());
+
+		if (thePids.size() > 0 && !restrictInQuery) {
+			ourLog.debug("Intersecting {} query results with {} existing PIDs in memory", retVal.size(), thePids.size());
+			retVal = retVal.intersect(thePids);
+		}
+		return retVal;
+	}
+
 	private List<Long> filterResourceIdsByLastUpdated(Collection<Long> thePids, final DateRangeParam theLastUpdated) {
 		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
 		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
@@ -1283,7 +1402,27 @@ public class SearchBuilder {
 		return resultList;
 	}
 
-	private void loadResourcesByPid(Collection<Long> theIncludePids, List<IBaseResource> theResourceListToPopulate, Set<Long> theRevIncludedPids, boolean theForHistoryOperation) {
+	private boolean haveTagValues(String theParamName, List<? extends IQueryParameterType> theAndParams) {
+		boolean haveTags = false;
+		for (IQueryParameterType nextParamUncasted : theAndParams) {
+			if (nextParamUncasted instanceof TokenParam) {
+				TokenParam nextParam = (TokenParam) nextParamUncasted;
+				if (isNotBlank(nextParam.getValue())) {
+					haveTags = true;
+				} else if (isNotBlank(nextParam.getSystem())) {
+					throw new InvalidRequestException("Invalid " + theParamName + " parameter (must supply a value/code and not just a system): " + nextParam.getValueAsQueryToken());
+				}
+			} else {
+				UriParam nextParam = (UriParam) nextParamUncasted;
+				if (isNotBlank(nextParam.getValue())) {
+					haveTags = true;
+				}
+			}
+		}
+		return haveTags;
+	}
+
+	void loadResourcesByPid(Collection<Long> theIncludePids, List<IBaseResource> theResourceListToPopulate, Set<Long> theRevIncludedPids, boolean theForHistoryOperation) {
 		if (theIncludePids.isEmpty()) {
 			return;
 		}
@@ -1294,15 +1433,12 @@ public class SearchBuilder {
 			theResourceListToPopulate.add(null);
 		}
 
-		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
-		CriteriaQuery<ResourceTable> cq = builder.createQuery(ResourceTable.class);
-		Root<ResourceTable> from = cq.from(ResourceTable.class);
-		cq.where(from.get("myId").in(theIncludePids));
-		TypedQuery<ResourceTable> q = myEntityManager.createQuery(cq);
+		List<ResourceTable> entities = loadEntitiesForParsing(theIncludePids);
+		List<IBaseResource> resources = myCallingDao.toResources(entities, theForHistoryOperation);
 
-		for (ResourceTable next : q.getResultList()) {
-			Class<? extends IBaseResource> resourceType = myContext.getResourceDefinition(next.getResourceType()).getImplementingClass();
-			IBaseResource resource = (IBaseResource) myCallingDao.toResource(resourceType, next, theForHistoryOperation);
+		for (int i = 0; i < entities.size(); i++) {
+			ResourceTable next = entities.get(i);
+			IBaseResource resource = resources.get(i);
 			Integer index = position.get(next.getId());
 			if (index == null) {
 				ourLog.warn("Got back unexpected resource PID {}", next.getId());
@@ -1327,20 +1463,87 @@ public class SearchBuilder {
 		}
 	}
 
+	/**
+	 * Loads only the columns needed to build the resources with the given PIDs (i.e. none of the index or link
+	 * collections) into new entities which are not attached to the entity manager. Tags are loaded using a single query
+	 * for all of the resources which have any, so nothing is lazily loaded when the entities are parsed (which may
+	 * happen on other threads).
+	 */
+	private List<ResourceTable> loadEntitiesForParsing(Collection<Long> thePids) {
+		//@formatter:off
+		TypedQuery<Object[]> q = myEntityManager.createQuery("SELECT r.myId, r.myResourceType, r.myVersion, r.myFhirVersion, r.myEncoding, r.myResource, "
+				+ "r.myPublished, r.myUpdated, r.myDeleted, r.myTitle, r.myHasTags, f.myForcedId "
+				+ "FROM ResourceTable r LEFT JOIN r.myForcedId f WHERE r.myId IN (:pids)", Object[].class);
+		//@formatter:on
+		q.setParameter("pids", thePids);
+
+		List<ResourceTable> retVal = new ArrayList<ResourceTable>(thePids.size());
+		Map<Long, ResourceTable> entitiesWithTags = new HashMap<Long, ResourceTable>();
+		for (Object[] next : q.getResultList()) {
+			ResourceTable entity = new ResourceTable();
+			entity.setId((Long) next[0]);
+			entity.setResourceType((String) next[1]);
+			entity.setVersion((Long) next[2]);
+			entity.setFhirVersion((FhirVersionEnum) next[3]);
+			entity.setEncoding((ResourceEncodingEnum) next[4]);
+			entity.setResource((byte[]) next[5]);
+			entity.setPublished((Date) next[6]);
+			entity.setUpdated((Date) next[7]);
+			entity.setDeleted((Date) next[8]);
+			entity.setTitle((String) next[9]);
+			entity.setHasTags((Boolean) next[10]);
+			if (next[11] != null) {
+				ForcedId forcedId = new ForcedId();
+				forcedId.setForcedId((String) next[11]);
+				entity.setForcedId(forcedId);
+			}
+
+			if (entity.isHasTags()) {
+				entitiesWithTags.put(entity.getId(), entity);
+			}
+			retVal.add(entity);
+		}
+
+		if (!entitiesWithTags.isEmpty()) {
+			TypedQuery<ResourceTag> tagQuery = myEntityManager.createQuery("SELECT t FROM ResourceTag t JOIN FETCH t.myTag WHERE t.myResourceId IN (:pids)", ResourceTag.class);
+			tagQuery.setParameter("pids", entitiesWithTags.keySet());
+			for (ResourceTag next : tagQuery.getResultList()) {
+				entitiesWithTags.get(next.getResourceId()).getTags().add(next);
+			}
+		}
+
+		return retVal;
+	}
+
 	/**
 	 * THIS SHOULD RETURN HASHSET and not jsut Set because we add to it later (so it can't be Collections.emptySet())
 	 * 
 	 * @param theLastUpdated
 	 */
-	private HashSet<Long> loadReverseIncludes(Collection<Long> theMatches, Set<Include> theRevIncludes, boolean theReverseMode, DateRangeParam theLastUpdated) {
+	HashSet<Long> loadReverseIncludes(Collection<Long> theMatches, Set<Include> theRevIncludes, boolean theReverseMode, DateRangeParam theLastUpdated) {
+		return loadReverseIncludes(theMatches, theRevIncludes, theReverseMode, theLastUpdated, null);
+	}
+
+	/**
+	 * Loads the PIDs of the resources which are included by (or in reverse mode, which include) the given matches.
+	 * Each round of includes is loaded using a single query which returns only PIDs, no matter how many includes and
+	 * paths there are. If there are recursive includes and the database supports recursive common table
+	 * expressions, all rounds after the first are loaded using a single recursive query.
+	 * 
+	 * @param theFirstRoundCache
+	 *           If not <code>null</code>, the PIDs found by the first round for each matching PID are stored in (and
+	 *           reused from) this map, so that loading another page from the same search doesn't need to run the
+	 *           query again for PIDs which have already been seen
+	 */
+	HashSet<Long> loadReverseIncludes(Collection<Long> theMatches, Set<Include> theRevIncludes, boolean theReverseMode, DateRangeParam theLastUpdated, Map<Long, Set<Long>> theFirstRoundCache) {
 		if (theMatches.size() == 0) {
 			return new HashSet<Long>();
 		}
 		if (theRevIncludes == null || theRevIncludes.isEmpty()) {
 			return new HashSet<Long>();
 		}
-		String searchFieldName = theReverseMode ? "myTargetResourcePid" : "mySourceResourcePid";
 
+		boolean filterByLastUpdated = theLastUpdated != null && (theLastUpdated.getLowerBoundAsInstant() != null || theLastUpdated.getUpperBoundAsInstant() != null);
 		Collection<Long> nextRoundMatches = theMatches;
 		HashSet<Long> allAdded = new HashSet<Long>();
 		HashSet<Long> original = new HashSet<Long>(theMatches);
@@ -1353,111 +1556,333 @@ public class SearchBuilder {
 		do {
 			roundCounts++;
 
-			HashSet<Long> pidsToInclude = new HashSet<Long>();
-			Set<Long> nextRoundOmit = new HashSet<Long>();
-
+			IncludeLinkCriteria criteria = new IncludeLinkCriteria();
 			for (Iterator<Include> iter = includes.iterator(); iter.hasNext();) {
 				Include nextInclude = iter.next();
 				if (nextInclude.isRecurse() == false) {
 					iter.remove();
 				}
+				addIncludeLinkCriteria(criteria, nextInclude);
+			}
 
-				boolean matchAll = "*".equals(nextInclude.getValue());
-				if (matchAll) {
-					String sql;
-					sql = "SELECT r FROM ResourceLink r WHERE r." + searchFieldName + " IN (:target_pids)";
-					TypedQuery<ResourceLink> q = myEntityManager.createQuery(sql, ResourceLink.class);
-					q.setParameter("target_pids", nextRoundMatches);
-					List<ResourceLink> results = q.getResultList();
-					for (ResourceLink resourceLink : results) {
-						if (theReverseMode) {
-							// if (theEverythingModeEnum.isEncounter()) {
-							// if (resourceLink.getSourcePath().equals("Encounter.subject") ||
-							// resourceLink.getSourcePath().equals("Encounter.patient")) {
-							// nextRoundOmit.add(resourceLink.getSourceResourcePid());
-							// }
-							// }
-							pidsToInclude.add(resourceLink.getSourceResourcePid());
-						} else {
-							pidsToInclude.add(resourceLink.getTargetResourcePid());
-						}
-					}
-				} else {
+			Set<Long> pidsToInclude;
+			if (roundCounts == 1 && theFirstRoundCache != null) {
+				pidsToInclude = loadIncludePidsUsingCache(nextRoundMatches, criteria, theReverseMode, theFirstRoundCache);
+			} else {
+				pidsToInclude = loadIncludePids(nextRoundMatches, criteria, theReverseMode);
+			}
+
+			if (filterByLastUpdated) {
+				pidsToInclude = new HashSet<Long>(filterResourceIdsByLastUpdated(pidsToInclude, theLastUpdated));
+			}
+
+			/*
+			 * If only recursive includes are left, load everything they reach in one query
+			 * if the database can do that
+			 */
+			if (roundCounts == 1 && includes.size() > 0 && pidsToInclude.size() > 0 && !filterByLastUpdated && isRecursiveCteSupported()) {
+				IncludeLinkCriteria recursiveCriteria = new IncludeLinkCriteria();
+				for (Include nextInclude : includes) {
+					addIncludeLinkCriteria(recursiveCriteria, nextInclude);
+				}
+				pidsToInclude = new HashSet<Long>(pidsToInclude);
+				pidsToInclude.addAll(loadRecursiveIncludePids(pidsToInclude, recursiveCriteria, theReverseMode));
+				includes.clear();
+			}
+
+			for (Long next : pidsToInclude) {
+				if (original.contains(next) == false && allAdded.contains(next) == false) {
+					theMatches.add(next);
+				}
+			}
+
+			addedSomeThisRound = allAdded.addAll(pidsToInclude);
+			nextRoundMatches = pidsToInclude;
+		} while (includes.size() > 0 && nextRoundMatches.size() > 0 && addedSomeThisRound);
+
+		ourLog.info("Loaded {} {} in {} rounds and {} ms", new Object[] { allAdded.size(), theReverseMode ? "_revincludes" : "_includes", roundCounts, w.getMillisAndRestart() });
+
+		return allAdded;
+	}
+
+	private void addIncludeLinkCriteria(IncludeLinkCriteria theCriteria, Include theInclude) {
+		if ("*".equals(theInclude.getValue())) {
+			theCriteria.setMatchAll();
+			return;
+		}
+
+		List<String> paths;
+		if (myContext.getVersion().getVersion() == FhirVersionEnum.DSTU1) {
+			paths = Collections.singletonList(theInclude.getValue());
+		} else {
+			String resType = theInclude.getParamType();
+			if (isBlank(resType)) {
+				return;
+			}
+			RuntimeResourceDefinition def = myContext.getResourceDefinition(resType);
+			if (def == null) {
+				ourLog.warn("Unknown resource type in include/revinclude=" + theInclude.getValue());
+				return;
+			}
+
+			String paramName = theInclude.getParamName();
+			RuntimeSearchParam param = isNotBlank(paramName) ? def.getSearchParam(paramName) : null;
+			if (param == null) {
+				ourLog.warn("Unknown param name in include/revinclude=" + theInclude.getValue());
+				return;
+			}
+
+			paths = param.getPathsSplit();
+		}
+
+		theCriteria.addPaths(defaultString(theInclude.getParamTargetType()), paths);
+	}
+
+	/**
+	 * Loads one round of includes for the given PIDs, returning only the PIDs of the included resources
+	 */
+	private Set<Long> loadIncludePids(Collection<Long> thePids, IncludeLinkCriteria theCriteria, boolean theReverseMode) {
+		Set<Long> retVal = new HashSet<Long>();
+		if (theCriteria.isEmpty() || thePids.isEmpty()) {
+			return retVal;
+		}
+
+		String searchFieldName = theReverseMode ? "myTargetResourcePid" : "mySourceResourcePid";
+		String resultFieldName = theReverseMode ? "mySourceResourcePid" : "myTargetResourcePid";
+		Map<String, Object> params = new HashMap<String, Object>();
+		String sql = "SELECT DISTINCT r." + resultFieldName + " FROM ResourceLink r WHERE r." + searchFieldName + " IN (:target_pids)" + theCriteria.toJpql(params);
+		TypedQuery<Long> q = myEntityManager.createQuery(sql, Long.class);
+		q.setParameter("target_pids", thePids);
+		for (Entry<String, Object> next : params.entrySet()) {
+			q.setParameter(next.getKey(), next.getValue());
+		}
+		retVal.addAll(q.getResultList());
+		return retVal;
+	}
+
+	private Set<Long> loadIncludePidsUsingCache(Collection<Long> thePids, IncludeLinkCriteria theCriteria, boolean theReverseMode, Map<Long, Set<Long>> theCache) {
+		Set<Long> retVal = new HashSet<Long>();
+		if (theCriteria.isEmpty() || thePids.isEmpty()) {
+			return retVal;
+		}
+
+		Set<Long> uncachedPids = new HashSet<Long>();
+		for (Long next : thePids) {
+			Set<Long> cached = theCache.get(next);
+			if (cached != null) {
+				retVal.addAll(cached);
+			} else {
+				uncachedPids.add(next);
+			}
+		}
+		if (uncachedPids.isEmpty()) {
+			return retVal;
+		}
+
+		Map<Long, Set<Long>> loaded = new HashMap<Long, Set<Long>>();
+		for (Long next : uncachedPids) {
+			loaded.put(next, new HashSet<Long>());
+		}
+
+		String searchFieldName = theReverseMode ? "myTargetResourcePid" : "mySourceResourcePid";
+		String resultFieldName = theReverseMode ? "mySourceResourcePid" : "myTargetResourcePid";
+		Map<String, Object> params = new HashMap<String, Object>();
+		String sql = "SELECT r." + searchFieldName + ", r." + resultFieldName + " FROM ResourceLink r WHERE r." + searchFieldName + " IN (:target_pids)" + theCriteria.toJpql(params);
+		TypedQuery<Object[]> q = myEntityManager.createQuery(sql, Object[].class);
+		q.setParameter("target_pids", uncachedPids);
+		for (Entry<String, Object> next : params.entrySet()) {
+			q.setParameter(next.getKey(), next.getValue());
+		}
+		for (Object[] next : q.getResultList()) {
+			loaded.get(next[0]).add((Long) next[1]);
+			retVal.add((Long) next[1]);
+		}
+
+		theCache.putAll(loaded);
+		return retVal;
+	}
+
+	/**
+	 * Loads every PID which can be reached from the given PIDs by following the given includes any number of times,
+	 * using a recursive common table expression (see {@link #isRecursiveCteSupported()})
+	 */
+	@SuppressWarnings("unchecked")
+	private Set<Long> loadRecursiveIncludePids(Collection<Long> thePids, IncludeLinkCriteria theCriteria, boolean theReverseMode) {
+		Set<Long> retVal = new HashSet<Long>();
+		if (theCriteria.isEmpty() || thePids.isEmpty()) {
+			return retVal;
+		}
+
+		String searchColumnName = theReverseMode ? "TARGET_RESOURCE_ID" : "SRC_RESOURCE_ID";
+		String resultColumnName = theReverseMode ? "SRC_RESOURCE_ID" : "TARGET_RESOURCE_ID";
+		Map<String, Object> params = new HashMap<String, Object>();
+		String criteria = theCriteria.toSql(params);
+
+		StringBuilder sql = new StringBuilder();
+		sql.append("WITH RECURSIVE inc_pids(pid) AS (");
+		sql.append("SELECT r.").append(resultColumnName).append(" FROM HFJ_RES_LINK r WHERE r.").append(searchColumnName).append(" IN (:target_pids)").append(criteria);
+		sql.append(" UNION ");
+		sql.append("SELECT r.").append(resultColumnName).append(" FROM HFJ_RES_LINK r INNER JOIN inc_pids p ON r.").append(searchColumnName).append(" = p.pid WHERE 1 = 1").append(criteria);
+		sql.append(") SELECT pid FROM inc_pids");
+
+		Query q = myEntityManager.createNativeQuery(sql.toString());
+		q.setParameter("target_pids", thePids);
+		for (Entry<String, Object> next : params.entrySet()) {
+			q.setParameter(next.getKey(), next.getValue());
+		}
+		for (Object next : (List<Object>) q.getResultList()) {
+			retVal.add(((Number) next).longValue());
+		}
+		return retVal;
+	}
+
+	/**
+	 * Recursive common table expressions (<code>WITH RECURSIVE</code>) which use <code>UNION</code>, so that cycles
+	 * between resources terminate, are only used on PostgreSQL. Other databases load recursive includes one round at
+	 * a time.
+	 */
+	private boolean isRecursiveCteSupported() {
+		Dialect dialect = myEntityManager.getEntityManagerFactory().unwrap(SessionFactoryImplementor.class).getDialect();
+		return dialect instanceof PostgreSQL9Dialect;
+	}
+
+	/**
+	 * Creates the predicates for a query which applies all of the given clauses at once
+	 * 
+	 * @return Returns <code>null</code> if the clauses can't match anything (i.e. an <code>_id</code> clause refers only
+	 *         to resources which don't exist)
+	 */
+	private List<Predicate> createPredicatesSingleQuery(List<SearchClause> theClauses, DateRangeParam theLastUpdated, CriteriaBuilder builder, CriteriaQuery<?> cq, Root<ResourceTable> from) {
+		List<Predicate> predicates = new ArrayList<Predicate>();
+		predicates.add(builder.equal(from.get("myResourceType"), myResourceName));
+		predicates.add(builder.isNull(from.get("myDeleted")));
+		if (theLastUpdated != null) {
+			predicates.addAll(createLastUpdatedPredicates(theLastUpdated, builder, from));
+		}
+
+		for (SearchClause nextClause : theClauses) {
+			if (BaseResource.SP_RES_ID.equals(nextClause.getParamName())) {
+				Set<Long> idPids = resolveIdParams(nextClause.getOrValues());
+				if (idPids.isEmpty()) {
+					return null;
+				}
+				predicates.add(from.get("myId").in(idPids));
+				continue;
+			}
+
+			Predicate nextPredicate = createPredicateSearchClause(nextClause, builder, cq, from);
+			if (nextPredicate != null) {
+				predicates.add(nextPredicate);
+			}
+		}
+		return predicates;
+	}
 
-					List<String> paths;
-					if (myContext.getVersion().getVersion() == FhirVersionEnum.DSTU1) {
-						paths = Collections.singletonList(nextInclude.getValue());
-					} else {
-						String resType = nextInclude.getParamType();
-						if (isBlank(resType)) {
-							continue;
-						}
-						RuntimeResourceDefinition def = myContext.getResourceDefinition(resType);
-						if (def == null) {
-							ourLog.warn("Unknown resource type in include/revinclude=" + nextInclude.getValue());
-							continue;
-						}
+	/**
+	 * Creates a query which returns the PIDs matching the given clauses in ascending order, so that they can be read
+	 * incrementally
+	 * 
+	 * @param theAfterPid
+	 *           If not <code>null</code>, only PIDs greater than this one are returned
+	 * @return Returns <code>null</code> if the clauses can't match anything
+	 */
+	private TypedQuery<Long> createStreamingPidQuery(List<SearchClause> theClauses, DateRangeParam theLastUpdated, Long theAfterPid) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		Root<ResourceTable> from = cq.from(ResourceTable.class);
+		cq.select(from.get("myId").as(Long.class));
 
-						String paramName = nextInclude.getParamName();
-						RuntimeSearchParam param = isNotBlank(paramName) ? def.getSearchParam(paramName) : null;
-						if (param == null) {
-							ourLog.warn("Unknown param name in include/revinclude=" + nextInclude.getValue());
-							continue;
-						}
+		List<Predicate> predicates = createPredicatesSingleQuery(theClauses, theLastUpdated, builder, cq, from);
+		if (predicates == null) {
+			return null;
+		}
+		if (theAfterPid != null) {
+			predicates.add(builder.greaterThan(from.<Long> get("myId"), theAfterPid));
+		}
 
-						paths = param.getPathsSplit();
-					}
+		cq.where(toArray(predicates));
+		cq.orderBy(builder.asc(from.get("myId")));
+		return myEntityManager.createQuery(cq);
+	}
 
-					String targetResourceType = defaultString(nextInclude.getParamTargetType(), null);
-					for (String nextPath : paths) {
-						String sql;
-						if (targetResourceType != null) {
-							sql = "SELECT r FROM ResourceLink r WHERE r.mySourcePath = :src_path AND r." + searchFieldName + " IN (:target_pids) AND r.myTargetResourceType = :target_resource_type";
-						} else {
-							sql = "SELECT r FROM ResourceLink r WHERE r.mySourcePath = :src_path AND r." + searchFieldName + " IN (:target_pids)";
-						}
-						TypedQuery<ResourceLink> q = myEntityManager.createQuery(sql, ResourceLink.class);
-						q.setParameter("src_path", nextPath);
-						q.setParameter("target_pids", nextRoundMatches);
-						if (targetResourceType != null) {
-							q.setParameter("target_resource_type", targetResourceType);
-						}
-						List<ResourceLink> results = q.getResultList();
-						for (ResourceLink resourceLink : results) {
-							if (theReverseMode) {
-								pidsToInclude.add(resourceLink.getSourceResourcePid());
-							} else {
-								pidsToInclude.add(resourceLink.getTargetResourcePid());
-							}
+	/**
+	 * Splits the parameters of a search into clauses which can be executed by
+	 * {@link #searchForIdsWithSingleQuery(List, PidSet, DateRangeParam)}, ordered with the ones most likely to be selective
+	 * first. Parameters which can't be handled that way (composites, <code>:missing=true</code>, and unknown names) are
+	 * copied into <code>theUnplannedParams</code> so that they can be processed one query at a time.
+	 */
+	private List<SearchClause> planSearchClauses(RuntimeResourceDefinition theResourceDef, SearchParameterMap theParams, SearchParameterMap theUnplannedParams) {
+		List<SearchClause> retVal = new ArrayList<SearchClause>();
+		for (Entry<String, List<List<? extends IQueryParameterType>>> nextParamEntry : theParams.entrySet()) {
+			String nextParamName = nextParamEntry.getKey();
+			List<List<? extends IQueryParameterType>> nextAndList = nextParamEntry.getValue();
+
+			RestSearchParameterTypeEnum paramType = null;
+			boolean plannable = true;
+			if (nextParamName.equals(BaseResource.SP_RES_ID) || nextParamName.equals(BaseResource.SP_RES_LANGUAGE)) {
+				// handled directly against the resource table
+			} else if (nextParamName.equals(Constants.PARAM_TAG) || nextParamName.equals(Constants.PARAM_PROFILE) || nextParamName.equals(Constants.PARAM_SECURITY)) {
+				// handled against the tag table
+			} else {
+				RuntimeSearchParam nextParamDef = theResourceDef.getSearchParam(nextParamName);
+				if (nextParamDef == null || nextParamDef.getParamType() == RestSearchParameterTypeEnum.COMPOSITE) {
+					plannable = false;
+				} else {
+					paramType = nextParamDef.getParamType();
+					for (List<? extends IQueryParameterType> nextAnd : nextAndList) {
+						if (nextAnd != null && nextAnd.size() > 0 && Boolean.TRUE.equals(nextAnd.get(0).getMissing())) {
+							plannable = false;
 						}
 					}
 				}
 			}
 
-			if (theLastUpdated != null && (theLastUpdated.getLowerBoundAsInstant() != null || theLastUpdated.getUpperBoundAsInstant() != null)) {
-				pidsToInclude = new HashSet<Long>(filterResourceIdsByLastUpdated(pidsToInclude, theLastUpdated));
-			}
-			for (Long next : pidsToInclude) {
-				if (original.contains(next) == false && allAdded.contains(next) == false) {
-					theMatches.add(next);
-				}
+			if (!plannable) {
+				theUnplannedParams.put(nextParamName, nextAndList);
+				continue;
 			}
 
-			pidsToInclude.removeAll(nextRoundOmit);
-
-			addedSomeThisRound = allAdded.addAll(pidsToInclude);
-			nextRoundMatches = pidsToInclude;
-		} while (includes.size() > 0 && nextRoundMatches.size() > 0 && addedSomeThisRound);
+			for (List<? extends IQueryParameterType> nextAnd : nextAndList) {
+				if (nextAnd == null || nextAnd.isEmpty()) {
+					continue;
+				}
+				if (paramType == null && !nextParamName.equals(BaseResource.SP_RES_ID) && !nextParamName.equals(BaseResource.SP_RES_LANGUAGE)) {
+					if (!haveTagValues(nextParamName, nextAnd)) {
+						continue;
+					}
+				}
 
-		ourLog.info("Loaded {} {} in {} rounds and {} ms", new Object[] { allAdded.size(), theReverseMode ? "_revincludes" : "_includes", roundCounts, w.getMillisAndRestart() });
+				RestSearchParameterTypeEnum clauseType = paramType;
+				if (clauseType == RestSearchParameterTypeEnum.TOKEN && isTokenTextSearch(nextAnd)) {
+					clauseType = RestSearchParameterTypeEnum.STRING;
+				}
+				retVal.add(new SearchClause(nextParamName, clauseType, nextAnd));
+			}
+		}
 
-		return allAdded;
+		Collections.sort(retVal);
+		return retVal;
 	}
 
-	private List<Long> processSort(final SearchParameterMap theParams, Collection<Long> theLoadPids) {
+	/**
+	 * @param theScoreOrderedPids The fulltext matches, best match first, or <code>null</code> if this isn't a fulltext
+	 *           search
+	 */
+	private List<Long> processSort(final SearchParameterMap theParams, Collection<Long> theLoadPids, List<Long> theScoreOrderedPids) {
 		final List<Long> pids;
 		// Set<Long> loadPids = theLoadPids;
-		if (theParams.getSort() != null && isNotBlank(theParams.getSort().getParamName())) {
+		if (theParams.getSort() != null && SORT_SCORE.equals(theParams.getSort().getParamName())) {
+			if (theScoreOrderedPids == null) {
+				throw new InvalidRequestException("Sorting by " + SORT_SCORE + " is only supported for fulltext searches");
+			}
+			Set<Long> loadPids = theLoadPids instanceof Set ? (Set<Long>) theLoadPids : new HashSet<Long>(theLoadPids);
+			pids = new ArrayList<Long>(loadPids.size());
+			for (Long next : theScoreOrderedPids) {
+				if (loadPids.contains(next)) {
+					pids.add(next);
+				}
+			}
+		} else if (theParams.getSort() != null && isNotBlank(theParams.getSort().getParamName())) {
 			List<Order> orders = new ArrayList<Order>();
 			List<Predicate> predicates = new ArrayList<Predicate>();
 			CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
@@ -1507,13 +1932,52 @@ public class SearchBuilder {
 			lu = null;
 		}
 
+		SearchResultCacheSvc cache = myCallingDao.getSearchResultCache();
+		String cacheKey = null;
+		Map<String, Long> cacheGenerations = null;
+		if (cache != null && cache.isEnabled() && theParams.getEverythingMode() == null) {
+			cacheKey = SearchResultCacheSvc.createKey(myResourceName, theParams);
+			CachedSearch cached = cache.get(cacheKey);
+			if (cached != null) {
+				IBundleProvider retVal = createBundleProvider(theParams, cached.getPids(), cached.getNumMatches(), new HashSet<Long>(cached.getRevIncludedPids()), now, lu);
+				ourLog.info(" {} on {} in {}ms (from cache)", new Object[] { myResourceName, theParams, w.getMillisAndRestart() });
+				return retVal;
+			}
+
+			// This has to happen before the search runs, in case there are writes while it does
+			cacheGenerations = cache.snapshotGenerations(myResourceName, theParams);
+		}
+
+		if (isStreamingSearchCandidate(theParams)) {
+			RuntimeResourceDefinition resourceDef = myContext.getResourceDefinition(myResourceType);
+			SearchParameterMap unplannedParams = new SearchParameterMap();
+			List<SearchClause> clauses = planSearchClauses(resourceDef, theParams, unplannedParams);
+			if (unplannedParams.isEmpty()) {
+				IBundleProvider retVal = searchStreaming(theParams, clauses, lu, now);
+				ourLog.info(" {} on {} in {}ms (streaming)", new Object[] { myResourceName, theParams, w.getMillisAndRestart() });
+				return retVal;
+			}
+		}
+
+		if (isKeysetSearchCandidate(theParams)) {
+			RuntimeResourceDefinition resourceDef = myContext.getResourceDefinition(myResourceType);
+			SearchParameterMap unplannedParams = new SearchParameterMap();
+			List<SearchClause> clauses = planSearchClauses(resourceDef, theParams, unplannedParams);
+			if (unplannedParams.isEmpty()) {
+				IBundleProvider retVal = searchKeyset(theParams, clauses, lu, now);
+				ourLog.info(" {} on {} in {}ms (keyset)", new Object[] { myResourceName, theParams, w.getMillisAndRestart() });
+				return retVal;
+			}
+		}
+
 		Collection<Long> loadPids;
+		List<Long> scoreOrderedPids = null;
 		if (theParams.getEverythingMode() != null) {
 
 			Long pid = null;
 			if (theParams.get(BaseResource.SP_RES_ID) != null) {
 				StringParam idParm = (StringParam) theParams.get(BaseResource.SP_RES_ID).get(0).get(0);
-				pid = BaseHapiFhirDao.translateForcedIdToPid(new IdDt(idParm.getValue()), myEntityManager);
+				pid = myCallingDao.translateForcedIdToPid(new IdDt(idParm.getValue()));
 			}
 
 			loadPids = new HashSet<Long>();
@@ -1535,140 +1999,616 @@ public class SearchBuilder {
 				predicates.add(builder.isNull(from.get("myDeleted")));
 				cq.where(builder.and(SearchBuilder.toArray(predicates)));
 
-				Join<Object, Object> join = from.join("myIncomingResourceLinks", JoinType.LEFT);
-				cq.multiselect(from.get("myId").as(Long.class), join.get("mySourceResourcePid").as(Long.class));
+				Join<Object, Object> join = from.join("myIncomingResourceLinks", JoinType.LEFT);
+				cq.multiselect(from.get("myId").as(Long.class), join.get("mySourceResourcePid").as(Long.class));
+
+				TypedQuery<Tuple> query = myEntityManager.createQuery(cq);
+				for (Tuple next : query.getResultList()) {
+					loadPids.add(next.get(0, Long.class));
+					Long nextLong = next.get(1, Long.class);
+					if (nextLong != null) {
+						loadPids.add(nextLong);
+					}
+				}
+			}
+
+		} else if (theParams.isEmpty()) {
+
+			loadPids = new HashSet<Long>();
+			TypedQuery<Tuple> query = createSearchAllByTypeQuery(lu);
+			lu = null;
+			for (Tuple next : query.getResultList()) {
+				loadPids.add(next.get(0, Long.class));
+			}
+			if (loadPids.isEmpty()) {
+				return new SimpleBundleProvider();
+			}
+
+		} else {
+
+			List<Long> searchResultPids;
+			if (mySearchDao == null) {
+				if (theParams.containsKey(Constants.PARAM_TEXT)) {
+					throw new InvalidRequestException("Fulltext search is not enabled on this service, can not process parameter: " + Constants.PARAM_TEXT);
+				} else if (theParams.containsKey(Constants.PARAM_CONTENT)) {
+					throw new InvalidRequestException("Fulltext search is not enabled on this service, can not process parameter: " + Constants.PARAM_CONTENT);
+				}
+				searchResultPids = null;
+			} else {
+				searchResultPids = mySearchDao.search(myResourceName, theParams);
+				if (searchResultPids != null && searchResultPids.isEmpty()) {
+					return new SimpleBundleProvider();
+				}
+				scoreOrderedPids = searchResultPids;
+			}
+			if (theParams.isEmpty()) {
+				loadPids = searchResultPids;
+			} else {
+				loadPids = searchForIdsWithAndOr(theParams, searchResultPids, lu);
+			}
+			if (loadPids.isEmpty()) {
+				return new SimpleBundleProvider();
+			}
+
+		}
+
+		// // Load _include and _revinclude before filter and sort in everything mode
+		// if (theParams.getEverythingMode() != null) {
+		// if (theParams.getRevIncludes() != null && theParams.getRevIncludes().isEmpty() == false) {
+		// loadPids.addAll(loadReverseIncludes(loadPids, theParams.getRevIncludes(), true,
+		// theParams.getEverythingMode()));
+		// loadPids.addAll(loadReverseIncludes(loadPids, theParams.getIncludes(), false, theParams.getEverythingMode()));
+		// }
+		// }
+
+		// Handle _lastUpdated
+		if (lu != null) {
+			loadPids = filterResourceIdsByLastUpdated(loadPids, lu);
+			if (loadPids.isEmpty()) {
+				return new SimpleBundleProvider();
+			}
+		}
+
+		// Handle sorting if any was provided
+		final List<Long> pids = processSort(theParams, loadPids, scoreOrderedPids);
+		int numMatches = pids.size();
+
+		// Load _revinclude resources
+		final Set<Long> revIncludedPids;
+		if (theParams.getEverythingMode() == null) {
+			if (theParams.getRevIncludes() != null && theParams.getRevIncludes().isEmpty() == false) {
+				revIncludedPids = loadReverseIncludes(pids, theParams.getRevIncludes(), true, lu);
+			} else {
+				revIncludedPids = new HashSet<Long>();
+			}
+		} else {
+			revIncludedPids = new HashSet<Long>();
+		}
+
+		ourLog.debug("Search returned PIDs: {}", pids);
+
+		if (cacheKey != null) {
+			cache.put(cacheKey, cacheGenerations, pids, numMatches, revIncludedPids);
+		}
+
+		IBundleProvider retVal = createBundleProvider(theParams, pids, numMatches, revIncludedPids, now, lu);
+
+		ourLog.info(" {} on {} in {}ms", new Object[] { myResourceName, theParams, w.getMillisAndRestart() });
+		return retVal;
+	}
+
+	private IBundleProvider createBundleProvider(final SearchParameterMap theParams, final List<Long> pids, int theNumMatches, final Set<Long> revIncludedPids, final InstantDt now, DateRangeParam theLastUpdated) {
+		final int totalCount = pids.size();
+
+		if (myCallingDao.getConfig().isPersistSearchResults()) {
+			ourLog.debug("Persisting {} results for {} search", totalCount, myResourceName);
+			return persistSearchResults(theParams, pids, theNumMatches, now, theLastUpdated);
+		}
+
+		IBundleProvider retVal = new IBundleProvider() {
+			private final Map<Long, Set<Long>> myIncludeCache = new ConcurrentHashMap<Long, Set<Long>>();
+
+			@Override
+			public InstantDt getPublished() {
+				return now;
+			}
+
+			@Override
+			public List<IBaseResource> getResources(final int theFromIndex, final int theToIndex) {
+				TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+				return template.execute(new TransactionCallback<List<IBaseResource>>() {
+					@Override
+					public List<IBaseResource> doInTransaction(TransactionStatus theStatus) {
+						List<Long> pidsSubList = pids.subList(theFromIndex, theToIndex);
+
+						// Load includes
+						pidsSubList = new ArrayList<Long>(pidsSubList);
+						revIncludedPids.addAll(loadReverseIncludes(pidsSubList, theParams.getIncludes(), false, theParams.getLastUpdated(), myIncludeCache));
+
+						// Execute the query and make sure we return distinct results
+						List<IBaseResource> resources = new ArrayList<IBaseResource>();
+						loadResourcesByPid(pidsSubList, resources, revIncludedPids, false);
+
+						return resources;
+					}
+
+				});
+			}
+
+			@Override
+			public Integer preferredPageSize() {
+				return theParams.getCount();
+			}
+
+			@Override
+			public int size() {
+				return totalCount;
+			}
+		};
+
+		return retVal;
+	}
+
+	/**
+	 * Does the given search need the fulltext index? When fulltext search is enabled this includes <code>:text</code>
+	 * token and string searches, which would otherwise be executed against the string index in the database.
+	 */
+	private boolean isFulltextSearch(SearchParameterMap theParams) {
+		if (theParams.containsKey(Constants.PARAM_TEXT) || theParams.containsKey(Constants.PARAM_CONTENT)) {
+			return true;
+		}
+		if (mySearchDao != null) {
+			for (List<List<? extends IQueryParameterType>> nextAndList : theParams.values()) {
+				for (List<? extends IQueryParameterType> nextAnd : nextAndList) {
+					if (FhirSearchDao.isTextModifierSearch(nextAnd)) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Can a normalized string search for the given term use the normalized prefix hash? The term must be at least as
+	 * long as the hashed prefix, and the prefix must not contain any characters which are wildcards in a LIKE
+	 * expression.
+	 */
+	private static boolean isHashablePrefix(String theNormalizedSearchTerm) {
+		if (theNormalizedSearchTerm.length() < ResourceIndexedSearchParamString.HASH_PREFIX_LENGTH) {
+			return false;
+		}
+		String prefix = theNormalizedSearchTerm.substring(0, ResourceIndexedSearchParamString.HASH_PREFIX_LENGTH);
+		return !StringUtils.containsAny(prefix, '%', '_', '[');
+	}
+
+	/**
+	 * Can the given search be executed by {@link #searchKeyset(SearchParameterMap, List, DateRangeParam, InstantDt)}?
+	 * This is only possible if every <code>_sort</code> parameter can be sorted on by the query which finds the
+	 * matches, and the complete set of matches isn't needed up front (so no <code>_revinclude</code>).
+	 */
+	private boolean isKeysetSearchCandidate(SearchParameterMap theParams) {
+		DaoConfig config = myCallingDao.getConfig();
+		if (!config.isKeysetPagingEnabled() || config.isPersistSearchResults()) {
+			return false;
+		}
+		if (theParams.isLoadSynchronous() || theParams.getEverythingMode() != null) {
+			return false;
+		}
+		if (theParams.getSort() == null || isBlank(theParams.getSort().getParamName())) {
+			return false;
+		}
+		if (theParams.getRevIncludes() != null && !theParams.getRevIncludes().isEmpty()) {
+			return false;
+		}
+		if (isFulltextSearch(theParams)) {
+			return false;
+		}
+		return createKeysetSortKeys(theParams.getSort()) != null;
+	}
+
+	/**
+	 * Can the given search be executed by {@link #searchStreaming(SearchParameterMap, List, DateRangeParam, InstantDt)}?
+	 * This is only possible if the results are returned in PID order and the complete set of matches isn't needed
+	 * before the first page can be returned (so no sorting and no <code>_revinclude</code>).
+	 */
+	private boolean isStreamingSearchCandidate(SearchParameterMap theParams) {
+		DaoConfig config = myCallingDao.getConfig();
+		if (!config.isStreamingSearchEnabled() || config.isPersistSearchResults() || myCallingDao.getSearchStreamingExecutor() == null) {
+			return false;
+		}
+		if (theParams.isLoadSynchronous() || theParams.getEverythingMode() != null) {
+			return false;
+		}
+		if (theParams.getSort() != null && isNotBlank(theParams.getSort().getParamName())) {
+			return false;
+		}
+		if (theParams.getRevIncludes() != null && !theParams.getRevIncludes().isEmpty()) {
+			return false;
+		}
+		if (isFulltextSearch(theParams)) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Counts the matches for a sorted search and returns a {@link KeysetJpaBundleProvider} which loads each page of
+	 * them when it is requested
+	 */
+	private IBundleProvider searchKeyset(SearchParameterMap theParams, List<SearchClause> theClauses, DateRangeParam theLastUpdated, InstantDt theNow) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		Root<ResourceTable> from = cq.from(ResourceTable.class);
+		cq.select(builder.count(from.get("myId")));
+
+		List<Predicate> predicates = createPredicatesSingleQuery(theClauses, theLastUpdated, builder, cq, from);
+		if (predicates == null) {
+			return new SimpleBundleProvider();
+		}
+		cq.where(toArray(predicates));
+
+		int count = myEntityManager.createQuery(cq).getSingleResult().intValue();
+		if (count == 0) {
+			return new SimpleBundleProvider();
+		}
+
+		return new KeysetJpaBundleProvider(this, myPlatformTransactionManager, theParams, theLastUpdated, theNow, count);
+	}
+
+	/**
+	 * Loads up to <code>theCount</code> PIDs of a keyset paged search, starting after the given bookmark. Resources which
+	 * have a value for every sort parameter come first, in sort order. Once they have all been returned, the resources
+	 * which are missing a value follow in PID order.
+	 * 
+	 * @param theAfter
+	 *           The bookmark of the last PID which has already been returned, or <code>null</code> to start at the
+	 *           beginning
+	 */
+	KeysetJpaBundleProvider.Page loadKeysetPage(SearchParameterMap theParams, DateRangeParam theLastUpdated, KeysetJpaBundleProvider.Bookmark theAfter, int theCount) {
+		RuntimeResourceDefinition resourceDef = myContext.getResourceDefinition(myResourceType);
+		List<SearchClause> clauses = planSearchClauses(resourceDef, theParams, new SearchParameterMap());
+		List<KeysetSortKey> sortKeys = createKeysetSortKeys(theParams.getSort());
+
+		List<Long> pids = new ArrayList<Long>(theCount);
+		KeysetJpaBundleProvider.Bookmark last = theAfter;
+		Long missingValuesAfterPid = null;
 
-				TypedQuery<Tuple> query = myEntityManager.createQuery(cq);
+		if (theAfter == null || !theAfter.isMissingSortValues()) {
+			TypedQuery<Tuple> query = createKeysetSortedQuery(clauses, theLastUpdated, sortKeys, theAfter);
+			if (query != null) {
+				query.setMaxResults(theCount);
 				for (Tuple next : query.getResultList()) {
-					loadPids.add(next.get(0, Long.class));
-					Long nextLong = next.get(1, Long.class);
-					if (nextLong != null) {
-						loadPids.add(nextLong);
+					Object[] sortValues = new Object[sortKeys.size()];
+					for (int i = 0; i < sortValues.length; i++) {
+						sortValues[i] = next.get(i + 1);
 					}
+					Long pid = next.get(0, Long.class);
+					pids.add(pid);
+					last = new KeysetJpaBundleProvider.Bookmark(false, sortValues, pid);
 				}
 			}
-
-		} else if (theParams.isEmpty()) {
-
-			loadPids = new HashSet<Long>();
-			TypedQuery<Tuple> query = createSearchAllByTypeQuery(lu);
-			lu = null;
-			for (Tuple next : query.getResultList()) {
-				loadPids.add(next.get(0, Long.class));
+			if (pids.size() >= theCount) {
+				return new KeysetJpaBundleProvider.Page(pids, last);
 			}
-			if (loadPids.isEmpty()) {
-				return new SimpleBundleProvider();
+		} else {
+			missingValuesAfterPid = theAfter.getPid();
+		}
+
+		TypedQuery<Long> query = createKeysetMissingValuesQuery(clauses, theLastUpdated, sortKeys, missingValuesAfterPid);
+		if (query != null) {
+			query.setMaxResults(theCount - pids.size());
+			for (Long next : query.getResultList()) {
+				pids.add(next);
+				last = new KeysetJpaBundleProvider.Bookmark(true, null, next);
 			}
+		}
 
-		} else {
+		return new KeysetJpaBundleProvider.Page(pids, last);
+	}
 
-			List<Long> searchResultPids;
-			if (mySearchDao == null) {
-				if (theParams.containsKey(Constants.PARAM_TEXT)) {
-					throw new InvalidRequestException("Fulltext search is not enabled on this service, can not process parameter: " + Constants.PARAM_TEXT);
-				} else if (theParams.containsKey(Constants.PARAM_CONTENT)) {
-					throw new InvalidRequestException("Fulltext search is not enabled on this service, can not process parameter: " + Constants.PARAM_CONTENT);
+	/**
+	 * Creates a query which returns the PIDs of the matching resources which have a value for every sort key, along
+	 * with the value used for each key (the lowest value for ascending sorts and the highest for descending, in case a
+	 * resource has several), in sort order
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private TypedQuery<Tuple> createKeysetSortedQuery(List<SearchClause> theClauses, DateRangeParam theLastUpdated, List<KeysetSortKey> theSortKeys, KeysetJpaBundleProvider.Bookmark theAfter) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Tuple> cq = builder.createTupleQuery();
+		Root<ResourceTable> from = cq.from(ResourceTable.class);
+
+		List<Predicate> predicates = createPredicatesSingleQuery(theClauses, theLastUpdated, builder, cq, from);
+		if (predicates == null) {
+			return null;
+		}
+
+		List<Selection<?>> selections = new ArrayList<Selection<?>>();
+		selections.add(from.get("myId").as(Long.class));
+		List<Expression> sortValues = new ArrayList<Expression>();
+		List<Order> orders = new ArrayList<Order>();
+		for (KeysetSortKey next : theSortKeys) {
+			Expression value = next.join(builder, from, predicates);
+			Expression sortValue = next.isDescending() ? builder.greatest(value) : builder.least(value);
+			sortValues.add(sortValue);
+			selections.add(sortValue);
+			orders.add(next.isDescending() ? builder.desc(sortValue) : builder.asc(sortValue));
+		}
+		orders.add(builder.asc(from.get("myId")));
+
+		cq.multiselect(selections);
+		cq.where(toArray(predicates));
+		cq.groupBy(from.get("myId"));
+		cq.orderBy(orders);
+
+		/*
+		 * Seek past the bookmark: (k1 after v1) OR (k1 = v1 AND k2 after v2) OR ... OR (all equal AND pid after bookmark pid)
+		 */
+		if (theAfter != null) {
+			List<Predicate> seek = new ArrayList<Predicate>();
+			for (int i = 0; i <= theSortKeys.size(); i++) {
+				List<Predicate> and = new ArrayList<Predicate>();
+				for (int j = 0; j < i; j++) {
+					and.add(builder.equal(sortValues.get(j), theAfter.getSortValues()[j]));
 				}
-				searchResultPids = null;
-			} else {
-				searchResultPids = mySearchDao.search(myResourceName, theParams);
-			}
-			if (theParams.isEmpty()) {
-				loadPids = searchResultPids;
-			} else {
-				loadPids = searchForIdsWithAndOr(theParams, searchResultPids, lu);
+				if (i < theSortKeys.size()) {
+					Comparable afterValue = (Comparable) theAfter.getSortValues()[i];
+					if (theSortKeys.get(i).isDescending()) {
+						and.add(builder.lessThan(sortValues.get(i), afterValue));
+					} else {
+						and.add(builder.greaterThan(sortValues.get(i), afterValue));
+					}
+				} else {
+					and.add(builder.greaterThan(from.<Long> get("myId"), theAfter.getPid()));
+				}
+				seek.add(builder.and(toArray(and)));
 			}
-			if (loadPids.isEmpty()) {
-				return new SimpleBundleProvider();
+			cq.having(builder.or(toArray(seek)));
+		}
+
+		return myEntityManager.createQuery(cq);
+	}
+
+	/**
+	 * Creates a query which returns the PIDs of the matching resources which are missing a value for at least one of
+	 * the sort keys, in PID order, or <code>null</code> if there can't be any
+	 */
+	private TypedQuery<Long> createKeysetMissingValuesQuery(List<SearchClause> theClauses, DateRangeParam theLastUpdated, List<KeysetSortKey> theSortKeys, Long theAfterPid) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		Root<ResourceTable> from = cq.from(ResourceTable.class);
+		cq.select(from.get("myId").as(Long.class));
+
+		List<Predicate> predicates = createPredicatesSingleQuery(theClauses, theLastUpdated, builder, cq, from);
+		if (predicates == null) {
+			return null;
+		}
+
+		List<Predicate> hasValues = new ArrayList<Predicate>();
+		for (KeysetSortKey next : theSortKeys) {
+			Predicate hasValue = next.createExistsPredicate(builder, cq, from);
+			if (hasValue != null) {
+				hasValues.add(hasValue);
 			}
+		}
+		if (hasValues.isEmpty()) {
+			return null;
+		}
+		predicates.add(builder.not(builder.and(toArray(hasValues))));
 
+		if (theAfterPid != null) {
+			predicates.add(builder.greaterThan(from.<Long> get("myId"), theAfterPid));
 		}
 
-		// // Load _include and _revinclude before filter and sort in everything mode
-		// if (theParams.getEverythingMode() != null) {
-		// if (theParams.getRevIncludes() != null && theParams.getRevIncludes().isEmpty() == false) {
-		// loadPids.addAll(loadReverseIncludes(loadPids, theParams.getRevIncludes(), true,
-		// theParams.getEverythingMode()));
-		// loadPids.addAll(loadReverseIncludes(loadPids, theParams.getIncludes(), false, theParams.getEverythingMode()));
-		// }
-		// }
+		cq.where(toArray(predicates));
+		cq.orderBy(builder.asc(from.get("myId")));
+		return myEntityManager.createQuery(cq);
+	}
 
-		// Handle _lastUpdated
-		if (lu != null) {
-			List<Long> resultList = filterResourceIdsByLastUpdated(loadPids, lu);
-			loadPids.clear();
-			for (Long next : resultList) {
-				loadPids.add(next);
+	/**
+	 * Returns the keys for a keyset paged search with the given sort (including any chained sorts), or
+	 * <code>null</code> if any of the sort parameters can't be used for one
+	 */
+	private List<KeysetSortKey> createKeysetSortKeys(SortSpec theSort) {
+		RuntimeResourceDefinition resourceDef = myContext.getResourceDefinition(myResourceType);
+		List<KeysetSortKey> retVal = new ArrayList<KeysetSortKey>();
+		for (SortSpec next = theSort; next != null && isNotBlank(next.getParamName()); next = next.getChain()) {
+			String paramName = next.getParamName();
+			boolean descending = next.getOrder() == SortOrderEnum.DESC;
+
+			if (Constants.PARAM_LASTUPDATED.equals(paramName)) {
+				retVal.add(new KeysetSortKey(null, "myUpdated", null, null, null, null, descending));
+				continue;
 			}
 
-			if (loadPids.isEmpty()) {
-				return new SimpleBundleProvider();
+			RuntimeSearchParam param = resourceDef.getSearchParam(paramName);
+			if (param == null) {
+				return null;
+			}
+
+			switch (param.getParamType()) {
+			case STRING:
+				retVal.add(new KeysetSortKey("myParamsString", "myValueExact", ResourceIndexedSearchParamString.class, "myResourcePid", paramName, null, descending));
+				break;
+			case DATE:
+				retVal.add(new KeysetSortKey("myParamsDate", "myValueLow", ResourceIndexedSearchParamDate.class, "myResourcePid", paramName, null, descending));
+				break;
+			case NUMBER:
+				retVal.add(new KeysetSortKey("myParamsNumber", "myValue", ResourceIndexedSearchParamNumber.class, "myResourcePid", paramName, null, descending));
+				break;
+			case QUANTITY:
+				retVal.add(new KeysetSortKey("myParamsQuantity", "myValue", ResourceIndexedSearchParamQuantity.class, "myResourcePid", paramName, null, descending));
+				break;
+			case URI:
+				retVal.add(new KeysetSortKey("myParamsUri", "myUri", ResourceIndexedSearchParamUri.class, "myResourcePid", paramName, null, descending));
+				break;
+			case REFERENCE:
+				retVal.add(new KeysetSortKey("myResourceLinks", "myTargetResourcePid", ResourceLink.class, "mySourceResourcePid", null, param.getPathsSplit(), descending));
+				break;
+			default:
+				// Tokens sort on two columns, and _id sorts on the forced ID if there is one
+				return null;
 			}
 		}
+		return retVal;
+	}
 
-		// Handle sorting if any was provided
-		final List<Long> pids = processSort(theParams, loadPids);
+	/**
+	 * Loads the first page of PIDs for a search in the calling thread and returns as soon as it has them. If there are
+	 * more matches, the rest are read from a forward-only cursor in a background thread, and added to the returned
+	 * {@link StreamingJpaBundleProvider} as they arrive.
+	 */
+	private IBundleProvider searchStreaming(final SearchParameterMap theParams, final List<SearchClause> theClauses, final DateRangeParam theLastUpdated, InstantDt theNow) {
+		int firstPageSize = theParams.getCount() != null ? theParams.getCount() : STREAMING_SEARCH_FIRST_PAGE_SIZE;
 
-		// Load _revinclude resources
-		final Set<Long> revIncludedPids;
-		if (theParams.getEverythingMode() == null) {
-			if (theParams.getRevIncludes() != null && theParams.getRevIncludes().isEmpty() == false) {
-				revIncludedPids = loadReverseIncludes(pids, theParams.getRevIncludes(), true, lu);
-			} else {
-				revIncludedPids = new HashSet<Long>();
-			}
-		} else {
-			revIncludedPids = new HashSet<Long>();
+		TypedQuery<Long> query = createStreamingPidQuery(theClauses, theLastUpdated, null);
+		if (query == null) {
+			return new SimpleBundleProvider();
 		}
 
-		ourLog.debug("Search returned PIDs: {}", pids);
+		// Load one extra so that we know whether there are any more
+		query.setMaxResults(firstPageSize + 1);
+		List<Long> firstPids = query.getResultList();
+		if (firstPids.isEmpty()) {
+			return new SimpleBundleProvider();
+		}
 
-		final int totalCount = pids.size();
+		final StreamingJpaBundleProvider retVal = new StreamingJpaBundleProvider(this, myPlatformTransactionManager, theParams, theNow);
+		retVal.addPids(firstPids);
+		if (firstPids.size() <= firstPageSize) {
+			retVal.markComplete();
+			return retVal;
+		}
 
-		IBundleProvider retVal = new IBundleProvider() {
+		final Long lastPid = firstPids.get(firstPids.size() - 1);
+		myCallingDao.getSearchStreamingExecutor().execute(new Runnable() {
 			@Override
-			public InstantDt getPublished() {
-				return now;
+			public void run() {
+				streamRemainingPids(theClauses, theLastUpdated, lastPid, retVal);
 			}
+		});
 
-			@Override
-			public List<IBaseResource> getResources(final int theFromIndex, final int theToIndex) {
-				TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
-				return template.execute(new TransactionCallback<List<IBaseResource>>() {
-					@Override
-					public List<IBaseResource> doInTransaction(TransactionStatus theStatus) {
-						List<Long> pidsSubList = pids.subList(theFromIndex, theToIndex);
-
-						// Load includes
-						pidsSubList = new ArrayList<Long>(pidsSubList);
-						revIncludedPids.addAll(loadReverseIncludes(pidsSubList, theParams.getIncludes(), false, theParams.getLastUpdated()));
-
-						// Execute the query and make sure we return distinct results
-						List<IBaseResource> resources = new ArrayList<IBaseResource>();
-						loadResourcesByPid(pidsSubList, resources, revIncludedPids, false);
+		return retVal;
+	}
 
-						return resources;
+	private void streamRemainingPids(final List<SearchClause> theClauses, final DateRangeParam theLastUpdated, final Long theAfterPid, final StreamingJpaBundleProvider theProvider) {
+		StopWatch w = new StopWatch();
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		template.setReadOnly(true);
+		try {
+			template.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+					TypedQuery<Long> query = createStreamingPidQuery(theClauses, theLastUpdated, theAfterPid);
+					ScrollableResults scroll = query.unwrap(org.hibernate.Query.class).setFetchSize(STREAMING_SEARCH_CHUNK_SIZE).scroll(ScrollMode.FORWARD_ONLY);
+					try {
+						List<Long> chunk = new ArrayList<Long>(STREAMING_SEARCH_CHUNK_SIZE);
+						while (scroll.next()) {
+							chunk.add((Long) scroll.get(0));
+							if (chunk.size() >= STREAMING_SEARCH_CHUNK_SIZE) {
+								theProvider.addPids(chunk);
+								chunk.clear();
+							}
+						}
+						theProvider.addPids(chunk);
+					} finally {
+						scroll.close();
 					}
+				}
+			});
+			theProvider.markComplete();
+			ourLog.info("Finished streaming {} results for {} search in {}ms", new Object[] { theProvider.size(), myResourceName, w.getMillisAndRestart() });
+		} catch (RuntimeException e) {
+			ourLog.error("Failed to stream search results", e);
+			theProvider.markFailed(e);
+		}
+	}
 
-				});
-			}
+	/**
+	 * Stores the ordered list of matching PIDs (followed by any _revinclude PIDs) in the HFJ_SEARCH_RESULT table so that
+	 * pages can be loaded later on by {@link PersistedJpaBundleProvider}, possibly by a different server
+	 */
+	private IBundleProvider persistSearchResults(SearchParameterMap theParams, List<Long> thePids, int theNumMatches, InstantDt theCreated, DateRangeParam theLastUpdated) {
+		Search search = new Search();
+		search.setUuid(UUID.randomUUID().toString());
+		search.setCreated(theCreated.getValue());
+		search.setResourceType(myResourceName);
+		search.setTotalCount(thePids.size());
+		search.setNumMatches(theNumMatches);
+		search.setPreferredPageSize(theParams.getCount());
+		if (theLastUpdated != null) {
+			search.setLastUpdated(theLastUpdated.getLowerBoundAsInstant(), theLastUpdated.getUpperBoundAsInstant());
+		}
+		myEntityManager.persist(search);
 
-			@Override
-			public Integer preferredPageSize() {
-				return theParams.getCount();
+		if (theParams.getIncludes() != null) {
+			for (Include next : theParams.getIncludes()) {
+				myEntityManager.persist(new SearchInclude(search, next.getValue(), next.isRecurse()));
 			}
+		}
 
-			@Override
-			public int size() {
-				return totalCount;
+		/*
+		 * Flush and detach the rows in batches so that a very large result set doesn't
+		 * all end up sitting in the session. We don't clear the whole session since
+		 * the caller may still be holding on to managed entities.
+		 */
+		List<SearchResult> batch = new ArrayList<SearchResult>(SEARCH_RESULT_FLUSH_SIZE);
+		int order = 0;
+		for (Long next : thePids) {
+			SearchResult result = new SearchResult(search);
+			result.setResourcePid(next);
+			result.setOrder(order++);
+			myEntityManager.persist(result);
+			batch.add(result);
+
+			if (batch.size() >= SEARCH_RESULT_FLUSH_SIZE) {
+				flushAndDetach(batch);
 			}
-		};
+		}
+		flushAndDetach(batch);
 
-		ourLog.info(" {} on {} in {}ms", new Object[] { myResourceName, theParams, w.getMillisAndRestart() });
+		return new PersistedJpaBundleProvider(search.getUuid(), myContext, myEntityManager, myPlatformTransactionManager, myCallingDao);
+	}
+
+	private void flushAndDetach(List<SearchResult> theBatch) {
+		myEntityManager.flush();
+		for (SearchResult next : theBatch) {
+			myEntityManager.detach(next);
+		}
+		theBatch.clear();
+	}
+
+	/**
+	 * Resolves the values of an <code>_id</code> parameter to the PIDs of any non-deleted resources they refer to
+	 */
+	private Set<Long> resolveIdParams(List<? extends IQueryParameterType> theList) {
+		List<IIdType> ids = new ArrayList<IIdType>(theList.size());
+		for (IQueryParameterType next : theList) {
+			ids.add(new IdDt(next.getValueAsQueryToken()));
+		}
+
+		// Resolve any client assigned IDs in one query so that readEntity below finds them in the cache
+		if (ids.size() > 1) {
+			myCallingDao.translateForcedIdsToPids(ids);
+		}
+
+		Set<Long> retVal = new HashSet<Long>();
+		for (IIdType valueId : ids) {
+			try {
+				BaseHasResource entity = myCallingDao.readEntity(valueId);
+				if (entity.getDeleted() != null) {
+					continue;
+				}
+				retVal.add(entity.getId());
+			} catch (ResourceNotFoundException e) {
+				// This isn't an error, just means no result found
+			}
+		}
 		return retVal;
 	}
 
-	public Set<Long> searchForIdsWithAndOr(SearchParameterMap theParams, Collection<Long> theInitialPids, DateRangeParam theLastUpdated) {
+	public PidSet searchForIdsWithAndOr(SearchParameterMap theParams, Collection<Long> theInitialPids, DateRangeParam theLastUpdated) {
 		SearchParameterMap params = theParams;
 		if (params == null) {
 			params = new SearchParameterMap();
@@ -1676,12 +2616,22 @@ public class SearchBuilder {
 
 		RuntimeResourceDefinition resourceDef = myContext.getResourceDefinition(myResourceType);
 
-		Set<Long> pids = new HashSet<Long>();
-		if (theInitialPids != null) {
-			pids.addAll(theInitialPids);
+		PidSet pids = PidSet.fromCollection(theInitialPids);
+
+		Collection<Entry<String, List<List<? extends IQueryParameterType>>>> remainingParams = params.entrySet();
+		if (myCallingDao.getConfig().isSingleQuerySearchEnabled()) {
+			SearchParameterMap unplannedParams = new SearchParameterMap();
+			List<SearchClause> clauses = planSearchClauses(resourceDef, params, unplannedParams);
+			if (!clauses.isEmpty()) {
+				pids = searchForIdsWithSingleQuery(clauses, pids, theLastUpdated);
+				if (pids.isEmpty()) {
+					return PidSet.empty();
+				}
+			}
+			remainingParams = unplannedParams.entrySet();
 		}
 
-		for (Entry<String, List<List<? extends IQueryParameterType>>> nextParamEntry : params.entrySet()) {
+		for (Entry<String, List<List<? extends IQueryParameterType>>> nextParamEntry : remainingParams) {
 			String nextParamName = nextParamEntry.getKey();
 			if (nextParamName.equals(BaseResource.SP_RES_ID)) {
 
@@ -1689,38 +2639,19 @@ public class SearchBuilder {
 					continue;
 				} else {
 					for (List<? extends IQueryParameterType> nextValue : nextParamEntry.getValue()) {
-						Set<Long> joinPids = new HashSet<Long>();
+						Set<Long> joinPids;
 						if (nextValue == null || nextValue.size() == 0) {
 							continue;
 						} else {
-							for (IQueryParameterType next : nextValue) {
-								String value = next.getValueAsQueryToken();
-								IIdType valueId = new IdDt(value);
-
-								try {
-									BaseHasResource entity = myCallingDao.readEntity(valueId);
-									if (entity.getDeleted() != null) {
-										continue;
-									}
-									joinPids.add(entity.getId());
-								} catch (ResourceNotFoundException e) {
-									// This isn't an error, just means no result found
-								}
-							}
+							joinPids = resolveIdParams(nextValue);
 							if (joinPids.isEmpty()) {
-								return new HashSet<Long>();
+								return PidSet.empty();
 							}
 						}
 
 						pids = addPredicateId(pids, joinPids, theLastUpdated);
 						if (pids.isEmpty()) {
-							return new HashSet<Long>();
-						}
-
-						if (pids.isEmpty()) {
-							pids.addAll(joinPids);
-						} else {
-							pids.retainAll(joinPids);
+							return PidSet.empty();
 						}
 					}
 				}
@@ -1742,7 +2673,7 @@ public class SearchBuilder {
 						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
 							pids = addPredicateDate(nextParamName, pids, nextAnd);
 							if (pids.isEmpty()) {
-								return new HashSet<Long>();
+								return PidSet.empty();
 							}
 						}
 						break;
@@ -1750,7 +2681,7 @@ public class SearchBuilder {
 						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
 							pids = addPredicateQuantity(nextParamName, pids, nextAnd);
 							if (pids.isEmpty()) {
-								return new HashSet<Long>();
+								return PidSet.empty();
 							}
 						}
 						break;
@@ -1758,7 +2689,7 @@ public class SearchBuilder {
 						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
 							pids = addPredicateReference(nextParamName, pids, nextAnd);
 							if (pids.isEmpty()) {
-								return new HashSet<Long>();
+								return PidSet.empty();
 							}
 						}
 						break;
@@ -1766,7 +2697,7 @@ public class SearchBuilder {
 						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
 							pids = addPredicateString(nextParamName, pids, nextAnd);
 							if (pids.isEmpty()) {
-								return new HashSet<Long>();
+								return PidSet.empty();
 							}
 						}
 						break;
@@ -1774,7 +2705,7 @@ public class SearchBuilder {
 						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
 							pids = addPredicateToken(nextParamName, pids, nextAnd);
 							if (pids.isEmpty()) {
-								return new HashSet<Long>();
+								return PidSet.empty();
 							}
 						}
 						break;
@@ -1782,7 +2713,7 @@ public class SearchBuilder {
 						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
 							pids = addPredicateNumber(nextParamName, pids, nextAnd);
 							if (pids.isEmpty()) {
-								return new HashSet<Long>();
+								return PidSet.empty();
 							}
 						}
 						break;
@@ -1790,7 +2721,7 @@ public class SearchBuilder {
 						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
 							pids = addPredicateComposite(nextParamDef, pids, nextAnd);
 							if (pids.isEmpty()) {
-								return new HashSet<Long>();
+								return PidSet.empty();
 							}
 						}
 						break;
@@ -1798,7 +2729,7 @@ public class SearchBuilder {
 						for (List<? extends IQueryParameterType> nextAnd : nextParamEntry.getValue()) {
 							pids = addPredicateUri(nextParamName, pids, nextAnd);
 							if (pids.isEmpty()) {
-								return new HashSet<Long>();
+								return PidSet.empty();
 							}
 						}
 						break;
@@ -1810,6 +2741,26 @@ public class SearchBuilder {
 		return pids;
 	}
 
+	/**
+	 * Executes the given clauses as a single SQL statement against the resource table, with one correlated
+	 * <code>EXISTS</code> subquery per clause, so that the database performs the intersection instead of PIDs being
+	 * passed back and forth between one query per parameter.
+	 */
+	private PidSet searchForIdsWithSingleQuery(List<SearchClause> theClauses, PidSet thePids, DateRangeParam theLastUpdated) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<Long> cq = builder.createQuery(Long.class);
+		Root<ResourceTable> from = cq.from(ResourceTable.class);
+		cq.select(from.get("myId").as(Long.class));
+
+		List<Predicate> predicates = createPredicatesSingleQuery(theClauses, theLastUpdated, builder, cq, from);
+		if (predicates == null) {
+			return PidSet.empty();
+		}
+
+		ourLog.debug("Searching for {} using a single query with {} clauses", myResourceName, theClauses.size());
+		return executePidQuery(cq, from.get("myId"), thePids, toArray(predicates));
+	}
+
 	public void setType(Class<? extends IBaseResource> theResourceType, String theResourceName) {
 		myResourceType = theResourceType;
 		myResourceName = theResourceName;
@@ -1817,7 +2768,9 @@ public class SearchBuilder {
 
 	private List<Long> toList(Collection<Long> theLoadPids) {
 		final List<Long> pids;
-		if (theLoadPids instanceof List) {
+		if (theLoadPids instanceof PidSet) {
+			pids = ((PidSet) theLoadPids).toList();
+		} else if (theLoadPids instanceof List) {
 			pids = (List<Long>) theLoadPids;
 		} else {
 			pids = new ArrayList<Long>(theLoadPids);
@@ -1868,8 +2821,252 @@ public class SearchBuilder {
 		return qp;
 	}
 
+	/**
+	 * Token searches using the <code>:text</code> modifier are executed against the string index
+	 */
+	private static boolean isTokenTextSearch(List<? extends IQueryParameterType> theList) {
+		for (IQueryParameterType nextOr : theList) {
+			if (nextOr instanceof TokenParam && ((TokenParam) nextOr).isText()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static TagTypeEnum toTagType(String theParamName) {
+		if (Constants.PARAM_TAG.equals(theParamName)) {
+			return TagTypeEnum.TAG;
+		} else if (Constants.PARAM_PROFILE.equals(theParamName)) {
+			return TagTypeEnum.PROFILE;
+		} else if (Constants.PARAM_SECURITY.equals(theParamName)) {
+			return TagTypeEnum.SECURITY_LABEL;
+		} else {
+			throw new IllegalArgumentException("Param name: " + theParamName); // shouldn't happen
+		}
+	}
+
 	static Predicate[] toArray(List<Predicate> thePredicates) {
 		return thePredicates.toArray(new Predicate[thePredicates.size()]);
 	}
 
+	/**
+	 * The links which are followed by one round of <code>_include</code> or <code>_revinclude</code> loading. All of
+	 * the includes in a round are combined into a single set of criteria so that the round needs only one query.
+	 */
+	private static class IncludeLinkCriteria {
+
+		private boolean myMatchAll;
+		private final Map<String, Set<String>> myTargetTypeToPaths = new HashMap<String, Set<String>>();
+
+		/**
+		 * @param theTargetResourceType
+		 *           The target resource type, or an empty string if links to any type should be followed
+		 */
+		public void addPaths(String theTargetResourceType, Collection<String> thePaths) {
+			Set<String> paths = myTargetTypeToPaths.get(theTargetResourceType);
+			if (paths == null) {
+				paths = new HashSet<String>();
+				myTargetTypeToPaths.put(theTargetResourceType, paths);
+			}
+			paths.addAll(thePaths);
+		}
+
+		public boolean isEmpty() {
+			return !myMatchAll && myTargetTypeToPaths.isEmpty();
+		}
+
+		public void setMatchAll() {
+			myMatchAll = true;
+		}
+
+		/**
+		 * Returns a clause (starting with " AND ") to append to a JPQL query on ResourceLink with the alias "r"
+		 */
+		public String toJpql(Map<String, Object> theParams) {
+			return toCriteria(theParams, "r.mySourcePath", "r.myTargetResourceType");
+		}
+
+		/**
+		 * Returns a clause (starting with " AND ") to append to a SQL query on HFJ_RES_LINK with the alias "r"
+		 */
+		public String toSql(Map<String, Object> theParams) {
+			return toCriteria(theParams, "r.SRC_PATH", "r.TARGET_RESOURCE_TYPE");
+		}
+
+		private String toCriteria(Map<String, Object> theParams, String theSourcePath, String theTargetResourceType) {
+			if (myMatchAll) {
+				return "";
+			}
+
+			StringBuilder b = new StringBuilder();
+			int index = 0;
+			for (Entry<String, Set<String>> next : myTargetTypeToPaths.entrySet()) {
+				b.append(index == 0 ? " AND (" : " OR ");
+				b.append("(").append(theSourcePath).append(" IN (:src_paths").append(index).append(")");
+				theParams.put("src_paths" + index, next.getValue());
+				if (isNotBlank(next.getKey())) {
+					b.append(" AND ").append(theTargetResourceType).append(" = :target_resource_type").append(index);
+					theParams.put("target_resource_type" + index, next.getKey());
+				}
+				b.append(")");
+				index++;
+			}
+			b.append(")");
+			return b.toString();
+		}
+
+	}
+
+	/**
+	 * One <code>_sort</code> parameter of a keyset paged search (see
+	 * {@link SearchBuilder#loadKeysetPage(SearchParameterMap, DateRangeParam, KeysetJpaBundleProvider.Bookmark, int)})
+	 */
+	private static class KeysetSortKey {
+
+		private final boolean myDescending;
+		private final Class<?> myIndexType;
+		private final String myJoinAttrName;
+		private final String myParamName;
+		private final List<String> myPaths;
+		private final String myPidAttrName;
+		private final String mySortAttrName;
+
+		/**
+		 * @param theJoinAttrName
+		 *           The index collection on {@link ResourceTable} to join to, or <code>null</code> if the sort value is a
+		 *           column of the resource table itself
+		 * @param thePaths
+		 *           For reference parameters, the source paths of the links, otherwise <code>null</code>
+		 */
+		public KeysetSortKey(String theJoinAttrName, String theSortAttrName, Class<?> theIndexType, String thePidAttrName, String theParamName, List<String> thePaths, boolean theDescending) {
+			myJoinAttrName = theJoinAttrName;
+			mySortAttrName = theSortAttrName;
+			myIndexType = theIndexType;
+			myPidAttrName = thePidAttrName;
+			myParamName = theParamName;
+			myPaths = thePaths;
+			myDescending = theDescending;
+		}
+
+		/**
+		 * Creates an <code>EXISTS</code> predicate which matches resources having a non-null value for this key, or
+		 * returns <code>null</code> if every resource has one. This must match exactly the resources which
+		 * {@link #join(CriteriaBuilder, Root, List)} can return, so that every resource is on exactly one of the sorted
+		 * and the missing values pages.
+		 */
+		public Predicate createExistsPredicate(CriteriaBuilder theBuilder, CriteriaQuery<?> theQuery, Root<ResourceTable> theFrom) {
+			if (myIndexType == null) {
+				return null;
+			}
+			Subquery<Long> subQ = theQuery.subquery(Long.class);
+			Root<?> subQfrom = subQ.from(myIndexType);
+			subQ.select(subQfrom.<Long> get(myPidAttrName));
+			subQ.where(theBuilder.equal(subQfrom.get(myPidAttrName), theFrom.get("myId")), createIndexPredicate(theBuilder, subQfrom), theBuilder.isNotNull(subQfrom.get(mySortAttrName)));
+			return theBuilder.exists(subQ);
+		}
+
+		private Predicate createIndexPredicate(CriteriaBuilder theBuilder, From<?, ?> theIndexFrom) {
+			if (myPaths != null) {
+				return theIndexFrom.get("mySourcePath").as(String.class).in(myPaths);
+			}
+			return theBuilder.equal(theIndexFrom.get("myParamName"), myParamName);
+		}
+
+		public boolean isDescending() {
+			return myDescending;
+		}
+
+		/**
+		 * Joins to the index for this key if needed, and returns the expression for its value
+		 */
+		public Expression<?> join(CriteriaBuilder theBuilder, Root<ResourceTable> theFrom, List<Predicate> thePredicates) {
+			if (myJoinAttrName == null) {
+				return theFrom.get(mySortAttrName);
+			}
+			From<?, ?> join = theFrom.join(myJoinAttrName, JoinType.INNER);
+			thePredicates.add(createIndexPredicate(theBuilder, join));
+			// Index rows without a value (e.g. a period with only an end) can't be sorted or sought past
+			thePredicates.add(theBuilder.isNotNull(join.get(mySortAttrName)));
+			return join.get(mySortAttrName);
+		}
+
+	}
+
+	/**
+	 * A single AND clause of a search (i.e. one or more values which are ORed together) which will be executed as a
+	 * part of {@link SearchBuilder#searchForIdsWithSingleQuery(List, PidSet, DateRangeParam)}
+	 */
+	private static class SearchClause implements Comparable<SearchClause> {
+
+		private final List<? extends IQueryParameterType> myOrValues;
+		private final String myParamName;
+		private final RestSearchParameterTypeEnum myParamType;
+		private final int mySelectivityRank;
+
+		/**
+		 * @param theParamType
+		 *           The parameter type, or <code>null</code> for <code>_id</code>, <code>_language</code> and the tag
+		 *           parameters
+		 */
+		public SearchClause(String theParamName, RestSearchParameterTypeEnum theParamType, List<? extends IQueryParameterType> theOrValues) {
+			myParamName = theParamName;
+			myParamType = theParamType;
+			myOrValues = theOrValues;
+			mySelectivityRank = selectivityRank(theParamName, theParamType);
+		}
+
+		@Override
+		public int compareTo(SearchClause theOther) {
+			if (mySelectivityRank != theOther.mySelectivityRank) {
+				return mySelectivityRank < theOther.mySelectivityRank ? -1 : 1;
+			}
+			// Fewer ORed values usually match fewer rows
+			return myOrValues.size() - theOther.myOrValues.size();
+		}
+
+		public List<? extends IQueryParameterType> getOrValues() {
+			return myOrValues;
+		}
+
+		public String getParamName() {
+			return myParamName;
+		}
+
+		public RestSearchParameterTypeEnum getParamType() {
+			return myParamType;
+		}
+
+		/**
+		 * A rough guess at how selective each kind of parameter is, lowest first. Exact matches on IDs, tokens and
+		 * references tend to match a handful of rows, whereas ranges (dates, numbers) and the resource language often
+		 * match a large portion of the table.
+		 */
+		private static int selectivityRank(String theParamName, RestSearchParameterTypeEnum theParamType) {
+			if (theParamType == null) {
+				if (BaseResource.SP_RES_ID.equals(theParamName)) {
+					return 0;
+				} else if (BaseResource.SP_RES_LANGUAGE.equals(theParamName)) {
+					return 7;
+				}
+				return 3;
+			}
+			switch (theParamType) {
+			case TOKEN:
+			case URI:
+				return 1;
+			case REFERENCE:
+				return 2;
+			case STRING:
+				return 4;
+			case NUMBER:
+			case QUANTITY:
+				return 5;
+			case DATE:
+			default:
+				return 6;
+			}
+		}
+
+	}
+
 }
@@ -0,0 +1,273 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementCompositeDefinition;
+import ca.uhn.fhir.context.BaseRuntimeElementDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeChildChoiceDefinition;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.parser.DataFormatException;
+
+/**
+ * The search parameter paths of one resource type, compiled into a tree of child definitions so that the values
+ * for every search parameter (of every type, including references) can be collected in a single walk over a
+ * resource.
+ * <p>
+ * Extracting values with {@link ca.uhn.fhir.util.FhirTerser#getValues(IBaseResource, String)} splits the path and
+ * looks up each child definition by name every time, and is repeated for each path of each search parameter. Here the
+ * paths are split once when the plan is compiled, paths which share a prefix (e.g. <code>Observation.code</code> and
+ * <code>Observation.component.code</code>) share the nodes of the tree, and the child definition of each node is
+ * looked up once per element definition and then reused. Plans are immutable apart from those lookups, which are
+ * thread safe, so one plan per resource type can be shared by all writes.
+ * </p>
+ */
+public class SearchParamExtractionPlan {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchParamExtractionPlan.class);
+
+	private final FhirContext myContext;
+	private final Map<String, int[]> myPathToIndexes = new HashMap<String, int[]>();
+	private final List<String> myPaths = new ArrayList<String>();
+	private final RuntimeResourceDefinition myResourceDef;
+	private final PathNode myRoot = new PathNode(null);
+
+	private SearchParamExtractionPlan(FhirContext theContext, RuntimeResourceDefinition theResourceDef) {
+		myContext = theContext;
+		myResourceDef = theResourceDef;
+	}
+
+	private int addPath(String thePath) {
+		int[] existing = myPathToIndexes.get(thePath);
+		if (existing != null) {
+			return existing[0];
+		}
+
+		String[] parts = thePath.split("\\.");
+		if (parts.length < 2) {
+			ourLog.warn("Failed to index values from path[{}] in resource type[{}]: Invalid path", thePath, myResourceDef.getName());
+			return -1;
+		}
+
+		// The first part of the path is the resource name, and the children of the root are resolved up front
+		try {
+			myResourceDef.getChildByNameOrThrowDataFormatException(parts[1]);
+		} catch (DataFormatException e) {
+			ourLog.warn("Failed to index values from path[{}] in resource type[{}]: {}", new Object[] { thePath, myResourceDef.getName(), e.toString() });
+			return -1;
+		}
+
+		int index = myPaths.size();
+		myPaths.add(thePath);
+		myPathToIndexes.put(thePath, new int[] { index });
+
+		PathNode node = myRoot;
+		for (int i = 1; i < parts.length; i++) {
+			node = node.getOrAddChild(parts[i]);
+		}
+		node.myTerminalIndexes.add(index);
+		return index;
+	}
+
+	/**
+	 * Collects the values of every search parameter path in the plan from the given resource
+	 */
+	public ExtractedValues execute(IBaseResource theResource) {
+		List<List<Object>> values = new ArrayList<List<Object>>(myPaths.size());
+		for (int i = 0; i < myPaths.size(); i++) {
+			values.add(new ArrayList<Object>(2));
+		}
+		walk(myResourceDef, theResource, myRoot.myChildren, values);
+		return new ExtractedValues(myPathToIndexes, values);
+	}
+
+	/**
+	 * Returns the number of distinct paths in the plan
+	 */
+	public int getPathCount() {
+		return myPaths.size();
+	}
+
+	private void walk(BaseRuntimeElementCompositeDefinition<?> theDef, Object theElement, List<PathNode> theNodes, List<List<Object>> theValues) {
+		for (PathNode nextNode : theNodes) {
+			BaseRuntimeChildDefinition childDef = nextNode.resolve(theDef, myResourceDef.getName());
+			if (childDef == null) {
+				continue;
+			}
+
+			List<? extends IBase> children = childDef.getAccessor().getValues(theElement);
+			for (IBase nextChild : children) {
+				if (nextChild == null) {
+					continue;
+				}
+
+				if (!nextNode.myTerminalIndexes.isEmpty() && nextNode.accepts(childDef, nextChild)) {
+					for (Integer nextIndex : nextNode.myTerminalIndexes) {
+						theValues.get(nextIndex).add(nextChild);
+					}
+				}
+
+				if (!nextNode.myChildren.isEmpty()) {
+					BaseRuntimeElementDefinition<?> nextChildDef = myContext.getElementDefinition(nextChild.getClass());
+					if (nextChildDef instanceof BaseRuntimeElementCompositeDefinition) {
+						walk((BaseRuntimeElementCompositeDefinition<?>) nextChildDef, nextChild, nextNode.myChildren, theValues);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compiles the plan for the given resource type, covering the paths of all of its search parameters
+	 */
+	public static SearchParamExtractionPlan compile(FhirContext theContext, RuntimeResourceDefinition theResourceDef) {
+		SearchParamExtractionPlan retVal = new SearchParamExtractionPlan(theContext, theResourceDef);
+		for (RuntimeSearchParam nextSpDef : theResourceDef.getSearchParams()) {
+			String nextPathsUnsplit = nextSpDef.getPath();
+			if (isBlank(nextPathsUnsplit) || retVal.myPathToIndexes.containsKey(nextPathsUnsplit)) {
+				continue;
+			}
+
+			List<Integer> indexes = new ArrayList<Integer>();
+			for (String nextPath : nextPathsUnsplit.split("\\|")) {
+				int index = retVal.addPath(nextPath.trim());
+				if (index != -1) {
+					indexes.add(index);
+				}
+			}
+
+			int[] indexArray = new int[indexes.size()];
+			for (int i = 0; i < indexArray.length; i++) {
+				indexArray[i] = indexes.get(i);
+			}
+			retVal.myPathToIndexes.put(nextPathsUnsplit, indexArray);
+		}
+		return retVal;
+	}
+
+	/**
+	 * The values collected from one resource by {@link SearchParamExtractionPlan#execute(IBaseResource)}
+	 */
+	public static class ExtractedValues {
+
+		private final Map<String, int[]> myPathToIndexes;
+		private final List<List<Object>> myValues;
+
+		private ExtractedValues(Map<String, int[]> thePathToIndexes, List<List<Object>> theValues) {
+			myPathToIndexes = thePathToIndexes;
+			myValues = theValues;
+		}
+
+		/**
+		 * Returns the values found at the given path, which may be the complete path of a search parameter (including
+		 * several alternatives separated by <code>|</code>) or one of those alternatives. Values are returned in the
+		 * same order as {@link ca.uhn.fhir.util.FhirTerser#getValues(IBaseResource, String)} would return them.
+		 */
+		public List<Object> get(String thePaths) {
+			int[] indexes = myPathToIndexes.get(thePaths);
+			if (indexes == null || indexes.length == 0) {
+				return Collections.emptyList();
+			}
+			if (indexes.length == 1) {
+				return myValues.get(indexes[0]);
+			}
+			List<Object> retVal = new ArrayList<Object>();
+			for (int next : indexes) {
+				retVal.addAll(myValues.get(next));
+			}
+			return retVal;
+		}
+
+	}
+
+	private static class PathNode {
+
+		private final Map<BaseRuntimeElementCompositeDefinition<?>, BaseRuntimeChildDefinition> myChildDefs = new ConcurrentHashMap<BaseRuntimeElementCompositeDefinition<?>, BaseRuntimeChildDefinition>();
+		private final List<PathNode> myChildren = new ArrayList<PathNode>();
+		private final boolean myChoice;
+		private final String myName;
+		private final List<Integer> myTerminalIndexes = new ArrayList<Integer>();
+		private final Set<BaseRuntimeElementCompositeDefinition<?>> myUnresolvableParentDefs = Collections.newSetFromMap(new ConcurrentHashMap<BaseRuntimeElementCompositeDefinition<?>, Boolean>());
+
+		public PathNode(String theName) {
+			myName = theName;
+			myChoice = theName != null && theName.endsWith("[x]");
+		}
+
+		/**
+		 * Choice elements which are named for one datatype (e.g. <code>valueQuantity</code>) only match values of that
+		 * datatype
+		 */
+		public boolean accepts(BaseRuntimeChildDefinition theChildDef, IBase theValue) {
+			if (myChoice || !(theChildDef instanceof RuntimeChildChoiceDefinition)) {
+				return true;
+			}
+			return myName.equals(theChildDef.getChildNameByDatatype(theValue.getClass()));
+		}
+
+		public PathNode getOrAddChild(String theName) {
+			for (PathNode next : myChildren) {
+				if (next.myName.equals(theName)) {
+					return next;
+				}
+			}
+			PathNode retVal = new PathNode(theName);
+			myChildren.add(retVal);
+			return retVal;
+		}
+
+		/**
+		 * Returns the child of the given parent which this node refers to, or <code>null</code> if the parent has no
+		 * such child. Failures are remembered too, so the warning is only logged the first time.
+		 */
+		public BaseRuntimeChildDefinition resolve(BaseRuntimeElementCompositeDefinition<?> theParentDef, String theResourceName) {
+			BaseRuntimeChildDefinition retVal = myChildDefs.get(theParentDef);
+			if (retVal == null && !myUnresolvableParentDefs.contains(theParentDef)) {
+				try {
+					retVal = theParentDef.getChildByNameOrThrowDataFormatException(myName);
+					myChildDefs.put(theParentDef, retVal);
+				} catch (DataFormatException e) {
+					if (myUnresolvableParentDefs.add(theParentDef)) {
+						ourLog.warn("Failed to index values from path element[{}] in resource type[{}]: {}", new Object[] { myName, theResourceName, e.toString() });
+					}
+				}
+			}
+			return retVal;
+		}
+
+	}
+
+}
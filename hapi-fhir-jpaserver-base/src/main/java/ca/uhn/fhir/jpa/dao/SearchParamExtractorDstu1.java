@@ -41,6 +41,7 @@ import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.dao.SearchParamExtractionPlan.ExtractedValues;
 import ca.uhn.fhir.jpa.entity.BaseResourceIndexedSearchParam;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamCoords;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamDate;
@@ -75,12 +76,12 @@ public class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implemen
 	}
 
 	@Override
-	public Set<ResourceIndexedSearchParamCoords> extractSearchParamCoords(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<ResourceIndexedSearchParamCoords> extractSearchParamCoords(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		return Collections.emptySet();
 	}
 
 	@Override
-	public Set<ResourceIndexedSearchParamDate> extractSearchParamDates(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<ResourceIndexedSearchParamDate> extractSearchParamDates(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<ResourceIndexedSearchParamDate> retVal = new HashSet<ResourceIndexedSearchParamDate>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -99,7 +100,7 @@ public class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implemen
 				multiType = true;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 				if (nextObject == null) {
 					continue;
 				}
@@ -135,7 +136,7 @@ public class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implemen
 	}
 
 	@Override
-	public HashSet<ResourceIndexedSearchParamNumber> extractSearchParamNumber(ResourceTable theEntity, IBaseResource theResource) {
+	public HashSet<ResourceIndexedSearchParamNumber> extractSearchParamNumber(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<ResourceIndexedSearchParamNumber> retVal = new HashSet<ResourceIndexedSearchParamNumber>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -149,7 +150,7 @@ public class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implemen
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 				if (nextObject == null || ((IDatatype) nextObject).isEmpty()) {
 					continue;
 				}
@@ -230,7 +231,7 @@ public class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implemen
 	}
 
 	@Override
-	public Set<ResourceIndexedSearchParamQuantity> extractSearchParamQuantity(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<ResourceIndexedSearchParamQuantity> extractSearchParamQuantity(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<ResourceIndexedSearchParamQuantity> retVal = new HashSet<ResourceIndexedSearchParamQuantity>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -244,7 +245,7 @@ public class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implemen
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 				if (nextObject == null || ((IDatatype) nextObject).isEmpty()) {
 					continue;
 				}
@@ -278,7 +279,7 @@ public class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implemen
 	}
 
 	@Override
-	public Set<ResourceIndexedSearchParamString> extractSearchParamStrings(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<ResourceIndexedSearchParamString> extractSearchParamStrings(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<ResourceIndexedSearchParamString> retVal = new HashSet<ResourceIndexedSearchParamString>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -293,7 +294,7 @@ public class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implemen
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 				if (nextObject == null || ((IDatatype) nextObject).isEmpty()) {
 					continue;
 				}
@@ -364,7 +365,7 @@ public class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implemen
 	}
 
 	@Override
-	public Set<BaseResourceIndexedSearchParam> extractSearchParamTokens(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<BaseResourceIndexedSearchParam> extractSearchParamTokens(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<BaseResourceIndexedSearchParam> retVal = new HashSet<BaseResourceIndexedSearchParam>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -386,7 +387,7 @@ public class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implemen
 			List<String> systems = new ArrayList<String>();
 			List<String> codes = new ArrayList<String>();
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 				if (nextObject instanceof IdentifierDt) {
 					IdentifierDt nextValue = (IdentifierDt) nextObject;
 					if (nextValue.isEmpty()) {
@@ -472,7 +473,7 @@ public class SearchParamExtractorDstu1 extends BaseSearchParamExtractor implemen
 	}
 
 	@Override
-	public Set<ResourceIndexedSearchParamUri> extractSearchParamUri(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<ResourceIndexedSearchParamUri> extractSearchParamUri(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		return Collections.emptySet();
 	}
 
@@ -41,6 +41,7 @@ import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.dao.SearchParamExtractionPlan.ExtractedValues;
 import ca.uhn.fhir.jpa.entity.BaseResourceIndexedSearchParam;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamCoords;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamDate;
@@ -109,7 +110,7 @@ public class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implemen
 	}
 
 	@Override
-	public Set<ResourceIndexedSearchParamCoords> extractSearchParamCoords(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<ResourceIndexedSearchParamCoords> extractSearchParamCoords(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		// TODO: implement
 		return Collections.emptySet();
 	}
@@ -121,7 +122,7 @@ public class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implemen
 	 * ca.uhn.fhir.model.api.IResource)
 	 */
 	@Override
-	public Set<ResourceIndexedSearchParamDate> extractSearchParamDates(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<ResourceIndexedSearchParamDate> extractSearchParamDates(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<ResourceIndexedSearchParamDate> retVal = new HashSet<ResourceIndexedSearchParamDate>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -140,7 +141,7 @@ public class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implemen
 				multiType = true;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 				if (nextObject == null) {
 					continue;
 				}
@@ -182,7 +183,7 @@ public class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implemen
 	 * ca.uhn.fhir.model.api.IResource)
 	 */
 	@Override
-	public HashSet<ResourceIndexedSearchParamNumber> extractSearchParamNumber(ResourceTable theEntity, IBaseResource theResource) {
+	public HashSet<ResourceIndexedSearchParamNumber> extractSearchParamNumber(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<ResourceIndexedSearchParamNumber> retVal = new HashSet<ResourceIndexedSearchParamNumber>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -196,7 +197,7 @@ public class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implemen
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 				if (nextObject == null || ((IDatatype) nextObject).isEmpty()) {
 					continue;
 				}
@@ -282,7 +283,7 @@ public class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implemen
 	 * ca.uhn.fhir.model.api.IResource)
 	 */
 	@Override
-	public Set<ResourceIndexedSearchParamQuantity> extractSearchParamQuantity(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<ResourceIndexedSearchParamQuantity> extractSearchParamQuantity(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<ResourceIndexedSearchParamQuantity> retVal = new HashSet<ResourceIndexedSearchParamQuantity>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -296,7 +297,7 @@ public class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implemen
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 				if (nextObject == null || ((IDatatype) nextObject).isEmpty()) {
 					continue;
 				}
@@ -336,7 +337,7 @@ public class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implemen
 	 * ca.uhn.fhir.model.api.IResource)
 	 */
 	@Override
-	public Set<ResourceIndexedSearchParamString> extractSearchParamStrings(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<ResourceIndexedSearchParamString> extractSearchParamStrings(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<ResourceIndexedSearchParamString> retVal = new HashSet<ResourceIndexedSearchParamString>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -360,7 +361,7 @@ public class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implemen
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 				if (nextObject == null || ((IDatatype) nextObject).isEmpty()) {
 					continue;
 				}
@@ -418,7 +419,7 @@ public class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implemen
 	 * ca.uhn.fhir.model.api.IResource)
 	 */
 	@Override
-	public Set<BaseResourceIndexedSearchParam> extractSearchParamTokens(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<BaseResourceIndexedSearchParam> extractSearchParamTokens(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<BaseResourceIndexedSearchParam> retVal = new HashSet<BaseResourceIndexedSearchParam>();
 
 		String useSystem = null;
@@ -456,7 +457,7 @@ public class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implemen
 				needContactPointSystem = "email";
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 
 				// Patient:language
 				if (nextObject instanceof Patient.Communication) {
@@ -576,7 +577,7 @@ public class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implemen
 	}
 
 	@Override
-	public Set<ResourceIndexedSearchParamUri> extractSearchParamUri(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<ResourceIndexedSearchParamUri> extractSearchParamUri(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<ResourceIndexedSearchParamUri> retVal = new HashSet<ResourceIndexedSearchParamUri>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -590,7 +591,7 @@ public class SearchParamExtractorDstu2 extends BaseSearchParamExtractor implemen
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 				if (nextObject == null || ((IDatatype) nextObject).isEmpty()) {
 					continue;
 				}
@@ -61,6 +61,7 @@ import ca.uhn.fhir.context.ConfigurationException;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.dao.SearchParamExtractionPlan.ExtractedValues;
 import ca.uhn.fhir.jpa.entity.BaseResourceIndexedSearchParam;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamCoords;
 import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamDate;
@@ -103,7 +104,7 @@ public class SearchParamExtractorDstu21 extends BaseSearchParamExtractor impleme
 	}
 
 	@Override
-	public Set<ResourceIndexedSearchParamCoords> extractSearchParamCoords(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<ResourceIndexedSearchParamCoords> extractSearchParamCoords(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		// TODO: implement
 		return Collections.emptySet();
 	}
@@ -115,7 +116,7 @@ public class SearchParamExtractorDstu21 extends BaseSearchParamExtractor impleme
 	 * ca.uhn.fhir.model.api.IBaseResource)
 	 */
 	@Override
-	public Set<ResourceIndexedSearchParamDate> extractSearchParamDates(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<ResourceIndexedSearchParamDate> extractSearchParamDates(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<ResourceIndexedSearchParamDate> retVal = new HashSet<ResourceIndexedSearchParamDate>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -134,7 +135,7 @@ public class SearchParamExtractorDstu21 extends BaseSearchParamExtractor impleme
 				multiType = true;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 				if (nextObject == null) {
 					continue;
 				}
@@ -176,7 +177,7 @@ public class SearchParamExtractorDstu21 extends BaseSearchParamExtractor impleme
 	 * ca.uhn.fhir.model.api.IBaseResource)
 	 */
 	@Override
-	public HashSet<ResourceIndexedSearchParamNumber> extractSearchParamNumber(ResourceTable theEntity, IBaseResource theResource) {
+	public HashSet<ResourceIndexedSearchParamNumber> extractSearchParamNumber(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<ResourceIndexedSearchParamNumber> retVal = new HashSet<ResourceIndexedSearchParamNumber>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -190,7 +191,7 @@ public class SearchParamExtractorDstu21 extends BaseSearchParamExtractor impleme
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 				if (nextObject == null || ((IBase) nextObject).isEmpty()) {
 					continue;
 				}
@@ -276,7 +277,7 @@ public class SearchParamExtractorDstu21 extends BaseSearchParamExtractor impleme
 	 * ca.uhn.fhir.model.api.IBaseResource)
 	 */
 	@Override
-	public Set<ResourceIndexedSearchParamQuantity> extractSearchParamQuantity(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<ResourceIndexedSearchParamQuantity> extractSearchParamQuantity(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<ResourceIndexedSearchParamQuantity> retVal = new HashSet<ResourceIndexedSearchParamQuantity>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -290,7 +291,7 @@ public class SearchParamExtractorDstu21 extends BaseSearchParamExtractor impleme
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 				if (nextObject == null || ((IBase) nextObject).isEmpty()) {
 					continue;
 				}
@@ -330,7 +331,7 @@ public class SearchParamExtractorDstu21 extends BaseSearchParamExtractor impleme
 	 * ca.uhn.fhir.model.api.IBaseResource)
 	 */
 	@Override
-	public Set<ResourceIndexedSearchParamString> extractSearchParamStrings(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<ResourceIndexedSearchParamString> extractSearchParamStrings(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<ResourceIndexedSearchParamString> retVal = new HashSet<ResourceIndexedSearchParamString>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -354,7 +355,7 @@ public class SearchParamExtractorDstu21 extends BaseSearchParamExtractor impleme
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 				if (nextObject == null || ((IBase) nextObject).isEmpty()) {
 					continue;
 				}
@@ -412,7 +413,7 @@ public class SearchParamExtractorDstu21 extends BaseSearchParamExtractor impleme
 	 * ca.uhn.fhir.model.api.IBaseResource)
 	 */
 	@Override
-	public Set<BaseResourceIndexedSearchParam> extractSearchParamTokens(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<BaseResourceIndexedSearchParam> extractSearchParamTokens(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<BaseResourceIndexedSearchParam> retVal = new HashSet<BaseResourceIndexedSearchParam>();
 
 		String useSystem = null;
@@ -450,7 +451,7 @@ public class SearchParamExtractorDstu21 extends BaseSearchParamExtractor impleme
 				needContactPointSystem = "email";
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 
 				// Patient:language
 				if (nextObject instanceof PatientCommunicationComponent) {
@@ -570,7 +571,7 @@ public class SearchParamExtractorDstu21 extends BaseSearchParamExtractor impleme
 	}
 
 	@Override
-	public Set<ResourceIndexedSearchParamUri> extractSearchParamUri(ResourceTable theEntity, IBaseResource theResource) {
+	public Set<ResourceIndexedSearchParamUri> extractSearchParamUri(ResourceTable theEntity, IBaseResource theResource, ExtractedValues theValues) {
 		HashSet<ResourceIndexedSearchParamUri> retVal = new HashSet<ResourceIndexedSearchParamUri>();
 
 		RuntimeResourceDefinition def = getContext().getResourceDefinition(theResource);
@@ -584,7 +585,7 @@ public class SearchParamExtractorDstu21 extends BaseSearchParamExtractor impleme
 				continue;
 			}
 
-			for (Object nextObject : extractValues(nextPath, theResource)) {
+			for (Object nextObject : theValues.get(nextPath)) {
 				if (nextObject == null || ((IBase) nextObject).isEmpty()) {
 					continue;
 				}
@@ -45,6 +45,7 @@ public class SearchParameterMap extends LinkedHashMap<String, List<List<? extend
 	private EverythingModeEnum myEverythingMode = null;
 	private Set<Include> myIncludes;
 	private DateRangeParam myLastUpdated;
+	private boolean myLoadSynchronous;
 	private Set<Include> myRevIncludes;
 	private SortSpec mySort;
 
@@ -112,6 +113,15 @@ public class SearchParameterMap extends LinkedHashMap<String, List<List<? extend
 		return myLastUpdated;
 	}
 
+	/**
+	 * If set to <code>true</code>, the search will always find all of its results before returning, even if
+	 * {@link DaoConfig#setStreamingSearchEnabled(boolean) streaming searches} are enabled. This should be used by
+	 * callers which need the final result count.
+	 */
+	public boolean isLoadSynchronous() {
+		return myLoadSynchronous;
+	}
+
 	public Set<Include> getRevIncludes() {
 		if (myRevIncludes == null) {
 			myRevIncludes = new HashSet<Include>();
@@ -143,6 +153,10 @@ public class SearchParameterMap extends LinkedHashMap<String, List<List<? extend
 		myLastUpdated = theLastUpdated;
 	}
 
+	public void setLoadSynchronous(boolean theLoadSynchronous) {
+		myLoadSynchronous = theLoadSynchronous;
+	}
+
 	public void setRevIncludes(Set<Include> theRevIncludes) {
 		myRevIncludes = theRevIncludes;
 	}
@@ -0,0 +1,164 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+/**
+ * Bundle provider for a search whose matching PIDs are still being read from the database in a background thread
+ * (see {@link DaoConfig#setStreamingSearchEnabled(boolean)}).
+ * <p>
+ * Until all of the PIDs have been read, {@link #size()} returns the number which have been read so far. This is always
+ * more than the size of the first page if there are more results, so paging links will still be generated, but the
+ * total reported in the first bundle will be an underestimate. Requests for pages which haven't been read yet block
+ * until they are available.
+ * </p>
+ */
+public class StreamingJpaBundleProvider implements IBundleProvider {
+
+	/**
+	 * How long to wait for the background thread to produce a page before giving up
+	 */
+	static final long MAX_WAIT_MILLIS = 60 * 1000L;
+
+	private boolean myComplete;
+	private RuntimeException myFailure;
+	private final Map<Long, Set<Long>> myIncludeCache = new ConcurrentHashMap<Long, Set<Long>>();
+	private final Set<Include> myIncludes;
+	private final DateRangeParam myLastUpdated;
+	private final List<Long> myPids = new ArrayList<Long>();
+	private final PlatformTransactionManager myPlatformTransactionManager;
+	private final Integer myPreferredPageSize;
+	private final InstantDt myPublished;
+	private final SearchBuilder mySearchBuilder;
+
+	StreamingJpaBundleProvider(SearchBuilder theSearchBuilder, PlatformTransactionManager thePlatformTransactionManager, SearchParameterMap theParams, InstantDt thePublished) {
+		mySearchBuilder = theSearchBuilder;
+		myPlatformTransactionManager = thePlatformTransactionManager;
+		myIncludes = theParams.getIncludes();
+		myLastUpdated = theParams.getLastUpdated();
+		myPreferredPageSize = theParams.getCount();
+		myPublished = thePublished;
+	}
+
+	synchronized void addPids(Collection<Long> thePids) {
+		if (thePids.isEmpty()) {
+			return;
+		}
+		myPids.addAll(thePids);
+		notifyAll();
+	}
+
+	/**
+	 * Waits until the PIDs in the given range have been read (or all PIDs have been read, if there are fewer), and
+	 * returns a copy of them
+	 */
+	private synchronized List<Long> awaitPids(int theFromIndex, int theToIndex) {
+		long deadline = System.currentTimeMillis() + MAX_WAIT_MILLIS;
+		while (!myComplete && myFailure == null && myPids.size() < theToIndex) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new InternalErrorException("Timed out waiting for search results " + theFromIndex + " to " + theToIndex);
+			}
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InternalErrorException("Interrupted while waiting for search results", e);
+			}
+		}
+		if (myFailure != null) {
+			throw new InternalErrorException("Failed to load search results: " + myFailure.getMessage(), myFailure);
+		}
+
+		int from = Math.min(theFromIndex, myPids.size());
+		int to = Math.min(theToIndex, myPids.size());
+		return new ArrayList<Long>(myPids.subList(from, to));
+	}
+
+	@Override
+	public InstantDt getPublished() {
+		return myPublished;
+	}
+
+	@Override
+	public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+		final List<Long> pids = awaitPids(theFromIndex, theToIndex);
+
+		TransactionTemplate template = new TransactionTemplate(myPlatformTransactionManager);
+		return template.execute(new TransactionCallback<List<IBaseResource>>() {
+			@Override
+			public List<IBaseResource> doInTransaction(TransactionStatus theStatus) {
+				Set<Long> includedPids = mySearchBuilder.loadReverseIncludes(pids, myIncludes, false, myLastUpdated, myIncludeCache);
+
+				List<IBaseResource> resources = new ArrayList<IBaseResource>();
+				mySearchBuilder.loadResourcesByPid(pids, resources, includedPids, false);
+				return resources;
+			}
+		});
+	}
+
+	/**
+	 * Returns <code>true</code> once all of the matching PIDs have been read, meaning that {@link #size()} is final
+	 */
+	public synchronized boolean isComplete() {
+		return myComplete;
+	}
+
+	synchronized void markComplete() {
+		myComplete = true;
+		notifyAll();
+	}
+
+	synchronized void markFailed(RuntimeException theFailure) {
+		myFailure = theFailure;
+		notifyAll();
+	}
+
+	@Override
+	public Integer preferredPageSize() {
+		return myPreferredPageSize;
+	}
+
+	@Override
+	public synchronized int size() {
+		return myPids.size();
+	}
+
+}
@@ -0,0 +1,572 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.dao.data.ISubscriptionTableDao;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+import ca.uhn.fhir.jpa.entity.ResourceLink;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.entity.SubscriptionFlaggedResource;
+import ca.uhn.fhir.jpa.entity.SubscriptionTable;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.method.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+/**
+ * Matches resources against the criteria of the active subscriptions as they are written (see
+ * {@link DaoConfig#setSubscriptionMatchingOnWriteEnabled(boolean)}), instead of periodically searching for new
+ * resources once per subscription.
+ * <p>
+ * The active subscriptions are indexed by resource type, and where possible by one of the token or reference
+ * parameters in their criteria. For each written resource, only the subscriptions whose indexed value appears in
+ * the resource's own token and reference indexes (plus any subscriptions which couldn't be indexed this way) are
+ * candidates, and each distinct candidate criteria is then checked with a search restricted to the written
+ * resource. Matches are stored as {@link SubscriptionFlaggedResource} rows in the writing transaction, so they are
+ * committed or rolled back along with the resource itself, and the registered delivery listeners for the matching
+ * subscriptions are notified once that transaction commits.
+ * </p>
+ * <p>
+ * The index is loaded lazily by the first write. When a subscription is created, changed or removed through
+ * {@link #invalidate()}, the transaction making the change builds its own copy of the index once (since only it can see
+ * the change), and the shared index is rebuilt in a separate transaction once the change commits. Changes made by other
+ * servers using the same database are picked up by {@link #refreshIfChanged(BaseHapiFhirDao)}, which only rebuilds
+ * the index if the subscription table has changed. Neither rebuild happens in a writing transaction.
+ * </p>
+ */
+public class SubscriptionMatcherSvc {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SubscriptionMatcherSvc.class);
+
+	/**
+	 * The stored code for an active subscription, which is the same in every FHIR version
+	 */
+	private static final String STATUS_ACTIVE = "active";
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	private final ConcurrentHashMap<Long, List<Runnable>> myDeliveryListeners = new ConcurrentHashMap<Long, List<Runnable>>();
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	private volatile Map<String, TypeCandidates> myIndex;
+
+	/**
+	 * Any DAO can be used to parse the subscriptions, so the last one which needed the index is kept for rebuilding it
+	 * after a commit
+	 */
+	private volatile BaseHapiFhirDao<?> myIndexDao;
+
+	/**
+	 * The state of the subscription table when {@link #myIndex} was built (see {@link #loadFingerprint()})
+	 */
+	private volatile String myIndexFingerprint;
+
+	@Autowired
+	private ISubscriptionTableDao mySubscriptionTableDao;
+
+	@Autowired
+	private PlatformTransactionManager myTxManager;
+
+	/**
+	 * Registers a listener which is invoked (on the committing thread) whenever a transaction which flagged new
+	 * resources for the given subscription has committed. Listeners should hand the actual delivery off to another
+	 * thread.
+	 */
+	public void addDeliveryListener(Long theSubscriptionPid, Runnable theListener) {
+		List<Runnable> listeners = myDeliveryListeners.get(theSubscriptionPid);
+		if (listeners == null) {
+			myDeliveryListeners.putIfAbsent(theSubscriptionPid, new CopyOnWriteArrayList<Runnable>());
+			listeners = myDeliveryListeners.get(theSubscriptionPid);
+		}
+		listeners.add(theListener);
+	}
+
+	private void addReferenceKeys(ResourceTable theEntity, Set<String> theKeys) {
+		if (!theEntity.isHasLinks()) {
+			return;
+		}
+		for (ResourceLink next : theEntity.getResourceLinks()) {
+			ResourceTable target = next.getTargetResource();
+			if (target == null) {
+				continue;
+			}
+			IIdType targetId = target.getIdDt();
+			theKeys.add(toReferenceKey(targetId.getResourceType(), targetId.getIdPart()));
+			theKeys.add(toReferenceKey(null, targetId.getIdPart()));
+		}
+	}
+
+	private void addTokenKeys(ResourceTable theEntity, Set<String> theKeys) {
+		if (!theEntity.isParamsTokenPopulated()) {
+			return;
+		}
+		for (ResourceIndexedSearchParamToken next : theEntity.getParamsToken()) {
+			if (isBlank(next.getValue())) {
+				continue;
+			}
+			theKeys.add(toTokenKey(next.getParamName(), null, next.getValue()));
+			if (isNotBlank(next.getSystem())) {
+				theKeys.add(toTokenKey(next.getParamName(), next.getSystem(), next.getValue()));
+			}
+		}
+	}
+
+	private Map<String, TypeCandidates> buildIndex(BaseHapiFhirDao<?> theCallingDao) {
+		Map<String, TypeCandidates> retVal = new HashMap<String, TypeCandidates>();
+		int count = 0;
+		for (SubscriptionTable next : mySubscriptionTableDao.findAllByStatus(STATUS_ACTIVE)) {
+			ResourceTable subscriptionEntity = next.getSubscriptionResource();
+			if (subscriptionEntity == null || subscriptionEntity.getDeleted() != null) {
+				continue;
+			}
+
+			IBaseResource subscription = theCallingDao.toResource(subscriptionEntity, false);
+			@SuppressWarnings("rawtypes")
+			List<IPrimitiveType> criteriaElements = theCallingDao.getContext().newTerser().getValues(subscription, "Subscription.criteria", IPrimitiveType.class);
+			String criteria = criteriaElements.isEmpty() ? null : criteriaElements.get(0).getValueAsString();
+			int sep = criteria != null ? criteria.indexOf('?') : -1;
+			if (sep <= 0) {
+				continue;
+			}
+
+			String resourceType = criteria.substring(0, sep);
+			Set<String> keys;
+			try {
+				RuntimeResourceDefinition resourceDef = theCallingDao.getContext().getResourceDefinition(resourceType);
+				keys = extractCandidateKeys(resourceDef, BaseHapiFhirDao.translateMatchUrl(criteria, resourceDef));
+			} catch (Exception e) {
+				ourLog.warn("Ignoring subscription {} with invalid criteria {}: {}", new Object[] { next.getId(), criteria, e.toString() });
+				continue;
+			}
+
+			TypeCandidates candidates = retVal.get(resourceType);
+			if (candidates == null) {
+				candidates = new TypeCandidates();
+				retVal.put(resourceType, candidates);
+			}
+			candidates.add(new ActiveSubscription(next.getId(), criteria), keys);
+			count++;
+		}
+
+		ourLog.info("Indexed {} active subscriptions for matching on write", count);
+		return retVal;
+	}
+
+	/**
+	 * Finds the active subscriptions which might match the given resource, checks them, and flags the resource for
+	 * each subscription which does. Must be called within the transaction which is writing the resource, after its
+	 * indexes have been populated.
+	 * 
+	 * @return The number of subscriptions the resource was flagged for
+	 */
+	public int flagMatchingSubscriptions(BaseHapiFhirDao<?> theCallingDao, ResourceTable theEntity) {
+		if (!isEnabled()) {
+			return 0;
+		}
+
+		TypeCandidates typeCandidates = getIndex(theCallingDao).get(theEntity.getResourceType());
+		if (typeCandidates == null) {
+			return 0;
+		}
+
+		Set<ActiveSubscription> candidates = new LinkedHashSet<ActiveSubscription>(typeCandidates.myUnindexed);
+		if (!typeCandidates.myByKey.isEmpty()) {
+			Set<String> keys = new LinkedHashSet<String>();
+			addTokenKeys(theEntity, keys);
+			addReferenceKeys(theEntity, keys);
+			for (String next : keys) {
+				List<ActiveSubscription> keyCandidates = typeCandidates.myByKey.get(next);
+				if (keyCandidates != null) {
+					candidates.addAll(keyCandidates);
+				}
+			}
+		}
+		if (candidates.isEmpty()) {
+			return 0;
+		}
+
+		/*
+		 * Identical criteria (e.g. many clients watching the same patient) only need to be checked once
+		 */
+		Map<String, List<Long>> criteriaToSubscriptionPids = new LinkedHashMap<String, List<Long>>();
+		for (ActiveSubscription next : candidates) {
+			List<Long> pids = criteriaToSubscriptionPids.get(next.myCriteria);
+			if (pids == null) {
+				pids = new ArrayList<Long>();
+				criteriaToSubscriptionPids.put(next.myCriteria, pids);
+			}
+			pids.add(next.myPid);
+		}
+
+		RuntimeResourceDefinition resourceDef = theCallingDao.getContext().getResourceDefinition(theEntity.getResourceType());
+		IFhirResourceDao<? extends IBaseResource> dao = theCallingDao.getDao(resourceDef.getImplementingClass());
+		Set<Long> matchingSubscriptionPids = new LinkedHashSet<Long>();
+		for (Map.Entry<String, List<Long>> next : criteriaToSubscriptionPids.entrySet()) {
+			SearchParameterMap params = BaseHapiFhirDao.translateMatchUrl(next.getKey(), resourceDef);
+			Set<Long> found = dao.searchForIdsWithAndOr(params, Collections.singleton(theEntity.getId()), params.getLastUpdated());
+			if (found.contains(theEntity.getId())) {
+				matchingSubscriptionPids.addAll(next.getValue());
+			}
+		}
+		if (matchingSubscriptionPids.isEmpty()) {
+			return 0;
+		}
+
+		for (Iterator<Long> iter = matchingSubscriptionPids.iterator(); iter.hasNext();) {
+			/*
+			 * The index may be slightly out of date, so make sure the subscription still exists (and is still active)
+			 * rather than failing the write
+			 */
+			SubscriptionTable subscription = myEntityManager.find(SubscriptionTable.class, iter.next());
+			if (subscription == null || !STATUS_ACTIVE.equals(subscription.getStatus())) {
+				iter.remove();
+				continue;
+			}
+
+			SubscriptionFlaggedResource flag = new SubscriptionFlaggedResource();
+			flag.setResource(theEntity);
+			flag.setSubscription(subscription);
+			flag.setVersion(theEntity.getVersion());
+			myEntityManager.persist(flag);
+		}
+		if (matchingSubscriptionPids.isEmpty()) {
+			return 0;
+		}
+		ourLog.debug("Flagged resource {} for subscriptions {}", theEntity.getIdDt().toUnqualified(), matchingSubscriptionPids);
+
+		notifyDeliveryListenersAfterCommit(matchingSubscriptionPids);
+		return matchingSubscriptionPids.size();
+	}
+
+	private Map<String, TypeCandidates> getIndex(BaseHapiFhirDao<?> theCallingDao) {
+		/*
+		 * A transaction which has changed a subscription sees its own uncommitted changes, so the index it builds
+		 * can't be shared with other transactions. It is built once and reused by the rest of the transaction's writes
+		 * until another subscription is changed.
+		 */
+		TransactionIndex txIndex = (TransactionIndex) TransactionSynchronizationManager.getResource(this);
+		if (txIndex != null) {
+			if (txIndex.myIndex == null) {
+				txIndex.myIndex = buildIndex(theCallingDao);
+			}
+			return txIndex.myIndex;
+		}
+
+		myIndexDao = theCallingDao;
+		Map<String, TypeCandidates> retVal = myIndex;
+		if (retVal == null) {
+			synchronized (this) {
+				retVal = myIndex;
+				if (retVal == null) {
+					myIndexFingerprint = loadFingerprint();
+					retVal = buildIndex(theCallingDao);
+					myIndex = retVal;
+				}
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Must be called whenever a subscription is created, changed or removed. Within a transaction, the rest of the
+	 * transaction uses its own index which includes the change, and the shared index is rebuilt once the transaction
+	 * has committed. Outside of a transaction, the shared index is discarded and rebuilt by the next write.
+	 */
+	public void invalidate() {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			myIndex = null;
+			return;
+		}
+
+		TransactionIndex txIndex = (TransactionIndex) TransactionSynchronizationManager.getResource(this);
+		if (txIndex != null) {
+			txIndex.myIndex = null;
+			return;
+		}
+
+		TransactionSynchronizationManager.bindResource(this, new TransactionIndex());
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				BaseHapiFhirDao<?> dao = myIndexDao;
+				if (dao == null) {
+					myIndex = null;
+					return;
+				}
+				try {
+					refresh(dao, false);
+				} catch (Exception e) {
+					ourLog.error("Failed to rebuild the subscription index, it will be rebuilt by the next write", e);
+					myIndex = null;
+				}
+			}
+
+			@Override
+			public void afterCompletion(int theStatus) {
+				TransactionSynchronizationManager.unbindResourceIfPossible(SubscriptionMatcherSvc.this);
+			}
+		});
+	}
+
+	/**
+	 * Returns a value which changes whenever a subscription is created, changed or removed: the number of
+	 * subscriptions and the most recent update time of their resources
+	 */
+	private String loadFingerprint() {
+		List<Object[]> result = mySubscriptionTableDao.findCountAndMaxUpdated();
+		if (result.isEmpty()) {
+			return "";
+		}
+		Object[] row = result.get(0);
+		Date maxUpdated = (Date) row[1];
+		return row[0] + "|" + (maxUpdated != null ? maxUpdated.getTime() : "");
+	}
+
+	/**
+	 * Rebuilds the shared index in a new transaction
+	 * 
+	 * @param theOnlyIfChanged
+	 *           If <code>true</code>, the index is only rebuilt if the subscription table has changed since it was
+	 *           last built
+	 */
+	private void refresh(final BaseHapiFhirDao<?> theCallingDao, final boolean theOnlyIfChanged) {
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		txTemplate.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				String fingerprint = loadFingerprint();
+				if (theOnlyIfChanged && myIndex != null && fingerprint.equals(myIndexFingerprint)) {
+					return;
+				}
+				Map<String, TypeCandidates> index = buildIndex(theCallingDao);
+				synchronized (SubscriptionMatcherSvc.this) {
+					myIndex = index;
+					myIndexFingerprint = fingerprint;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Rebuilds the index if any subscriptions have been created, changed or removed since it was built, e.g. by
+	 * another server using the same database. This is meant to be called periodically, outside of any transaction.
+	 */
+	public void refreshIfChanged(BaseHapiFhirDao<?> theCallingDao) {
+		if (!isEnabled() || myIndex == null) {
+			// Nothing to refresh yet, the first write will build the index
+			return;
+		}
+		myIndexDao = theCallingDao;
+		refresh(theCallingDao, true);
+	}
+
+	public boolean isEnabled() {
+		return myDaoConfig.isSubscriptionEnabled() && myDaoConfig.isSubscriptionMatchingOnWriteEnabled();
+	}
+
+	private void notifyDeliveryListeners(Collection<Long> theSubscriptionPids) {
+		for (Long nextPid : theSubscriptionPids) {
+			List<Runnable> listeners = myDeliveryListeners.get(nextPid);
+			if (listeners == null) {
+				continue;
+			}
+			for (Runnable next : listeners) {
+				try {
+					next.run();
+				} catch (Exception e) {
+					ourLog.error("Failed to notify delivery listener for subscription " + nextPid, e);
+				}
+			}
+		}
+	}
+
+	private void notifyDeliveryListenersAfterCommit(final Collection<Long> theSubscriptionPids) {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCommit() {
+					notifyDeliveryListeners(theSubscriptionPids);
+				}
+			});
+		} else {
+			notifyDeliveryListeners(theSubscriptionPids);
+		}
+	}
+
+	public void removeDeliveryListener(Long theSubscriptionPid, Runnable theListener) {
+		List<Runnable> listeners = myDeliveryListeners.get(theSubscriptionPid);
+		if (listeners != null) {
+			listeners.remove(theListener);
+		}
+	}
+
+	/**
+	 * Returns the keys of the first AND'ed token or reference parameter in the criteria whose values can all be
+	 * indexed, so that a resource has to contain at least one of these keys in order to match. Returns
+	 * <code>null</code> if there is no such parameter, in which case the criteria is a candidate for every resource of
+	 * its type.
+	 */
+	static Set<String> extractCandidateKeys(RuntimeResourceDefinition theResourceDef, SearchParameterMap theParams) {
+		for (Map.Entry<String, List<List<? extends IQueryParameterType>>> nextParam : theParams.entrySet()) {
+			RuntimeSearchParam paramDef = theResourceDef.getSearchParam(nextParam.getKey());
+			if (paramDef == null) {
+				continue;
+			}
+			RestSearchParameterTypeEnum type = paramDef.getParamType();
+			if (type != RestSearchParameterTypeEnum.TOKEN && type != RestSearchParameterTypeEnum.REFERENCE) {
+				continue;
+			}
+
+			for (List<? extends IQueryParameterType> nextAnd : nextParam.getValue()) {
+				Set<String> keys = new LinkedHashSet<String>();
+				for (IQueryParameterType nextOr : nextAnd) {
+					String key = toCandidateKey(nextParam.getKey(), nextOr);
+					if (key == null) {
+						keys = null;
+						break;
+					}
+					keys.add(key);
+				}
+				if (keys != null && !keys.isEmpty()) {
+					return keys;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static String toCandidateKey(String theParamName, IQueryParameterType theParam) {
+		if (Boolean.TRUE.equals(theParam.getMissing())) {
+			return null;
+		}
+		if (theParam instanceof TokenParam) {
+			TokenParam token = (TokenParam) theParam;
+			if (token.isText() || isBlank(token.getValue())) {
+				return null;
+			}
+			return toTokenKey(theParamName, isNotBlank(token.getSystem()) ? token.getSystem() : null, token.getValue());
+		}
+		if (theParam instanceof ReferenceParam) {
+			ReferenceParam ref = (ReferenceParam) theParam;
+			if (isNotBlank(ref.getChain()) || ref.isAbsolute() || isBlank(ref.getIdPart())) {
+				return null;
+			}
+			return toReferenceKey(ref.getResourceType(), ref.getIdPart());
+		}
+		return null;
+	}
+
+	/**
+	 * References are keyed by their target only, since the index rows are stored by path rather than by parameter
+	 * name (the candidate search still checks the parameter)
+	 */
+	private static String toReferenceKey(String theResourceType, String theIdPart) {
+		if (isBlank(theResourceType)) {
+			return "ref|" + theIdPart;
+		}
+		return "ref|" + theResourceType + '/' + theIdPart;
+	}
+
+	private static String toTokenKey(String theParamName, String theSystem, String theValue) {
+		if (theSystem == null) {
+			return "token|" + theParamName + '|' + theValue;
+		}
+		return "token|" + theParamName + '|' + theSystem + '|' + theValue;
+	}
+
+	private static final class ActiveSubscription {
+		private final String myCriteria;
+		private final Long myPid;
+
+		ActiveSubscription(Long thePid, String theCriteria) {
+			myPid = thePid;
+			myCriteria = theCriteria;
+		}
+	}
+
+	/**
+	 * The index used by a transaction which has changed a subscription, which is <code>null</code> until the next
+	 * write in that transaction needs it
+	 */
+	private static final class TransactionIndex {
+		private Map<String, TypeCandidates> myIndex;
+	}
+
+	private static final class TypeCandidates {
+		private final Map<String, List<ActiveSubscription>> myByKey = new HashMap<String, List<ActiveSubscription>>();
+		private final List<ActiveSubscription> myUnindexed = new ArrayList<ActiveSubscription>();
+
+		void add(ActiveSubscription theSubscription, Set<String> theKeys) {
+			if (theKeys == null) {
+				myUnindexed.add(theSubscription);
+				return;
+			}
+			for (String next : theKeys) {
+				List<ActiveSubscription> list = myByKey.get(next);
+				if (list == null) {
+					list = new ArrayList<ActiveSubscription>();
+					myByKey.put(next, list);
+				}
+				list.add(theSubscription);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,240 @@
+package ca.uhn.fhir.jpa.dao;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceContextType;
+import javax.persistence.PersistenceException;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Root;
+
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import ca.uhn.fhir.jpa.entity.TagDefinition;
+import ca.uhn.fhir.jpa.entity.TagTypeEnum;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+
+/**
+ * Finds (or creates) the {@link TagDefinition} for a tag, profile or security label, caching the results. Most
+ * resources carry the same few tags, so this saves several identical lookups on almost every write.
+ * <p>
+ * New definitions are inserted and committed in their own transaction. If two servers (or two threads) insert the
+ * same definition at the same time, the unique constraint on HFJ_TAG_DEF rejects one of the inserts, and the loser
+ * simply looks the definition up again. A definition is never changed or removed once created, so cached entries
+ * never need to be invalidated and every server in a cluster can keep its own cache. If definition rows are ever
+ * deleted directly in the database, {@link #clear()} must be called.
+ * </p>
+ * <p>
+ * The definitions which are returned are detached from the persistence context, and must not be modified.
+ * </p>
+ */
+public class TagDefinitionCacheSvc {
+
+	/**
+	 * Number of times a definition is looked up again after a concurrent insert of the same definition
+	 */
+	static final int MAX_INSERT_ATTEMPTS = 3;
+
+	/**
+	 * Maximum number of definitions held in the cache
+	 */
+	static final int MAX_ENTRIES = 10000;
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(TagDefinitionCacheSvc.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@PersistenceContext(type = PersistenceContextType.TRANSACTION)
+	private EntityManager myEntityManager;
+
+	private Cache<TagKey, TagDefinition> myTagDefinitions;
+
+	@Autowired
+	private PlatformTransactionManager myTxManager;
+
+	/**
+	 * Removes all entries from the cache
+	 */
+	public void clear() {
+		myTagDefinitions.invalidateAll();
+	}
+
+	private TagDefinition findOrCreate(final TagKey theKey, final String theDisplay) {
+		TransactionTemplate txTemplate = new TransactionTemplate(myTxManager);
+		txTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+		for (int attempt = 1; ; attempt++) {
+			try {
+				return txTemplate.execute(new TransactionCallback<TagDefinition>() {
+					@Override
+					public TagDefinition doInTransaction(TransactionStatus theStatus) {
+						TagDefinition retVal = find(theKey);
+						if (retVal == null) {
+							retVal = new TagDefinition(theKey.myTagType, theKey.mySystem, theKey.myCode, theDisplay);
+							myEntityManager.persist(retVal);
+							myEntityManager.flush();
+						}
+						return retVal;
+					}
+				});
+			} catch (PersistenceException e) {
+				handleInsertFailure(theKey, attempt, e);
+			} catch (DataIntegrityViolationException e) {
+				handleInsertFailure(theKey, attempt, e);
+			}
+		}
+	}
+
+	private TagDefinition find(TagKey theKey) {
+		CriteriaBuilder builder = myEntityManager.getCriteriaBuilder();
+		CriteriaQuery<TagDefinition> cq = builder.createQuery(TagDefinition.class);
+		Root<TagDefinition> from = cq.from(TagDefinition.class);
+
+		//@formatter:off
+		if (theKey.mySystem != null) {
+			cq.where(
+				builder.and(
+					builder.equal(from.get("myTagType"), theKey.myTagType), 
+					builder.equal(from.get("mySystem"), theKey.mySystem), 
+					builder.equal(from.get("myCode"), theKey.myCode))
+				);
+		} else {
+			cq.where(
+				builder.and(
+					builder.equal(from.get("myTagType"), theKey.myTagType), 
+					builder.isNull(from.get("mySystem")), 
+					builder.equal(from.get("myCode"), theKey.myCode))
+				);
+		}
+		//@formatter:on
+
+		/*
+		 * Most databases don't enforce the unique constraint for rows with a null system, so a concurrent insert
+		 * could leave two of those behind. Always picking the oldest one keeps every server consistent.
+		 */
+		cq.orderBy(builder.asc(from.get("myId")));
+
+		TypedQuery<TagDefinition> q = myEntityManager.createQuery(cq);
+		q.setMaxResults(1);
+		List<TagDefinition> results = q.getResultList();
+		return results.isEmpty() ? null : results.get(0);
+	}
+
+	/**
+	 * Returns the cached number of definitions
+	 */
+	public long getCachedTagDefinitionCount() {
+		return myTagDefinitions.size();
+	}
+
+	/**
+	 * Returns the definition of the given tag, creating it if it doesn't exist yet
+	 */
+	public TagDefinition getTag(TagTypeEnum theTagType, String theSystem, String theCode, String theDisplay) {
+		TagKey key = new TagKey(theTagType, isNotBlank(theSystem) ? theSystem : null, theCode);
+		TagDefinition retVal = isEnabled() ? myTagDefinitions.getIfPresent(key) : null;
+		if (retVal == null) {
+			retVal = findOrCreate(key, theDisplay);
+			if (isEnabled()) {
+				myTagDefinitions.put(key, retVal);
+			}
+		}
+		return retVal;
+	}
+
+	private void handleInsertFailure(TagKey theKey, int theAttempt, RuntimeException theException) {
+		if (theAttempt >= MAX_INSERT_ATTEMPTS) {
+			throw new InternalErrorException("Failed to create tag definition " + theKey + ": " + theException.getMessage(), theException);
+		}
+		ourLog.info("Failed to insert tag definition {}, probably because it was inserted concurrently - Will look it up again: {}", theKey, theException.toString());
+	}
+
+	public boolean isEnabled() {
+		return myDaoConfig.isTagDefinitionCacheEnabled();
+	}
+
+	@PostConstruct
+	public void start() {
+		myTagDefinitions = CacheBuilder.newBuilder().maximumSize(MAX_ENTRIES).build();
+	}
+
+	private static final class TagKey {
+
+		private final String myCode;
+		private final String mySystem;
+		private final TagTypeEnum myTagType;
+
+		public TagKey(TagTypeEnum theTagType, String theSystem, String theCode) {
+			myTagType = theTagType;
+			mySystem = theSystem;
+			myCode = theCode;
+		}
+
+		@Override
+		public boolean equals(Object theObj) {
+			if (!(theObj instanceof TagKey)) {
+				return false;
+			}
+			TagKey other = (TagKey) theObj;
+			EqualsBuilder b = new EqualsBuilder();
+			b.append(myTagType, other.myTagType);
+			b.append(mySystem, other.mySystem);
+			b.append(myCode, other.myCode);
+			return b.isEquals();
+		}
+
+		@Override
+		public int hashCode() {
+			HashCodeBuilder b = new HashCodeBuilder();
+			b.append(myTagType);
+			b.append(mySystem);
+			b.append(myCode);
+			return b.toHashCode();
+		}
+
+		@Override
+		public String toString() {
+			return myTagType + "[" + mySystem + "|" + myCode + "]";
+		}
+
+	}
+
+}
@@ -0,0 +1,60 @@
+package ca.uhn.fhir.jpa.dao.data;
+
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import ca.uhn.fhir.jpa.entity.BulkExportJob;
+import ca.uhn.fhir.jpa.entity.BulkExportJobStatusEnum;
+
+public interface IBulkExportJobDao extends JpaRepository<BulkExportJob, Long> {
+
+	@Query("SELECT j FROM BulkExportJob j WHERE j.myStatus = :status ORDER BY j.myId ASC")
+	public List<BulkExportJob> findByStatus(@Param("status") BulkExportJobStatusEnum theStatus, Pageable thePage);
+
+	/**
+	 * Moves a job from one status to another, returning 0 if the job was not in the expected status (e.g. because
+	 * another server has already claimed it)
+	 */
+	@Modifying
+	@Query("UPDATE BulkExportJob j SET j.myStatus = :newStatus WHERE j.myId = :id AND j.myStatus = :oldStatus")
+	public int updateStatus(@Param("id") Long theJobId, @Param("oldStatus") BulkExportJobStatusEnum theOldStatus, @Param("newStatus") BulkExportJobStatusEnum theNewStatus);
+
+	/**
+	 * Moves all jobs in one status which haven't been updated since the given time to another status
+	 */
+	@Modifying
+	@Query("UPDATE BulkExportJob j SET j.myStatus = :newStatus WHERE j.myStatus = :oldStatus AND (j.myLastUpdated IS NULL OR j.myLastUpdated < :cutoff)")
+	public int updateStatusIfNotUpdatedSince(@Param("oldStatus") BulkExportJobStatusEnum theOldStatus, @Param("newStatus") BulkExportJobStatusEnum theNewStatus, @Param("cutoff") Date theCutoff);
+
+	@Modifying
+	@Query("UPDATE BulkExportJob j SET j.myLastUpdated = :lastUpdated WHERE j.myId = :id")
+	public int updateLastUpdated(@Param("id") Long theJobId, @Param("lastUpdated") Date theLastUpdated);
+
+}
@@ -0,0 +1,41 @@
+package ca.uhn.fhir.jpa.dao.data;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import ca.uhn.fhir.jpa.entity.ReindexJob;
+import ca.uhn.fhir.jpa.entity.ReindexJobStatusEnum;
+
+public interface IReindexJobDao extends JpaRepository<ReindexJob, Long> {
+
+	@Query("SELECT j FROM ReindexJob j WHERE j.myStatus = :status ORDER BY j.myId ASC")
+	public List<ReindexJob> findByStatus(@Param("status") ReindexJobStatusEnum theStatus, Pageable thePage);
+
+	@Query("SELECT j FROM ReindexJob j ORDER BY j.myId DESC")
+	public List<ReindexJob> findMostRecent(Pageable thePage);
+
+}
@@ -22,6 +22,7 @@ package ca.uhn.fhir.jpa.dao.data;
 
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
@@ -43,9 +44,15 @@ public interface ISubscriptionTableDao extends JpaRepository<SubscriptionTable,
 	@Query("UPDATE SubscriptionTable t SET t.myLastClientPoll = :last_client_poll")
 	public int updateLastClientPoll(@Param("last_client_poll") Date theLastClientPoll);
 
+	@Query("SELECT t FROM SubscriptionTable t WHERE t.myStatus = :status")
+	public Collection<SubscriptionTable> findAllByStatus(@Param("status") String theStatus);
+
 	@Query("SELECT t FROM SubscriptionTable t WHERE t.myLastClientPoll < :cutoff OR (t.myLastClientPoll IS NULL AND t.myCreated < :cutoff)")
 	public Collection<SubscriptionTable> findInactiveBeforeCutoff(@Param("cutoff") Date theCutoff);
 
 	@Query("SELECT t.myId FROM SubscriptionTable t WHERE t.myStatus = :status AND t.myNextCheck <= :next_check")
 	public Collection<Long> findSubscriptionsWhichNeedToBeChecked(@Param("status") String theStatus, @Param("next_check") Date theNextCheck);
+
+	@Query("SELECT COUNT(t), MAX(r.myUpdated) FROM SubscriptionTable t JOIN t.mySubscriptionResource r")
+	public List<Object[]> findCountAndMaxUpdated();
 }
@@ -21,31 +21,37 @@ package ca.uhn.fhir.jpa.entity;
  */
 
 import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 
 import javax.persistence.Column;
-import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
-import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.MappedSuperclass;
+import javax.persistence.PrePersist;
 
+import org.hibernate.search.annotations.Analyze;
 import org.hibernate.search.annotations.ContainedIn;
 import org.hibernate.search.annotations.Field;
+import org.hibernate.search.annotations.Store;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
 @MappedSuperclass
 public abstract class BaseResourceIndexedSearchParam implements Serializable {
 
 	static final int MAX_SP_NAME = 100;
 
-	private static final long serialVersionUID = 1L;
+	private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128(0);
 
-	@Id
-	@GeneratedValue(strategy = GenerationType.AUTO)
-	@Column(name = "SP_ID")
-	private Long myId;
+	private static final long serialVersionUID = 1L;
 
-	@Field
+	@Field(analyze = Analyze.NO)
 	@Column(name = "SP_NAME", length = MAX_SP_NAME, nullable = false)
 	private String myParamName;
 
@@ -54,6 +60,10 @@ public abstract class BaseResourceIndexedSearchParam implements Serializable {
 	@ContainedIn
 	private ResourceTable myResource;
 
+	/**
+	 * Stored in the fulltext index so that fulltext searches can project the PID without loading any entities
+	 */
+	@Field(store = Store.YES, analyze = Analyze.NO)
 	@Column(name = "RES_ID", insertable = false, updatable = false)
 	private Long myResourcePid;
 
@@ -61,10 +71,21 @@ public abstract class BaseResourceIndexedSearchParam implements Serializable {
 	@Column(name = "RES_TYPE", nullable = false)
 	private String myResourceType;
 
-	protected Long getId() {
-		return myId;
+	/**
+	 * Subclasses with hash columns should compute them here from the resource type, parameter name and values. This is
+	 * called before a new row is persisted, and for existing rows which are kept when their resource is updated or
+	 * reindexed so that rows written before the hash columns existed are filled in.
+	 */
+	public void calculateHashes() {
+		// nothing by default
 	}
 
+	/**
+	 * Each index table has its own pooled sequence (allocating IDs in blocks) so that new index rows can be written
+	 * using JDBC batches instead of fetching a new sequence value for every row
+	 */
+	protected abstract Long getId();
+
 	public String getParamName() {
 		return myParamName;
 	}
@@ -77,6 +98,73 @@ public abstract class BaseResourceIndexedSearchParam implements Serializable {
 		return myResourcePid;
 	}
 
+	public String getResourceType() {
+		return myResourceType;
+	}
+
+	/**
+	 * Returns a key made up of the parameter name and the indexed value(s) of this row. Unlike {@link #equals(Object)},
+	 * the key is stable regardless of whether the row was freshly extracted from a resource or loaded from the
+	 * database (dates are compared by their millisecond value and decimals ignore trailing zeros), so it can be used
+	 * to find the index rows which are left unchanged by an update.
+	 */
+	public List<Object> getValueKey() {
+		List<Object> retVal = new ArrayList<Object>();
+		retVal.add(getParamName());
+		addValueKeyParts(retVal);
+		return retVal;
+	}
+
+	/**
+	 * Subclasses should add each of their indexed values to the list, normalized using
+	 * {@link #normalizeForValueKey(BigDecimal)} or {@link #normalizeForValueKey(Date)} where applicable
+	 */
+	protected abstract void addValueKeyParts(List<Object> theParts);
+
+	/**
+	 * Returns a 64-bit hash of the given values, used for the hash columns of the token and string index tables. Each
+	 * value is prefixed with its length (or -1 for <code>null</code>) so that different values can't run together into
+	 * the same input.
+	 */
+	static long hash(String... theValues) {
+		Hasher hasher = HASH_FUNCTION.newHasher();
+		for (String next : theValues) {
+			if (next == null) {
+				hasher.putInt(-1);
+			} else {
+				hasher.putInt(next.length());
+				hasher.putString(next, Charsets.UTF_8);
+			}
+		}
+		return hasher.hash().asLong();
+	}
+
+	static String normalizeForValueKey(BigDecimal theValue) {
+		if (theValue == null) {
+			return null;
+		}
+		if (theValue.signum() == 0) {
+			return "0";
+		}
+		return theValue.stripTrailingZeros().toPlainString();
+	}
+
+	static Long normalizeForValueKey(Date theValue) {
+		if (theValue == null) {
+			return null;
+		}
+		return theValue.getTime();
+	}
+
+	@PrePersist
+	void prePersist() {
+		// The column is written through myResource, but the fulltext index is built from this field
+		if (myResourcePid == null && myResource != null) {
+			myResourcePid = myResource.getId();
+		}
+		calculateHashes();
+	}
+
 	public void setParamName(String theName) {
 		myParamName = theName;
 	}
@@ -0,0 +1,197 @@
+package ca.uhn.fhir.jpa.entity;
+
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+//@formatter:off
+@Entity
+@Table(name = "HFJ_BULK_EXPORT_JOB", indexes= {
+	@Index(name="IDX_BULK_EXPORT_STATUS", columnList="JOB_STATUS")
+})
+//@formatter:on
+public class BulkExportJob implements Serializable {
+
+	public static final int ELEMENTS_LEN = 500;
+	public static final int RESOURCE_TYPES_LEN = 2000;
+	public static final int STATUS_MESSAGE_LEN = 500;
+
+	private static final long serialVersionUID = 1L;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "CREATED", nullable = false)
+	private Date myCreated;
+
+	@Column(name = "ELEMENTS", length = ELEMENTS_LEN, nullable = true)
+	private String myElements;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "FINISHED", nullable = true)
+	private Date myFinished;
+
+	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_BULK_EXPORT_JOB")
+	@SequenceGenerator(name = "SEQ_BULK_EXPORT_JOB", sequenceName = "SEQ_BULK_EXPORT_JOB")
+	@Id
+	@Column(name = "PID")
+	private Long myId;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "LAST_UPDATED", nullable = true)
+	private Date myLastUpdated;
+
+	@Column(name = "RESOURCE_COUNT", nullable = false)
+	private long myResourceCount;
+
+	@Column(name = "RES_TYPES", length = RESOURCE_TYPES_LEN, nullable = true)
+	private String myResourceTypes;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "SINCE", nullable = true)
+	private Date mySince;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "STARTED", nullable = true)
+	private Date myStarted;
+
+	@Enumerated(EnumType.STRING)
+	@Column(name = "JOB_STATUS", length = 20, nullable = false)
+	private BulkExportJobStatusEnum myStatus;
+
+	@Column(name = "STATUS_MESSAGE", length = STATUS_MESSAGE_LEN, nullable = true)
+	private String myStatusMessage;
+
+	public Date getCreated() {
+		return myCreated;
+	}
+
+	/**
+	 * Comma separated list of the elements to include in each exported resource (the <code>_elements</code>
+	 * parameter), or <code>null</code> to export complete resources
+	 */
+	public String getElements() {
+		return myElements;
+	}
+
+	public Date getFinished() {
+		return myFinished;
+	}
+
+	public Long getId() {
+		return myId;
+	}
+
+	/**
+	 * The last time a running job made progress. A running job which hasn't made progress for a while is assumed to
+	 * belong to a server which has stopped, and is submitted again.
+	 */
+	public Date getLastUpdated() {
+		return myLastUpdated;
+	}
+
+	/**
+	 * The number of resources written so far
+	 */
+	public long getResourceCount() {
+		return myResourceCount;
+	}
+
+	/**
+	 * Comma separated list of the resource types to export, or <code>null</code> for all types
+	 */
+	public String getResourceTypes() {
+		return myResourceTypes;
+	}
+
+	/**
+	 * If set, only resources updated at or after this time are exported (the <code>_since</code> parameter)
+	 */
+	public Date getSince() {
+		return mySince;
+	}
+
+	public Date getStarted() {
+		return myStarted;
+	}
+
+	public BulkExportJobStatusEnum getStatus() {
+		return myStatus;
+	}
+
+	public String getStatusMessage() {
+		return myStatusMessage;
+	}
+
+	public void setCreated(Date theCreated) {
+		myCreated = theCreated;
+	}
+
+	public void setElements(String theElements) {
+		myElements = theElements;
+	}
+
+	public void setFinished(Date theFinished) {
+		myFinished = theFinished;
+	}
+
+	public void setLastUpdated(Date theLastUpdated) {
+		myLastUpdated = theLastUpdated;
+	}
+
+	public void setResourceCount(long theResourceCount) {
+		myResourceCount = theResourceCount;
+	}
+
+	public void setResourceTypes(String theResourceTypes) {
+		myResourceTypes = theResourceTypes;
+	}
+
+	public void setSince(Date theSince) {
+		mySince = theSince;
+	}
+
+	public void setStarted(Date theStarted) {
+		myStarted = theStarted;
+	}
+
+	public void setStatus(BulkExportJobStatusEnum theStatus) {
+		myStatus = theStatus;
+	}
+
+	public void setStatusMessage(String theStatusMessage) {
+		myStatusMessage = theStatusMessage;
+	}
+
+}
@@ -0,0 +1,46 @@
+package ca.uhn.fhir.jpa.entity;
+
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+public enum BulkExportJobStatusEnum {
+
+	/**
+	 * The job has been requested but has not been picked up yet
+	 */
+	SUBMITTED,
+
+	/**
+	 * The output files are being written
+	 */
+	RUNNING,
+
+	/**
+	 * All output files have been written
+	 */
+	COMPLETE,
+
+	/**
+	 * The job failed, see {@link BulkExportJob#getStatusMessage()}
+	 */
+	ERROR
+
+}
@@ -0,0 +1,208 @@
+package ca.uhn.fhir.jpa.entity;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.Serializable;
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * A job which reindexes every resource (optionally of a single type) whose PID was in use when the job was created,
+ * working upwards through the PIDs in chunks. {@link #getNextPid()} is the checkpoint: every resource below it has
+ * been reindexed, so a job which is interrupted (e.g. by a restart) resumes from there.
+ */
+//@formatter:off
+@Entity
+@Table(name = "HFJ_REINDEX_JOB", indexes= {
+	@Index(name="IDX_REINDEX_JOB_STATUS", columnList="JOB_STATUS")
+})
+//@formatter:on
+public class ReindexJob implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "CREATED", nullable = false)
+	private Date myCreated;
+
+	@Column(name = "END_PID", nullable = false)
+	private long myEndPid;
+
+	@Column(name = "FAILED_COUNT", nullable = false)
+	private long myFailedCount;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "FINISHED", nullable = true)
+	private Date myFinished;
+
+	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_REINDEX_JOB")
+	@SequenceGenerator(name = "SEQ_REINDEX_JOB", sequenceName = "SEQ_REINDEX_JOB")
+	@Id
+	@Column(name = "PID")
+	private Long myId;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "LAST_UPDATED", nullable = false)
+	private Date myLastUpdated;
+
+	@Column(name = "NEXT_PID", nullable = false)
+	private long myNextPid;
+
+	@Column(name = "PROCESSED_COUNT", nullable = false)
+	private long myProcessedCount;
+
+	@Column(name = "RES_TYPE", length = ResourceTable.RESTYPE_LEN, nullable = true)
+	private String myResourceType;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name = "STARTED", nullable = true)
+	private Date myStarted;
+
+	@Enumerated(EnumType.STRING)
+	@Column(name = "JOB_STATUS", length = 20, nullable = false)
+	private ReindexJobStatusEnum myStatus;
+
+	@Column(name = "TOTAL_COUNT", nullable = false)
+	private long myTotalCount;
+
+	public Date getCreated() {
+		return myCreated;
+	}
+
+	/**
+	 * The highest PID which will be reindexed by this job
+	 */
+	public long getEndPid() {
+		return myEndPid;
+	}
+
+	/**
+	 * The number of resources which couldn't be reindexed, and were marked as having failed indexing instead
+	 */
+	public long getFailedCount() {
+		return myFailedCount;
+	}
+
+	public Date getFinished() {
+		return myFinished;
+	}
+
+	public Long getId() {
+		return myId;
+	}
+
+	public Date getLastUpdated() {
+		return myLastUpdated;
+	}
+
+	/**
+	 * The lowest PID which hasn't been reindexed yet
+	 */
+	public long getNextPid() {
+		return myNextPid;
+	}
+
+	public long getProcessedCount() {
+		return myProcessedCount;
+	}
+
+	/**
+	 * The resource type being reindexed, or <code>null</code> for all resources
+	 */
+	public String getResourceType() {
+		return myResourceType;
+	}
+
+	/**
+	 * The time at which the first chunk of this job was processed
+	 */
+	public Date getStarted() {
+		return myStarted;
+	}
+
+	public ReindexJobStatusEnum getStatus() {
+		return myStatus;
+	}
+
+	/**
+	 * The number of resources which needed reindexing when the job was created
+	 */
+	public long getTotalCount() {
+		return myTotalCount;
+	}
+
+	public void setCreated(Date theCreated) {
+		myCreated = theCreated;
+	}
+
+	public void setEndPid(long theEndPid) {
+		myEndPid = theEndPid;
+	}
+
+	public void setFailedCount(long theFailedCount) {
+		myFailedCount = theFailedCount;
+	}
+
+	public void setFinished(Date theFinished) {
+		myFinished = theFinished;
+	}
+
+	public void setLastUpdated(Date theLastUpdated) {
+		myLastUpdated = theLastUpdated;
+	}
+
+	public void setNextPid(long theNextPid) {
+		myNextPid = theNextPid;
+	}
+
+	public void setProcessedCount(long theProcessedCount) {
+		myProcessedCount = theProcessedCount;
+	}
+
+	public void setResourceType(String theResourceType) {
+		myResourceType = theResourceType;
+	}
+
+	public void setStarted(Date theStarted) {
+		myStarted = theStarted;
+	}
+
+	public void setStatus(ReindexJobStatusEnum theStatus) {
+		myStatus = theStatus;
+	}
+
+	public void setTotalCount(long theTotalCount) {
+		myTotalCount = theTotalCount;
+	}
+
+}
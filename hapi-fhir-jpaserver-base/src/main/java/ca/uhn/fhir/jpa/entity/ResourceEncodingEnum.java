@@ -20,19 +20,156 @@ package ca.uhn.fhir.jpa.entity;
  * #L%
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import com.google.common.base.Charsets;
+
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.GZipUtil;
+import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.parser.IParser;
 
+/**
+ * The encoding used to store resource bodies in the RES_TEXT column of HFJ_RESOURCE and HFJ_RES_VER. Each encoding
+ * knows how to turn the encoded resource text into bytes and back again. Note that the name of each constant is stored
+ * in the database (in a column limited to 5 characters), so constants must never be renamed or removed.
+ */
 public enum ResourceEncodingEnum {
 
 	/** Json */
-	JSON,
-	
+	JSON {
+		@Override
+		public byte[] encode(String theEncoded) {
+			return theEncoded.getBytes(Charsets.UTF_8);
+		}
+
+		@Override
+		protected InputStream newDecodingStream(byte[] theBytes) {
+			return new ByteArrayInputStream(theBytes);
+		}
+	},
+
 	/** Json Compressed */
-	JSONC;
+	JSONC {
+		@Override
+		public byte[] encode(String theEncoded) {
+			return GZipUtil.compress(theEncoded);
+		}
+
+		@Override
+		protected InputStream newDecodingStream(byte[] theBytes) throws IOException {
+			return new GZIPInputStream(new ByteArrayInputStream(theBytes));
+		}
+	},
+
+	/**
+	 * Json compressed using raw Deflate with a preset dictionary of fragments which appear in most FHIR JSON resources.
+	 * This is smaller than {@link #JSONC} for typical (small) resources, and faster to read since there is no GZIP
+	 * header or CRC to process.
+	 */
+	JSOND {
+		@Override
+		public byte[] encode(String theEncoded) {
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+			try {
+				deflater.setDictionary(ourDeflateDictionary);
+				ByteArrayOutputStream os = new ByteArrayOutputStream();
+				DeflaterOutputStream dos = new DeflaterOutputStream(os, deflater);
+				dos.write(theEncoded.getBytes(Charsets.UTF_8));
+				dos.close();
+				return os.toByteArray();
+			} catch (IOException e) {
+				throw new DataFormatException("Failed to compress contents", e);
+			} finally {
+				deflater.end();
+			}
+		}
+
+		@Override
+		protected InputStream newDecodingStream(byte[] theBytes) {
+			final Inflater inflater = new Inflater(true);
+			inflater.setDictionary(ourDeflateDictionary);
+
+			/*
+			 * A raw inflater needs an extra "dummy" byte after the end of the compressed data
+			 */
+			InputStream input = new SequenceInputStream(new ByteArrayInputStream(theBytes), new ByteArrayInputStream(new byte[1]));
+			return new InflaterInputStream(input, inflater) {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					inflater.end();
+				}
+			};
+		}
+	};
+
+	/**
+	 * The preset dictionary used by {@link #JSOND}. Resources which have already been stored can only be decoded using
+	 * the exact dictionary they were encoded with, so this must never be changed. Deflate favours matches near the end
+	 * of the dictionary, so the most common fragments come last.
+	 */
+	private static final byte[] ourDeflateDictionary = ("" +
+		"\"http://hl7.org/fhir/StructureDefinition/\"http://hl7.org/fhir/ValueSet/\"http://www.w3.org/1999/xhtml\\\">" +
+		"\"telecom\":[{\"system\":\"phone\",\"value\":\"\"address\":[{\"use\":\"home\",\"line\":[\"\"city\":\"\"postalCode\":\"" +
+		"\"name\":[{\"family\":[\"\"given\":[\"\"gender\":\"\"birthDate\":\"\"active\":true,\"period\":{\"start\":\"\"end\":\"" +
+		"\"valueQuantity\":{\"value\":\"unit\":\"\"valueString\":\"\"valueCodeableConcept\":{\"effectiveDateTime\":\"" +
+		"\"issued\":\"\"status\":\"final\"\"category\":{\"subject\":{\"reference\":\"Patient/\"encounter\":{\"reference\":\"" +
+		"\"performer\":[{\"reference\":\"Practitioner/\"display\":\"\"extension\":[{\"url\":\"\"valueCoding\":{" +
+		"\"identifier\":[{\"use\":\"usual\",\"system\":\"urn:oid:\"http://snomed.info/sct\"\"http://loinc.org\"" +
+		"\"text\":{\"status\":\"generated\",\"div\":\"<div xmlns=\\\"http://www.w3.org/1999/xhtml\\\">\"}," +
+		"\"code\":{\"coding\":[{\"system\":\"\"code\":\"\"display\":\"\"reference\":\"\"value\":\"" +
+		"{\"resourceType\":\"\"id\":\"\"meta\":{\"versionId\":\"\"lastUpdated\":\"\"system\":\"http://hl7.org/fhir/"
+		).getBytes(Charsets.UTF_8);
+
+	/**
+	 * Returns a reader over the decoded resource text, suitable for passing directly to a parser. The caller should
+	 * close the reader once it is finished.
+	 */
+	public Reader decode(byte[] theBytes) {
+		try {
+			return new InputStreamReader(newDecodingStream(theBytes), Charsets.UTF_8);
+		} catch (IOException e) {
+			throw new DataFormatException("Failed to decompress contents", e);
+		}
+	}
+
+	/**
+	 * Decodes the given bytes into the resource text
+	 */
+	public String decodeToString(byte[] theBytes) {
+		Reader reader = decode(theBytes);
+		try {
+			return IOUtils.toString(reader);
+		} catch (IOException e) {
+			throw new DataFormatException("Failed to decompress contents", e);
+		} finally {
+			IOUtils.closeQuietly(reader);
+		}
+	}
+
+	/**
+	 * Encodes the given resource text into the bytes which will be stored
+	 */
+	public abstract byte[] encode(String theEncoded);
 
 	public IParser newParser(FhirContext theContext) {
 		return theContext.newJsonParser();
 	}
-	
+
+	protected abstract InputStream newDecodingStream(byte[] theBytes) throws IOException;
+
 }
@@ -20,9 +20,15 @@ package ca.uhn.fhir.jpa.entity;
  * #L%
  */
 
+import java.util.List;
+
 import javax.persistence.Column;
 import javax.persistence.Embeddable;
 import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 
 import org.apache.commons.lang3.builder.EqualsBuilder;
@@ -45,6 +51,12 @@ public class ResourceIndexedSearchParamCoords extends BaseResourceIndexedSearchP
 
 	private static final long serialVersionUID = 1L;
 
+	@Id
+	@SequenceGenerator(name = "SEQ_SPIDX_COORDS", sequenceName = "SEQ_SPIDX_COORDS", allocationSize = 50)
+	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_SPIDX_COORDS")
+	@Column(name = "SP_ID")
+	private Long myId;
+
 	@Column(name = "SP_LATITUDE")
 	@Field
 	public double myLatitude;
@@ -62,6 +74,12 @@ public class ResourceIndexedSearchParamCoords extends BaseResourceIndexedSearchP
 		setLongitude(theLongitude);
 	}
 
+	@Override
+	protected void addValueKeyParts(List<Object> theParts) {
+		theParts.add(getLatitude());
+		theParts.add(getLongitude());
+	}
+
 	@Override
 	public boolean equals(Object theObj) {
 		if (this == theObj) {
@@ -82,6 +100,11 @@ public class ResourceIndexedSearchParamCoords extends BaseResourceIndexedSearchP
 		return b.isEquals();
 	}
 
+	@Override
+	protected Long getId() {
+		return myId;
+	}
+
 	public double getLatitude() {
 		return myLatitude;
 	}
@@ -21,10 +21,15 @@ package ca.uhn.fhir.jpa.entity;
  */
 
 import java.util.Date;
+import java.util.List;
 
 import javax.persistence.Column;
 import javax.persistence.Embeddable;
 import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
@@ -47,6 +52,12 @@ public class ResourceIndexedSearchParamDate extends BaseResourceIndexedSearchPar
 
 	private static final long serialVersionUID = 1L;
 
+	@Id
+	@SequenceGenerator(name = "SEQ_SPIDX_DATE", sequenceName = "SEQ_SPIDX_DATE", allocationSize = 50)
+	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_SPIDX_DATE")
+	@Column(name = "SP_ID")
+	private Long myId;
+
 	@Column(name = "SP_VALUE_HIGH", nullable = true)
 	@Temporal(TemporalType.TIMESTAMP)
 	@Field
@@ -72,6 +83,12 @@ public class ResourceIndexedSearchParamDate extends BaseResourceIndexedSearchPar
 		setValueHigh(theHigh);
 	}
 
+	@Override
+	protected void addValueKeyParts(List<Object> theParts) {
+		theParts.add(normalizeForValueKey(getValueHigh()));
+		theParts.add(normalizeForValueKey(getValueLow()));
+	}
+
 	@Override
 	public boolean equals(Object theObj) {
 		if (this == theObj) {
@@ -92,6 +109,11 @@ public class ResourceIndexedSearchParamDate extends BaseResourceIndexedSearchPar
 		return b.isEquals();
 	}
 
+	@Override
+	protected Long getId() {
+		return myId;
+	}
+
 	public Date getValueHigh() {
 		return myValueHigh;
 	}
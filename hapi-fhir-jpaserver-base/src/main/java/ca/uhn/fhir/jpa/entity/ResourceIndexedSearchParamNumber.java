@@ -21,10 +21,15 @@ package ca.uhn.fhir.jpa.entity;
  */
 
 import java.math.BigDecimal;
+import java.util.List;
 
 import javax.persistence.Column;
 import javax.persistence.Embeddable;
 import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 
 import org.apache.commons.lang3.builder.EqualsBuilder;
@@ -49,6 +54,12 @@ public class ResourceIndexedSearchParamNumber extends BaseResourceIndexedSearchP
 
 	private static final long serialVersionUID = 1L;
 
+	@Id
+	@SequenceGenerator(name = "SEQ_SPIDX_NUMBER", sequenceName = "SEQ_SPIDX_NUMBER", allocationSize = 50)
+	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_SPIDX_NUMBER")
+	@Column(name = "SP_ID")
+	private Long myId;
+
 	@Column(name = "SP_VALUE", nullable = true)
 	@Field
 	@NumericField
@@ -63,6 +74,11 @@ public class ResourceIndexedSearchParamNumber extends BaseResourceIndexedSearchP
 		setValue(theValue);
 	}
 
+	@Override
+	protected void addValueKeyParts(List<Object> theParts) {
+		theParts.add(normalizeForValueKey(getValue()));
+	}
+
 	@Override
 	public boolean equals(Object theObj) {
 		if (this == theObj) {
@@ -82,6 +98,11 @@ public class ResourceIndexedSearchParamNumber extends BaseResourceIndexedSearchP
 		return b.isEquals();
 	}
 
+	@Override
+	protected Long getId() {
+		return myId;
+	}
+
 	public BigDecimal getValue() {
 		return myValue;
 	}
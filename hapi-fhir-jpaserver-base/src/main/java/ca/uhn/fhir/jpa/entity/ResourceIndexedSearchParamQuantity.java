@@ -21,10 +21,15 @@ package ca.uhn.fhir.jpa.entity;
  */
 
 import java.math.BigDecimal;
+import java.util.List;
 
 import javax.persistence.Column;
 import javax.persistence.Embeddable;
 import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 
 import org.apache.commons.lang3.builder.EqualsBuilder;
@@ -51,6 +56,12 @@ public class ResourceIndexedSearchParamQuantity extends BaseResourceIndexedSearc
 
 	private static final long serialVersionUID = 1L;
 
+	@Id
+	@SequenceGenerator(name = "SEQ_SPIDX_QUANTITY", sequenceName = "SEQ_SPIDX_QUANTITY", allocationSize = 50)
+	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_SPIDX_QUANTITY")
+	@Column(name = "SP_ID")
+	private Long myId;
+
 	@Column(name = "SP_SYSTEM", nullable = true, length = MAX_LENGTH)
 	@Field
 	public String mySystem;
@@ -76,6 +87,13 @@ public class ResourceIndexedSearchParamQuantity extends BaseResourceIndexedSearc
 		setUnits(theUnits);
 	}
 
+	@Override
+	protected void addValueKeyParts(List<Object> theParts) {
+		theParts.add(getSystem());
+		theParts.add(getUnits());
+		theParts.add(normalizeForValueKey(getValue()));
+	}
+
 	@Override
 	public boolean equals(Object theObj) {
 		if (this == theObj) {
@@ -97,6 +115,11 @@ public class ResourceIndexedSearchParamQuantity extends BaseResourceIndexedSearc
 		return b.isEquals();
 	}
 
+	@Override
+	protected Long getId() {
+		return myId;
+	}
+
 	public String getSystem() {
 		return mySystem;
 	}
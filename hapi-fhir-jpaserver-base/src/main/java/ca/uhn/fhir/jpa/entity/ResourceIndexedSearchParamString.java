@@ -20,11 +20,17 @@ package ca.uhn.fhir.jpa.entity;
  * #L%
  */
 
+import java.util.List;
+
 import javax.persistence.Column;
 import javax.persistence.Embeddable;
 import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 
 import org.apache.commons.lang3.StringUtils;
@@ -45,7 +51,9 @@ import org.hibernate.search.annotations.Store;
 @Entity
 @Table(name = "HFJ_SPIDX_STRING"/* , indexes= {@Index(name="IDX_SP_STRING", columnList="SP_VALUE_NORMALIZED")} */)
 @org.hibernate.annotations.Table(appliesTo = "HFJ_SPIDX_STRING", indexes = { 
-		@org.hibernate.annotations.Index(name = "IDX_SP_STRING", columnNames = { "RES_TYPE", "SP_NAME", "SP_VALUE_NORMALIZED" }) 
+		@org.hibernate.annotations.Index(name = "IDX_SP_STRING", columnNames = { "RES_TYPE", "SP_NAME", "SP_VALUE_NORMALIZED" }),
+		@org.hibernate.annotations.Index(name = "IDX_SP_STRING_HASH_EXCT", columnNames = { "HASH_EXACT", "RES_ID" }),
+		@org.hibernate.annotations.Index(name = "IDX_SP_STRING_HASH_NRM", columnNames = { "HASH_NORM_PREFIX", "SP_VALUE_NORMALIZED", "RES_ID" })
 })
 @Indexed()
 //@AnalyzerDefs({
@@ -99,8 +107,34 @@ public class ResourceIndexedSearchParamString extends BaseResourceIndexedSearchP
 	 */
 	public static final int MAX_LENGTH = 200;
 
+	/**
+	 * The number of leading characters of the normalized value which are included in the normalized prefix hash. Searches
+	 * for a shorter value can't use the hash.
+	 */
+	public static final int HASH_PREFIX_LENGTH = 3;
+
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Hash of the resource type, parameter name and exact value (see
+	 * {@link ca.uhn.fhir.jpa.dao.DaoConfig#setHashedIndexSearchEnabled(boolean)})
+	 */
+	@Column(name = "HASH_EXACT", nullable = true)
+	private Long myHashExact;
+
+	/**
+	 * Hash of the resource type, parameter name and the first {@link #HASH_PREFIX_LENGTH} characters of the normalized
+	 * value, which narrows down the rows a (left anchored) normalized string search needs to check
+	 */
+	@Column(name = "HASH_NORM_PREFIX", nullable = true)
+	private Long myHashNormalizedPrefix;
+
+	@Id
+	@SequenceGenerator(name = "SEQ_SPIDX_STRING", sequenceName = "SEQ_SPIDX_STRING", allocationSize = 50)
+	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_SPIDX_STRING")
+	@Column(name = "SP_ID")
+	private Long myId;
+
 	@Column(name = "SP_VALUE_EXACT", length = MAX_LENGTH, nullable = true)
 	@Fields({
 		@Field(name = "myValueText", index = org.hibernate.search.annotations.Index.YES, store = Store.YES, analyze = Analyze.YES, analyzer = @Analyzer(definition = "standardAnalyzer")),
@@ -128,6 +162,17 @@ public class ResourceIndexedSearchParamString extends BaseResourceIndexedSearchP
 		setValueExact(theValueExact);
 	}
 
+	@Override
+	protected void addValueKeyParts(List<Object> theParts) {
+		theParts.add(getValueExact());
+	}
+
+	@Override
+	public void calculateHashes() {
+		myHashExact = calculateHashExact(getResourceType(), getParamName(), getValueExact());
+		myHashNormalizedPrefix = calculateHashNormalizedPrefix(getResourceType(), getParamName(), getValueNormalized());
+	}
+
 	@Override
 	public boolean equals(Object theObj) {
 		if (this == theObj) {
@@ -147,6 +192,19 @@ public class ResourceIndexedSearchParamString extends BaseResourceIndexedSearchP
 		return b.isEquals();
 	}
 
+	public Long getHashExact() {
+		return myHashExact;
+	}
+
+	public Long getHashNormalizedPrefix() {
+		return myHashNormalizedPrefix;
+	}
+
+	@Override
+	protected Long getId() {
+		return myId;
+	}
+
 	public String getValueExact() {
 		return myValueExact;
 	}
@@ -187,4 +245,12 @@ public class ResourceIndexedSearchParamString extends BaseResourceIndexedSearchP
 		return b.build();
 	}
 
+	public static long calculateHashExact(String theResourceType, String theParamName, String theValueExact) {
+		return hash(theResourceType, theParamName, theValueExact);
+	}
+
+	public static long calculateHashNormalizedPrefix(String theResourceType, String theParamName, String theValueNormalized) {
+		return hash(theResourceType, theParamName, StringUtils.left(theValueNormalized, HASH_PREFIX_LENGTH));
+	}
+
 }
@@ -20,9 +20,15 @@ package ca.uhn.fhir.jpa.entity;
  * #L%
  */
 
+import java.util.List;
+
 import javax.persistence.Column;
 import javax.persistence.Embeddable;
 import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 
 import org.apache.commons.lang3.StringUtils;
@@ -36,13 +42,34 @@ import org.hibernate.search.annotations.Field;
 @Entity
 @Table(name = "HFJ_SPIDX_TOKEN" /* , indexes = { @Index(name = "IDX_SP_TOKEN", columnList = "SP_SYSTEM,SP_VALUE") } */)
 @org.hibernate.annotations.Table(appliesTo = "HFJ_SPIDX_TOKEN", indexes = { @org.hibernate.annotations.Index(name = "IDX_SP_TOKEN", columnNames = { "RES_TYPE", "SP_NAME", "SP_SYSTEM", "SP_VALUE" }),
-		@org.hibernate.annotations.Index(name = "IDX_SP_TOKEN_UNQUAL", columnNames = { "RES_TYPE", "SP_NAME", "SP_VALUE" }) })
+		@org.hibernate.annotations.Index(name = "IDX_SP_TOKEN_UNQUAL", columnNames = { "RES_TYPE", "SP_NAME", "SP_VALUE" }),
+		@org.hibernate.annotations.Index(name = "IDX_SP_TOKEN_HASH", columnNames = { "HASH_SYS_AND_VALUE", "RES_ID" }),
+		@org.hibernate.annotations.Index(name = "IDX_SP_TOKEN_HASH_V", columnNames = { "HASH_VALUE", "RES_ID" }) })
 public class ResourceIndexedSearchParamToken extends BaseResourceIndexedSearchParam {
 
 	public static final int MAX_LENGTH = 200;
 
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Hash of the resource type, parameter name, system and value (see
+	 * {@link ca.uhn.fhir.jpa.dao.DaoConfig#setHashedIndexSearchEnabled(boolean)})
+	 */
+	@Column(name = "HASH_SYS_AND_VALUE", nullable = true)
+	private Long myHashSystemAndValue;
+
+	/**
+	 * Hash of the resource type, parameter name and value, used for searches which don't specify a system
+	 */
+	@Column(name = "HASH_VALUE", nullable = true)
+	private Long myHashValue;
+
+	@Id
+	@SequenceGenerator(name = "SEQ_SPIDX_TOKEN", sequenceName = "SEQ_SPIDX_TOKEN", allocationSize = 50)
+	@GeneratedValue(strategy = GenerationType.AUTO, generator = "SEQ_SPIDX_TOKEN")
+	@Column(name = "SP_ID")
+	private Long myId;
+
 	@Field()
 	@Column(name = "SP_SYSTEM", nullable = true, length = MAX_LENGTH)
 	public String mySystem;
@@ -60,6 +87,18 @@ public class ResourceIndexedSearchParamToken extends BaseResourceIndexedSearchPa
 		setValue(theValue);
 	}
 
+	@Override
+	protected void addValueKeyParts(List<Object> theParts) {
+		theParts.add(getSystem());
+		theParts.add(getValue());
+	}
+
+	@Override
+	public void calculateHashes() {
+		myHashSystemAndValue = calculateHashSystemAndValue(getResourceType(), getParamName(), getSystem(), getValue());
+		myHashValue = calculateHashValue(getResourceType(), getParamName(), getValue());
+	}
+
 	@Override
 	public boolean equals(Object theObj) {
 		if (this == theObj) {
@@ -80,6 +119,19 @@ public class ResourceIndexedSearchParamToken extends BaseResourceIndexedSearchPa
 		return b.isEquals();
 	}
 
+	public Long getHashSystemAndValue() {
+		return myHashSystemAndValue;
+	}
+
+	public Long getHashValue() {
+		return myHashValue;
+	}
+
+	@Override
+	protected Long getId() {
+		return myId;
+	}
+
 	public String getSystem() {
 		return mySystem;
 	}
@@ -115,4 +167,13 @@ public class ResourceIndexedSearchParamToken extends BaseResourceIndexedSearchPa
 		b.append("value", getValue());
 		return b.build();
 	}
+
+	public static long calculateHashSystemAndValue(String theResourceType, String theParamName, String theSystem, String theValue) {
+		return hash(theResourceType, theParamName, theSystem, theValue);
+	}
+
+	public static long calculateHashValue(String theResourceType, String theParamName, String theValue) {
+		return hash(theResourceType, theParamName, theValue);
+	}
+
 }
@@ -74,6 +74,7 @@ import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 @Entity
 @Table(name = "HFJ_RESOURCE", uniqueConstraints = {}, indexes= {
 	@Index(name = "IDX_RES_DATE", columnList="RES_UPDATED"), 
+	@Index(name = "IDX_RES_TYPE_DATE", columnList="RES_TYPE,RES_UPDATED,RES_ID"), 
 	@Index(name = "IDX_RES_LANG", columnList="RES_TYPE,RES_LANGUAGE"), 
 	@Index(name = "IDX_RES_PROFILE", columnList="RES_PROFILE"),
 	@Index(name = "IDX_INDEXSTATUS", columnList="SP_INDEX_STATUS") 
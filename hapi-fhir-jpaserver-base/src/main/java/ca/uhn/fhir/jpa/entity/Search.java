@@ -21,20 +21,25 @@ package ca.uhn.fhir.jpa.entity;
  */
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Date;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Index;
+import javax.persistence.OneToMany;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 import javax.persistence.UniqueConstraint;
 
+import ca.uhn.fhir.rest.param.DateRangeParam;
+
 //@formatter:off
 @Entity
 @Table(name = "HFJ_SEARCH", uniqueConstraints= {
@@ -57,6 +62,26 @@ public class Search implements Serializable {
 	@Column(name = "PID")
 	private Long myId;
 
+	@OneToMany(mappedBy = "mySearch", cascade = {}, fetch = FetchType.LAZY, orphanRemoval = false)
+	private Collection<SearchInclude> myIncludes;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name="LAST_UPDATED_HIGH", nullable=true)
+	private Date myLastUpdatedHigh;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	@Column(name="LAST_UPDATED_LOW", nullable=true)
+	private Date myLastUpdatedLow;
+
+	@Column(name="NUM_MATCHES")
+	private int myNumMatches;
+
+	@Column(name="PREFERRED_PAGE_SIZE", nullable=true)
+	private Integer myPreferredPageSize;
+
+	@Column(name="RESOURCE_TYPE", length=30, nullable=true)
+	private String myResourceType;
+
 	@Column(name="TOTAL_COUNT")
 	private int myTotalCount;
 	
@@ -67,6 +92,40 @@ public class Search implements Serializable {
 		return myCreated;
 	}
 
+	public Long getId() {
+		return myId;
+	}
+
+	public Collection<SearchInclude> getIncludes() {
+		return myIncludes;
+	}
+
+	/**
+	 * Returns the <code>_lastUpdated</code> range which the search was restricted to, or <code>null</code>
+	 */
+	public DateRangeParam getLastUpdated() {
+		if (myLastUpdatedLow == null && myLastUpdatedHigh == null) {
+			return null;
+		}
+		return new DateRangeParam(myLastUpdatedLow, myLastUpdatedHigh);
+	}
+
+	/**
+	 * Returns the number of results which matched the search. Any results beyond this count (see
+	 * {@link #getTotalCount()}) were added by <code>_revinclude</code>.
+	 */
+	public int getNumMatches() {
+		return myNumMatches;
+	}
+
+	public Integer getPreferredPageSize() {
+		return myPreferredPageSize;
+	}
+
+	public String getResourceType() {
+		return myResourceType;
+	}
+
 	public int getTotalCount() {
 		return myTotalCount;
 	}
@@ -79,6 +138,23 @@ public class Search implements Serializable {
 		myCreated = theCreated;
 	}
 
+	public void setLastUpdated(Date theLowerBound, Date theUpperBound) {
+		myLastUpdatedLow = theLowerBound;
+		myLastUpdatedHigh = theUpperBound;
+	}
+
+	public void setNumMatches(int theNumMatches) {
+		myNumMatches = theNumMatches;
+	}
+
+	public void setPreferredPageSize(Integer thePreferredPageSize) {
+		myPreferredPageSize = thePreferredPageSize;
+	}
+
+	public void setResourceType(String theResourceType) {
+		myResourceType = theResourceType;
+	}
+
 	public void setTotalCount(int theTotalCount) {
 		myTotalCount = theTotalCount;
 	}
@@ -32,10 +32,12 @@ import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
 
 //@formatter:off
 @Entity
 @Table(name = "HFJ_SEARCH_RESULT", uniqueConstraints= {
+	@UniqueConstraint(name="IDX_SEARCHRES_ORDER", columnNames= {"SEARCH_PID", "SEARCH_ORDER"})
 })
 //@formatter:on
 public class SearchResult implements Serializable {
@@ -43,11 +45,14 @@ public class SearchResult implements Serializable {
 	private static final long serialVersionUID = 1L;
 	
 	@GeneratedValue(strategy = GenerationType.AUTO, generator="SEQ_SEARCH_RES")
-	@SequenceGenerator(name="SEQ_SEARCH_RES", sequenceName="SEQ_SEARCH_RES")
+	@SequenceGenerator(name="SEQ_SEARCH_RES", sequenceName="SEQ_SEARCH_RES", allocationSize = 50)
 	@Id
 	@Column(name = "PID")
 	private Long myId;
 
+	@Column(name="SEARCH_ORDER", nullable=false)
+	private int myOrder;
+
 	@ManyToOne
 	@JoinColumn(name="RESOURCE_PID", referencedColumnName="RES_ID", foreignKey=@ForeignKey(name="FK_SEARCHRES_RES"), insertable=false, updatable=false, nullable=false)
 	private ResourceTable myResource;
@@ -58,6 +63,9 @@ public class SearchResult implements Serializable {
 	@ManyToOne
 	@JoinColumn(name="SEARCH_PID", referencedColumnName="PID", foreignKey=@ForeignKey(name="FK_SEARCHRES_SEARCH"))
 	private Search mySearch;
+
+	@Column(name="SEARCH_PID", insertable=false, updatable=false, nullable=false)
+	private Long mySearchPid;
 	
 	/**
 	 * Constructor
@@ -73,6 +81,18 @@ public class SearchResult implements Serializable {
 		mySearch = theSearch;
 	}
 
+	public int getOrder() {
+		return myOrder;
+	}
+
+	public Long getResourcePid() {
+		return myResourcePid;
+	}
+
+	public void setOrder(int theOrder) {
+		myOrder = theOrder;
+	}
+
 	public void setResourcePid(Long theResourcePid) {
 		myResourcePid = theResourcePid;
 	}
@@ -20,7 +20,10 @@ package ca.uhn.fhir.jpa.provider;
  * #L%
  */
 
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -30,11 +33,27 @@ import org.apache.commons.lang3.StringUtils;
 import org.jboss.logging.MDC;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.dao.BulkExportSvc;
+import ca.uhn.fhir.jpa.entity.BulkExportJob;
+import ca.uhn.fhir.model.primitive.InstantDt;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.method.RequestDetails;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
 import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 
 public class BaseJpaProvider {
 
 	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(BaseJpaProvider.class);
+	public static final String OPERATION_EXPORT = "$export";
+	public static final String OPERATION_EXPORT_POLL_STATUS = "$export-poll-status";
+	public static final String OPERATION_IMPORT = "$import";
+	public static final String PARAM_EXPORT_ELEMENTS = "_elements";
+	public static final String PARAM_EXPORT_JOB_ID = "_jobId";
+	public static final String PARAM_EXPORT_SINCE = "_since";
+	public static final String PARAM_EXPORT_TYPE = "_type";
+	public static final String PARAM_IMPORT_DEFER_INDEXING = "deferIndexing";
+	public static final String PARAM_IMPORT_NDJSON = "ndjson";
 	public static final String REMOTE_ADDR = "req.remoteAddr";
 	public static final String REMOTE_UA = "req.userAgent";
 
@@ -49,6 +68,13 @@ public class BaseJpaProvider {
 		endRequest(theRequest.getServletRequest());
 	}
 
+	/**
+	 * Returns the URL which a client polls to find out whether the given export job has finished
+	 */
+	protected static String getBulkExportStatusUrl(RequestDetails theRequestDetails, BulkExportJob theJob) {
+		return theRequestDetails.getFhirServerBase() + "/" + OPERATION_EXPORT_POLL_STATUS + "?" + PARAM_EXPORT_JOB_ID + "=" + theJob.getId();
+	}
+
 	public FhirContext getContext() {
 		return myContext;
 	}
@@ -96,4 +122,48 @@ public class BaseJpaProvider {
 		startRequest(theRequest.getServletRequest());
 	}
 
+	/**
+	 * Validates the parameters of an <code>$export</code> operation and submits the job
+	 * 
+	 * @param theTypes
+	 *           Comma separated list of resource types, or <code>null</code> for all types
+	 */
+	protected static BulkExportJob submitBulkExport(BulkExportSvc theBulkExportSvc, RequestDetails theRequestDetails, String theTypes, String theSince, String theElements) {
+		if (theBulkExportSvc == null) {
+			throw new NotImplementedOperationException("Bulk export is not enabled on this server");
+		}
+
+		FhirContext context = theRequestDetails.getServer().getFhirContext();
+		List<String> types = new ArrayList<String>();
+		for (String next : StringUtils.split(StringUtils.defaultString(theTypes), ',')) {
+			String type = next.trim();
+			if (type.length() > 0) {
+				try {
+					context.getResourceDefinition(type);
+				} catch (DataFormatException e) {
+					throw new InvalidRequestException("Unknown resource type: " + type);
+				}
+				types.add(type);
+			}
+		}
+
+		Date since = null;
+		if (StringUtils.isNotBlank(theSince)) {
+			try {
+				since = new InstantDt(theSince.trim()).getValue();
+			} catch (DataFormatException e) {
+				throw new InvalidRequestException("Invalid " + PARAM_EXPORT_SINCE + " value: " + theSince);
+			}
+		}
+
+		List<String> elements = new ArrayList<String>();
+		for (String next : StringUtils.split(StringUtils.defaultString(theElements), ',')) {
+			if (StringUtils.isNotBlank(next)) {
+				elements.add(next.trim());
+			}
+		}
+
+		return theBulkExportSvc.submitJob(types, since, elements);
+	}
+
 }
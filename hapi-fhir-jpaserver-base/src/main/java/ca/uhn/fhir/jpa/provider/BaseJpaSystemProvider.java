@@ -27,6 +27,8 @@ import javax.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Required;
 
 import ca.uhn.fhir.jpa.dao.IFhirSystemDao;
+import ca.uhn.fhir.jpa.entity.ReindexJob;
+import ca.uhn.fhir.jpa.entity.ReindexJobStatusEnum;
 import ca.uhn.fhir.model.api.TagList;
 import ca.uhn.fhir.rest.annotation.GetTags;
 import ca.uhn.fhir.rest.annotation.History;
@@ -56,6 +58,40 @@ public class BaseJpaSystemProvider<T, MT> extends BaseJpaProvider {
 		}
 	}
 
+	/**
+	 * Returns the estimated time at which the given reindex job will complete based on its rate so far, or
+	 * <code>null</code> if the job has not started or has already finished
+	 */
+	protected static Date estimateReindexCompletion(ReindexJob theJob) {
+		Double rate = getReindexRate(theJob);
+		if (theJob.getStatus() != ReindexJobStatusEnum.RUNNING || rate == null || rate <= 0) {
+			return null;
+		}
+		long remaining = Math.max(0, theJob.getTotalCount() - theJob.getProcessedCount() - theJob.getFailedCount());
+		return new Date(System.currentTimeMillis() + (long) ((remaining * 1000L) / rate));
+	}
+
+	protected static double getReindexPercentComplete(ReindexJob theJob) {
+		if (theJob.getStatus() == ReindexJobStatusEnum.COMPLETE || theJob.getTotalCount() == 0) {
+			return 100.0;
+		}
+		double retVal = ((theJob.getProcessedCount() + theJob.getFailedCount()) * 100.0) / theJob.getTotalCount();
+		return Math.min(retVal, 100.0);
+	}
+
+	/**
+	 * Returns the number of resources per second the given reindex job has processed since it started, or
+	 * <code>null</code> if it has not started yet
+	 */
+	protected static Double getReindexRate(ReindexJob theJob) {
+		if (theJob.getStarted() == null) {
+			return null;
+		}
+		Date end = theJob.getFinished() != null ? theJob.getFinished() : theJob.getLastUpdated();
+		long millis = Math.max(1, end.getTime() - theJob.getStarted().getTime());
+		return ((theJob.getProcessedCount() + theJob.getFailedCount()) * 1000.0) / millis;
+	}
+
 	protected IFhirSystemDao<T, MT> getDao() {
 		return myDao;
 	}
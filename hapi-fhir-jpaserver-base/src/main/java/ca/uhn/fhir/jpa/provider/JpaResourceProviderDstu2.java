@@ -22,11 +22,18 @@ package ca.uhn.fhir.jpa.provider;
 
 import javax.servlet.http.HttpServletRequest;
 
+import org.springframework.beans.factory.annotation.Autowired;
+
+import ca.uhn.fhir.jpa.dao.BulkExportSvc;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.entity.BulkExportJob;
 import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.dstu2.composite.MetaDt;
 import ca.uhn.fhir.model.dstu2.resource.Parameters;
 import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.model.primitive.IntegerDt;
+import ca.uhn.fhir.model.primitive.StringDt;
+import ca.uhn.fhir.model.primitive.UriDt;
 import ca.uhn.fhir.rest.annotation.ConditionalUrlParam;
 import ca.uhn.fhir.rest.annotation.Create;
 import ca.uhn.fhir.rest.annotation.Delete;
@@ -38,6 +45,7 @@ import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.annotation.Validate;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.ValidationModeEnum;
+import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.server.EncodingEnum;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 
@@ -47,6 +55,9 @@ public class JpaResourceProviderDstu2<T extends IResource> extends BaseJpaResour
 	public static final String OPERATION_NAME_META_DELETE = "$meta-delete";
 	public static final String OPERATION_NAME_META_ADD = "$meta-add";
 
+	@Autowired(required = false)
+	private BulkExportSvc myBulkExportSvc;
+
 	public JpaResourceProviderDstu2() {
 		// nothing
 	}
@@ -83,6 +94,26 @@ public class JpaResourceProviderDstu2<T extends IResource> extends BaseJpaResour
 		}
 	}
 
+	//@formatter:off
+	@Operation(name=OPERATION_EXPORT, idempotent=false, returnParameters= {
+		@OperationParam(name="jobId", type=IntegerDt.class, min=1, max=1),
+		@OperationParam(name="status", type=StringDt.class, min=1, max=1),
+		@OperationParam(name="statusUrl", type=UriDt.class, min=1, max=1)
+	})
+	//@formatter:on
+	public Parameters export(
+			RequestDetails theRequestDetails,
+			@OperationParam(name=PARAM_EXPORT_SINCE, min=0, max=1) String theSince,
+			@OperationParam(name=PARAM_EXPORT_ELEMENTS, min=0, max=1) String theElements) {
+		BulkExportJob job = submitBulkExport(myBulkExportSvc, theRequestDetails, theRequestDetails.getResourceName(), theSince, theElements);
+
+		Parameters retVal = new Parameters();
+		retVal.addParameter().setName("jobId").setValue(new IntegerDt(job.getId().intValue()));
+		retVal.addParameter().setName("status").setValue(new StringDt(job.getStatus().name()));
+		retVal.addParameter().setName("statusUrl").setValue(new UriDt(getBulkExportStatusUrl(theRequestDetails, job)));
+		return retVal;
+	}
+
 	//@formatter:off
 	@Operation(name=OPERATION_NAME_META, idempotent=true, returnParameters= {
 		@OperationParam(name="return", type=MetaDt.class)
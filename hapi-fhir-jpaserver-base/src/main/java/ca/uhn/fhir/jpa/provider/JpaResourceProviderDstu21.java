@@ -23,11 +23,20 @@ package ca.uhn.fhir.jpa.provider;
 import javax.servlet.http.HttpServletRequest;
 
 import org.hl7.fhir.dstu21.model.IdType;
+import org.hl7.fhir.dstu21.model.IntegerType;
 import org.hl7.fhir.dstu21.model.Meta;
 import org.hl7.fhir.dstu21.model.Parameters;
+import org.hl7.fhir.dstu21.model.StringType;
+import org.hl7.fhir.dstu21.model.UriType;
 import org.hl7.fhir.instance.model.api.IAnyResource;
+import org.springframework.beans.factory.annotation.Autowired;
 
+import ca.uhn.fhir.jpa.dao.BulkExportSvc;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.entity.BulkExportJob;
+import ca.uhn.fhir.model.primitive.IntegerDt;
+import ca.uhn.fhir.model.primitive.StringDt;
+import ca.uhn.fhir.model.primitive.UriDt;
 import ca.uhn.fhir.rest.annotation.ConditionalUrlParam;
 import ca.uhn.fhir.rest.annotation.Create;
 import ca.uhn.fhir.rest.annotation.Delete;
@@ -39,6 +48,7 @@ import ca.uhn.fhir.rest.annotation.Update;
 import ca.uhn.fhir.rest.annotation.Validate;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.ValidationModeEnum;
+import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.server.EncodingEnum;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 
@@ -48,6 +58,9 @@ public class JpaResourceProviderDstu21<T extends IAnyResource> extends BaseJpaRe
 	public static final String OPERATION_NAME_META_DELETE = "$meta-delete";
 	public static final String OPERATION_NAME_META_ADD = "$meta-add";
 
+	@Autowired(required = false)
+	private BulkExportSvc myBulkExportSvc;
+
 	public JpaResourceProviderDstu21() {
 		// nothing
 	}
@@ -84,6 +97,26 @@ public class JpaResourceProviderDstu21<T extends IAnyResource> extends BaseJpaRe
 		}
 	}
 
+	//@formatter:off
+	@Operation(name=OPERATION_EXPORT, idempotent=false, returnParameters= {
+		@OperationParam(name="jobId", type=IntegerDt.class, min=1, max=1),
+		@OperationParam(name="status", type=StringDt.class, min=1, max=1),
+		@OperationParam(name="statusUrl", type=UriDt.class, min=1, max=1)
+	})
+	//@formatter:on
+	public Parameters export(
+			RequestDetails theRequestDetails,
+			@OperationParam(name=PARAM_EXPORT_SINCE, min=0, max=1) String theSince,
+			@OperationParam(name=PARAM_EXPORT_ELEMENTS, min=0, max=1) String theElements) {
+		BulkExportJob job = submitBulkExport(myBulkExportSvc, theRequestDetails, theRequestDetails.getResourceName(), theSince, theElements);
+
+		Parameters retVal = new Parameters();
+		retVal.addParameter().setName("jobId").setValue(new IntegerType(job.getId().intValue()));
+		retVal.addParameter().setName("status").setValue(new StringType(job.getStatus().name()));
+		retVal.addParameter().setName("statusUrl").setValue(new UriType(getBulkExportStatusUrl(theRequestDetails, job)));
+		return retVal;
+	}
+
 	//@formatter:off
 	@Operation(name=OPERATION_NAME_META, idempotent=true, returnParameters= {
 		@OperationParam(name="return", type=Meta.class)
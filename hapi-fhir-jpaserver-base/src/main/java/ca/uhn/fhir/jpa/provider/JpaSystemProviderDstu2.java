@@ -1,6 +1,9 @@
 package ca.uhn.fhir.jpa.provider;
 
+import static org.apache.commons.lang3.StringUtils.defaultString;
 import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+import static org.apache.commons.lang3.StringUtils.removeEnd;
 
 import java.util.List;
 
@@ -24,6 +27,8 @@ import java.util.List;
  * #L%
  */
 
+import java.io.File;
+import java.util.Date;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.TreeMap;
@@ -31,23 +36,30 @@ import java.util.TreeMap;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 
+import ca.uhn.fhir.jpa.dao.BulkExportSvc;
 import ca.uhn.fhir.jpa.dao.FhirSearchDao.Suggestion;
 import ca.uhn.fhir.jpa.dao.IFhirSystemDao;
 import ca.uhn.fhir.jpa.dao.ISearchDao;
+import ca.uhn.fhir.jpa.entity.BulkExportJob;
+import ca.uhn.fhir.jpa.entity.ReindexJob;
 import ca.uhn.fhir.model.api.annotation.Description;
 import ca.uhn.fhir.model.dstu2.composite.MetaDt;
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
 import ca.uhn.fhir.model.dstu2.resource.Parameters;
 import ca.uhn.fhir.model.dstu2.resource.Parameters.Parameter;
 import ca.uhn.fhir.model.primitive.DecimalDt;
+import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.model.primitive.IntegerDt;
 import ca.uhn.fhir.model.primitive.StringDt;
+import ca.uhn.fhir.model.primitive.UriDt;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
 import ca.uhn.fhir.rest.annotation.Transaction;
 import ca.uhn.fhir.rest.annotation.TransactionParam;
 import ca.uhn.fhir.rest.method.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 
 public class JpaSystemProviderDstu2 extends BaseJpaSystemProvider<Bundle, MetaDt> {
@@ -56,6 +68,9 @@ public class JpaSystemProviderDstu2 extends BaseJpaSystemProvider<Bundle, MetaDt
 	@Qualifier("mySystemDaoDstu2")
 	private IFhirSystemDao<Bundle, MetaDt> mySystemDao;
 
+	@Autowired(required = false)
+	private BulkExportSvc myBulkExportSvc;
+
 	@Autowired
 	private ISearchDao mySearchDao;
 	
@@ -169,6 +184,66 @@ public class JpaSystemProviderDstu2 extends BaseJpaSystemProvider<Bundle, MetaDt
 		return retVal;
 	}
 
+	//@formatter:off
+	@Operation(name=OPERATION_EXPORT, idempotent=false, returnParameters= {
+		@OperationParam(name="jobId", type=IntegerDt.class, min=1, max=1),
+		@OperationParam(name="status", type=StringDt.class, min=1, max=1),
+		@OperationParam(name="statusUrl", type=UriDt.class, min=1, max=1)
+	})
+	//@formatter:on
+	@Description(shortDefinition="Starts a background job which writes all resources (or all resources of the given types) to NDJSON files")
+	public Parameters export(
+			RequestDetails theRequestDetails,
+			@OperationParam(name=PARAM_EXPORT_TYPE, min=0, max=1) String theType,
+			@OperationParam(name=PARAM_EXPORT_SINCE, min=0, max=1) String theSince,
+			@OperationParam(name=PARAM_EXPORT_ELEMENTS, min=0, max=1) String theElements) {
+		BulkExportJob job = submitBulkExport(myBulkExportSvc, theRequestDetails, theType, theSince, theElements);
+		return toBulkExportStatus(theRequestDetails, job);
+	}
+
+	//@formatter:off
+	@Operation(name=OPERATION_EXPORT_POLL_STATUS, idempotent=true, returnParameters= {
+		@OperationParam(name="jobId", type=IntegerDt.class, min=1, max=1),
+		@OperationParam(name="status", type=StringDt.class, min=1, max=1),
+		@OperationParam(name="output", min=0, max=OperationParam.MAX_UNLIMITED)
+	})
+	//@formatter:on
+	@Description(shortDefinition="Returns the status of an export job, and its output files once it has completed")
+	public Parameters exportPollStatus(
+			RequestDetails theRequestDetails,
+			@OperationParam(name=PARAM_EXPORT_JOB_ID, min=1, max=1) String theJobId) {
+		if (myBulkExportSvc == null) {
+			throw new NotImplementedOperationException("Bulk export is not enabled on this server");
+		}
+		BulkExportJob job = null;
+		try {
+			job = myBulkExportSvc.getJob(Long.parseLong(defaultString(theJobId).trim()));
+		} catch (NumberFormatException e) {
+			throw new InvalidRequestException("Invalid job ID: " + theJobId);
+		}
+		if (job == null) {
+			throw new ResourceNotFoundException("No export job found with ID: " + theJobId);
+		}
+		return toBulkExportStatus(theRequestDetails, job);
+	}
+
+	//@formatter:off
+	@Operation(name=OPERATION_IMPORT, idempotent=false, returnParameters= {
+		@OperationParam(name="count", type=IntegerDt.class, min=1, max=1)
+	})
+	//@formatter:on
+	@Description(shortDefinition="Stores the resources in an NDJSON document (one JSON resource per line) in a single transaction, optionally leaving them to be indexed later by a reindex job")
+	public Parameters importNdjson(
+			@OperationParam(name=PARAM_IMPORT_NDJSON, min=1, max=1) String theNdjson,
+			@OperationParam(name=PARAM_IMPORT_DEFER_INDEXING, min=0, max=1) String theDeferIndexing) {
+		boolean deferIndexing = Boolean.parseBoolean(defaultString(theDeferIndexing).trim());
+		int count = mySystemDao.importNdjson(theNdjson, deferIndexing);
+
+		Parameters retVal = new Parameters();
+		retVal.addParameter().setName("count").setValue(new IntegerDt(count));
+		return retVal;
+	}
+
 	//@formatter:off
 	@Operation(name="$mark-all-resources-for-reindexing", idempotent=true, returnParameters= {
 		@OperationParam(name="count", type=IntegerDt.class)
@@ -182,6 +257,46 @@ public class JpaSystemProviderDstu2 extends BaseJpaSystemProvider<Bundle, MetaDt
 		return retVal;
 	}
 
+	//@formatter:off
+	@Operation(name="$reindex", idempotent=false, returnParameters= {
+		@OperationParam(name="jobId", type=IntegerDt.class, min=1, max=1),
+		@OperationParam(name="status", type=StringDt.class, min=1, max=1),
+		@OperationParam(name="totalCount", type=IntegerDt.class, min=1, max=1)
+	})
+	//@formatter:on
+	@Description(shortDefinition="Starts a background job which reindexes all resources, or all resources of the given type")
+	public Parameters reindex(
+			@OperationParam(name="type", min=0, max=1) String theType) {
+		ReindexJob job = mySystemDao.startReindexJob(isBlank(theType) ? null : theType.trim());
+		return toReindexStatus(job);
+	}
+
+	//@formatter:off
+	@Operation(name="$reindex-status", idempotent=true, returnParameters= {
+		@OperationParam(name="jobId", type=IntegerDt.class, min=1, max=1),
+		@OperationParam(name="status", type=StringDt.class, min=1, max=1),
+		@OperationParam(name="percentComplete", type=DecimalDt.class, min=1, max=1),
+		@OperationParam(name="estimatedCompletion", type=InstantDt.class, min=0, max=1)
+	})
+	//@formatter:on
+	@Description(shortDefinition="Returns the progress of a reindex job, or of the most recent job if no job ID is given")
+	public Parameters reindexStatus(
+			@OperationParam(name="jobId", min=0, max=1) String theJobId) {
+		Long jobId = null;
+		if (isNotBlank(theJobId)) {
+			try {
+				jobId = Long.parseLong(theJobId.trim());
+			} catch (NumberFormatException e) {
+				throw new InvalidRequestException("Invalid job ID: " + theJobId);
+			}
+		}
+		ReindexJob job = mySystemDao.getReindexJob(jobId);
+		if (job == null) {
+			throw new ResourceNotFoundException("No reindex job found");
+		}
+		return toReindexStatus(job);
+	}
+
 	//@formatter:off
 	@Operation(name="$meta", idempotent=true, returnParameters= {
 		@OperationParam(name="return", type=MetaDt.class)
@@ -234,4 +349,51 @@ public class JpaSystemProviderDstu2 extends BaseJpaSystemProvider<Bundle, MetaDt
 		}
 	}
 
+	private Parameters toReindexStatus(ReindexJob theJob) {
+		Parameters retVal = new Parameters();
+		retVal.addParameter().setName("jobId").setValue(new IntegerDt(theJob.getId().intValue()));
+		retVal.addParameter().setName("status").setValue(new StringDt(theJob.getStatus().name()));
+		if (theJob.getResourceType() != null) {
+			retVal.addParameter().setName("resourceType").setValue(new StringDt(theJob.getResourceType()));
+		}
+		retVal.addParameter().setName("totalCount").setValue(new IntegerDt((int) theJob.getTotalCount()));
+		retVal.addParameter().setName("processedCount").setValue(new IntegerDt((int) theJob.getProcessedCount()));
+		retVal.addParameter().setName("failedCount").setValue(new IntegerDt((int) theJob.getFailedCount()));
+		retVal.addParameter().setName("percentComplete").setValue(new DecimalDt(getReindexPercentComplete(theJob)));
+		Double rate = getReindexRate(theJob);
+		if (rate != null) {
+			retVal.addParameter().setName("resourcesPerSecond").setValue(new DecimalDt(rate));
+		}
+		Date estimatedCompletion = estimateReindexCompletion(theJob);
+		if (estimatedCompletion != null) {
+			retVal.addParameter().setName("estimatedCompletion").setValue(new InstantDt(estimatedCompletion));
+		}
+		if (theJob.getStarted() != null) {
+			retVal.addParameter().setName("started").setValue(new InstantDt(theJob.getStarted()));
+		}
+		if (theJob.getFinished() != null) {
+			retVal.addParameter().setName("finished").setValue(new InstantDt(theJob.getFinished()));
+		}
+		return retVal;
+	}
+
+	private Parameters toBulkExportStatus(RequestDetails theRequestDetails, BulkExportJob theJob) {
+		Parameters retVal = new Parameters();
+		retVal.addParameter().setName("jobId").setValue(new IntegerDt(theJob.getId().intValue()));
+		retVal.addParameter().setName("status").setValue(new StringDt(theJob.getStatus().name()));
+		retVal.addParameter().setName("statusUrl").setValue(new UriDt(getBulkExportStatusUrl(theRequestDetails, theJob)));
+		retVal.addParameter().setName("transactionTime").setValue(new InstantDt(theJob.getCreated()));
+		retVal.addParameter().setName("resourceCount").setValue(new IntegerDt((int) theJob.getResourceCount()));
+		if (theJob.getStatusMessage() != null) {
+			retVal.addParameter().setName("message").setValue(new StringDt(theJob.getStatusMessage()));
+		}
+		for (File next : myBulkExportSvc.getOutputFiles(theJob)) {
+			String type = removeEnd(next.getName(), ".ndjson");
+			Parameter output = retVal.addParameter().setName("output");
+			output.addPart().setName("type").setValue(new StringDt(type));
+			output.addPart().setName("url").setValue(new UriDt(next.toURI().toString()));
+		}
+		return retVal;
+	}
+
 }
@@ -0,0 +1,70 @@
+package ca.uhn.fhir.jpa.search;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.IDao;
+import ca.uhn.fhir.jpa.dao.PersistedJpaBundleProvider;
+import ca.uhn.fhir.rest.server.FifoMemoryPagingProvider;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+
+/**
+ * Paging provider which works with {@link DaoConfig#setPersistSearchResults(boolean)}. Searches which were stored in
+ * the database are referred to using the UUID of the stored search (so that any server sharing the same database can
+ * serve the next page), and are not held in memory. Any other results (e.g. history operations) are held in memory
+ * the same way {@link FifoMemoryPagingProvider} would.
+ */
+public class DatabaseBackedPagingProvider extends FifoMemoryPagingProvider {
+
+	private final IDao myDao;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param theDao
+	 *           The DAO to use for loading stored searches. Any DAO may be used, since searches for any resource type are
+	 *           all stored in the same tables.
+	 * @param theSize
+	 *           The maximum number of (non-persisted) result lists to hold in memory
+	 */
+	public DatabaseBackedPagingProvider(IDao theDao, int theSize) {
+		super(theSize);
+		myDao = theDao;
+	}
+
+	@Override
+	public IBundleProvider retrieveResultList(String theId) {
+		IBundleProvider retVal = super.retrieveResultList(theId);
+		if (retVal == null) {
+			retVal = myDao.loadPersistedSearch(theId);
+		}
+		return retVal;
+	}
+
+	@Override
+	public String storeResultList(IBundleProvider theList) {
+		if (theList instanceof PersistedJpaBundleProvider) {
+			return ((PersistedJpaBundleProvider) theList).getUuid();
+		}
+		return super.storeResultList(theList);
+	}
+
+}
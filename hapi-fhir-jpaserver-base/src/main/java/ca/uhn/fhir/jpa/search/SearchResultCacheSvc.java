@@ -0,0 +1,316 @@
+package ca.uhn.fhir.jpa.search;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.apache.commons.lang3.StringUtils.defaultString;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+
+/**
+ * Caches the ordered list of PIDs matched by a search, so that identical searches which are repeated (e.g. by a
+ * dashboard which polls the server) don't need to hit the database every time. See
+ * {@link DaoConfig#setSearchResultCacheEnabled(boolean)}.
+ * <p>
+ * Entries are invalidated using a generation counter per resource type. Every write to a resource increments the
+ * counter for its type, and a cached search is only used if none of the counters for the types it depends on have
+ * changed since the search was executed.
+ * </p>
+ * <p>
+ * Only writes made through this server are seen, so if several servers share a database, cached results may be out
+ * of date for up to {@link DaoConfig#getSearchResultCacheTtlMillis()}.
+ * </p>
+ */
+public class SearchResultCacheSvc {
+
+	/**
+	 * Used for searches which may depend on any resource type (e.g. chained parameters)
+	 */
+	static final String ANY_RESOURCE_TYPE = "*";
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchResultCacheSvc.class);
+
+	private Cache<String, CachedSearch> myCache;
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	private final ConcurrentMap<String, AtomicLong> myGenerations = new ConcurrentHashMap<String, AtomicLong>();
+	private final AtomicLong myHitCount = new AtomicLong();
+	private final AtomicLong myMissCount = new AtomicLong();
+	private final AtomicLong myStaleCount = new AtomicLong();
+
+	/**
+	 * Returns the cached results for the given key, or <code>null</code> if there are none or they are out of date
+	 */
+	public CachedSearch get(String theKey) {
+		CachedSearch retVal = myCache.getIfPresent(theKey);
+		if (retVal != null && !isCurrent(retVal)) {
+			myCache.invalidate(theKey);
+			myStaleCount.incrementAndGet();
+			retVal = null;
+		}
+
+		if (retVal == null) {
+			myMissCount.incrementAndGet();
+		} else {
+			myHitCount.incrementAndGet();
+		}
+		return retVal;
+	}
+
+	private AtomicLong getGeneration(String theResourceType) {
+		AtomicLong retVal = myGenerations.get(theResourceType);
+		if (retVal == null) {
+			AtomicLong newValue = new AtomicLong();
+			retVal = myGenerations.putIfAbsent(theResourceType, newValue);
+			if (retVal == null) {
+				retVal = newValue;
+			}
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns the number of searches which were answered from the cache
+	 */
+	public long getHitCount() {
+		return myHitCount.get();
+	}
+
+	/**
+	 * Returns the number of searches which were not found in the cache (including those for which the cached results were
+	 * out of date)
+	 */
+	public long getMissCount() {
+		return myMissCount.get();
+	}
+
+	/**
+	 * Returns the number of cached searches which were discarded because a resource they depend on was written
+	 */
+	public long getStaleCount() {
+		return myStaleCount.get();
+	}
+
+	/**
+	 * Marks any cached searches which depend on the given resource type as out of date. This is called once when the
+	 * resource is written, and again once the transaction completes, so that a search which runs concurrently with the
+	 * write can't cache results which don't include it.
+	 */
+	public void invalidateResourceType(final String theResourceType) {
+		incrementGeneration(theResourceType);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int theStatus) {
+					incrementGeneration(theResourceType);
+				}
+			});
+		}
+	}
+
+	private void incrementGeneration(String theResourceType) {
+		getGeneration(theResourceType).incrementAndGet();
+		getGeneration(ANY_RESOURCE_TYPE).incrementAndGet();
+	}
+
+	private boolean isCurrent(CachedSearch theSearch) {
+		for (Entry<String, Long> next : theSearch.myGenerations.entrySet()) {
+			if (getGeneration(next.getKey()).get() != next.getValue().longValue()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean isEnabled() {
+		return myDaoConfig.isSearchResultCacheEnabled();
+	}
+
+	/**
+	 * Stores the results of a search
+	 * 
+	 * @param theGenerations
+	 *           The value returned by {@link #snapshotGenerations(String, SearchParameterMap)} before the search was
+	 *           executed
+	 */
+	public void put(String theKey, Map<String, Long> theGenerations, List<Long> thePids, int theNumMatches, Set<Long> theRevIncludedPids) {
+		CachedSearch search = new CachedSearch(theGenerations, thePids, theNumMatches, theRevIncludedPids);
+		if (isCurrent(search)) {
+			myCache.put(theKey, search);
+		}
+	}
+
+	/**
+	 * Returns the current generation of each resource type that the given search depends on. This must be called before
+	 * the search is executed.
+	 */
+	public Map<String, Long> snapshotGenerations(String theResourceName, SearchParameterMap theParams) {
+		Map<String, Long> retVal = new HashMap<String, Long>();
+		for (String next : findResourceTypes(theResourceName, theParams)) {
+			retVal.put(next, getGeneration(next).get());
+		}
+		return retVal;
+	}
+
+	@PostConstruct
+	public void start() {
+		ourLog.info("Search result cache will hold up to {} searches for {}ms", myDaoConfig.getSearchResultCacheMaxEntries(), myDaoConfig.getSearchResultCacheTtlMillis());
+		myCache = CacheBuilder.newBuilder().maximumSize(myDaoConfig.getSearchResultCacheMaxEntries()).expireAfterWrite(myDaoConfig.getSearchResultCacheTtlMillis(), TimeUnit.MILLISECONDS).build();
+	}
+
+	/**
+	 * Creates a cache key for the given search which doesn't depend on the order that parameters or values were
+	 * supplied in
+	 */
+	public static String createKey(String theResourceName, SearchParameterMap theParams) {
+		StringBuilder b = new StringBuilder();
+		b.append(theResourceName);
+
+		TreeMap<String, List<List<? extends IQueryParameterType>>> sortedParams = new TreeMap<String, List<List<? extends IQueryParameterType>>>(theParams);
+		for (Entry<String, List<List<? extends IQueryParameterType>>> nextParam : sortedParams.entrySet()) {
+			List<String> andValues = new ArrayList<String>();
+			for (List<? extends IQueryParameterType> nextAnd : nextParam.getValue()) {
+				List<String> orValues = new ArrayList<String>();
+				for (IQueryParameterType nextOr : nextAnd) {
+					orValues.add(defaultString(nextOr.getQueryParameterQualifier()) + "=" + defaultString(nextOr.getValueAsQueryToken()));
+				}
+				Collections.sort(orValues);
+				andValues.add(orValues.toString());
+			}
+			Collections.sort(andValues);
+			b.append('|').append(nextParam.getKey()).append(andValues);
+		}
+
+		if (theParams.getLastUpdated() != null) {
+			b.append("|_lastUpdated=").append(theParams.getLastUpdated());
+		}
+		for (SortSpec nextSort = theParams.getSort(); nextSort != null; nextSort = nextSort.getChain()) {
+			b.append("|_sort=").append(nextSort.getParamName()).append(':').append(nextSort.getOrder());
+		}
+		if (theParams.getRevIncludes() != null) {
+			List<String> revIncludes = new ArrayList<String>();
+			for (Include next : theParams.getRevIncludes()) {
+				revIncludes.add(next.getValue() + (next.isRecurse() ? ":recurse" : ""));
+			}
+			Collections.sort(revIncludes);
+			b.append("|_revinclude=").append(revIncludes);
+		}
+
+		return b.toString();
+	}
+
+	/**
+	 * Returns the resource types whose contents can affect the results of the given search
+	 */
+	static Set<String> findResourceTypes(String theResourceName, SearchParameterMap theParams) {
+		Set<String> retVal = new HashSet<String>();
+		retVal.add(theResourceName);
+
+		for (List<List<? extends IQueryParameterType>> nextAndList : theParams.values()) {
+			for (List<? extends IQueryParameterType> nextOrList : nextAndList) {
+				for (IQueryParameterType next : nextOrList) {
+					if (next instanceof ReferenceParam && isNotBlank(((ReferenceParam) next).getChain())) {
+						// The chain could be against any type that the reference can point to
+						retVal.add(ANY_RESOURCE_TYPE);
+					}
+				}
+			}
+		}
+
+		/*
+		 * _include targets aren't part of the cached results (they're loaded each time a
+		 * page is requested) so only _revinclude matters here. The resources found by a
+		 * _revinclude are always of the type before the first colon.
+		 */
+		if (theParams.getRevIncludes() != null) {
+			for (Include next : theParams.getRevIncludes()) {
+				if (next.getParamType() == null) {
+					retVal.add(ANY_RESOURCE_TYPE);
+				} else {
+					retVal.add(next.getParamType());
+				}
+			}
+		}
+
+		return retVal;
+	}
+
+	public static class CachedSearch {
+		private final Map<String, Long> myGenerations;
+		private final int myNumMatches;
+		private final List<Long> myPids;
+		private final Set<Long> myRevIncludedPids;
+
+		CachedSearch(Map<String, Long> theGenerations, List<Long> thePids, int theNumMatches, Set<Long> theRevIncludedPids) {
+			myGenerations = theGenerations;
+			myPids = Collections.unmodifiableList(new ArrayList<Long>(thePids));
+			myNumMatches = theNumMatches;
+			myRevIncludedPids = Collections.unmodifiableSet(new HashSet<Long>(theRevIncludedPids));
+		}
+
+		/**
+		 * Returns the number of PIDs which matched the search (the rest of {@link #getPids()} are
+		 * <code>_revinclude</code>s)
+		 */
+		public int getNumMatches() {
+			return myNumMatches;
+		}
+
+		public List<Long> getPids() {
+			return myPids;
+		}
+
+		public Set<Long> getRevIncludedPids() {
+			return myRevIncludedPids;
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+package ca.uhn.fhir.jpa.search;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.Collection;
+import java.util.Date;
+
+import org.apache.commons.lang3.time.DateUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.data.ISearchEntityDao;
+import ca.uhn.fhir.jpa.dao.data.ISearchIncludeDao;
+import ca.uhn.fhir.jpa.dao.data.ISearchResultDao;
+
+/**
+ * Deletes searches which were stored in the database (see {@link DaoConfig#setPersistSearchResults(boolean)}) once
+ * they are older than {@link DaoConfig#getExpireSearchResultsAfterMillis()}
+ */
+public class StaleSearchDeletingSvc {
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(StaleSearchDeletingSvc.class);
+
+	@Autowired
+	private DaoConfig myDaoConfig;
+
+	@Autowired
+	private PlatformTransactionManager myTransactionManager;
+
+	@Autowired
+	private ISearchEntityDao mySearchDao;
+
+	@Autowired
+	private ISearchIncludeDao mySearchIncludeDao;
+
+	@Autowired
+	private ISearchResultDao mySearchResultDao;
+
+	@Scheduled(fixedDelay = DateUtils.MILLIS_PER_MINUTE)
+	public void pollForStaleSearches() {
+		if (myDaoConfig.isSchedulingDisabled()) {
+			return;
+		}
+
+		Date cutoff = new Date(System.currentTimeMillis() - myDaoConfig.getExpireSearchResultsAfterMillis());
+		Collection<Long> toDelete = mySearchDao.findWhereCreatedBefore(cutoff);
+		if (toDelete.isEmpty()) {
+			return;
+		}
+
+		ourLog.info("Deleting {} searches which were created before {}", toDelete.size(), cutoff);
+
+		TransactionTemplate template = new TransactionTemplate(myTransactionManager);
+		template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+		for (final Long next : toDelete) {
+			template.execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+					mySearchIncludeDao.deleteForSearch(next);
+					mySearchResultDao.deleteForSearch(next);
+					mySearchDao.delete(next);
+				}
+			});
+		}
+	}
+
+}
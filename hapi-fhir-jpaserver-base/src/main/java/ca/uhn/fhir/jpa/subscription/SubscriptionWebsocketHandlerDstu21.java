@@ -21,6 +21,7 @@ package ca.uhn.fhir.jpa.subscription;
  */
 
 import java.io.IOException;
+import java.util.Date;
 import java.util.List;
 import java.util.concurrent.ScheduledFuture;
 
@@ -45,6 +46,7 @@ import org.springframework.web.socket.handler.TextWebSocketHandler;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDaoSubscription;
+import ca.uhn.fhir.jpa.dao.SubscriptionMatcherSvc;
 import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.EncodingEnum;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
@@ -57,6 +59,17 @@ public class SubscriptionWebsocketHandlerDstu21 extends TextWebSocketHandler imp
 	@Qualifier("myFhirContextDstu21")
 	private FhirContext myCtx;
 
+	/**
+	 * Delivers straight away (on the websocket scheduler) when new resources are flagged for the bound subscription,
+	 * rather than waiting for the next poll
+	 */
+	private final Runnable myDeliveryTrigger = new Runnable() {
+		@Override
+		public void run() {
+			myTaskScheduler.schedule(SubscriptionWebsocketHandlerDstu21.this, new Date());
+		}
+	};
+
 	private ScheduledFuture<?> myScheduleFuture;
 
 	private IState myState = new InitialState();
@@ -67,6 +80,9 @@ public class SubscriptionWebsocketHandlerDstu21 extends TextWebSocketHandler imp
 	private IIdType mySubscriptionId;
 	private Long mySubscriptionPid;
 
+	@Autowired(required = false)
+	private SubscriptionMatcherSvc mySubscriptionMatcher;
+
 	@Autowired
 	@Qualifier("websocketTaskScheduler")
 	private TaskScheduler myTaskScheduler;
@@ -110,14 +126,27 @@ public class SubscriptionWebsocketHandlerDstu21 extends TextWebSocketHandler imp
 	public void preDescroy() {
 		ourLog.info("Cancelling scheduled task for subscription websocket connection");
 		myScheduleFuture.cancel(true);
+		if (mySubscriptionMatcher != null && mySubscriptionPid != null) {
+			mySubscriptionMatcher.removeDeliveryListener(mySubscriptionPid, myDeliveryTrigger);
+		}
 		IState state = myState;
 		if (state != null) {
 			state.closing();
 		}
 	}
 
+	private void registerDeliveryTrigger() {
+		if (mySubscriptionMatcher != null && mySubscriptionPid != null) {
+			mySubscriptionMatcher.addDeliveryListener(mySubscriptionPid, myDeliveryTrigger);
+		}
+	}
+
+	/**
+	 * Synchronized since this can now be triggered by writes as well as by the scheduled poll, and the websocket
+	 * session doesn't support concurrent sends
+	 */
 	@Override
-	public void run() {
+	public synchronized void run() {
 		Long subscriptionPid = mySubscriptionPid;
 		if (subscriptionPid == null) {
 			return;
@@ -236,6 +265,7 @@ public class SubscriptionWebsocketHandlerDstu21 extends TextWebSocketHandler imp
 				mySubscriptionPid = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(id);
 				mySubscriptionId = subscription.getIdElement();
 				myState = new BoundStaticSubscipriptionState(theSession);
+				registerDeliveryTrigger();
 			} catch (ResourceNotFoundException e) {
 				try {
 					String message = "Invalid bind request - Unknown subscription: " + id.getValue();
@@ -274,6 +304,7 @@ public class SubscriptionWebsocketHandlerDstu21 extends TextWebSocketHandler imp
 				mySubscriptionPid = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(id);
 				mySubscriptionId = subscription.getIdElement();
 				myState = new BoundDynamicSubscriptionState(theSession, encoding);
+				registerDeliveryTrigger();
 
 				return id;
 			} catch (UnprocessableEntityException e) {
@@ -0,0 +1,322 @@
+package ca.uhn.fhir.jpa.util;
+
+/*
+ * #%L
+ * HAPI FHIR JPA Server
+ * %%
+ * Copyright (C) 2014 - 2016 University Health Network
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable set of resource PIDs, backed by a sorted array of primitive longs.
+ * <p>
+ * This is used by the search code to pass matching PIDs between AND clauses without boxing every PID into a
+ * {@link java.util.HashSet}. Intersections and unions are performed as merges over the two sorted arrays.
+ * </p>
+ * <p>
+ * This class implements {@link java.util.Set} so that it can be handed to code which expects a
+ * <code>Set&lt;Long&gt;</code>, but any attempt to modify it will throw an {@link UnsupportedOperationException}.
+ * </p>
+ */
+public final class PidSet extends AbstractSet<Long> {
+
+	private static final PidSet EMPTY = new PidSet(new long[0], 0);
+
+	private final long[] myPids;
+	private final int mySize;
+
+	/**
+	 * Constructor - The array must be sorted and must not contain duplicates. It is not copied.
+	 */
+	private PidSet(long[] thePids, int theSize) {
+		myPids = thePids;
+		mySize = theSize;
+	}
+
+	@Override
+	public boolean contains(Object theObject) {
+		if (!(theObject instanceof Long)) {
+			return false;
+		}
+		return contains(((Long) theObject).longValue());
+	}
+
+	public boolean contains(long thePid) {
+		return Arrays.binarySearch(myPids, 0, mySize, thePid) >= 0;
+	}
+
+	/**
+	 * Returns a set containing any PIDs in this set which are not in the given set
+	 */
+	public PidSet difference(PidSet theOther) {
+		if (mySize == 0 || theOther.mySize == 0) {
+			return this;
+		}
+		long[] retVal = new long[mySize];
+		int count = 0;
+		int otherIdx = 0;
+		for (int i = 0; i < mySize; i++) {
+			long next = myPids[i];
+			while (otherIdx < theOther.mySize && theOther.myPids[otherIdx] < next) {
+				otherIdx++;
+			}
+			if (otherIdx < theOther.mySize && theOther.myPids[otherIdx] == next) {
+				continue;
+			}
+			retVal[count++] = next;
+		}
+		if (count == mySize) {
+			return this;
+		}
+		return newInstance(retVal, count);
+	}
+
+	/**
+	 * Returns the PID at the given index (PIDs are stored in ascending order)
+	 */
+	public long get(int theIndex) {
+		if (theIndex < 0 || theIndex >= mySize) {
+			throw new IndexOutOfBoundsException("Index " + theIndex + " is out of bounds for size " + mySize);
+		}
+		return myPids[theIndex];
+	}
+
+	/**
+	 * Returns a set containing only the PIDs which are in both this set and the given set
+	 */
+	public PidSet intersect(PidSet theOther) {
+		if (mySize == 0) {
+			return this;
+		}
+		if (theOther.mySize == 0) {
+			return theOther;
+		}
+
+		PidSet smaller = mySize <= theOther.mySize ? this : theOther;
+		PidSet larger = smaller == this ? theOther : this;
+		long[] retVal = new long[smaller.mySize];
+		int count = 0;
+
+		if (smaller.mySize * 16L < larger.mySize) {
+			/*
+			 * If one set is much smaller than the other, probing the larger one with a binary search is cheaper than
+			 * walking both arrays
+			 */
+			int from = 0;
+			for (int i = 0; i < smaller.mySize && from < larger.mySize; i++) {
+				long next = smaller.myPids[i];
+				int idx = Arrays.binarySearch(larger.myPids, from, larger.mySize, next);
+				if (idx >= 0) {
+					retVal[count++] = next;
+					from = idx + 1;
+				} else {
+					from = -(idx + 1);
+				}
+			}
+		} else {
+			int i = 0;
+			int j = 0;
+			while (i < mySize && j < theOther.mySize) {
+				long left = myPids[i];
+				long right = theOther.myPids[j];
+				if (left < right) {
+					i++;
+				} else if (left > right) {
+					j++;
+				} else {
+					retVal[count++] = left;
+					i++;
+					j++;
+				}
+			}
+		}
+
+		if (count == smaller.mySize) {
+			return smaller;
+		}
+		return newInstance(retVal, count);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return mySize == 0;
+	}
+
+	@Override
+	public Iterator<Long> iterator() {
+		return new Iterator<Long>() {
+			private int myIndex;
+
+			@Override
+			public boolean hasNext() {
+				return myIndex < mySize;
+			}
+
+			@Override
+			public Long next() {
+				if (myIndex >= mySize) {
+					throw new NoSuchElementException();
+				}
+				return myPids[myIndex++];
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public int size() {
+		return mySize;
+	}
+
+	/**
+	 * Returns a copy of the PIDs in this set, in ascending order
+	 */
+	public long[] toLongArray() {
+		return Arrays.copyOf(myPids, mySize);
+	}
+
+	/**
+	 * Returns a new (mutable) list containing the PIDs in this set, in ascending order
+	 */
+	public List<Long> toList() {
+		ArrayList<Long> retVal = new ArrayList<Long>(mySize);
+		for (int i = 0; i < mySize; i++) {
+			retVal.add(myPids[i]);
+		}
+		return retVal;
+	}
+
+	/**
+	 * Returns a set containing the PIDs which are in either this set or the given set
+	 */
+	public PidSet union(PidSet theOther) {
+		if (theOther.mySize == 0) {
+			return this;
+		}
+		if (mySize == 0) {
+			return theOther;
+		}
+
+		long[] retVal = new long[mySize + theOther.mySize];
+		int count = 0;
+		int i = 0;
+		int j = 0;
+		while (i < mySize && j < theOther.mySize) {
+			long left = myPids[i];
+			long right = theOther.myPids[j];
+			if (left < right) {
+				retVal[count++] = left;
+				i++;
+			} else if (left > right) {
+				retVal[count++] = right;
+				j++;
+			} else {
+				retVal[count++] = left;
+				i++;
+				j++;
+			}
+		}
+		while (i < mySize) {
+			retVal[count++] = myPids[i++];
+		}
+		while (j < theOther.mySize) {
+			retVal[count++] = theOther.myPids[j++];
+		}
+
+		if (count == mySize) {
+			return this;
+		}
+		return newInstance(retVal, count);
+	}
+
+	public static PidSet empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * Creates a new set from the given PIDs. The collection may be in any order and may contain duplicates. Any
+	 * <code>null</code> entries are ignored.
+	 */
+	public static PidSet fromCollection(Collection<Long> thePids) {
+		if (thePids == null || thePids.isEmpty()) {
+			return EMPTY;
+		}
+		if (thePids instanceof PidSet) {
+			return (PidSet) thePids;
+		}
+
+		long[] values = new long[thePids.size()];
+		int count = 0;
+		for (Long next : thePids) {
+			if (next != null) {
+				values[count++] = next.longValue();
+			}
+		}
+		return sortAndDedupe(values, count);
+	}
+
+	/**
+	 * Creates a new set from the given PIDs. The values may be in any order and may contain duplicates. The array is
+	 * not modified.
+	 */
+	public static PidSet of(long... thePids) {
+		if (thePids == null || thePids.length == 0) {
+			return EMPTY;
+		}
+		return sortAndDedupe(Arrays.copyOf(thePids, thePids.length), thePids.length);
+	}
+
+	private static PidSet newInstance(long[] thePids, int theCount) {
+		if (theCount == 0) {
+			return EMPTY;
+		}
+
+		/*
+		 * Don't hang on to a mostly empty array if an intersection removed most of the PIDs
+		 */
+		if (theCount < (thePids.length >> 1)) {
+			return new PidSet(Arrays.copyOf(thePids, theCount), theCount);
+		}
+		return new PidSet(thePids, theCount);
+	}
+
+	private static PidSet sortAndDedupe(long[] theValues, int theCount) {
+		if (theCount == 0) {
+			return EMPTY;
+		}
+		Arrays.sort(theValues, 0, theCount);
+		int count = 1;
+		for (int i = 1; i < theCount; i++) {
+			if (theValues[i] != theValues[count - 1]) {
+				theValues[count++] = theValues[i];
+			}
+		}
+		return newInstance(theValues, count);
+	}
+
+}
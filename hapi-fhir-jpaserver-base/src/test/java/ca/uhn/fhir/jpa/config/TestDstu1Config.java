@@ -58,6 +58,9 @@ public class TestDstu1Config extends BaseJavaConfigDstu1 {
 		extraProperties.put("hibernate.format_sql", "true");
 		extraProperties.put("hibernate.show_sql", "false");
 		extraProperties.put("hibernate.hbm2ddl.auto", "update");
+		extraProperties.put("hibernate.jdbc.batch_size", "20");
+		extraProperties.put("hibernate.order_inserts", "true");
+		extraProperties.put("hibernate.order_updates", "true");
 		return extraProperties;
 	}
 
@@ -60,6 +60,9 @@ public class TestDstu2Config extends BaseJavaConfigDstu2 {
 		extraProperties.put("hibernate.format_sql", "false");
 		extraProperties.put("hibernate.show_sql", "false");
 		extraProperties.put("hibernate.hbm2ddl.auto", "update");
+		extraProperties.put("hibernate.jdbc.batch_size", "20");
+		extraProperties.put("hibernate.order_inserts", "true");
+		extraProperties.put("hibernate.order_updates", "true");
 		extraProperties.put("hibernate.dialect", "org.hibernate.dialect.DerbyTenSevenDialect");
 		extraProperties.put("hibernate.search.default.directory_provider" ,"filesystem");
 		extraProperties.put("hibernate.search.default.indexBase", "target/lucene_index_dstu2");
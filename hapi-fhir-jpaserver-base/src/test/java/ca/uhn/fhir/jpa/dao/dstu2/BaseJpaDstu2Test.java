@@ -29,12 +29,14 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.config.TestDstu2Config;
 import ca.uhn.fhir.jpa.dao.BaseJpaTest;
 import ca.uhn.fhir.jpa.dao.DaoConfig;
+import ca.uhn.fhir.jpa.dao.ForcedIdCacheSvc;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDao;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDaoPatient;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDaoSubscription;
 import ca.uhn.fhir.jpa.dao.IFhirResourceDaoValueSet;
 import ca.uhn.fhir.jpa.dao.IFhirSystemDao;
 import ca.uhn.fhir.jpa.dao.ISearchDao;
+import ca.uhn.fhir.jpa.dao.TagDefinitionCacheSvc;
 import ca.uhn.fhir.jpa.entity.ForcedId;
 import ca.uhn.fhir.jpa.entity.ResourceHistoryTable;
 import ca.uhn.fhir.jpa.entity.ResourceHistoryTag;
@@ -48,6 +50,8 @@ import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamUri;
 import ca.uhn.fhir.jpa.entity.ResourceLink;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.entity.ResourceTag;
+import ca.uhn.fhir.jpa.entity.SearchInclude;
+import ca.uhn.fhir.jpa.entity.SearchResult;
 import ca.uhn.fhir.jpa.entity.SubscriptionFlaggedResource;
 import ca.uhn.fhir.jpa.entity.SubscriptionTable;
 import ca.uhn.fhir.jpa.entity.TagDefinition;
@@ -89,8 +93,12 @@ public abstract class BaseJpaDstu2Test extends BaseJpaTest {
 	@Autowired
 	protected ApplicationContext myAppCtx;
 	@Autowired
+	protected ForcedIdCacheSvc myForcedIdCache;
+	@Autowired
 	protected ISearchDao mySearchDao;
 	@Autowired
+	protected TagDefinitionCacheSvc myTagDefinitionCache;
+	@Autowired
 	@Qualifier("myConceptMapDaoDstu2")
 	protected IFhirResourceDao<ConceptMap> myConceptMapDao;
 	@Autowired
@@ -184,6 +192,22 @@ public abstract class BaseJpaDstu2Test extends BaseJpaTest {
 		myDaoConfig.setHardSearchLimit(1000);
 		myDaoConfig.setHardTagListLimit(1000);
 		myDaoConfig.setIncludeLimit(2000);
+		myDaoConfig.setSingleQuerySearchEnabled(false);
+		myDaoConfig.setPersistSearchResults(false);
+		myDaoConfig.setStreamingSearchEnabled(false);
+		myDaoConfig.setKeysetPagingEnabled(false);
+		myDaoConfig.setSearchResultCacheEnabled(false);
+		myDaoConfig.setParsedResourceCacheEnabled(false);
+		myDaoConfig.setParallelParseThreshold(new DaoConfig().getParallelParseThreshold());
+		myDaoConfig.setResourceEncoding(new DaoConfig().getResourceEncoding());
+		myDaoConfig.setBatchParallelism(new DaoConfig().getBatchParallelism());
+		myDaoConfig.setSubscriptionMatchingOnWriteEnabled(false);
+		myDaoConfig.setReindexChunkSize(new DaoConfig().getReindexChunkSize());
+		myDaoConfig.setReindexParallelism(new DaoConfig().getReindexParallelism());
+		myDaoConfig.setReindexMaxResourcesPerSecond(new DaoConfig().getReindexMaxResourcesPerSecond());
+		myDaoConfig.setBulkExportDirectory(null);
+		myDaoConfig.setTagDefinitionCacheEnabled(true);
+		myDaoConfig.setHashedIndexSearchEnabled(false);
 	}
 
 	@Before
@@ -202,6 +226,8 @@ public abstract class BaseJpaDstu2Test extends BaseJpaTest {
 	public void beforePurgeDatabase() {
 		final EntityManager entityManager = this.myEntityManager;
 		purgeDatabase(entityManager, myTxManager);
+		myForcedIdCache.clear();
+		myTagDefinitionCache.clear();
 	}
 
 	protected <T extends IBaseResource> T loadResourceFromClasspath(Class<T> type, String resourceName) throws IOException {
@@ -235,6 +261,9 @@ public abstract class BaseJpaDstu2Test extends BaseJpaTest {
 		txTemplate.execute(new TransactionCallback<Void>() {
 			@Override
 			public Void doInTransaction(TransactionStatus theStatus) {
+				entityManager.createQuery("DELETE from " + SearchInclude.class.getSimpleName() + " d").executeUpdate();
+				entityManager.createQuery("DELETE from " + SearchResult.class.getSimpleName() + " d").executeUpdate();
+				entityManager.createQuery("DELETE from " + ca.uhn.fhir.jpa.entity.Search.class.getSimpleName() + " d").executeUpdate();
 				entityManager.createQuery("DELETE from " + SubscriptionFlaggedResource.class.getSimpleName() + " d").executeUpdate();
 				entityManager.createQuery("DELETE from " + ForcedId.class.getSimpleName() + " d").executeUpdate();
 				entityManager.createQuery("DELETE from " + ResourceIndexedSearchParamDate.class.getSimpleName() + " d").executeUpdate();
@@ -0,0 +1,78 @@
+package ca.uhn.fhir.jpa.dao.dstu2;
+
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.Test;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.model.dstu2.resource.DiagnosticReport;
+import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.primitive.IdDt;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+
+public class FhirResourceDaoDstu2ForcedIdCacheTest extends BaseJpaDstu2Test {
+
+	@Test
+	public void testReferencesAreResolvedInBulkAndCached() {
+		String methodName = "testReferencesAreResolvedInBulkAndCached";
+
+		DiagnosticReport report = new DiagnosticReport();
+		for (int i = 0; i < 10; i++) {
+			Observation obs = new Observation();
+			obs.setId(methodName + i);
+			myObservationDao.update(obs);
+			report.addResult().setReference(new IdDt("Observation/" + methodName + i));
+		}
+		myForcedIdCache.clear();
+
+		IIdType reportId = myDiagnosticReportDao.create(report).getId().toUnqualifiedVersionless();
+		assertEquals(10, myForcedIdCache.getCachedForcedIdCount());
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(DiagnosticReport.SP_RESULT, new ReferenceParam("Observation/" + methodName + "5"));
+		assertThat(toUnqualifiedVersionlessIds(myDiagnosticReportDao.search(params)), contains(reportId));
+	}
+
+	@Test
+	public void testForcedIdFromRolledBackTransactionIsNotCached() {
+		final IdDt id = new IdDt("Patient/testForcedIdFromRolledBackTransactionIsNotCached");
+
+		newTxTemplate().execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				Patient p = new Patient();
+				p.setId(id);
+				p.addName().addFamily("ROLLEDBACK");
+				myPatientDao.update(p);
+				assertNotNull(myForcedIdCache.getPid(id.getIdPart()));
+				theStatus.setRollbackOnly();
+			}
+		});
+
+		assertEquals(0, myForcedIdCache.getCachedForcedIdCount());
+		assertNull(myForcedIdCache.getPid(id.getIdPart()));
+		try {
+			myPatientDao.read(id);
+			fail();
+		} catch (ResourceNotFoundException e) {
+			// good
+		}
+
+		Patient p = new Patient();
+		p.setId(id);
+		p.addName().addFamily("COMMITTED");
+		myPatientDao.update(p);
+		assertEquals("COMMITTED", myPatientDao.read(id).getNameFirstRep().getFamilyAsSingleString());
+	}
+
+}
@@ -0,0 +1,120 @@
+package ca.uhn.fhir.jpa.dao.dstu2;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamToken;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+public class FhirResourceDaoDstu2HashedIndexTest extends BaseJpaDstu2Test {
+
+	@Before
+	public void beforeEnableHashedIndexSearch() {
+		myDaoConfig.setHashedIndexSearchEnabled(true);
+	}
+
+	private IIdType createPatient(String theName) {
+		Patient p = new Patient();
+		p.addIdentifier().setSystem("urn:system").setValue(theName);
+		p.addName().addFamily(theName);
+		return myPatientDao.create(p).getId().toUnqualifiedVersionless();
+	}
+
+	private List<ResourceIndexedSearchParamToken> loadIdentifierRows(final IIdType theId) {
+		return new TransactionTemplate(myTxManager).execute(new TransactionCallback<List<ResourceIndexedSearchParamToken>>() {
+			@Override
+			public List<ResourceIndexedSearchParamToken> doInTransaction(TransactionStatus theStatus) {
+				return myEntityManager.createQuery("SELECT t FROM ResourceIndexedSearchParamToken t WHERE t.myResourcePid = :pid AND t.myParamName = :name", ResourceIndexedSearchParamToken.class)
+						.setParameter("pid", theId.getIdPartAsLong())
+						.setParameter("name", Patient.SP_IDENTIFIER)
+						.getResultList();
+			}
+		});
+	}
+
+	@Test
+	public void testHashesAreWrittenAtIndexTime() {
+		IIdType id = createPatient("testHashesAreWrittenAtIndexTime");
+
+		List<ResourceIndexedSearchParamToken> rows = loadIdentifierRows(id);
+		assertEquals(1, rows.size());
+		long expected = ResourceIndexedSearchParamToken.calculateHashSystemAndValue("Patient", Patient.SP_IDENTIFIER, "urn:system", "testHashesAreWrittenAtIndexTime");
+		assertEquals(Long.valueOf(expected), rows.get(0).getHashSystemAndValue());
+		expected = ResourceIndexedSearchParamToken.calculateHashValue("Patient", Patient.SP_IDENTIFIER, "testHashesAreWrittenAtIndexTime");
+		assertEquals(Long.valueOf(expected), rows.get(0).getHashValue());
+
+		// The hashes of different parameters, types or values never run together
+		assertThat(ResourceIndexedSearchParamToken.calculateHashValue("Patient", "ab", "c"), not(ResourceIndexedSearchParamToken.calculateHashValue("Patient", "a", "bc")));
+		assertThat(ResourceIndexedSearchParamString.calculateHashExact("Patient", "family", "A"), not(ResourceIndexedSearchParamString.calculateHashExact("Observation", "family", "A")));
+	}
+
+	@Test
+	public void testSearchUsingHashes() {
+		IIdType id = createPatient("testSearchUsingHashes");
+		createPatient("testSearchUsingHashesOther");
+
+		assertThat(myPatientDao.searchForIds(Patient.SP_IDENTIFIER, new TokenParam("urn:system", "testSearchUsingHashes")), contains(id.getIdPartAsLong()));
+		assertThat(myPatientDao.searchForIds(Patient.SP_IDENTIFIER, new TokenParam(null, "testSearchUsingHashes")), contains(id.getIdPartAsLong()));
+		assertThat(myPatientDao.searchForIds(Patient.SP_IDENTIFIER, new TokenParam("urn:other", "testSearchUsingHashes")), empty());
+		assertThat(myPatientDao.searchForIds(Patient.SP_IDENTIFIER, new TokenParam("", "testSearchUsingHashes")), empty());
+		assertThat(myPatientDao.searchForIds(Patient.SP_FAMILY, new StringParam("testSearchUsingHashes", true)), contains(id.getIdPartAsLong()));
+		assertThat(myPatientDao.searchForIds(Patient.SP_FAMILY, new StringParam("TESTSEARCHUSINGHASHES", true)), empty());
+	}
+
+	@Test
+	public void testPrefixSearchUsingHashes() {
+		IIdType id = createPatient("testPrefixSearchUsingHashes");
+		IIdType id2 = createPatient("Te");
+
+		assertThat(myPatientDao.searchForIds(Patient.SP_FAMILY, new StringParam("testprefix")), contains(id.getIdPartAsLong()));
+		assertThat(myPatientDao.searchForIds(Patient.SP_FAMILY, new StringParam("TES")), contains(id.getIdPartAsLong()));
+		assertThat(myPatientDao.searchForIds(Patient.SP_FAMILY, new StringParam("testSearch")), empty());
+
+		// Values and search terms shorter than the hashed prefix
+		assertThat(myPatientDao.searchForIds(Patient.SP_FAMILY, new StringParam("te")), containsInAnyOrder(id.getIdPartAsLong(), id2.getIdPartAsLong()));
+
+		// Wildcards within the prefix can't use the hash
+		assertThat(myPatientDao.searchForIds(Patient.SP_FAMILY, new StringParam("t_stprefix")), empty());
+
+		long expected = ResourceIndexedSearchParamString.calculateHashNormalizedPrefix("Patient", Patient.SP_FAMILY, "TESTPREFIXSEARCHUSINGHASHES");
+		assertEquals(expected, ResourceIndexedSearchParamString.calculateHashNormalizedPrefix("Patient", Patient.SP_FAMILY, "TES"));
+	}
+
+	@Test
+	public void testReindexFillsInMissingHashes() {
+		IIdType id = createPatient("testReindexFillsInMissingHashes");
+
+		// Simulate rows written before the hash columns existed
+		new TransactionTemplate(myTxManager).execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+				myEntityManager.createQuery("UPDATE ResourceIndexedSearchParamToken t SET t.myHashSystemAndValue = NULL, t.myHashValue = NULL").executeUpdate();
+			}
+		});
+		assertThat(myPatientDao.searchForIds(Patient.SP_IDENTIFIER, new TokenParam("urn:system", "testReindexFillsInMissingHashes")), empty());
+
+		mySystemDao.markAllResourcesForReindexing();
+		mySystemDao.performReindexingPass(null);
+
+		assertThat(myPatientDao.searchForIds(Patient.SP_IDENTIFIER, new TokenParam("urn:system", "testReindexFillsInMissingHashes")), contains(id.getIdPartAsLong()));
+		assertThat(myPatientDao.searchForIds(Patient.SP_IDENTIFIER, new TokenParam(null, "testReindexFillsInMissingHashes")), contains(id.getIdPartAsLong()));
+	}
+
+}
@@ -0,0 +1,127 @@
+package ca.uhn.fhir.jpa.dao.dstu2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.Test;
+
+import ca.uhn.fhir.model.api.IResource;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.dstu2.resource.Organization;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+
+public class FhirResourceDaoDstu2HistoryTest extends BaseJpaDstu2Test {
+
+	private List<IIdType> createPatientsWithVersions(String theFamily, int theCount, int theVersions) {
+		List<IIdType> retVal = new ArrayList<IIdType>();
+		for (int i = 0; i < theCount; i++) {
+			Patient p = new Patient();
+			p.addName().addFamily(theFamily + i);
+			IIdType id = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+			for (int v = 1; v < theVersions; v++) {
+				p.setId(id);
+				p.getNameFirstRep().addGiven("V" + v);
+				myPatientDao.update(p);
+			}
+			retVal.add(id);
+		}
+		return retVal;
+	}
+
+	private List<String> readPages(IBundleProvider theHistory, int thePageSize) {
+		List<String> retVal = new ArrayList<String>();
+		for (int from = 0; from < theHistory.size(); from += thePageSize) {
+			for (IBaseResource next : theHistory.getResources(from, from + thePageSize)) {
+				retVal.add(next.getIdElement().toUnqualified().getValue());
+			}
+		}
+		return retVal;
+	}
+
+	private List<String> toIds(List<IBaseResource> theResources) {
+		List<String> retVal = new ArrayList<String>();
+		for (IBaseResource next : theResources) {
+			retVal.add(next.getIdElement().toUnqualified().getValue());
+		}
+		return retVal;
+	}
+
+	@Test
+	public void testTypeHistoryPagesInUpdatedOrder() {
+		createPatientsWithVersions("testTypeHistoryPagesInUpdatedOrder", 5, 3);
+		Organization org = new Organization();
+		org.setName("testTypeHistoryPagesInUpdatedOrder");
+		myOrganizationDao.create(org);
+
+		IBundleProvider history = myPatientDao.history(null);
+		assertEquals(15, history.size());
+
+		List<IBaseResource> all = history.getResources(0, 15);
+		assertEquals(15, all.size());
+		Date previous = null;
+		Set<String> seen = new HashSet<String>();
+		for (IBaseResource next : all) {
+			assertTrue(next instanceof Patient);
+			assertTrue(seen.add(next.getIdElement().toUnqualified().getValue()));
+			Date updated = ResourceMetadataKeyEnum.UPDATED.get((IResource) next).getValue();
+			if (previous != null) {
+				assertFalse(updated.after(previous));
+			}
+			previous = updated;
+		}
+
+		// Paging forward (from bookmarks) and jumping straight to a later page return the same entries
+		assertEquals(toIds(all), readPages(myPatientDao.history(null), 4));
+		assertEquals(toIds(all).subList(10, 15), toIds(myPatientDao.history(null).getResources(10, 15)));
+		assertEquals(16, mySystemDao.history(null).size());
+	}
+
+	@Test
+	public void testTypeHistoryIsStableWhileResourcesAreUpdated() {
+		List<IIdType> ids = createPatientsWithVersions("testTypeHistoryIsStableWhileResourcesAreUpdated", 4, 2);
+
+		IBundleProvider history = myPatientDao.history(null);
+		List<String> expected = toIds(history.getResources(0, 8));
+
+		// The version which was current when the history was requested moves to the history table
+		IBundleProvider pagedHistory = myPatientDao.history(null);
+		List<String> actual = toIds(pagedHistory.getResources(0, 3));
+		Patient p = myPatientDao.read(ids.get(0));
+		p.getNameFirstRep().addGiven("LATER");
+		myPatientDao.update(p);
+		actual.addAll(toIds(pagedHistory.getResources(3, 8)));
+
+		assertEquals(expected, actual);
+		assertEquals(9, myPatientDao.history(null).size());
+	}
+
+	@Test
+	public void testTypeHistorySince() throws Exception {
+		createPatientsWithVersions("testTypeHistorySince", 3, 2);
+		Thread.sleep(10);
+		Date since = new Date();
+		Thread.sleep(10);
+		List<IIdType> later = createPatientsWithVersions("testTypeHistorySinceLater", 2, 2);
+
+		IBundleProvider history = myPatientDao.history(since);
+		assertEquals(4, history.size());
+		Set<String> resourceIds = new HashSet<String>();
+		for (IBaseResource next : history.getResources(0, 4)) {
+			resourceIds.add(next.getIdElement().toUnqualifiedVersionless().getValue());
+		}
+		assertEquals(2, resourceIds.size());
+		assertTrue(resourceIds.contains(later.get(0).getValue()));
+		assertTrue(resourceIds.contains(later.get(1).getValue()));
+	}
+
+}
@@ -0,0 +1,78 @@
+package ca.uhn.fhir.jpa.dao.dstu2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import ca.uhn.fhir.jpa.dao.ParsedResourceCacheSvc;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.primitive.StringDt;
+
+public class FhirResourceDaoDstu2ParsedResourceCacheTest extends BaseJpaDstu2Test {
+
+	@Autowired
+	private ParsedResourceCacheSvc myParsedResourceCache;
+
+	@Before
+	public void beforeEnableCache() {
+		myDaoConfig.setParsedResourceCacheEnabled(true);
+	}
+
+	private IIdType createPatient(String theFamily) {
+		Patient p = new Patient();
+		p.addName().addFamily(theFamily);
+		p.addUndeclaredExtension(false, "http://example.com/ext", new StringDt(theFamily));
+		return myPatientDao.create(p).getId().toUnqualifiedVersionless();
+	}
+
+	@Test
+	public void testRepeatedReadIsCached() {
+		IIdType id = createPatient("testRepeatedReadIsCached");
+
+		long hits = myParsedResourceCache.getStats().hitCount();
+		Patient first = myPatientDao.read(id);
+		Patient second = myPatientDao.read(id);
+
+		assertEquals(hits + 1, myParsedResourceCache.getStats().hitCount());
+		assertNotSame(first, second);
+		assertEquals("testRepeatedReadIsCached", second.getNameFirstRep().getFamilyAsSingleString());
+		assertEquals(1, second.getUndeclaredExtensionsByUrl("http://example.com/ext").size());
+		assertEquals(id.withVersion("1").getValue(), second.getId().toUnqualified().getValue());
+	}
+
+	@Test
+	public void testModifyingReturnedResourceDoesNotAffectCache() {
+		IIdType id = createPatient("testModifyingReturnedResourceDoesNotAffectCache");
+
+		Patient first = myPatientDao.read(id);
+		first.getNameFirstRep().getFamilyFirstRep().setValue("CHANGED");
+		first.addName().addFamily("ADDED");
+
+		Patient second = myPatientDao.read(id);
+		assertEquals(1, second.getName().size());
+		assertEquals("testModifyingReturnedResourceDoesNotAffectCache", second.getNameFirstRep().getFamilyAsSingleString());
+	}
+
+	@Test
+	public void testUpdateReturnsNewVersion() {
+		IIdType id = createPatient("testUpdateReturnsNewVersion");
+		myPatientDao.read(id);
+
+		Patient p = new Patient();
+		p.setId(id);
+		p.addName().addFamily("testUpdateReturnsNewVersion2");
+		myPatientDao.update(p);
+
+		Patient current = myPatientDao.read(id);
+		assertEquals("2", current.getId().getVersionIdPart());
+		assertEquals("testUpdateReturnsNewVersion2", current.getNameFirstRep().getFamilyAsSingleString());
+
+		Patient previous = myPatientDao.read(id.withVersion("1"));
+		assertEquals("testUpdateReturnsNewVersion", previous.getNameFirstRep().getFamilyAsSingleString());
+	}
+
+}
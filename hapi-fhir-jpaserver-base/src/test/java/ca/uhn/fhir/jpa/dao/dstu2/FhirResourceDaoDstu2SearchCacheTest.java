@@ -0,0 +1,82 @@
+package ca.uhn.fhir.jpa.dao.dstu2;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.search.SearchResultCacheSvc;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.rest.param.StringParam;
+
+public class FhirResourceDaoDstu2SearchCacheTest extends BaseJpaDstu2Test {
+
+	@Autowired
+	private SearchResultCacheSvc mySearchResultCache;
+
+	@Before
+	public void beforeEnableCache() {
+		myDaoConfig.setSearchResultCacheEnabled(true);
+	}
+
+	private IIdType createPatient(String theFamily) {
+		Patient p = new Patient();
+		p.addName().addFamily(theFamily);
+		return myPatientDao.create(p).getId().toUnqualifiedVersionless();
+	}
+
+	@Test
+	public void testRepeatedSearchIsCached() {
+		IIdType id1 = createPatient("testRepeatedSearchIsCached");
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("testRepeatedSearchIsCached"));
+
+		long hits = mySearchResultCache.getHitCount();
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), contains(id1));
+		assertEquals(hits, mySearchResultCache.getHitCount());
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), contains(id1));
+		assertEquals(hits + 1, mySearchResultCache.getHitCount());
+	}
+
+	@Test
+	public void testWriteToSearchedTypeInvalidatesCache() {
+		IIdType id1 = createPatient("testWriteToSearchedTypeInvalidatesCache");
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("testWriteToSearchedTypeInvalidatesCache"));
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), contains(id1));
+
+		IIdType id2 = createPatient("testWriteToSearchedTypeInvalidatesCache");
+
+		long hits = mySearchResultCache.getHitCount();
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), containsInAnyOrder(id1, id2));
+		assertEquals(hits, mySearchResultCache.getHitCount());
+	}
+
+	@Test
+	public void testWriteToRevIncludedTypeInvalidatesCache() {
+		IIdType patientId = createPatient("testWriteToRevIncludedTypeInvalidatesCache");
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("testWriteToRevIncludedTypeInvalidatesCache"));
+		params.addRevInclude(new Include("Observation:subject"));
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), contains(patientId));
+
+		Observation obs = new Observation();
+		obs.setSubject(new ResourceReferenceDt(patientId));
+		IIdType obsId = myObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), contains(patientId, obsId));
+	}
+
+}
@@ -7,6 +7,7 @@ import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 
 import java.util.List;
@@ -22,12 +23,17 @@ import ca.uhn.fhir.model.dstu2.resource.Device;
 import ca.uhn.fhir.model.dstu2.resource.Media;
 import ca.uhn.fhir.model.dstu2.resource.Observation;
 import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.ObservationStatusEnum;
 import ca.uhn.fhir.model.primitive.Base64BinaryDt;
 import ca.uhn.fhir.model.primitive.StringDt;
+import ca.uhn.fhir.rest.api.SortSpec;
 import ca.uhn.fhir.rest.param.StringAndListParam;
 import ca.uhn.fhir.rest.param.StringOrListParam;
 import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.Constants;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 
 public class FhirResourceDaoDstu2SearchFtTest extends BaseJpaDstu2Test {
 	
@@ -428,6 +434,95 @@ public class FhirResourceDaoDstu2SearchFtTest extends BaseJpaDstu2Test {
 
 	}
 
+	@Test
+	public void testSearchTextModifier() {
+		Patient patient = new Patient();
+		patient.addName().addFamily("Textmodifiername");
+		IIdType pId1 = myPatientDao.create(patient).getId().toUnqualifiedVersionless();
+
+		Observation obs = new Observation();
+		obs.getSubject().setReference(pId1);
+		obs.setStatus(ObservationStatusEnum.FINAL);
+		obs.getCode().setText("Systolic Blood Pressure");
+		IIdType oId1 = myObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+		obs = new Observation();
+		obs.getSubject().setReference(pId1);
+		obs.setStatus(ObservationStatusEnum.PRELIMINARY);
+		obs.getCode().setText("Systolic Blood Pressure");
+		IIdType oId2 = myObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+		obs = new Observation();
+		obs.getSubject().setReference(pId1);
+		obs.setStatus(ObservationStatusEnum.FINAL);
+		obs.getCode().setText("Diastolic Blood Pressure");
+		IIdType oId3 = myObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+		SearchParameterMap map;
+
+		map = new SearchParameterMap();
+		map.add(Observation.SP_CODE, new TokenParam(null, "systolic", true));
+		assertThat(toUnqualifiedVersionlessIds(myObservationDao.search(map)), containsInAnyOrder(oId1, oId2));
+
+		map = new SearchParameterMap();
+		map.add(Observation.SP_CODE, new TokenParam(null, "SY", true));
+		assertThat(toUnqualifiedVersionlessIds(myObservationDao.search(map)), containsInAnyOrder(oId1, oId2));
+
+		map = new SearchParameterMap();
+		map.add(Observation.SP_CODE, new TokenParam(null, "Pressure", true));
+		assertThat(toUnqualifiedVersionlessIds(myObservationDao.search(map)), empty());
+
+		// Fulltext matches combined with a database search
+		map = new SearchParameterMap();
+		map.add(Observation.SP_CODE, new TokenParam(null, "systolic", true));
+		map.add(Observation.SP_STATUS, new TokenParam(null, ObservationStatusEnum.FINAL.getCode()));
+		assertThat(toUnqualifiedVersionlessIds(myObservationDao.search(map)), contains(oId1));
+
+		map = new SearchParameterMap();
+		map.add(Observation.SP_CODE, new TokenParam(null, "nomatch", true));
+		map.add(Observation.SP_STATUS, new TokenParam(null, ObservationStatusEnum.FINAL.getCode()));
+		assertThat(toUnqualifiedVersionlessIds(myObservationDao.search(map)), empty());
+
+		map = new SearchParameterMap();
+		map.add(Observation.SP_CODE, new TokenOrListParam().addOr(new TokenParam(null, "systolic", true)).addOr(new TokenParam(null, "diastolic", true)));
+		map.add(Observation.SP_STATUS, new TokenParam(null, ObservationStatusEnum.FINAL.getCode()));
+		assertThat(toUnqualifiedVersionlessIds(myObservationDao.search(map)), containsInAnyOrder(oId1, oId3));
+
+		map = new SearchParameterMap();
+		map.add(Patient.SP_FAMILY, new StringParam("textmodifier").setText(true));
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(map)), contains(pId1));
+	}
+
+	@Test
+	public void testSearchSortByScore() {
+		Observation obs = new Observation();
+		obs.setValue(new StringDt("A long observation value which mentions scoretest only once among many other words"));
+		IIdType oId1 = myObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+		obs = new Observation();
+		obs.setValue(new StringDt("scoretest scoretest scoretest"));
+		IIdType oId2 = myObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+		obs = new Observation();
+		obs.setValue(new StringDt("Something else"));
+		myObservationDao.create(obs);
+
+		SearchParameterMap map = new SearchParameterMap();
+		map.add(Constants.PARAM_CONTENT, new StringParam("scoretest"));
+		map.setSort(new SortSpec("_score"));
+		assertThat(toUnqualifiedVersionlessIds(myObservationDao.search(map)), contains(oId2, oId1));
+
+		map = new SearchParameterMap();
+		map.add(Observation.SP_STATUS, new TokenParam(null, ObservationStatusEnum.FINAL.getCode()));
+		map.setSort(new SortSpec("_score"));
+		try {
+			myObservationDao.search(map);
+			fail();
+		} catch (InvalidRequestException e) {
+			assertEquals("Sorting by _score is only supported for fulltext searches", e.getMessage());
+		}
+	}
+
 	@Test
 	public void testSearchWithChainedParams() {
 		String methodName = "testSearchWithChainedParams";
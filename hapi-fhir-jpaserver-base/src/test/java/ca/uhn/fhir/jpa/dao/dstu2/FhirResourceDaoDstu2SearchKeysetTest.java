@@ -0,0 +1,169 @@
+package ca.uhn.fhir.jpa.dao.dstu2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.jpa.dao.KeysetJpaBundleProvider;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.model.dstu2.composite.PeriodDt;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.primitive.DateDt;
+import ca.uhn.fhir.model.primitive.DateTimeDt;
+import ca.uhn.fhir.rest.api.SortOrderEnum;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+
+public class FhirResourceDaoDstu2SearchKeysetTest extends BaseJpaDstu2Test {
+
+	@Before
+	public void beforeEnableKeysetPaging() {
+		myDaoConfig.setKeysetPagingEnabled(true);
+	}
+
+	private String pad(int theValue) {
+		return theValue < 10 ? "0" + theValue : Integer.toString(theValue);
+	}
+
+	@Test
+	public void testSearchSortedByDatePagesInOrder() {
+		Patient p = new Patient();
+		p.addName().addFamily("testSearchSortedByDatePagesInOrder");
+		IIdType patientId = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		List<IIdType> withDates = new ArrayList<IIdType>();
+		for (int i = 1; i <= 25; i++) {
+			Observation obs = new Observation();
+			obs.setSubject(new ResourceReferenceDt(patientId));
+			obs.setEffective(new DateTimeDt("2015-01-" + pad(i) + "T10:00:00Z"));
+			withDates.add(myObservationDao.create(obs).getId().toUnqualifiedVersionless());
+		}
+		List<IIdType> withoutDates = new ArrayList<IIdType>();
+		for (int i = 0; i < 3; i++) {
+			Observation obs = new Observation();
+			obs.setSubject(new ResourceReferenceDt(patientId));
+			withoutDates.add(myObservationDao.create(obs).getId().toUnqualifiedVersionless());
+		}
+
+		// Newest first, then the ones with no date in the order they were created
+		List<IIdType> expected = new ArrayList<IIdType>(withDates);
+		Collections.reverse(expected);
+		expected.addAll(withoutDates);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_SUBJECT, new ReferenceParam(patientId.getValue()));
+		params.setSort(new SortSpec(Observation.SP_DATE, SortOrderEnum.DESC));
+		params.setCount(10);
+		IBundleProvider results = myObservationDao.search(params);
+		assertTrue(results instanceof KeysetJpaBundleProvider);
+		assertEquals(28, results.size());
+
+		List<IIdType> actual = new ArrayList<IIdType>();
+		actual.addAll(toUnqualifiedVersionlessIds(results.getResources(0, 10)));
+		actual.addAll(toUnqualifiedVersionlessIds(results.getResources(10, 20)));
+		actual.addAll(toUnqualifiedVersionlessIds(results.getResources(20, 30)));
+		assertEquals(expected, actual);
+
+		// A page which doesn't start where another one ended
+		assertEquals(expected.subList(15, 25), toUnqualifiedVersionlessIds(results.getResources(15, 25)));
+		assertEquals(expected.subList(0, 5), toUnqualifiedVersionlessIds(results.getResources(0, 5)));
+	}
+
+	@Test
+	public void testSearchSortedByDateWithEndOnlyPeriods() {
+		Patient p = new Patient();
+		p.addName().addFamily("testSearchSortedByDateWithEndOnlyPeriods");
+		IIdType patientId = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		List<IIdType> expected = new ArrayList<IIdType>();
+		for (int i = 1; i <= 7; i++) {
+			Observation obs = new Observation();
+			obs.setSubject(new ResourceReferenceDt(patientId));
+			obs.setEffective(new DateTimeDt("2015-01-" + pad(i) + "T10:00:00Z"));
+			expected.add(myObservationDao.create(obs).getId().toUnqualifiedVersionless());
+		}
+
+		// These have a date index row, but its low value is null
+		for (int i = 1; i <= 4; i++) {
+			Observation obs = new Observation();
+			obs.setSubject(new ResourceReferenceDt(patientId));
+			obs.setEffective(new PeriodDt().setEnd(new DateTimeDt("2015-02-" + pad(i) + "T10:00:00Z")));
+			expected.add(myObservationDao.create(obs).getId().toUnqualifiedVersionless());
+		}
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_SUBJECT, new ReferenceParam(patientId.getValue()));
+		params.setSort(new SortSpec(Observation.SP_DATE, SortOrderEnum.ASC));
+		params.setCount(3);
+		IBundleProvider results = myObservationDao.search(params);
+		assertTrue(results instanceof KeysetJpaBundleProvider);
+		assertEquals(11, results.size());
+
+		List<IIdType> actual = new ArrayList<IIdType>();
+		for (int i = 0; i < 12; i += 3) {
+			actual.addAll(toUnqualifiedVersionlessIds(results.getResources(i, i + 3)));
+		}
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testSearchWithChainedSort() {
+		String methodName = "testSearchWithChainedSort";
+		List<IIdType> expected = new ArrayList<IIdType>();
+		for (int i = 0; i < 3; i++) {
+			List<IIdType> family = new ArrayList<IIdType>();
+			for (int j = 1; j <= 4; j++) {
+				Patient p = new Patient();
+				p.addIdentifier().setSystem("urn:" + methodName).setValue(i + "-" + j);
+				p.addName().addFamily(methodName + "_" + (3 - i));
+				p.setBirthDate(new DateDt("2000-01-" + pad(j)));
+				family.add(myPatientDao.create(p).getId().toUnqualifiedVersionless());
+			}
+			// Within each family, the most recent birth date first
+			Collections.reverse(family);
+			expected.addAll(0, family);
+		}
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam(methodName));
+		params.setSort(new SortSpec(Patient.SP_FAMILY, SortOrderEnum.ASC, new SortSpec(Patient.SP_BIRTHDATE, SortOrderEnum.DESC)));
+		params.setCount(5);
+		IBundleProvider results = myPatientDao.search(params);
+		assertTrue(results instanceof KeysetJpaBundleProvider);
+		assertEquals(12, results.size());
+
+		List<IIdType> actual = new ArrayList<IIdType>();
+		actual.addAll(toUnqualifiedVersionlessIds(results.getResources(0, 5)));
+		actual.addAll(toUnqualifiedVersionlessIds(results.getResources(5, 10)));
+		actual.addAll(toUnqualifiedVersionlessIds(results.getResources(10, 15)));
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testSearchWithTokenSortIsNotKeysetPaged() {
+		Patient p = new Patient();
+		p.addIdentifier().setSystem("urn:system").setValue("testSearchWithTokenSortIsNotKeysetPaged");
+		p.addName().addFamily("testSearchWithTokenSortIsNotKeysetPaged");
+		myPatientDao.create(p);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("testSearchWithTokenSortIsNotKeysetPaged"));
+		params.setSort(new SortSpec(Patient.SP_IDENTIFIER));
+		IBundleProvider results = myPatientDao.search(params);
+		assertFalse(results instanceof KeysetJpaBundleProvider);
+		assertEquals(1, results.size());
+	}
+
+}
@@ -16,6 +16,7 @@ import static org.mockito.Mockito.mock;
 
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -25,6 +26,8 @@ import java.util.Set;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.lang3.StringUtils;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.junit.Ignore;
@@ -1554,6 +1557,59 @@ public class FhirResourceDaoDstu2SearchNoFtTest extends BaseJpaDstu2Test {
 		}
 	}
 
+	@Test
+	public void testSearchWithIncludesLoadsEachRoundInOneQuery() {
+		String methodName = "testSearchWithIncludesLoadsEachRoundInOneQuery";
+		Organization org = new Organization();
+		org.getNameElement().setValue(methodName);
+		IIdType orgId = myOrganizationDao.create(org).getId().toUnqualifiedVersionless();
+
+		Practitioner pract = new Practitioner();
+		pract.getName().addFamily(methodName);
+		IIdType practId = myPractitionerDao.create(pract).getId().toUnqualifiedVersionless();
+
+		List<IIdType> patientIds = new ArrayList<IIdType>();
+		for (int i = 0; i < 3; i++) {
+			Patient patient = new Patient();
+			patient.addName().addFamily(methodName);
+			patient.getManagingOrganization().setReference(orgId);
+			patient.addCareProvider().setReference(practId);
+			patientIds.add(myPatientDao.create(patient).getId().toUnqualifiedVersionless());
+		}
+
+		Statistics statistics = myEntityManager.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+		statistics.setStatisticsEnabled(true);
+		try {
+			statistics.clear();
+
+			SearchParameterMap params = new SearchParameterMap();
+			params.add(Patient.SP_FAMILY, new StringParam(methodName));
+			params.addInclude(Patient.INCLUDE_CAREPROVIDER);
+			params.addInclude(Patient.INCLUDE_ORGANIZATION);
+			IBundleProvider results = myPatientDao.search(params);
+			List<IIdType> ids = toUnqualifiedVersionlessIds(results.getResources(0, results.size()));
+			assertThat(ids, containsInAnyOrder(patientIds.get(0), patientIds.get(1), patientIds.get(2), orgId, practId));
+			assertEquals(1, countResourceLinkQueries(statistics));
+
+			// Loading the same page again reuses the include results
+			ids = toUnqualifiedVersionlessIds(results.getResources(0, results.size()));
+			assertThat(ids, containsInAnyOrder(patientIds.get(0), patientIds.get(1), patientIds.get(2), orgId, practId));
+			assertEquals(1, countResourceLinkQueries(statistics));
+		} finally {
+			statistics.setStatisticsEnabled(false);
+		}
+	}
+
+	private static long countResourceLinkQueries(Statistics theStatistics) {
+		long retVal = 0;
+		for (String next : theStatistics.getQueries()) {
+			if (next.contains("FROM ResourceLink")) {
+				retVal += theStatistics.getQueryStatistics(next).getExecutionCount();
+			}
+		}
+		return retVal;
+	}
+
 	@SuppressWarnings("unused")
 	@Test
 	public void testSearchWithIncludesParameterNoRecurse() {
@@ -1977,6 +2033,44 @@ public class FhirResourceDaoDstu2SearchNoFtTest extends BaseJpaDstu2Test {
 		}
 	}
 
+	@Test
+	public void testSearchParsesLargePageInParallel() {
+		String methodName = "testSearchParsesLargePageInParallel";
+		myDaoConfig.setParallelParseThreshold(2);
+
+		List<IIdType> expected = new ArrayList<IIdType>();
+		for (int i = 0; i < 30; i++) {
+			Organization org = new Organization();
+			org.setName(methodName + StringUtils.leftPad(Integer.toString(i), 2, '0'));
+			TagList tagList = new TagList();
+			tagList.addTag("urn:taglist", methodName + i);
+			ResourceMetadataKeyEnum.TAG_LIST.put(org, tagList);
+			if (i % 2 == 0) {
+				org.setId(methodName + i);
+				expected.add(myOrganizationDao.update(org).getId().toUnqualifiedVersionless());
+			} else {
+				expected.add(myOrganizationDao.create(org).getId().toUnqualifiedVersionless());
+			}
+		}
+		Collections.reverse(expected);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Organization.SP_NAME, new StringParam(methodName));
+		params.setSort(new SortSpec(Organization.SP_NAME, SortOrderEnum.DESC));
+		List<IBaseResource> resources = myOrganizationDao.search(params).getResources(0, 30);
+
+		assertEquals(expected, toUnqualifiedVersionlessIds(resources));
+		for (int i = 0; i < resources.size(); i++) {
+			Organization org = (Organization) resources.get(i);
+			int index = 29 - i;
+			assertEquals(methodName + StringUtils.leftPad(Integer.toString(index), 2, '0'), org.getName());
+			assertEquals("1", org.getId().getVersionIdPart());
+			TagList tagList = ResourceMetadataKeyEnum.TAG_LIST.get(org);
+			assertEquals(1, tagList.size());
+			assertEquals(methodName + index, tagList.get(0).getTerm());
+		}
+	}
+
 	@Test
 	public void testSearchWithTagParameter() {
 		String methodName = "testSearchWithTagParameter";
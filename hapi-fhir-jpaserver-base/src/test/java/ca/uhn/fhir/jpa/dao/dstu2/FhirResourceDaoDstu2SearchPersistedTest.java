@@ -0,0 +1,67 @@
+package ca.uhn.fhir.jpa.dao.dstu2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.jpa.dao.PersistedJpaBundleProvider;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.search.DatabaseBackedPagingProvider;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+
+/**
+ * Runs all of the search tests with {@link ca.uhn.fhir.jpa.dao.DaoConfig#setPersistSearchResults(boolean)} enabled
+ */
+public class FhirResourceDaoDstu2SearchPersistedTest extends FhirResourceDaoDstu2SearchNoFtTest {
+
+	@Before
+	public void beforeEnablePersistSearchResults() {
+		myDaoConfig.setPersistSearchResults(true);
+	}
+
+	@Test
+	public void testPagingProviderLoadsPersistedSearch() {
+		for (int i = 0; i < 25; i++) {
+			Patient p = new Patient();
+			p.addName().addFamily("FAM" + String.format("%02d", i));
+			p.addIdentifier().setSystem("urn:system").setValue("testPagingProviderLoadsPersistedSearch");
+			myPatientDao.create(p);
+		}
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_FAMILY, new StringParam("FAM"));
+		params.setSort(new SortSpec(Patient.SP_FAMILY));
+		IBundleProvider results = myPatientDao.search(params);
+		assertTrue(results instanceof PersistedJpaBundleProvider);
+		assertEquals(25, results.size());
+
+		String uuid = new DatabaseBackedPagingProvider(mySystemDao, 10).storeResultList(results);
+		assertEquals(((PersistedJpaBundleProvider) results).getUuid(), uuid);
+
+		/*
+		 * A different paging provider (e.g. one on a different server) should
+		 * be able to load the search from the database
+		 */
+		IBundleProvider loaded = new DatabaseBackedPagingProvider(mySystemDao, 10).retrieveResultList(uuid);
+		assertNotNull(loaded);
+		assertEquals(25, loaded.size());
+
+		List<IBaseResource> page = loaded.getResources(10, 20);
+		assertEquals(10, page.size());
+		assertEquals("FAM10", ((Patient) page.get(0)).getNameFirstRep().getFamilyAsSingleString());
+		assertEquals("FAM19", ((Patient) page.get(9)).getNameFirstRep().getFamilyAsSingleString());
+
+		assertNull(new DatabaseBackedPagingProvider(mySystemDao, 10).retrieveResultList("FOO"));
+	}
+
+}
@@ -0,0 +1,15 @@
+package ca.uhn.fhir.jpa.dao.dstu2;
+
+import org.junit.Before;
+
+/**
+ * Runs all of the search tests with {@link ca.uhn.fhir.jpa.dao.DaoConfig#setSingleQuerySearchEnabled(boolean)} enabled
+ */
+public class FhirResourceDaoDstu2SearchSingleQueryTest extends FhirResourceDaoDstu2SearchNoFtTest {
+
+	@Before
+	public void beforeEnableSingleQuerySearch() {
+		myDaoConfig.setSingleQuerySearchEnabled(true);
+	}
+
+}
@@ -0,0 +1,111 @@
+package ca.uhn.fhir.jpa.dao.dstu2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.dao.StreamingJpaBundleProvider;
+import ca.uhn.fhir.model.dstu2.composite.ResourceReferenceDt;
+import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.server.IBundleProvider;
+
+public class FhirResourceDaoDstu2SearchStreamingTest extends BaseJpaDstu2Test {
+
+	@Before
+	public void beforeEnableStreamingSearch() {
+		myDaoConfig.setStreamingSearchEnabled(true);
+	}
+
+	private IIdType createPatientWithObservations(String theFamily, int theCount, List<IIdType> theObservationIds) {
+		Patient p = new Patient();
+		p.addName().addFamily(theFamily);
+		IIdType patientId = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		for (int i = 0; i < theCount; i++) {
+			Observation obs = new Observation();
+			obs.setSubject(new ResourceReferenceDt(patientId));
+			theObservationIds.add(myObservationDao.create(obs).getId().toUnqualifiedVersionless());
+		}
+		return patientId;
+	}
+
+	@Test
+	public void testSearchReturnsFirstPageBeforeCountIsFinal() {
+		List<IIdType> expected = new ArrayList<IIdType>();
+		IIdType patientId = createPatientWithObservations("testSearchReturnsFirstPageBeforeCountIsFinal", 120, expected);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_SUBJECT, new ReferenceParam(patientId.getValue()));
+		params.setCount(10);
+		IBundleProvider results = myObservationDao.search(params);
+		assertTrue(results instanceof StreamingJpaBundleProvider);
+
+		// There must be more than one page so that paging links are generated
+		assertTrue(results.size() > 10);
+
+		List<IBaseResource> firstPage = results.getResources(0, 10);
+		assertEquals(10, firstPage.size());
+		assertEquals(expected.subList(0, 10), toUnqualifiedVersionlessIds(firstPage));
+
+		// Asking for everything waits for the background read to finish
+		List<IBaseResource> all = results.getResources(0, 1000);
+		assertTrue(((StreamingJpaBundleProvider) results).isComplete());
+		assertEquals(120, results.size());
+		assertEquals(expected, toUnqualifiedVersionlessIds(all));
+	}
+
+	@Test
+	public void testSearchSmallerThanFirstPageIsCompleteImmediately() {
+		List<IIdType> expected = new ArrayList<IIdType>();
+		IIdType patientId = createPatientWithObservations("testSearchSmallerThanFirstPageIsCompleteImmediately", 5, expected);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_SUBJECT, new ReferenceParam(patientId.getValue()));
+		params.setCount(10);
+		IBundleProvider results = myObservationDao.search(params);
+		assertTrue(((StreamingJpaBundleProvider) results).isComplete());
+		assertEquals(5, results.size());
+		assertEquals(expected, toUnqualifiedVersionlessIds(results.getResources(0, 5)));
+	}
+
+	@Test
+	public void testSearchWithSortIsNotStreamed() {
+		List<IIdType> expected = new ArrayList<IIdType>();
+		IIdType patientId = createPatientWithObservations("testSearchWithSortIsNotStreamed", 20, expected);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_SUBJECT, new ReferenceParam(patientId.getValue()));
+		params.setSort(new SortSpec(Observation.SP_DATE));
+		params.setCount(10);
+		IBundleProvider results = myObservationDao.search(params);
+		assertFalse(results instanceof StreamingJpaBundleProvider);
+		assertEquals(20, results.size());
+	}
+
+	@Test
+	public void testSearchWithLoadSynchronousIsNotStreamed() {
+		List<IIdType> expected = new ArrayList<IIdType>();
+		IIdType patientId = createPatientWithObservations("testSearchWithLoadSynchronousIsNotStreamed", 20, expected);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_SUBJECT, new ReferenceParam(patientId.getValue()));
+		params.setCount(10);
+		params.setLoadSynchronous(true);
+		IBundleProvider results = myObservationDao.search(params);
+		assertFalse(results instanceof StreamingJpaBundleProvider);
+		assertEquals(20, results.size());
+	}
+
+}
@@ -0,0 +1,89 @@
+package ca.uhn.fhir.jpa.dao.dstu2;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.Test;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.rest.param.StringParam;
+
+/**
+ * Logs the time taken by left anchored string searches over a large HFJ_SPIDX_STRING table, with and without the
+ * normalized prefix hash. The table only has {@link #DEFAULT_ROWS} rows by default so that the regular build stays
+ * fast, run with <code>-Dhapi.bench.stringIndexRows=10000000</code> to benchmark a 10M row index.
+ */
+public class FhirResourceDaoDstu2StringPrefixPerfTest extends BaseJpaDstu2Test {
+
+	private static final int BATCH_SIZE = 5000;
+	private static final int DEFAULT_ROWS = 2000;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu2StringPrefixPerfTest.class);
+	private static final String[] PREFIXES = { "SMITH", "JONES", "BROWN", "WILSON", "TAYLOR", "MARTIN", "ANDERSON", "THOMAS" };
+	private static final int SEARCH_REPETITIONS = 20;
+
+	private void createIndexRows(final Long theResourcePid, int theCount) {
+		for (int start = 0; start < theCount; start += BATCH_SIZE) {
+			final int from = start;
+			final int to = Math.min(start + BATCH_SIZE, theCount);
+			new TransactionTemplate(myTxManager).execute(new TransactionCallbackWithoutResult() {
+				@Override
+				protected void doInTransactionWithoutResult(TransactionStatus theStatus) {
+					ResourceTable resource = myEntityManager.find(ResourceTable.class, theResourcePid);
+					for (int i = from; i < to; i++) {
+						String value = PREFIXES[i % PREFIXES.length] + i;
+						ResourceIndexedSearchParamString row = new ResourceIndexedSearchParamString(Patient.SP_FAMILY, value, value);
+						row.setResource(resource);
+						myEntityManager.persist(row);
+					}
+					myEntityManager.flush();
+					myEntityManager.clear();
+				}
+			});
+			if (to % 1000000 == 0) {
+				ourLog.info("Created {} string index rows", to);
+			}
+		}
+	}
+
+	private long timeSearch(String theValue, Long theExpectedPid) {
+		StopWatch sw = new StopWatch();
+		for (int i = 0; i < SEARCH_REPETITIONS; i++) {
+			Set<Long> found = myPatientDao.searchForIds(Patient.SP_FAMILY, new StringParam(theValue));
+			assertEquals(1, found.size());
+			assertEquals(theExpectedPid, found.iterator().next());
+		}
+		return sw.getMillisAndRestart() / SEARCH_REPETITIONS;
+	}
+
+	@Test
+	public void testPrefixSearchTime() {
+		int rows = Integer.getInteger("hapi.bench.stringIndexRows", DEFAULT_ROWS);
+
+		Patient p = new Patient();
+		p.addName().addFamily("testPrefixSearchTime");
+		IIdType id = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+		Long pid = id.getIdPartAsLong();
+
+		StopWatch sw = new StopWatch();
+		createIndexRows(pid, rows);
+		ourLog.info("Created {} string index rows in {}ms", rows, sw.getMillisAndRestart());
+
+		String[] searches = { "testPrefix", "SMITH1232", "ANDERSON94", "TAY" };
+		for (String next : searches) {
+			myDaoConfig.setHashedIndexSearchEnabled(false);
+			long likeOnly = timeSearch(next, pid);
+			myDaoConfig.setHashedIndexSearchEnabled(true);
+			long withHash = timeSearch(next, pid);
+			ourLog.info("Search for '{}' over {} rows: {}ms using LIKE only, {}ms using the prefix hash", new Object[] { next, rows, likeOnly, withHash });
+		}
+	}
+
+}
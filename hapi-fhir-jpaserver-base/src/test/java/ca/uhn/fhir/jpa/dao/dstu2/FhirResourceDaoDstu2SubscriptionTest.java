@@ -16,6 +16,7 @@ import static org.junit.Assert.fail;
 
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.persistence.TypedQuery;
 
@@ -26,6 +27,7 @@ import org.junit.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.dao.SubscriptionMatcherSvc;
 import ca.uhn.fhir.jpa.dao.data.ISubscriptionFlaggedResourceDataDao;
 import ca.uhn.fhir.jpa.dao.data.ISubscriptionTableDao;
 import ca.uhn.fhir.jpa.entity.SubscriptionTable;
@@ -46,6 +48,9 @@ public class FhirResourceDaoDstu2SubscriptionTest extends BaseJpaDstu2Test {
 	@Autowired
 	private ISubscriptionFlaggedResourceDataDao mySubscriptionFlaggedResourceDataDao;
 
+	@Autowired
+	private SubscriptionMatcherSvc mySubscriptionMatcher;
+
 	@Autowired
 	private ISubscriptionTableDao mySubscriptionTableDao;
 
@@ -295,6 +300,81 @@ public class FhirResourceDaoDstu2SubscriptionTest extends BaseJpaDstu2Test {
 
 	}
 
+	@Test
+	public void testSubscriptionMatchingOnWrite() throws Exception {
+		myDaoConfig.setSubscriptionMatchingOnWriteEnabled(true);
+		mySubscriptionMatcher.invalidate();
+
+		String methodName = "testSubscriptionMatchingOnWrite";
+		Patient p = new Patient();
+		p.addName().addFamily(methodName);
+		IIdType pId = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		p = new Patient();
+		p.addName().addFamily(methodName);
+		IIdType pId2 = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		Subscription subs = new Subscription();
+		subs.getChannel().setType(SubscriptionChannelTypeEnum.WEBSOCKET);
+		subs.setCriteria("Observation?subject=Patient/" + pId.getIdPart());
+		subs.setStatus(SubscriptionStatusEnum.ACTIVE);
+		Long subsId1 = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(mySubscriptionDao.create(subs).getId());
+
+		subs = new Subscription();
+		subs.getChannel().setType(SubscriptionChannelTypeEnum.WEBSOCKET);
+		subs.setCriteria("Observation?status=final&subject=Patient/" + pId.getIdPart());
+		subs.setStatus(SubscriptionStatusEnum.ACTIVE);
+		Long subsId2 = mySubscriptionDao.getSubscriptionTablePidForSubscriptionResource(mySubscriptionDao.create(subs).getId());
+
+		final AtomicInteger notifications = new AtomicInteger();
+		Runnable listener = new Runnable() {
+			@Override
+			public void run() {
+				notifications.incrementAndGet();
+			}
+		};
+		mySubscriptionMatcher.addDeliveryListener(subsId1, listener);
+		try {
+
+			Observation obs = new Observation();
+			obs.getSubject().setReference(pId);
+			obs.setStatus(ObservationStatusEnum.FINAL);
+			IIdType matchesBoth = myObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+			obs = new Observation();
+			obs.getSubject().setReference(pId);
+			obs.setStatus(ObservationStatusEnum.PRELIMINARY);
+			IIdType matchesFirst = myObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+			obs = new Observation();
+			obs.getSubject().setReference(pId2);
+			obs.setStatus(ObservationStatusEnum.FINAL);
+			myObservationDao.create(obs);
+
+			// Flagged as they were written, without polling
+			assertEquals(2, notifications.get());
+			assertEquals(3, mySubscriptionFlaggedResourceDataDao.count());
+			assertEquals(0, mySubscriptionDao.pollForNewUndeliveredResources());
+
+			assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsId1)), contains(matchesBoth, matchesFirst));
+			assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsId2)), contains(matchesBoth));
+
+			/*
+			 * Updates are matched too, but reindexing isn't
+			 */
+			myObservationDao.update(myObservationDao.read(matchesFirst));
+			mySystemDao.markAllResourcesForReindexing();
+			mySystemDao.performReindexingPass(100);
+
+			assertEquals(3, notifications.get());
+			assertThat(toUnqualifiedVersionlessIds(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsId1)), contains(matchesFirst));
+			assertThat(mySubscriptionDao.getUndeliveredResourcesAndPurge(subsId2), empty());
+
+		} finally {
+			mySubscriptionMatcher.removeDeliveryListener(subsId1, listener);
+		}
+	}
+
 	@Test
 	public void testSubscriptionResourcesAppear() throws Exception {
 		myDaoConfig.setSubscriptionPollDelay(0);
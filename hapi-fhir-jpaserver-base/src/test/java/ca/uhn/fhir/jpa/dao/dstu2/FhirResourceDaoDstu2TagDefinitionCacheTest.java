@@ -0,0 +1,112 @@
+package ca.uhn.fhir.jpa.dao.dstu2;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.jpa.entity.TagDefinition;
+import ca.uhn.fhir.jpa.entity.TagTypeEnum;
+import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
+import ca.uhn.fhir.model.api.Tag;
+import ca.uhn.fhir.model.api.TagList;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.primitive.IdDt;
+
+public class FhirResourceDaoDstu2TagDefinitionCacheTest extends BaseJpaDstu2Test {
+
+	private Statistics myStatistics;
+
+	@After
+	public void afterDisableStatistics() {
+		myStatistics.setStatisticsEnabled(false);
+	}
+
+	@Before
+	public void beforeEnableStatistics() {
+		myStatistics = myEntityManager.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+		myStatistics.setStatisticsEnabled(true);
+	}
+
+	private Patient createTaggedPatient(String theFamily) {
+		Patient p = new Patient();
+		p.addName().addFamily(theFamily);
+		TagList tagList = new TagList();
+		tagList.add(new Tag("http://foo", "bar", "Bar"));
+		tagList.add(new Tag("http://foo", "baz", "Baz"));
+		ResourceMetadataKeyEnum.TAG_LIST.put(p, tagList);
+		List<IdDt> profiles = new ArrayList<IdDt>();
+		profiles.add(new IdDt("http://profile/1"));
+		profiles.add(new IdDt("http://profile/2"));
+		ResourceMetadataKeyEnum.PROFILES.put(p, profiles);
+		return p;
+	}
+
+	@Test
+	public void testTagsAreLookedUpOnce() {
+		myPatientDao.create(createTaggedPatient("testTagsAreLookedUpOnce"));
+		assertEquals(4, myTagDefinitionCache.getCachedTagDefinitionCount());
+
+		myStatistics.clear();
+		IIdType id = myPatientDao.create(createTaggedPatient("testTagsAreLookedUpOnce")).getId().toUnqualifiedVersionless();
+		assertEquals(0, myStatistics.getEntityStatistics(TagDefinition.class.getName()).getInsertCount());
+		long queries = myStatistics.getQueryExecutionCount();
+
+		myStatistics.clear();
+		Patient untagged = new Patient();
+		untagged.addName().addFamily("testTagsAreLookedUpOnce");
+		myPatientDao.create(untagged);
+		assertEquals(queries, myStatistics.getQueryExecutionCount());
+
+		Patient read = myPatientDao.read(id);
+		assertEquals(2, ResourceMetadataKeyEnum.TAG_LIST.get(read).size());
+		assertEquals(2, ResourceMetadataKeyEnum.PROFILES.get(read).size());
+	}
+
+	@Test
+	public void testConcurrentFirstInsertCreatesOneDefinition() throws Exception {
+		Long id = null;
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<TagDefinition>> futures = new ArrayList<Future<TagDefinition>>();
+			for (int i = 0; i < 4; i++) {
+				futures.add(executor.submit(new Callable<TagDefinition>() {
+					@Override
+					public TagDefinition call() {
+						return myTagDefinitionCache.getTag(TagTypeEnum.TAG, "http://foo", "testConcurrentFirstInsertCreatesOneDefinition", null);
+					}
+				}));
+			}
+
+			for (Future<TagDefinition> next : futures) {
+				TagDefinition def = next.get();
+				assertNotNull(def.getId());
+				if (id == null) {
+					id = def.getId();
+				}
+				assertEquals(id, def.getId());
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		// Another server starting with an empty cache finds the same definition
+		myTagDefinitionCache.clear();
+		TagDefinition def = myTagDefinitionCache.getTag(TagTypeEnum.TAG, "http://foo", "testConcurrentFirstInsertCreatesOneDefinition", null);
+		assertEquals(1, myTagDefinitionCache.getCachedTagDefinitionCount());
+		assertEquals(id, def.getId());
+	}
+
+}
@@ -22,24 +22,31 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import javax.persistence.TypedQuery;
+
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
 import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.api.ResourceMetadataKeyEnum;
 import ca.uhn.fhir.model.api.Tag;
 import ca.uhn.fhir.model.api.TagList;
 import ca.uhn.fhir.model.base.composite.BaseCodingDt;
 import ca.uhn.fhir.model.dstu2.composite.CodingDt;
+import ca.uhn.fhir.model.dstu2.resource.Observation;
 import ca.uhn.fhir.model.dstu2.resource.Organization;
 import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.ObservationStatusEnum;
+import ca.uhn.fhir.model.primitive.DateTimeDt;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.model.primitive.InstantDt;
 import ca.uhn.fhir.model.primitive.StringDt;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
@@ -260,6 +267,49 @@ public class FhirResourceDaoDstu2UpdateTest extends BaseJpaDstu2Test {
 
 	}
 
+	private List<Long> findIndexRowIds(String theEntityName, IIdType theResourceId, String theParamName) {
+		TypedQuery<Long> q = myEntityManager.createQuery("SELECT t.myId FROM " + theEntityName + " t WHERE t.myResourcePid = :pid AND t.myParamName = :name ORDER BY t.myId", Long.class);
+		q.setParameter("pid", theResourceId.getIdPartAsLong());
+		q.setParameter("name", theParamName);
+		return q.getResultList();
+	}
+
+	@Test
+	public void testUpdateOnlyRewritesChangedIndexRows() {
+		Observation obs = new Observation();
+		obs.setStatus(ObservationStatusEnum.PRELIMINARY);
+		obs.getCode().addCoding().setSystem("urn:system").setCode("testUpdateOnlyRewritesChangedIndexRows");
+		obs.setEffective(new DateTimeDt("2016-01-02T10:11:12.123Z"));
+		IIdType id = myObservationDao.create(obs).getId().toUnqualifiedVersionless();
+
+		List<Long> codeIds = findIndexRowIds("ResourceIndexedSearchParamToken", id, Observation.SP_CODE);
+		List<Long> dateIds = findIndexRowIds("ResourceIndexedSearchParamDate", id, Observation.SP_DATE);
+		List<Long> statusIds = findIndexRowIds("ResourceIndexedSearchParamToken", id, Observation.SP_STATUS);
+		assertEquals(1, codeIds.size());
+		assertEquals(1, dateIds.size());
+		assertEquals(1, statusIds.size());
+
+		obs.setId(id);
+		obs.setStatus(ObservationStatusEnum.FINAL);
+		myObservationDao.update(obs);
+
+		assertEquals(codeIds, findIndexRowIds("ResourceIndexedSearchParamToken", id, Observation.SP_CODE));
+		assertEquals(dateIds, findIndexRowIds("ResourceIndexedSearchParamDate", id, Observation.SP_DATE));
+		List<Long> newStatusIds = findIndexRowIds("ResourceIndexedSearchParamToken", id, Observation.SP_STATUS);
+		assertEquals(1, newStatusIds.size());
+		assertNotEquals(statusIds, newStatusIds);
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Observation.SP_STATUS, new TokenParam(null, ObservationStatusEnum.FINAL.getCode()));
+		params.add(Observation.SP_CODE, new TokenParam("urn:system", "testUpdateOnlyRewritesChangedIndexRows"));
+		assertThat(toUnqualifiedVersionlessIds(myObservationDao.search(params)), contains(id));
+
+		params = new SearchParameterMap();
+		params.add(Observation.SP_STATUS, new TokenParam(null, ObservationStatusEnum.PRELIMINARY.getCode()));
+		params.add(Observation.SP_CODE, new TokenParam("urn:system", "testUpdateOnlyRewritesChangedIndexRows"));
+		assertEquals(0, myObservationDao.search(params).size());
+	}
+
 	@Test
 	public void testUpdateRejectsInvalidTypes() throws InterruptedException {
 		Patient p1 = new Patient();
@@ -0,0 +1,193 @@
+package ca.uhn.fhir.jpa.dao.dstu2;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.hibernate.SessionFactory;
+import org.hibernate.jpa.HibernatePersistenceProvider;
+import org.hibernate.stat.Statistics;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+
+import com.google.common.base.Charsets;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
+import ca.uhn.fhir.jpa.entity.ResourceIndexedSearchParamString;
+import ca.uhn.fhir.jpa.entity.ResourceTable;
+import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.AdministrativeGenderEnum;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+/**
+ * Checks that index rows are written using JDBC batches, compares the statements needed to write index rows with and
+ * without pooled sequences, and logs a simple create throughput figure which can be compared between builds
+ */
+public class FhirResourceDaoDstu2WritePerfTest extends BaseJpaDstu2Test {
+
+	private static final int INDEX_ROWS = 200;
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(FhirResourceDaoDstu2WritePerfTest.class);
+	private Statistics myStatistics;
+
+	@After
+	public void afterDisableStatistics() {
+		myStatistics.setStatisticsEnabled(false);
+	}
+
+	@Before
+	public void beforeEnableStatistics() {
+		myStatistics = myEntityManager.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+		myStatistics.setStatisticsEnabled(true);
+	}
+
+	/**
+	 * Writes one resource with {@link #INDEX_ROWS} string index rows to a new database, returning the number of
+	 * statements which were prepared
+	 * 
+	 * @param theMappingResource
+	 *           An extra mapping file which overrides the entity annotations, or <code>null</code>
+	 */
+	private long countStatementsToWriteIndexRows(String theDatabaseName, String theMappingResource) {
+		BasicDataSource dataSource = new BasicDataSource();
+		dataSource.setDriver(new org.apache.derby.jdbc.EmbeddedDriver());
+		dataSource.setUrl("jdbc:derby:memory:" + theDatabaseName + ";create=true");
+		dataSource.setUsername("");
+		dataSource.setPassword("");
+
+		Properties properties = new Properties();
+		properties.put("hibernate.hbm2ddl.auto", "create");
+		properties.put("hibernate.jdbc.batch_size", "20");
+		properties.put("hibernate.order_inserts", "true");
+		properties.put("hibernate.order_updates", "true");
+		properties.put("hibernate.dialect", "org.hibernate.dialect.DerbyTenSevenDialect");
+		properties.put("hibernate.generate_statistics", "true");
+		properties.put("hibernate.search.autoregister_listeners", "false");
+		properties.put("hibernate.search.default.directory_provider", "ram");
+
+		LocalContainerEntityManagerFactoryBean factoryBean = new LocalContainerEntityManagerFactoryBean();
+		factoryBean.setPersistenceUnitName("PU_" + theDatabaseName);
+		factoryBean.setDataSource(dataSource);
+		factoryBean.setPackagesToScan("ca.uhn.fhir.jpa.entity");
+		if (theMappingResource != null) {
+			factoryBean.setMappingResources(theMappingResource);
+		}
+		factoryBean.setPersistenceProvider(new HibernatePersistenceProvider());
+		factoryBean.setJpaProperties(properties);
+		factoryBean.afterPropertiesSet();
+
+		EntityManagerFactory factory = factoryBean.getObject();
+		try {
+			Statistics statistics = factory.unwrap(SessionFactory.class).getStatistics();
+			statistics.clear();
+
+			EntityManager entityManager = factory.createEntityManager();
+			try {
+				entityManager.getTransaction().begin();
+
+				ResourceTable resource = new ResourceTable();
+				resource.setResourceType("Patient");
+				resource.setEncoding(ResourceEncodingEnum.JSON);
+				resource.setFhirVersion(FhirVersionEnum.DSTU2);
+				resource.setResource("{\"resourceType\":\"Patient\"}".getBytes(Charsets.UTF_8));
+				resource.setPublished(new Date());
+				resource.setUpdated(new Date());
+				resource.setVersion(1);
+				entityManager.persist(resource);
+
+				for (int i = 0; i < INDEX_ROWS; i++) {
+					ResourceIndexedSearchParamString param = new ResourceIndexedSearchParamString("family", "FAMILY" + i, "Family" + i);
+					param.setResource(resource);
+					entityManager.persist(param);
+				}
+
+				entityManager.getTransaction().commit();
+			} finally {
+				entityManager.close();
+			}
+
+			assertEquals(INDEX_ROWS + 1, statistics.getEntityInsertCount());
+			return statistics.getPrepareStatementCount();
+		} finally {
+			factoryBean.destroy();
+		}
+	}
+
+	private Patient createPatientWithManyIndexes(String theIdentifierSystem, int theIndex) {
+		Patient p = new Patient();
+		p.setGender(AdministrativeGenderEnum.FEMALE);
+		for (int i = 0; i < 10; i++) {
+			p.addIdentifier().setSystem(theIdentifierSystem).setValue(theIndex + "-" + i);
+			p.addName().addFamily("FAMILY" + i).addGiven("GIVEN" + i);
+		}
+		return p;
+	}
+
+	@Test
+	public void testCreateWritesIndexesInBatches() {
+		// Warm up so that the sequence blocks have been allocated
+		myPatientDao.create(createPatientWithManyIndexes("urn:testCreateWritesIndexesInBatches", 0));
+
+		myStatistics.clear();
+		myPatientDao.create(createPatientWithManyIndexes("urn:testCreateWritesIndexesInBatches", 1));
+
+		long inserts = myStatistics.getEntityInsertCount();
+		long statements = myStatistics.getPrepareStatementCount();
+		ourLog.info("Create inserted {} rows using {} statements", inserts, statements);
+
+		assertThat(inserts, greaterThan(40L));
+		assertThat(statements, lessThan(inserts / 2));
+	}
+
+	@Test
+	public void testPooledSequenceReducesStatements() {
+		long pooled = countStatementsToWriteIndexRows("myWritePerfPooledDB", null);
+		long unpooled = countStatementsToWriteIndexRows("myWritePerfUnpooledDB", "ca/uhn/fhir/jpa/dao/dstu2/unpooled-sequences-orm.xml");
+		ourLog.info("Writing {} index rows used {} statements with a pooled sequence and {} without", new Object[] { INDEX_ROWS, pooled, unpooled });
+
+		// Without pooling every row needs its own sequence call, with it one call covers 50 rows
+		assertThat(unpooled - pooled, greaterThan(INDEX_ROWS * 3L / 4));
+		assertThat(pooled, lessThan(unpooled / 4));
+	}
+
+	@Test
+	public void testCreateThroughput() {
+		int count = 200;
+		List<IIdType> ids = new ArrayList<IIdType>();
+		myStatistics.clear();
+		StopWatch sw = new StopWatch();
+		for (int i = 0; i < count; i++) {
+			ids.add(myPatientDao.create(createPatientWithManyIndexes("urn:testCreateThroughput", i)).getId().toUnqualifiedVersionless());
+		}
+		long millis = sw.getMillisAndRestart();
+
+		ourLog.info("Created {} patients in {}ms ({} creates/second, {} statements)", new Object[] { count, millis, (count * 1000L) / Math.max(millis, 1), myStatistics.getPrepareStatementCount() });
+
+		// Every create got its own resource, and wrote all of its index rows
+		assertEquals(count, new HashSet<IIdType>(ids).size());
+		assertThat(myStatistics.getEntityInsertCount(), greaterThanOrEqualTo(count * 40L));
+
+		SearchParameterMap params = new SearchParameterMap();
+		params.add(Patient.SP_IDENTIFIER, new TokenParam("urn:testCreateThroughput", (count - 1) + "-9"));
+		assertThat(toUnqualifiedVersionlessIds(myPatientDao.search(params)), contains(ids.get(count - 1)));
+	}
+
+}
@@ -0,0 +1,190 @@
+package ca.uhn.fhir.jpa.dao.dstu2;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.time.DateUtils;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.common.base.Charsets;
+
+import ca.uhn.fhir.jpa.dao.BulkExportSvc;
+import ca.uhn.fhir.jpa.dao.data.IBulkExportJobDao;
+import ca.uhn.fhir.jpa.entity.BulkExportJob;
+import ca.uhn.fhir.jpa.entity.BulkExportJobStatusEnum;
+import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.AdministrativeGenderEnum;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
+
+public class FhirSystemDaoDstu2BulkExportTest extends BaseJpaDstu2Test {
+
+	@Autowired
+	private IBulkExportJobDao myBulkExportJobDao;
+
+	@Autowired
+	private BulkExportSvc myBulkExportSvc;
+
+	@Rule
+	public TemporaryFolder myTemporaryFolder = new TemporaryFolder();
+
+	@Before
+	public void beforeEnableBulkExport() {
+		myDaoConfig.setBulkExportDirectory(myTemporaryFolder.getRoot().getAbsolutePath());
+	}
+
+	private BulkExportJob runJob(List<String> theTypes, Date theSince, List<String> theElements) {
+		BulkExportJob job = myBulkExportSvc.submitJob(theTypes, theSince, theElements);
+		assertEquals(BulkExportJobStatusEnum.SUBMITTED, job.getStatus());
+		assertTrue(myBulkExportSvc.performExportPass() > 0);
+
+		job = myBulkExportSvc.getJob(job.getId());
+		assertEquals(job.getStatusMessage(), BulkExportJobStatusEnum.COMPLETE, job.getStatus());
+		assertNotNull(job.getFinished());
+		return job;
+	}
+
+	/**
+	 * Returns the lines of the given output file, keyed by the unqualified versionless ID of the resource on each line
+	 */
+	private Map<String, String> readOutput(BulkExportJob theJob, String theResourceType) throws IOException {
+		File file = new File(myBulkExportSvc.getJobDirectory(theJob), theResourceType + ".ndjson");
+		assertTrue(file.getAbsolutePath(), file.exists());
+		Map<String, String> retVal = new HashMap<String, String>();
+		for (String next : FileUtils.readLines(file, Charsets.UTF_8)) {
+			Patient parsed = myFhirCtx.newJsonParser().parseResource(Patient.class, next);
+			retVal.put(parsed.getId().toUnqualifiedVersionless().getValue(), next);
+		}
+		return retVal;
+	}
+
+	@Test
+	public void testExportDisabled() {
+		myDaoConfig.setBulkExportDirectory(null);
+		try {
+			myBulkExportSvc.submitJob(Arrays.asList("Patient"), null, null);
+			fail();
+		} catch (NotImplementedOperationException e) {
+			assertEquals("Bulk export is not enabled on this server", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testExportPatients() throws IOException {
+		Patient p = new Patient();
+		p.addName().addFamily("testExportPatients");
+		p.setGender(AdministrativeGenderEnum.FEMALE);
+		IIdType id1 = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		p = new Patient();
+		p.setId("Patient/testExportPatients");
+		p.addName().addFamily("testExportPatients");
+		IIdType id2 = myPatientDao.update(p).getId().toUnqualifiedVersionless();
+
+		p = new Patient();
+		p.addName().addFamily("testExportPatients");
+		IIdType id3 = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+		myPatientDao.delete(id3);
+
+		Observation obs = new Observation();
+		obs.getCode().setText("testExportPatients");
+		myObservationDao.create(obs);
+
+		BulkExportJob job = runJob(Arrays.asList("Patient"), null, null);
+
+		Map<String, String> output = readOutput(job, "Patient");
+		assertTrue(output.containsKey(id1.getValue()));
+		assertTrue(output.containsKey(id2.getValue()));
+		assertFalse(output.containsKey(id3.getValue()));
+		assertEquals(output.size(), job.getResourceCount());
+		assertThat(output.get(id1.getValue()), containsString("\"gender\":\"female\""));
+		assertFalse(new File(myBulkExportSvc.getJobDirectory(job), "Observation.ndjson").exists());
+		assertEquals(1, myBulkExportSvc.getOutputFiles(job).size());
+
+		// Nothing left to do
+		assertEquals(0, myBulkExportSvc.performExportPass());
+	}
+
+	@Test
+	public void testExportResubmitsStaleRunningJobs() throws IOException {
+		Patient p = new Patient();
+		p.addName().addFamily("testExportResubmitsStaleRunningJobs");
+		IIdType id = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		// Jobs which were running on a server which stopped, one of them only just now
+		BulkExportJob staleJob = myBulkExportSvc.submitJob(Arrays.asList("Patient"), null, null);
+		staleJob.setStatus(BulkExportJobStatusEnum.RUNNING);
+		staleJob.setLastUpdated(DateUtils.addHours(new Date(), -1));
+		myBulkExportJobDao.save(staleJob);
+
+		BulkExportJob recentJob = myBulkExportSvc.submitJob(Arrays.asList("Patient"), null, null);
+		recentJob.setStatus(BulkExportJobStatusEnum.RUNNING);
+		recentJob.setLastUpdated(new Date());
+		myBulkExportJobDao.save(recentJob);
+
+		assertEquals(1, myBulkExportSvc.performExportPass());
+
+		staleJob = myBulkExportSvc.getJob(staleJob.getId());
+		assertEquals(staleJob.getStatusMessage(), BulkExportJobStatusEnum.COMPLETE, staleJob.getStatus());
+		assertTrue(readOutput(staleJob, "Patient").containsKey(id.getValue()));
+
+		recentJob = myBulkExportSvc.getJob(recentJob.getId());
+		assertEquals(BulkExportJobStatusEnum.RUNNING, recentJob.getStatus());
+	}
+
+	@Test
+	public void testExportWithElements() throws IOException {
+		Patient p = new Patient();
+		p.addName().addFamily("testExportWithElements");
+		p.setGender(AdministrativeGenderEnum.FEMALE);
+		IIdType id = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		BulkExportJob job = runJob(Arrays.asList("Patient"), null, Arrays.asList("name"));
+
+		String line = readOutput(job, "Patient").get(id.getValue());
+		assertThat(line, containsString("testExportWithElements"));
+		assertThat(line, not(containsString("gender")));
+	}
+
+	@Test
+	public void testExportWithSince() throws Exception {
+		Patient p = new Patient();
+		p.addName().addFamily("testExportWithSince");
+		IIdType id1 = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		Thread.sleep(100);
+		Date since = new Date();
+		Thread.sleep(100);
+
+		p = new Patient();
+		p.addName().addFamily("testExportWithSince");
+		IIdType id2 = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+
+		BulkExportJob job = runJob(Arrays.asList("Patient"), since, null);
+
+		Map<String, String> output = readOutput(job, "Patient");
+		assertFalse(output.containsKey(id1.getValue()));
+		assertTrue(output.containsKey(id2.getValue()));
+	}
+
+}
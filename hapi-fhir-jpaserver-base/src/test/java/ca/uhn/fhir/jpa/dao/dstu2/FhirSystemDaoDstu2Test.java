@@ -4,6 +4,7 @@ import static org.hamcrest.Matchers.containsString;
 import static org.hamcrest.Matchers.emptyString;
 import static org.hamcrest.Matchers.endsWith;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.startsWith;
 import static org.junit.Assert.assertEquals;
@@ -23,6 +24,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.commons.io.IOUtils;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
 import org.hl7.fhir.instance.model.api.IIdType;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -31,6 +34,8 @@ import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import ca.uhn.fhir.jpa.dao.BaseHapiFhirDao;
+import ca.uhn.fhir.jpa.entity.ReindexJob;
+import ca.uhn.fhir.jpa.entity.ReindexJobStatusEnum;
 import ca.uhn.fhir.jpa.entity.ResourceEncodingEnum;
 import ca.uhn.fhir.jpa.entity.ResourceTable;
 import ca.uhn.fhir.jpa.entity.TagTypeEnum;
@@ -58,12 +63,16 @@ import ca.uhn.fhir.model.dstu2.valueset.IssueSeverityEnum;
 import ca.uhn.fhir.model.primitive.IdDt;
 import ca.uhn.fhir.model.primitive.UriDt;
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.Constants;
 import ca.uhn.fhir.rest.server.IBundleProvider;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ca.uhn.fhir.rest.server.interceptor.IServerInterceptor.ActionRequestDetails;
 
 public class FhirSystemDaoDstu2Test extends BaseJpaDstu2SystemTest {
@@ -143,6 +152,213 @@ public class FhirSystemDaoDstu2Test extends BaseJpaDstu2SystemTest {
 
 	}
 	
+	@Test
+	public void testReindexJob() {
+		for (int i = 0; i < 5; i++) {
+			Patient p = new Patient();
+			p.addName().addFamily("testReindexJob" + i);
+			myPatientDao.create(p);
+		}
+		Observation o = new Observation();
+		o.getCode().setText("testReindexJob");
+		myObservationDao.create(o);
+
+		myDaoConfig.setReindexChunkSize(2);
+		myDaoConfig.setReindexParallelism(1);
+
+		ReindexJob job = mySystemDao.startReindexJob("Patient");
+		assertEquals(ReindexJobStatusEnum.RUNNING, job.getStatus());
+		assertThat(job.getTotalCount(), greaterThan(4L));
+		assertEquals(job.getId(), mySystemDao.getReindexJob(null).getId());
+
+		// One pass reindexes one chunk and checkpoints the job
+		assertEquals(2, mySystemDao.performReindexJobPass());
+		job = mySystemDao.getReindexJob(job.getId());
+		assertEquals(ReindexJobStatusEnum.RUNNING, job.getStatus());
+		assertEquals(2, job.getProcessedCount());
+		assertThat(job.getNextPid(), greaterThan(0L));
+		assertNotNull(job.getStarted());
+
+		// The rest is processed in parallel from the checkpoint
+		myDaoConfig.setReindexParallelism(2);
+		int passes = 0;
+		while (mySystemDao.performReindexJobPass() > 0) {
+			passes++;
+			assertThat(passes, lessThan(1000));
+		}
+
+		job = mySystemDao.getReindexJob(job.getId());
+		assertEquals(ReindexJobStatusEnum.COMPLETE, job.getStatus());
+		assertEquals(job.getTotalCount(), job.getProcessedCount());
+		assertEquals(0, job.getFailedCount());
+		assertThat(job.getNextPid(), greaterThan(job.getEndPid()));
+		assertNotNull(job.getFinished());
+
+		assertEquals(0, mySystemDao.performReindexJobPass());
+	}
+
+	@Test
+	public void testReindexJobInvalidType() {
+		try {
+			mySystemDao.startReindexJob("FooBar");
+			fail();
+		} catch (InvalidRequestException e) {
+			assertEquals("Unknown resource type: FooBar", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testEncodingMigrationPass() {
+		myDaoConfig.setResourceEncoding(ResourceEncodingEnum.JSONC);
+
+		Patient p = new Patient();
+		p.addName().addFamily("testEncodingMigrationPass");
+		final IIdType id = myPatientDao.create(p).getId().toUnqualifiedVersionless();
+		p.setId(id);
+		p.addName().addFamily("testEncodingMigrationPass2");
+		myPatientDao.update(p);
+
+		myDaoConfig.setResourceEncoding(ResourceEncodingEnum.JSOND);
+		int count = 0;
+		for (int pass = mySystemDao.performEncodingMigrationPass(null); pass > 0; pass = mySystemDao.performEncodingMigrationPass(null)) {
+			count += pass;
+		}
+		assertThat(count, greaterThan(1));
+		assertEquals(0, mySystemDao.performEncodingMigrationPass(null));
+
+		ResourceTable entity = new TransactionTemplate(myTxManager).execute(new TransactionCallback<ResourceTable>() {
+			@Override
+			public ResourceTable doInTransaction(TransactionStatus theStatus) {
+				return myEntityManager.find(ResourceTable.class, id.getIdPartAsLong());
+			}
+		});
+		assertEquals(ResourceEncodingEnum.JSOND, entity.getEncoding());
+
+		p = myPatientDao.read(id);
+		assertEquals("testEncodingMigrationPass2", p.getName().get(1).getFamilyAsSingleString());
+		p = myPatientDao.read(id.withVersion("1"));
+		assertEquals(1, p.getName().size());
+		assertEquals("testEncodingMigrationPass", p.getNameFirstRep().getFamilyAsSingleString());
+	}
+
+	private String createImportNdjson(String theMethodName) {
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < 3; i++) {
+			Observation o = new Observation();
+			o.setId("Observation/" + theMethodName + "-obs" + i);
+			o.getCode().setText(theMethodName);
+			o.setSubject(new ResourceReferenceDt("Patient/" + theMethodName + "-pat"));
+			b.append(myFhirCtx.newJsonParser().encodeResourceToString(o)).append("\n");
+		}
+		b.append("\n");
+
+		// Placed after the observations which refer to it, since everything is stored before being indexed
+		Patient p = new Patient();
+		p.setId("Patient/" + theMethodName + "-pat");
+		p.addName().addFamily(theMethodName);
+		b.append(myFhirCtx.newJsonParser().encodeResourceToString(p)).append("\n");
+
+		Patient p2 = new Patient();
+		p2.addName().addFamily(theMethodName);
+		b.append(myFhirCtx.newJsonParser().encodeResourceToString(p2)).append("\n");
+		return b.toString();
+	}
+
+	@Test
+	public void testImportNdjson() {
+		Patient existing = new Patient();
+		existing.setId("Patient/testImportNdjson-pat");
+		existing.addName().addFamily("old");
+		myPatientDao.update(existing);
+
+		assertEquals(5, mySystemDao.importNdjson(createImportNdjson("testImportNdjson"), false));
+
+		IBundleProvider found = myPatientDao.search(Patient.SP_FAMILY, new StringParam("testImportNdjson"));
+		assertEquals(2, found.size());
+		Patient p = myPatientDao.read(new IdDt("Patient/testImportNdjson-pat"));
+		assertEquals("2", p.getId().getVersionIdPart());
+		assertEquals(0, myPatientDao.search(Patient.SP_FAMILY, new StringParam("old")).size());
+
+		found = myObservationDao.search(Observation.SP_SUBJECT, new ReferenceParam("Patient/testImportNdjson-pat"));
+		assertEquals(3, found.size());
+	}
+
+	@Test
+	public void testImportNdjsonDeferIndexing() {
+		mySystemDao.performReindexingPass(null);
+
+		assertEquals(5, mySystemDao.importNdjson(createImportNdjson("testImportNdjsonDeferIndexing"), true));
+		assertNotNull(myObservationDao.read(new IdDt("Observation/testImportNdjsonDeferIndexing-obs0")));
+		assertEquals(0, myPatientDao.search(Patient.SP_FAMILY, new StringParam("testImportNdjsonDeferIndexing")).size());
+
+		int count = 0;
+		for (int pass = mySystemDao.performReindexingPass(null); pass > 0; pass = mySystemDao.performReindexingPass(null)) {
+			count += pass;
+		}
+		assertEquals(5, count);
+
+		assertEquals(2, myPatientDao.search(Patient.SP_FAMILY, new StringParam("testImportNdjsonDeferIndexing")).size());
+		assertEquals(3, myObservationDao.search(Observation.SP_SUBJECT, new ReferenceParam("Patient/testImportNdjsonDeferIndexing-pat")).size());
+	}
+
+	/**
+	 * Documents are loaded in the order the import command sends them, which is the alphabetical order of the files
+	 * written by $export, so observations arrive before the patient they refer to
+	 */
+	@Test
+	public void testImportNdjsonReferencesBetweenDocuments() {
+		String methodName = "testImportNdjsonReferencesBetweenDocuments";
+		Observation o = new Observation();
+		o.setId("Observation/" + methodName + "-obs");
+		o.getCode().setText(methodName);
+		o.setSubject(new ResourceReferenceDt("Patient/" + methodName + "-pat"));
+		String observations = myFhirCtx.newJsonParser().encodeResourceToString(o);
+
+		Patient p = new Patient();
+		p.setId("Patient/" + methodName + "-pat");
+		p.addName().addFamily(methodName);
+		String patients = myFhirCtx.newJsonParser().encodeResourceToString(p);
+
+		// Indexing each document as it is stored fails, since the patient doesn't exist yet
+		try {
+			mySystemDao.importNdjson(observations, false);
+			fail();
+		} catch (InvalidRequestException e) {
+			assertThat(e.getMessage(), containsString("Patient/" + methodName + "-pat"));
+		}
+
+		assertEquals(1, mySystemDao.importNdjson(observations, true));
+		assertEquals(1, mySystemDao.importNdjson(patients, true));
+
+		mySystemDao.startReindexJob(null);
+		int passes = 0;
+		while (mySystemDao.performReindexJobPass() > 0) {
+			passes++;
+			assertThat(passes, lessThan(1000));
+		}
+		assertEquals(0, mySystemDao.getReindexJob(null).getFailedCount());
+
+		assertEquals(1, myPatientDao.search(Patient.SP_FAMILY, new StringParam(methodName)).size());
+		assertEquals(1, myObservationDao.search(Observation.SP_SUBJECT, new ReferenceParam("Patient/" + methodName + "-pat")).size());
+	}
+
+	@Test
+	public void testImportNdjsonInvalid() {
+		try {
+			mySystemDao.importNdjson("{\"resourceType\":\"Patient\"}\n\n{\"resourceType\":\"Patient\",", false);
+			fail();
+		} catch (InvalidRequestException e) {
+			assertThat(e.getMessage(), containsString("line 3"));
+		}
+
+		try {
+			mySystemDao.importNdjson("{\"resourceType\":\"Patient\",\"id\":\"123\"}", false);
+			fail();
+		} catch (UnprocessableEntityException e) {
+			assertThat(e.getMessage(), containsString("numeric ID 123"));
+		}
+	}
+
 	@Test
 	public void testSystemMetaOperation() {
 
@@ -279,6 +495,58 @@ public class FhirSystemDaoDstu2Test extends BaseJpaDstu2SystemTest {
 
 	}
 
+	@Test
+	public void testTransactionBatchInParallel() {
+		String methodName = "testTransactionBatchInParallel";
+		myDaoConfig.setBatchParallelism(4);
+
+		Bundle request = new Bundle();
+		request.setType(BundleTypeEnum.BATCH);
+
+		for (int i = 0; i < 30; i++) {
+			Patient p = new Patient();
+			p.addName().addFamily(methodName + i);
+			request.addEntry().setResource(p).getRequest().setMethod(HTTPVerbEnum.POST);
+		}
+
+		// Conditional creates with the same URL must run in order, so only the first creates a resource
+		for (int i = 0; i < 2; i++) {
+			Patient p = new Patient();
+			p.addIdentifier().setSystem("urn:system").setValue(methodName);
+			request.addEntry().setResource(p).getRequest().setMethod(HTTPVerbEnum.POST).setIfNoneExist("Patient?identifier=urn%3Asystem%7C" + methodName);
+		}
+
+		// Updates to the same ID must also run in order
+		for (int i = 0; i < 2; i++) {
+			Patient p = new Patient();
+			p.setId("Patient/" + methodName);
+			p.addName().addFamily(methodName + "UPDATE" + i);
+			request.addEntry().setResource(p).getRequest().setMethod(HTTPVerbEnum.PUT).setUrl("Patient/" + methodName);
+		}
+
+		Bundle resp = mySystemDao.transaction(myRequestDetails, request);
+		assertEquals(35, resp.getEntry().size());
+		assertEquals(BundleTypeEnum.BATCH_RESPONSE, resp.getTypeElement().getValueAsEnum());
+
+		// Response entries are in the same order as the request entries
+		for (int i = 0; i < 30; i++) {
+			EntryResponse respEntry = resp.getEntry().get(i + 1).getResponse();
+			assertEquals("201 Created", respEntry.getStatus());
+			Patient created = myPatientDao.read(new IdDt(respEntry.getLocation()));
+			assertEquals(methodName + i, created.getNameFirstRep().getFamilyAsSingleString());
+		}
+
+		assertEquals("201 Created", resp.getEntry().get(31).getResponse().getStatus());
+		assertEquals("200 OK", resp.getEntry().get(32).getResponse().getStatus());
+		assertEquals(new IdDt(resp.getEntry().get(31).getResponse().getLocation()).toVersionless(), new IdDt(resp.getEntry().get(32).getResponse().getLocation()).toVersionless());
+
+		assertEquals("201 Created", resp.getEntry().get(33).getResponse().getStatus());
+		assertEquals("200 OK", resp.getEntry().get(34).getResponse().getStatus());
+		Patient updated = myPatientDao.read(new IdDt("Patient/" + methodName));
+		assertEquals("2", updated.getId().getVersionIdPart());
+		assertEquals(methodName + "UPDATE1", updated.getNameFirstRep().getFamilyAsSingleString());
+	}
+
 	@Test
 	public void testTransactionCreateMatchUrlWithOneMatch() {
 		String methodName = "testTransactionCreateMatchUrlWithOneMatch";
@@ -1510,6 +1778,45 @@ public class FhirSystemDaoDstu2Test extends BaseJpaDstu2SystemTest {
 
 	}
 
+	@Test
+	public void testTransactionWithPlaceholdersIndexesEachResourceOnce() {
+		String methodName = "testTransactionWithPlaceholdersIndexesEachResourceOnce";
+		Bundle request = new Bundle();
+		request.setType(BundleTypeEnum.TRANSACTION);
+
+		Patient p = new Patient();
+		p.setId("urn:uuid:3a7b4a3c-7a55-4c1b-9d21-2f1e4b8c9d10");
+		p.addIdentifier().setSystem("urn:system").setValue(methodName);
+		request.addEntry().setResource(p).getRequest().setMethod(HTTPVerbEnum.POST).setUrl("Patient");
+
+		for (int i = 0; i < 150; i++) {
+			Observation o = new Observation();
+			o.addIdentifier().setSystem("urn:system").setValue(methodName + i);
+			o.setSubject(new ResourceReferenceDt("urn:uuid:3a7b4a3c-7a55-4c1b-9d21-2f1e4b8c9d10"));
+			request.addEntry().setResource(o).getRequest().setMethod(HTTPVerbEnum.POST).setUrl("Observation");
+		}
+
+		Statistics statistics = myEntityManager.getEntityManagerFactory().unwrap(SessionFactory.class).getStatistics();
+		statistics.clear();
+		statistics.setStatisticsEnabled(true);
+		Bundle resp;
+		try {
+			resp = mySystemDao.transaction(myRequestDetails, request);
+		} finally {
+			statistics.setStatisticsEnabled(false);
+		}
+		ourLog.info("Transaction with {} entries used {} flushes", request.getEntry().size(), statistics.getFlushCount());
+		assertThat(statistics.getFlushCount(), lessThan(20L));
+
+		IIdType patientId = new IdDt(resp.getEntry().get(0).getResponse().getLocation()).toUnqualifiedVersionless();
+		assertTrue(patientId.getIdPart().matches("^[0-9]+$"));
+		assertEquals(150, myObservationDao.search(Observation.SP_SUBJECT, new ReferenceParam(patientId.getValue())).size());
+		assertEquals(1, myObservationDao.search(Observation.SP_IDENTIFIER, new TokenParam("urn:system", methodName + "149")).size());
+
+		Observation o = myObservationDao.read(new IdDt(resp.getEntry().get(1).getResponse().getLocation()));
+		assertEquals(patientId.getValue(), o.getSubject().getReference().toUnqualifiedVersionless().getValue());
+	}
+
 	/**
 	 * This is not the correct way to do it, but we'll allow it to be lenient
 	 */
@@ -0,0 +1,187 @@
+package ca.uhn.fhir.jpa.dao.dstu2;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.jpa.dao.SearchParamExtractionPlan;
+import ca.uhn.fhir.jpa.dao.SearchParamExtractionPlan.ExtractedValues;
+import ca.uhn.fhir.jpa.util.StopWatch;
+import ca.uhn.fhir.model.dstu2.composite.QuantityDt;
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.Observation;
+import ca.uhn.fhir.model.dstu2.resource.Patient;
+import ca.uhn.fhir.model.dstu2.valueset.AdministrativeGenderEnum;
+import ca.uhn.fhir.model.primitive.StringDt;
+import ca.uhn.fhir.rest.method.RestSearchParameterTypeEnum;
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * Checks that the compiled extraction plans find exactly the values that {@link FhirTerser} finds, and logs a simple
+ * extraction throughput figure for both which can be compared between builds
+ */
+public class SearchParamExtractionPlanDstu2Test {
+
+	private static final org.slf4j.Logger ourLog = org.slf4j.LoggerFactory.getLogger(SearchParamExtractionPlanDstu2Test.class);
+	private static FhirContext ourCtx = FhirContext.forDstu2();
+
+	private List<IBaseResource> loadExampleResources() throws Exception {
+		String input = IOUtils.toString(getClass().getResourceAsStream("/bundle-dstu2.json"));
+		Bundle bundle = ourCtx.newJsonParser().parseResource(Bundle.class, input);
+
+		List<IBaseResource> retVal = new ArrayList<IBaseResource>();
+		for (Bundle.Entry next : bundle.getEntry()) {
+			retVal.add(next.getResource());
+		}
+
+		Patient p = new Patient();
+		p.setGender(AdministrativeGenderEnum.FEMALE);
+		for (int i = 0; i < 10; i++) {
+			p.addIdentifier().setSystem("urn:system").setValue("ID" + i);
+			p.addName().addFamily("FAMILY" + i).addGiven("GIVEN" + i);
+			p.addAddress().addLine("LINE" + i).setCity("CITY" + i);
+		}
+		retVal.add(p);
+
+		Observation o = new Observation();
+		o.getCode().addCoding().setSystem("http://loinc.org").setCode("55284-4");
+		o.setValue(new QuantityDt().setValue(new BigDecimal("123")).setUnit("mmHg"));
+		o.addComponent().setValue(new StringDt("component value")).getCode().addCoding().setSystem("http://loinc.org").setCode("8480-6");
+		o.addComponent().setValue(new QuantityDt().setValue(new BigDecimal("80"))).getCode().addCoding().setSystem("http://loinc.org").setCode("8462-4");
+		retVal.add(o);
+
+		return retVal;
+	}
+
+	private List<Object> extractWithTerser(FhirTerser theTerser, IBaseResource theResource, String thePaths) {
+		List<Object> retVal = new ArrayList<Object>();
+		for (String nextPath : thePaths.split("\\|")) {
+			try {
+				retVal.addAll(theTerser.getValues(theResource, nextPath.trim()));
+			} catch (Exception e) {
+				// The plan drops paths which can't be resolved, so these contribute no values
+			}
+		}
+		return retVal;
+	}
+
+	@Test
+	public void testPlanFindsSameValuesAsTerser() throws Exception {
+		FhirTerser terser = ourCtx.newTerser();
+		int compared = 0;
+		for (IBaseResource nextResource : loadExampleResources()) {
+			RuntimeResourceDefinition def = ourCtx.getResourceDefinition(nextResource);
+			ExtractedValues values = SearchParamExtractionPlan.compile(ourCtx, def).execute(nextResource);
+
+			for (RuntimeSearchParam nextSpDef : def.getSearchParams()) {
+				String nextPath = nextSpDef.getPath();
+				if (isBlank(nextPath)) {
+					continue;
+				}
+
+				List<Object> expected = extractWithTerser(terser, nextResource, nextPath);
+				List<Object> actual = values.get(nextPath);
+				assertEquals(def.getName() + " " + nextPath, expected.size(), actual.size());
+				for (int i = 0; i < expected.size(); i++) {
+					assertSame(def.getName() + " " + nextPath, expected.get(i), actual.get(i));
+				}
+				compared += expected.size();
+			}
+		}
+
+		assertTrue(compared > 100);
+	}
+
+	@Test
+	public void testChoiceElementsAreFilteredByType() {
+		Observation o = new Observation();
+		o.setValue(new StringDt("value"));
+		o.addComponent().setValue(new QuantityDt().setValue(new BigDecimal("80")));
+		o.addComponent().setValue(new StringDt("component value"));
+
+		ExtractedValues values = SearchParamExtractionPlan.compile(ourCtx, ourCtx.getResourceDefinition(o)).execute(o);
+		assertEquals(0, values.get("Observation.valueQuantity").size());
+		assertEquals(1, values.get("Observation.valueString").size());
+		assertEquals(1, values.get("Observation.component.valueQuantity").size());
+		assertEquals(0, values.get("Observation.nonExistentPath").size());
+	}
+
+	@Test
+	public void testUnresolvableIntermediateElementIsSkipped() {
+		// Use a separate context so that the extra search parameter doesn't affect the other tests
+		FhirContext ctx = FhirContext.forDstu2();
+		RuntimeResourceDefinition def = ctx.getResourceDefinition(Observation.class);
+		def.addSearchParam(new RuntimeSearchParam("bad-path", "", "Observation.component.nonExistentPath.value", RestSearchParameterTypeEnum.STRING));
+
+		Observation o = new Observation();
+		o.addComponent().setValue(new StringDt("component value")).getCode().addCoding().setSystem("http://loinc.org").setCode("8480-6");
+
+		SearchParamExtractionPlan plan = SearchParamExtractionPlan.compile(ctx, def);
+		for (int i = 0; i < 2; i++) {
+			ExtractedValues values = plan.execute(o);
+			assertEquals(0, values.get("Observation.component.nonExistentPath.value").size());
+			assertEquals(1, values.get("Observation.component.code").size());
+		}
+	}
+
+	@Test
+	public void testExtractionThroughput() throws Exception {
+		List<IBaseResource> resources = loadExampleResources();
+		FhirTerser terser = ourCtx.newTerser();
+		int iterations = 200;
+
+		List<SearchParamExtractionPlan> plans = new ArrayList<SearchParamExtractionPlan>();
+		for (IBaseResource next : resources) {
+			plans.add(SearchParamExtractionPlan.compile(ourCtx, ourCtx.getResourceDefinition(next)));
+		}
+
+		// Warm up both approaches before timing them
+		long found = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			StopWatch sw = new StopWatch();
+			for (int i = 0; i < iterations; i++) {
+				for (IBaseResource nextResource : resources) {
+					for (RuntimeSearchParam nextSpDef : ourCtx.getResourceDefinition(nextResource).getSearchParams()) {
+						if (isBlank(nextSpDef.getPath())) {
+							continue;
+						}
+						found += extractWithTerser(terser, nextResource, nextSpDef.getPath()).size();
+					}
+				}
+			}
+			long terserMillis = sw.getMillisAndRestart();
+
+			for (int i = 0; i < iterations; i++) {
+				for (int j = 0; j < resources.size(); j++) {
+					IBaseResource nextResource = resources.get(j);
+					ExtractedValues values = plans.get(j).execute(nextResource);
+					for (RuntimeSearchParam nextSpDef : ourCtx.getResourceDefinition(nextResource).getSearchParams()) {
+						if (isBlank(nextSpDef.getPath())) {
+							continue;
+						}
+						found -= values.get(nextSpDef.getPath()).size();
+					}
+				}
+			}
+			long planMillis = sw.getMillisAndRestart();
+
+			long extractions = (long) iterations * resources.size();
+			ourLog.info("Extracted search param values from {} resources: terser {}ms ({}/second), plan {}ms ({}/second)", new Object[] { extractions, terserMillis, (extractions * 1000L) / Math.max(terserMillis, 1), planMillis, (extractions * 1000L) / Math.max(planMillis, 1) });
+		}
+
+		assertEquals(0, found);
+	}
+
+}
@@ -0,0 +1,37 @@
+package ca.uhn.fhir.jpa.entity;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class ResourceEncodingEnumTest {
+
+	private static final String RESOURCE = "{\"resourceType\":\"Patient\",\"id\":\"123\",\"meta\":{\"versionId\":\"1\",\"lastUpdated\":\"2016-01-01T10:00:00.000-05:00\"}," + 
+		"\"identifier\":[{\"system\":\"urn:oid:1.2.3\",\"value\":\"123\"}],\"name\":[{\"family\":[\"Tester\"],\"given\":[\"André 漢字\"]}],\"gender\":\"male\"}";
+
+	@Test
+	public void testEncodeAndDecode() {
+		for (ResourceEncodingEnum next : ResourceEncodingEnum.values()) {
+			byte[] encoded = next.encode(RESOURCE);
+			assertEquals(next.name(), RESOURCE, next.decodeToString(encoded));
+		}
+	}
+
+	@Test
+	public void testDictionaryEncodingIsSmallerThanGzip() {
+		int gzip = ResourceEncodingEnum.JSONC.encode(RESOURCE).length;
+		int deflate = ResourceEncodingEnum.JSOND.encode(RESOURCE).length;
+		assertThat(deflate, lessThan(gzip));
+	}
+
+	@Test
+	public void testNamesFitInColumn() {
+		// Names are stored in the RES_ENCODING column, which has a length of 5
+		for (ResourceEncodingEnum next : ResourceEncodingEnum.values()) {
+			assertThat(next.name().length(), lessThan(6));
+		}
+	}
+
+}
@@ -0,0 +1,63 @@
+package ca.uhn.fhir.jpa.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+
+import org.junit.Test;
+
+import ca.uhn.fhir.jpa.dao.SearchParameterMap;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringAndListParam;
+import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+public class SearchResultCacheSvcTest {
+
+	@Test
+	public void testCreateKeyIgnoresOrder() {
+		SearchParameterMap map1 = new SearchParameterMap();
+		map1.add("status", new TokenOrListParam().addOr(new TokenParam(null, "a")).addOr(new TokenParam(null, "b")));
+		map1.add("name", new StringAndListParam().addAnd(new StringOrListParam().addOr(new StringParam("x"))).addAnd(new StringOrListParam().addOr(new StringParam("y"))));
+
+		SearchParameterMap map2 = new SearchParameterMap();
+		map2.add("name", new StringAndListParam().addAnd(new StringOrListParam().addOr(new StringParam("y"))).addAnd(new StringOrListParam().addOr(new StringParam("x"))));
+		map2.add("status", new TokenOrListParam().addOr(new TokenParam(null, "b")).addOr(new TokenParam(null, "a")));
+
+		assertEquals(SearchResultCacheSvc.createKey("Encounter", map1), SearchResultCacheSvc.createKey("Encounter", map2));
+		assertNotEquals(SearchResultCacheSvc.createKey("Encounter", map1), SearchResultCacheSvc.createKey("Patient", map1));
+	}
+
+	@Test
+	public void testCreateKeyIncludesModifiers() {
+		SearchParameterMap map1 = new SearchParameterMap();
+		map1.add("name", new StringParam("x"));
+
+		SearchParameterMap map2 = new SearchParameterMap();
+		map2.add("name", new StringParam("x", true));
+
+		assertNotEquals(SearchResultCacheSvc.createKey("Patient", map1), SearchResultCacheSvc.createKey("Patient", map2));
+	}
+
+	@Test
+	public void testFindResourceTypes() {
+		SearchParameterMap map = new SearchParameterMap();
+		map.add("location", new ReferenceParam("Location/1"));
+		map.addRevInclude(new Include("Observation:subject"));
+		Set<String> types = SearchResultCacheSvc.findResourceTypes("Encounter", map);
+		assertEquals(2, types.size());
+		assertTrue(types.contains("Encounter"));
+		assertTrue(types.contains("Observation"));
+
+		map = new SearchParameterMap();
+		map.add("location", new ReferenceParam("name", "foo"));
+		types = SearchResultCacheSvc.findResourceTypes("Encounter", map);
+		assertTrue(types.contains(SearchResultCacheSvc.ANY_RESOURCE_TYPE));
+	}
+
+}
@@ -0,0 +1,89 @@
+package ca.uhn.fhir.jpa.util;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PidSetTest {
+
+	@Test
+	public void testDifference() {
+		PidSet set = PidSet.of(1, 2, 3, 4, 5);
+		assertArrayEquals(new long[] { 1, 3, 5 }, set.difference(PidSet.of(2, 4, 6)).toLongArray());
+		assertSame(set, set.difference(PidSet.of(6, 7)));
+		assertSame(set, set.difference(PidSet.empty()));
+	}
+
+	@Test
+	public void testFromCollection() {
+		List<Long> input = new ArrayList<Long>();
+		input.add(5L);
+		input.add(null);
+		input.add(1L);
+		input.add(5L);
+		input.add(3L);
+		PidSet set = PidSet.fromCollection(input);
+		assertEquals(3, set.size());
+		assertEquals(Arrays.asList(1L, 3L, 5L), set.toList());
+		assertTrue(set.contains(3L));
+		assertFalse(set.contains(4L));
+		assertFalse(set.contains("3"));
+
+		assertSame(set, PidSet.fromCollection(set));
+		assertTrue(PidSet.fromCollection(null).isEmpty());
+	}
+
+	@Test
+	public void testIntersect() {
+		PidSet left = PidSet.of(1, 3, 5, 7, 9);
+		PidSet right = PidSet.of(3, 4, 5, 6, 7);
+		assertArrayEquals(new long[] { 3, 5, 7 }, left.intersect(right).toLongArray());
+		assertArrayEquals(new long[] { 3, 5, 7 }, right.intersect(left).toLongArray());
+		assertTrue(left.intersect(PidSet.of(2, 4)).isEmpty());
+		assertTrue(left.intersect(PidSet.empty()).isEmpty());
+	}
+
+	@Test
+	public void testIntersectMatchesHashSet() {
+		Random random = new Random(12345);
+		for (int pass = 0; pass < 20; pass++) {
+			HashSet<Long> left = new HashSet<Long>();
+			HashSet<Long> right = new HashSet<Long>();
+			int leftSize = random.nextInt(50);
+			int rightSize = random.nextInt(5000);
+			for (int i = 0; i < leftSize; i++) {
+				left.add((long) random.nextInt(10000));
+			}
+			for (int i = 0; i < rightSize; i++) {
+				right.add((long) random.nextInt(10000));
+			}
+
+			HashSet<Long> expected = new HashSet<Long>(left);
+			expected.retainAll(right);
+
+			PidSet actual = PidSet.fromCollection(left).intersect(PidSet.fromCollection(right));
+			assertEquals(expected, actual);
+			assertEquals(expected, PidSet.fromCollection(right).intersect(PidSet.fromCollection(left)));
+		}
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testModifyFails() {
+		PidSet.of(1, 2).add(3L);
+	}
+
+	@Test
+	public void testUnion() {
+		PidSet set = PidSet.of(1, 3, 5);
+		assertArrayEquals(new long[] { 1, 2, 3, 4, 5 }, set.union(PidSet.of(2, 3, 4)).toLongArray());
+		assertSame(set, set.union(PidSet.empty()));
+		assertSame(set, set.union(PidSet.of(1, 5)));
+	}
+
+}